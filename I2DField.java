@@ -37,6 +37,11 @@ public class I2DField extends IField implements I2DFieldI{
     //public void applyField(IParticleI p){ p.push(get(p.pos()).to3d()); }
     public void applyField(IParticleI p){ p.push(get(p.pos(),p.vel()).to3d()); }
     
+    public void applyField(IParticlePool pool, int i){
+	IVec2I f = get(pool.pos(i),pool.vel(i));
+	if(f!=null) pool.push(i,f.to3d());
+    }
+    
     public I2DFieldI field(){ return field; }
     /** set no decay */
     public I2DField noDecay(){ field.noDecay(); return this; }
@@ -22,6 +22,8 @@
 
 package igeo;
 
+import java.util.ArrayList;
+
 /**
    3D vector filed agent.
    
@@ -38,7 +40,22 @@ public class I3DField extends IField implements I3DFieldI{
     //public void applyField(IParticleI p){ p.push(get(p.pos())); }
     public void applyField(IParticleI p){ p.push(get(p.pos(),p.vel())); }
     
+    public void applyField(IParticlePool pool, int i){
+	IVecI f = get(pool.pos(i),pool.vel(i));
+	if(f!=null) pool.push(i,f);
+    }
+    
     public I3DFieldI field(){ return field; }
+    
+    /** when IConfig.pointFieldTree is true, point fields are applied at once by IDynamicServer.applyPointFields() */
+    public void interact(ArrayList<IDynamics> agents){
+	if(IConfig.pointFieldTree && IPointFieldTree.isTreeField(this) &&
+	   server!=null && server.dynamicServer!=null && server.dynamicServer.dynamics==agents){
+	    server.dynamicServer.applyPointFields();
+	    return;
+	}
+	super.interact(agents);
+    }
     /** set no decay */
     public I3DField noDecay(){ if(field!=null){ field.noDecay(); } return this; }
     /** set linear decay with threshold; When distance is equal to threshold, output is zero.*/
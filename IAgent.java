@@ -46,6 +46,12 @@ public class IAgent extends IObject implements IDynamics{
     /** check if a child class overrides void interact(IDynamics) or not */
     public boolean interactOverridden=false;
     
+    /** if true, it's executed in parallel threads when IConfig.parallelDynamics is true. see IDynamics.parallel() */
+    public boolean parallel=false;
+    
+    /** if zero or positive and the agent is IVecI, interact(IDynamics) is called only for agents within this distance */
+    public double interactionRadius=-1;
+    
     public IAgent(){ super(); initAgent(); }
     
     public IAgent(IObject parent){ super(); this.parent=parent; initAgent(); }
@@ -53,13 +59,16 @@ public class IAgent extends IObject implements IDynamics{
     public void initAgent(){
 	super.addDynamics(this);
 	/** check if a child class overrides void interact(IDynamics) or not */
-	try{
-	    interactOverridden = 
-		getClass().getMethod("interact", IDynamics.class).getDeclaringClass() !=
-		IAgent.class;
-	}catch(NoSuchMethodException e){}
+	interactOverridden = interactOverriddenCache.get(getClass());
     }
     
+    /** cache of check if a class overrides void interact(IDynamics) not to use reflection for every instance */
+    static final ClassValue<Boolean> interactOverriddenCache = new ClassValue<Boolean>(){
+	protected Boolean computeValue(Class<?> cls){
+	    return IDynamicServer.declaringClass(cls, "interact", IDynamics.class) != IAgent.class;
+	}
+    };
+    
     
     /** override IObject.addDynamics to manage dynamics locally.
 	Only IAgent is added at IObject */
@@ -136,6 +145,13 @@ public class IAgent extends IObject implements IDynamics{
     public ArrayList<IDynamics> localDynamics(){ return localDynamics; }
     
     
+    /** check if it's executed in parallel threads. see IDynamics.parallel().
+	An agent with duration is not executed in parallel because it deletes itself at the end of the duration. */
+    public boolean parallel(){ return parallel && duration<0; }
+    /** set true only when it follows the contract described at IDynamics.parallel() */
+    public IAgent parallel(boolean p){ parallel=p; return this; }
+    
+    
     /** add terget object to be updated by this dynamic object. */
     public IAgent target(IObject targetObj){
 	if(targets==null) targets = new ArrayList<IObject>();
@@ -169,6 +185,11 @@ public class IAgent extends IObject implements IDynamics{
     
     public boolean alive(){ return alive; }
     
+    public double interactionRadius(){ return interactionRadius; }
+    /** interact(IDynamics) is called only for agents within this distance from the agent.
+	Agents are found with the neighbor grid of IDynamicServer. Negative value to call it for all agents. */
+    public IAgent interactionRadius(double radius){ interactionRadius=radius; return this; }
+    
     public int time(){ return time; }
     /** not recommended to use. use carefully if you use */
     public IAgent time(int tm){ time=tm; return this; }
@@ -182,7 +203,8 @@ public class IAgent extends IObject implements IDynamics{
 	//if(localDynamics!=null) for(IDynamics d:localDynamics) d.interact(agents); // commented out 20120826; now localDynamics are managed by IDynamicServer
     }
     
-    synchronized public void interact(ArrayList<IDynamics> agents){ // could be overridden
+    /** not synchronized not to hold the lock of this agent while interact(IDynamics) reads other agents in parallel threads */
+    public void interact(ArrayList<IDynamics> agents){ // could be overridden
 	//initInteract(agents);
 	
 	/*
@@ -197,6 +219,16 @@ public class IAgent extends IObject implements IDynamics{
 	
 	if(interactOverridden){
 	    IDynamics d=null;
+	    if(interactionRadius>=0 && this instanceof IVecI &&
+	       server!=null && server.dynamicServer!=null && server.dynamicServer.dynamics==agents){
+		INeighborGrid grid = server.dynamicServer.neighborGrid(interactionRadius);
+		int[] neighbors = grid.find((IVecI)this, interactionRadius);
+		for(int i=0; i<neighbors.length; i++){
+		    d = grid.get(neighbors[i]);
+		    if(d != this) interact(d);
+		}
+		return;
+	    }
 	    for(int i=0; i<agents.size(); i++){
 		d = agents.get(i);
 		if(d != this) interact(d);
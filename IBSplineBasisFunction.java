@@ -29,13 +29,14 @@ package igeo;
 */
 public class IBSplineBasisFunction{ // not implementing IFunction. return type of eval() is different
     public int degree;
-    public IBSplineBasisSubFunction[] functions;
+    /** polynomial functions of each basis. they are built on demand by functions()
+	because evaluation by Cox-de Boor recursion only needs knots. */
+    public volatile IBSplineBasisSubFunction[] functions;
     public double[] knots;
     
     public IBSplineBasisFunction(int degree, double[] knots){
 	this.degree=degree;
 	this.knots = knots;
-	init();
     }
     
     public IBSplineBasisFunction(IBSplineBasisFunction bf){
@@ -49,16 +50,31 @@ public class IBSplineBasisFunction{ // not implementing IFunction. return type o
     public IBSplineBasisFunction dup(){ return new IBSplineBasisFunction(this); }
     
     public void init(IBSplineBasisFunction bf){
-	functions = new IBSplineBasisSubFunction[knots.length-degree-1];
-	for(int i=0; i<functions.length; i++){
-	    functions[i] = new IBSplineBasisSubFunction(bf.functions[i],knots);
+	IBSplineBasisSubFunction[] bfunc = bf.functions();
+	IBSplineBasisSubFunction[] func = new IBSplineBasisSubFunction[knots.length-degree-1];
+	for(int i=0; i<func.length; i++){
+	    func[i] = new IBSplineBasisSubFunction(bfunc[i],knots);
 	}
+	functions = func;
     }
     
     public void init(){
-	functions = new IBSplineBasisSubFunction[knots.length-degree-1];
-	for(int i=0; i<functions.length; i++)
-	    functions[i] = new IBSplineBasisSubFunction(degree,i,knots);
+	IBSplineBasisSubFunction[] func = new IBSplineBasisSubFunction[knots.length-degree-1];
+	for(int i=0; i<func.length; i++)
+	    func[i] = new IBSplineBasisSubFunction(degree,i,knots);
+	functions = func; // set after filled for other threads
+    }
+    
+    /** polynomial functions of each basis, built at the first call */
+    public IBSplineBasisSubFunction[] functions(){
+	IBSplineBasisSubFunction[] func = functions;
+	if(func==null){
+	    synchronized(this){
+		if(functions==null){ init(); }
+		func = functions;
+	    }
+	}
+	return func;
     }
     
     public int index(double x){
@@ -83,10 +99,20 @@ public class IBSplineBasisFunction{ // not implementing IFunction. return type o
     }
     
     
+    /** knot span index of x, checking the span of hint first to skip the search when x stays in the same span */
+    public int index(double x, int hint){
+	if(hint>=degree && hint<knots.length-1-degree && x>=knots[hint] && x<knots[hint+1]){
+	    return hint;
+	}
+	return index(x);
+    }
+    
+    
     public double[] eval(double x){
 	int index = index(x);
 	
 	double[] val=new double[degree+1];
+	IBSplineBasisSubFunction[] functions = functions();
 	for(int i=0; i<=degree; i++){
 	    if( i+index-degree >= 0 && i+index-degree < functions.length )
 		val[i] = functions[i+index-degree].functions[degree-i+1].eval(x);
@@ -97,6 +123,7 @@ public class IBSplineBasisFunction{ // not implementing IFunction. return type o
     
     public double[] eval(int index, double x){
 	double[] val=new double[degree+1];
+	IBSplineBasisSubFunction[] functions = functions();
 	for(int i=0; i<=degree; i++){
 	    if( i+index-degree >= 0 && i+index-degree < functions.length ){
 		val[i] = functions[i+index-degree].functions[degree-i+1].eval(x);
@@ -121,13 +148,157 @@ public class IBSplineBasisFunction{ // not implementing IFunction. return type o
 	return val;
     }
     
+    /**
+       Values of non-zero basis functions at x in the knot span of index by Cox-de Boor recursion
+       written into val, without polynomial functions nor allocation.
+       val[i] is the value of (index-degree+i)-th basis function. val should have degree+1 length.
+       @return val
+    */
+    public double[] eval(int index, double x, double[] val){
+	int p = degree;
+	Scratch s = scratch().ensure(p, 0);
+	double[] left = s.left, right = s.right;
+	val[0]=1.0;
+	for(int j=1; j<=p; j++){
+	    left[j] = x-knots[index+1-j];
+	    right[j] = knots[index+j]-x;
+	    double saved=0.0;
+	    for(int r=0; r<j; r++){
+		double temp = val[r]/(right[r+1]+left[j-r]);
+		val[r] = saved+right[r+1]*temp;
+		saved = left[j-r]*temp;
+	    }
+	    val[j] = saved;
+	}
+	return val;
+    }
+    
+    /**
+       Values and derivatives of non-zero basis functions at x in the knot span of index
+       by Cox-de Boor recursion, without polynomial functions.
+       ders[k][i] is k-th derivative of (index-degree+i)-th basis function (k=0..n).
+       ders should have n+1 rows of degree+1 length.
+       Intermediate arrays are taken from the scratch of the current thread.
+    */
+    public void derivatives(int index, double x, int n, double[][] ders){
+	int p = degree;
+	Scratch s = scratch().ensure(p, 0);
+	double[][] ndu = s.ndu;
+	double[] left = s.left;
+	double[] right = s.right;
+	double[][] a = s.a;
+	ndu[0][0]=1.0;
+	for(int j=1; j<=p; j++){
+	    left[j] = x-knots[index+1-j];
+	    right[j] = knots[index+j]-x;
+	    double saved=0.0;
+	    for(int r=0; r<j; r++){
+		ndu[j][r] = right[r+1]+left[j-r];
+		double temp = ndu[r][j-1]/ndu[j][r];
+		ndu[r][j] = saved+right[r+1]*temp;
+		saved = left[j-r]*temp;
+	    }
+	    ndu[j][j] = saved;
+	}
+	for(int j=0; j<=p; j++){ ders[0][j] = ndu[j][p]; }
+	for(int k=p+1; k<=n; k++){ for(int j=0; j<=p; j++){ ders[k][j]=0; } }
+	if(n>p){ n=p; }
+	
+	for(int r=0; r<=p; r++){
+	    int s1=0, s2=1;
+	    a[0][0]=1.0;
+	    for(int k=1; k<=n; k++){
+		double d=0.0;
+		int rk=r-k, pk=p-k;
+		if(r>=k){
+		    a[s2][0] = a[s1][0]/ndu[pk+1][rk];
+		    d = a[s2][0]*ndu[rk][pk];
+		}
+		int j1 = rk>=-1 ? 1 : -rk;
+		int j2 = r-1<=pk ? k-1 : p-r;
+		for(int j=j1; j<=j2; j++){
+		    a[s2][j] = (a[s1][j]-a[s1][j-1])/ndu[pk+1][rk+j];
+		    d += a[s2][j]*ndu[rk+j][pk];
+		}
+		if(r<=pk){
+		    a[s2][k] = -a[s1][k-1]/ndu[pk+1][r];
+		    d += a[s2][k]*ndu[r][pk];
+		}
+		ders[k][r] = d;
+		int tmp=s1; s1=s2; s2=tmp;
+	    }
+	}
+	int r=p;
+	for(int k=1; k<=n; k++){
+	    for(int j=0; j<=p; j++){ ders[k][j] *= r; }
+	    r *= p-k;
+	}
+    }
+    
+    /** scratch buffers of the current thread for evaluation without allocation */
+    public static Scratch scratch(){ return threadScratch.get(); }
+    
+    static final ThreadLocal<Scratch> threadScratch = new ThreadLocal<Scratch>(){
+	protected Scratch initialValue(){ return new Scratch(); }
+    };
+    
+    /**
+       Scratch buffers for basis function evaluation, reused within a thread and grown by the max degree.
+       basis and ders are for callers to receive results of eval(int,double,double[]) and derivatives().
+    */
+    static public class Scratch{
+	public int degree=-1, order=-1;
+	public double[] left, right;
+	public double[][] ndu, a;
+	/** buffer of basis values */
+	public double[] basis;
+	/** buffer of basis derivatives */
+	public double[][] ders;
+	/** buffer of control points for callers. null while it's taken. */
+	public IVec[] points;
+	
+	/** make sure buffers fit degree and derivatives order n */
+	public Scratch ensure(int degree, int n){
+	    if(degree>this.degree){
+		this.degree = degree;
+		left = new double[degree+1];
+		right = new double[degree+1];
+		ndu = new double[degree+1][degree+1];
+		a = new double[2][degree+1];
+		basis = new double[degree+1];
+		order = -1;
+	    }
+	    if(n>order){
+		order = n;
+		ders = new double[n+1][this.degree+1];
+	    }
+	    return this;
+	}
+	
+	/**
+	   take the buffer of control points with length num at least.
+	   a new array is returned when it's already taken by an outer evaluation in the same thread.
+	*/
+	public IVec[] takePoints(int num){
+	    IVec[] p = points;
+	    if(p==null || p.length<num){ p = new IVec[num]; }
+	    points = null;
+	    return p;
+	}
+	
+	/** give back the buffer taken by takePoints() to be reused */
+	public void givePoints(IVec[] p){ points = p; }
+    }
+    
     public void differentiate(){
+	IBSplineBasisSubFunction[] functions = functions();
 	for(int i=0; i<functions.length; i++) functions[i].differentiate();
     }
     
     
     public IMatrix[] getMatrices(){
 	IMatrix[] matrices = new IMatrix[knots.length - degree*2 -1];
+	IBSplineBasisSubFunction[] functions = functions();
 	for(int i=0; i<matrices.length; i++){
 	    matrices[i] = new IMatrix(degree+1, degree+1);
 	    matrices[i].setZero();
@@ -161,6 +332,7 @@ public class IBSplineBasisFunction{ // not implementing IFunction. return type o
 	
 	IMatrix matrix = new IMatrix(degree+1, degree+1);
 	matrix.setZero();
+	IBSplineBasisSubFunction[] functions = functions();
 	
 	double domain1 = knots[i+degree];
 	double domain2 = knots[i+degree+1];
@@ -415,6 +415,11 @@ public class IBoid extends IParticle implements IBoidI{
     public IBoid setSize(double sz){ return size(sz); }
     public IBoid size(double sz){ point.size(sz); return this; }
     
+    /** set true only when it follows the contract described at IDynamics.parallel() */
+    public IBoid parallel(boolean p){ super.parallel(p); return this; }
+    /** interact(IDynamics) is called only for agents within this distance */
+    public IBoid interactionRadius(double radius){ super.interactionRadius(radius); return this; }
+    
     /**************************************
      * methods of IObject
      *************************************/
@@ -43,6 +43,8 @@ public class IBoidGeo extends IParticleGeo implements IBoidI{
     IVec cohesionForce = new IVec();
     IVec separationForce = new IVec();
     IVec alignmentForce = new IVec();
+    /** temporary vector to avoid creating instance for each neighbor */
+    IVec dif = new IVec();
 
     public ArrayList<Class<? extends IBoidI>> targetClasses;
     
@@ -75,6 +77,7 @@ public class IBoidGeo extends IParticleGeo implements IBoidI{
 	cohesionForce = new IVec();
         separationForce = new IVec();
 	alignmentForce = new IVec();
+	dif = new IVec();
     }
     
     public double cohDist(){ return cohesionDist; }
@@ -178,7 +181,8 @@ public class IBoidGeo extends IParticleGeo implements IBoidI{
 
 
     
-    synchronized public void interact(ArrayList<IDynamics> dynamics){
+    /** not synchronized to avoid deadlock reading other boids in parallel threads; it only changes its own force */
+    public void interact(ArrayList<IDynamics> dynamics){
 	
 	if(cohesionRatio==0 && separationRatio==0 && alignmentRatio==0 ||
 	   cohesionDist<=0 && separationDist<=0 && alignmentDist<=0 ) return; // skip // added 20120905
@@ -193,17 +197,30 @@ public class IBoidGeo extends IParticleGeo implements IBoidI{
 	separationForce.zero(); // reset
 	alignmentForce.zero(); // reset
 	
+	// neighbors within the max distance are taken from the grid of the server in the same order with dynamics
+	INeighborGrid grid = null;
+	int[] neighbors = null;
+	if(IConfig.useNeighborGrid){
+	    IDynamicServer server = dynamicServer();
+	    if(server!=null && server.dynamics==dynamics){
+		double maxDist = Math.max(cohesionDist, Math.max(separationDist, alignmentDist));
+		grid = server.neighborGrid(maxDist);
+		neighbors = grid.find(pos, maxDist);
+	    }
+	}
+	int num = neighbors==null?dynamics.size():neighbors.length;
+	
 	IDynamics dy=null;
-	for(int i=0; i<dynamics.size(); i++){
+	for(int i=0; i<num; i++){
 	    
 	    // what happens if IBoidGeo is grandchild of IAgent?
 	    // (boid in local dynamics of IAgent which is also local dynamics of IAgent)
-	    dy = dynamics.get(i);
+	    dy = neighbors==null?dynamics.get(i):grid.get(neighbors[i]);
 	    if( ( (targetClasses==null && dy instanceof IBoidI) || targetClasses!=null && isTargetClass(dy) )
 		&& dy != this && dy != parent ){
 		
 		IBoidI b = (IBoidI)dy;
-		IVec dif = b.pos().dif(pos());
+		dif.set(b.pos()).sub(pos());
 		double dist = dif.len();
 		// cohere
 		if(dist < cohesionDist){
@@ -269,6 +286,7 @@ public class IBoidGeo extends IParticleGeo implements IBoidI{
      * IParticleI API
      **************************************/
     
+    public IBoidGeo parallel(boolean p){ super.parallel(p); return this; }
     public IBoidGeo fix(){ super.fix(); return this; }
     public IBoidGeo unfix(){ super.unfix(); return this; }
     public IBoidGeo skipUpdateOnce(boolean f){ super.skipUpdateOnce(f); return this; }
@@ -22,6 +22,8 @@
 
 package igeo;
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Comparator;
 
 /**
    manage multiple fields; included field should be point / curve / surface based field because it needs to measure distance to check which is closest.
@@ -37,6 +39,10 @@ public class ICompoundField extends I3DField{
     public ArrayList<ISurfaceFieldGeo> surfaceFields;
     public ArrayList<I3DFieldI> otherFields;
     
+    /** bounding volume hierarchy of point / curve / surface fields to find the closest field.
+	it's rebuilt in the first search in each step because geometries might move. */
+    public FieldNode fieldTree;
+    
     public ICompoundField(){
 	super(null);
 	pointFields = new ArrayList<IPointFieldGeo>();
@@ -60,6 +66,7 @@ public class ICompoundField extends I3DField{
 	else if(field instanceof ICurveFieldGeo){ curveFields.add((ICurveFieldGeo)field); }
 	else if(field instanceof ISurfaceFieldGeo){ surfaceFields.add((ISurfaceFieldGeo)field); }
 	else{ otherFields.add(field); }
+	fieldTree=null;
 	return this;
     }
     
@@ -76,53 +83,171 @@ public class ICompoundField extends I3DField{
 	else if(field instanceof ICurveFieldGeo){ curveFields.remove((ICurveFieldGeo)field); }
 	else if(field instanceof ISurfaceFieldGeo){ surfaceFields.remove((ISurfaceFieldGeo)field); }
 	else{ otherFields.remove(field); }
+	fieldTree=null;
 	return this;
     }
     
+    /** the tree of fields is rebuilt in each step */
+    public void preinteract(ArrayList<IDynamics> agents){
+	super.preinteract(agents);
+	fieldTree=null;
+    }
+    
     @Override public IVecI get(IVecI pt){ return get(pt,null); }
     
     @Override public IVecI get(IVecI pt, IVecI vel){
 	// find closest field
-	I3DFieldI closestField=null;
-	double minDist=0;
-	double dist=0;
+	I3DFieldI closestField = closestField(pt);
+	
+	if(closestField==null){ return new IVec(); }
 	
-	//debug
-	IVecI closestPt=null;
+	//return closestField.get(pt);
+	return closestField.get(pt,vel);
+    }
+    
+    /** find closest field out of point / curve / surface fields.
+	If multiple fields are at the same distance, the one added first is returned (points first, curves next and surfaces last). */
+    public I3DFieldI closestField(IVecI pt){
+	FieldNode tree = fieldTree;
+	if(tree==null){
+	    tree = buildFieldTree();
+	    fieldTree = tree;
+	}
+	if(tree==null) return null;
+	IVec p = pt.get();
+	FieldSearch search = new FieldSearch();
+	tree.search(p, search);
+	if(search.entry==null) return null;
+	return search.entry.field;
+    }
+    
+    public FieldNode buildFieldTree(){
+	ArrayList<FieldEntry> entries = new ArrayList<FieldEntry>();
+	int order=0;
 	for(int i=0; i<pointFields.size(); i++){
-	    if(pointFields.get(i).pos!=null){
-		dist = pointFields.get(i).pos.dist(pt);
-		if(dist < minDist || closestField==null){
-		    minDist = dist; closestField = pointFields.get(i);
-		    //debug
-		    //closestPt = pointFields.get(i).pos;
-		}
-	    }
+	    if(pointFields.get(i).pos!=null){ entries.add(new FieldEntry(pointFields.get(i), order)); }
+	    order++;
 	}
-	for(int i=0; i<curveFields.size(); i++){
-	    dist = curveFields.get(i).curve.dist(pt);
-	    if(dist < minDist || closestField==null){
-		minDist = dist; closestField = curveFields.get(i);
-		//debug
-		//closestPt = curveFields.get(i).curve.closePt(pt);
-	    }
+	for(int i=0; i<curveFields.size(); i++){ entries.add(new FieldEntry(curveFields.get(i), order++)); }
+	for(int i=0; i<surfaceFields.size(); i++){ entries.add(new FieldEntry(surfaceFields.get(i), order++)); }
+	if(entries.size()==0) return null;
+	return new FieldNode(entries.toArray(new FieldEntry[entries.size()]), 0, entries.size());
+    }
+    
+    
+    /** point / curve / surface field with bounding box of control points.
+	NURBS curves and surfaces are inside of the convex hull of control points and
+	distance to the box is lower bound of distance to the geometry. */
+    static public class FieldEntry{
+	public I3DFieldI field;
+	public int order;
+	public double minX, minY, minZ, maxX, maxY, maxZ;
+	
+	public FieldEntry(IPointFieldGeo f, int order){
+	    field=f; this.order=order;
+	    IVec p = f.pos.get();
+	    minX=maxX=p.x; minY=maxY=p.y; minZ=maxZ=p.z;
+	}
+	public FieldEntry(ICurveFieldGeo f, int order){
+	    field=f; this.order=order;
+	    init(f.curve.cp(0));
+	    for(int i=1; i<f.curve.cpNum(); i++){ compare(f.curve.cp(i)); }
 	}
-	for(int i=0; i<surfaceFields.size(); i++){
-	    dist = surfaceFields.get(i).surface.dist(pt);
-	    if(dist < minDist || closestField==null){
-		minDist = dist; closestField = surfaceFields.get(i);
-		//debug
-		//closestPt = surfaceFields.get(i).surface.closePt(pt);
+	public FieldEntry(ISurfaceFieldGeo f, int order){
+	    field=f; this.order=order;
+	    init(f.surface.cp(0,0));
+	    for(int i=0; i<f.surface.ucpNum(); i++){
+		for(int j=0; j<f.surface.vcpNum(); j++){ compare(f.surface.cp(i,j)); }
 	    }
 	}
+	void init(IVecI p){
+	    minX=maxX=p.x(); minY=maxY=p.y(); minZ=maxZ=p.z();
+	}
+	void compare(IVecI p){
+	    double x=p.x(), y=p.y(), z=p.z();
+	    if(x<minX) minX=x; if(x>maxX) maxX=x;
+	    if(y<minY) minY=y; if(y>maxY) maxY=y;
+	    if(z<minZ) minZ=z; if(z>maxZ) maxZ=z;
+	}
+	double center(int axis){
+	    if(axis==0) return (minX+maxX)/2;
+	    if(axis==1) return (minY+maxY)/2;
+	    return (minZ+maxZ)/2;
+	}
+	/** lower bound of distance */
+	public double boxDist(IVec p){ return ICompoundField.boxDist(p,minX,minY,minZ,maxX,maxY,maxZ); }
+	/** actual distance to the geometry of the field */
+	public double dist(IVecI pt){
+	    if(field instanceof IPointFieldGeo) return ((IPointFieldGeo)field).pos.dist(pt);
+	    if(field instanceof ICurveFieldGeo) return ((ICurveFieldGeo)field).curve.dist(pt);
+	    return ((ISurfaceFieldGeo)field).surface.dist(pt);
+	}
+    }
+    
+    static double boxDist(IVec p, double minX, double minY, double minZ, double maxX, double maxY, double maxZ){
+	double dx = p.x<minX?minX-p.x:p.x>maxX?p.x-maxX:0;
+	double dy = p.y<minY?minY-p.y:p.y>maxY?p.y-maxY:0;
+	double dz = p.z<minZ?minZ-p.z:p.z>maxZ?p.z-maxZ:0;
+	return Math.sqrt(dx*dx+dy*dy+dz*dz);
+    }
+    
+    /** current best result of closest field search */
+    static public class FieldSearch{
+	public FieldEntry entry;
+	public double dist;
+	/** check the entry and keep it if it's closer, or at the same distance and added earlier */
+	void check(FieldEntry e, IVec p){
+	    if(entry!=null && e.boxDist(p) > dist) return;
+	    double d = e.dist(p);
+	    if(entry==null || d < dist || d==dist && e.order < entry.order){ entry=e; dist=d; }
+	}
+    }
+    
+    /** node of bounding volume hierarchy of fields split at the median on the longest axis */
+    static public class FieldNode{
+	static final int leafSize = 4;
+	public FieldEntry[] entries;
+	public int start, end;
+	public FieldNode child1, child2;
+	public double minX, minY, minZ, maxX, maxY, maxZ;
 	
-	if(closestField==null){ return new IVec(); }
+	public FieldNode(FieldEntry[] entries, int start, int end){
+	    this.entries=entries; this.start=start; this.end=end;
+	    minX=entries[start].minX; minY=entries[start].minY; minZ=entries[start].minZ;
+	    maxX=entries[start].maxX; maxY=entries[start].maxY; maxZ=entries[start].maxZ;
+	    for(int i=start+1; i<end; i++){
+		FieldEntry e = entries[i];
+		if(e.minX<minX) minX=e.minX; if(e.maxX>maxX) maxX=e.maxX;
+		if(e.minY<minY) minY=e.minY; if(e.maxY>maxY) maxY=e.maxY;
+		if(e.minZ<minZ) minZ=e.minZ; if(e.maxZ>maxZ) maxZ=e.maxZ;
+	    }
+	    if(end-start > leafSize){
+		final int axis = maxX-minX >= maxY-minY && maxX-minX >= maxZ-minZ ? 0 : maxY-minY >= maxZ-minZ ? 1 : 2;
+		Arrays.sort(entries, start, end, new Comparator<FieldEntry>(){
+			public int compare(FieldEntry e1, FieldEntry e2){
+			    return Double.compare(e1.center(axis), e2.center(axis));
+			}
+		    });
+		int mid = (start+end)/2;
+		child1 = new FieldNode(entries, start, mid);
+		child2 = new FieldNode(entries, mid, end);
+	    }
+	}
 	
-	// debug
-	//debugLine = new ICurve(pt.dup(), closestPt).clr(1.0,0.5); //
+	public double boxDist(IVec p){ return ICompoundField.boxDist(p,minX,minY,minZ,maxX,maxY,maxZ); }
 	
-	//return closestField.get(pt);
-	return closestField.get(pt,vel);
+	/** search closest field skipping nodes whose box is farther than the current closest one */
+	public void search(IVec p, FieldSearch search){
+	    if(child1==null){
+		for(int i=start; i<end; i++){ search.check(entries[i], p); }
+		return;
+	    }
+	    double d1 = child1.boxDist(p), d2 = child2.boxDist(p);
+	    FieldNode first = d1<=d2?child1:child2, second = d1<=d2?child2:child1;
+	    double firstDist = Math.min(d1,d2), secondDist = Math.max(d1,d2);
+	    if(search.entry==null || firstDist <= search.dist) first.search(p, search);
+	    if(search.entry==null || secondDist <= search.dist) second.search(p, search);
+	}
     }
     
     /* // child fields are aready deleted when added
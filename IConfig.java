@@ -205,6 +205,8 @@ public /*interface*/ class IConfig{
     public static int surfaceCacheResolution=4; //1;
     /** max depth of recursive search of closest point */
     public static int cacheRecursionMaxDepth = 15; //12; //10;
+    /** max iteration of Newton refinement of closest point on curve / surface */
+    public static int cacheNewtonMaxIteration = 8;
     
     /*****************************
      * field properties
@@ -213,6 +215,13 @@ public /*interface*/ class IConfig{
     public static double defaultFieldIntensity = 10;
     public static boolean defaultConstantFieldIntensity = true;
     
+    /** apply IAttractor, IPointCurlField and IGravity to particles at once with IPointFieldTree in IDynamicServer. Default is false. */
+    public static boolean pointFieldTree = false;
+    /** opening angle of Barnes-Hut approximation of attractors in IPointFieldTree. smaller is more accurate. */
+    public static double pointFieldTreeAngle = 0.5;
+    /** Gaussian decay field is seen as zero beyond this ratio to its threshold in IPointFieldTree. if it's zero or negative, it's not cut off. */
+    public static double gaussianFieldCutoff = 3.0;
+    
     
     /*****************************
      * dynamics properties
@@ -254,6 +263,18 @@ public /*interface*/ class IConfig{
     /** synchronize draw loop and dynamics updating loop instead of using another thread. default is false to use multi-thread. */
     public static boolean syncDrawAndDynamics=false;
     
+    /** when dynamics run in a separate thread, graphics updated in IDynamicServer.step() copy geometry at the end of the step and the draw thread draws the last copy instead of geometry being updated. Default is true. */
+    public static boolean snapshotDynamics=true;
+    
+    /** run each phase of IDynamicServer.step() in parallel threads for dynamics returning true at IDynamics.parallel(). Dynamics not returning true are still executed sequentially in the original order. Default is false. */
+    public static boolean parallelDynamics=false;
+    
+    /** minimum number of consecutive parallel dynamics to be executed in parallel threads in IDynamicServer. Shorter sequences are executed sequentially. */
+    public static int parallelDynamicsMinNum=256;
+    
+    /** use spatial grid of IDynamicServer to find neighbors in interact of IBoidGeo instead of checking all dynamics. Default is true. */
+    public static boolean useNeighborGrid=true;
+    
     
     /*****************************
      * properties of IWall
@@ -418,6 +439,26 @@ public /*interface*/ class IConfig{
     public static boolean checkValidControlPoint=true;
 
 
+    /*************************************************************************************
+     * parallel processing
+     ************************************************************************************/
+    
+    /** number of threads used in parallel processing. if it's zero or negative, number of available processors is used. */
+    public static int threadNum=0;
+    
+    /** minimum number of samples evaluated in one thread by batch evaluation like ICurveGeo.pt(double[],double[]) and ISurfaceGeo.ptGrid(). smaller batches are evaluated in the current thread. */
+    public static int parallelEvalMinNum=2048;
+    
+    /** when importing a 3dm file, object records are decoded in parallel threads and added to the server in the order of the file. */
+    public static boolean parallelImport=true;
+    
+    /** when exporting a file, object records of a 3dm file and vertices and faces of a large mesh in an OBJ file are encoded in parallel threads and written in order. */
+    public static boolean parallelExport=true;
+    
+    /** evaluate pixels of IMap.createImage() and tiles of IRasterMap.rasterize() in parallel threads. IMap.get() is called concurrently and maps overriding it need to be thread safe. Default is false. */
+    public static boolean parallelMap=false;
+    
+    
     /*************************************************************************************
      * AI Export
      ************************************************************************************/
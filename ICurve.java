@@ -261,6 +261,14 @@ public class ICurve extends IGeometry implements ICurveI{
 	return this;
     }
     
+    /** replace all control points and rebuild the curve with default equal intervals of knots.
+	duplicated control points are not checked.
+    */
+    synchronized public ICurve setCP(IVecI[] cpts, int degree){
+	curve.setCP(cpts,degree); updateGraphic(); if(server!=null){ server.updateState(); }
+	return this;
+    }
+    
     /** add control point at i and rebuild the curve and change degree.
      	note that a knots is rebuilt with default equal intervals
 	and destroy original knot intervals if variable, like circle.
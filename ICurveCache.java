@@ -22,6 +22,8 @@
 
 package igeo;
 
+import java.util.ArrayList;
+
 /**
    Point cache of a curve for proximity search.
    
@@ -32,8 +34,16 @@ public class ICurveCache{
     public ICurveGeo curve;
     public int resolution;
     public int deg;
-    public IVec[] pts; // for 3d search
-    public IVec2[] pts2; // for 2d search
+    public volatile IVec[] pts; // for 3d search
+    public volatile IVec2[] pts2; // for 2d search
+    /** internal parameter U at each cache point (degree>1) */
+    public double[] us;
+    /** bounding box tree of line segments between cache points for 3d search (degree>1) */
+    public SegmentNode tree;
+    /** deviation of the curve from each segment between cache points, measured at the middle of segments */
+    public double[] deviations;
+    /** max of deviations */
+    public double deviation;
     
     public ICurveCache(ICurveGeo crv, int resolution){
 	curve = crv;
@@ -45,49 +55,98 @@ public class ICurveCache{
 	this(crv, IConfig.curveCacheResolution);
     }
     
+    /** cache points are filled before they are set to <code>pts</code> so that other threads don't read partially filled cache */
     public void init(){
 	if(deg==1){
-	    pts = new IVec[curve.cpNum()];
-	    for(int i=0; i<pts.length; i++){ pts[i] = curve.cp(i).get(); }
+	    // control points are referenced directly and they might move. no tree.
+	    IVec[] p = new IVec[curve.cpNum()];
+	    for(int i=0; i<p.length; i++){ p[i] = curve.cp(i).get(); }
+	    pts = p;
 	}
 	else{
 	    int epnum = curve.epNum() ;
             int num = (epnum-1)*resolution+1;
-	    pts = new IVec[num];
+	    IVec[] p = new IVec[num];
+	    double[] u = new double[num];
 	    for(int i=0; i<epnum; i++){
                 for(int j=0; j<resolution; j++){
                     if(i<epnum-1 || j==0){
-                        pts[i*resolution + j] = curve.pt(curve.u(i,(double)j/resolution));
+			u[i*resolution + j] = curve.u(i,(double)j/resolution);
                     }
                 }
             }
+	    double[] xyz = curve.pt(u, null);
+	    for(int i=0; i<num; i++){ p[i] = new IVec(xyz[i*3], xyz[i*3+1], xyz[i*3+2]); }
+	    
+	    double[] devs = new double[num>1?num-1:0];
+	    double dev=0;
+	    double[] midu = new double[devs.length];
+	    for(int i=0; i<num-1; i++){ midu[i] = (u[i]+u[i+1])/2; }
+	    double[] midxyz = curve.pt(midu, null);
+	    for(int i=0; i<num-1; i++){
+		devs[i] = p[i].mid(p[i+1]).dist(midxyz[i*3], midxyz[i*3+1], midxyz[i*3+2]);
+		if(devs[i]>dev){ dev=devs[i]; }
+	    }
+	    deviations = devs;
+	    deviation = dev;
+	    us = u;
+	    if(num>1){ tree = new SegmentNode(p); }
+	    pts = p;
 	}
     }
     
     
     public void init2(){
 	if(deg==1){
-	    pts2 = new IVec2[curve.cpNum()];
-	    for(int i=0; i<pts2.length; i++){ pts2[i] = curve.cp(i).get().to2d(); }
+	    IVec2[] p = new IVec2[curve.cpNum()];
+	    for(int i=0; i<p.length; i++){ p[i] = curve.cp(i).get().to2d(); }
+	    pts2 = p;
 	}
 	else{
 	    int epnum = curve.epNum() ;
             int num = (epnum-1)*resolution+1;
-	    pts2 = new IVec2[num];
+	    IVec2[] p = new IVec2[num];
 	    for(int i=0; i<epnum; i++){
                 for(int j=0; j<resolution; j++){
                     if(i<epnum-1 || j==0){
-                        pts2[i*resolution + j] = curve.pt(curve.u(i,(double)j/resolution)).to2d();
+			p[i*resolution + j] = curve.pt(curve.u(i,(double)j/resolution)).to2d();
                     }
                 }
             }
+	    pts2 = p;
 	}
     }
     
     
     /** approximate invert projection from 3D location to interanl parameter U (closest point on curve) */
     public double u(IVec pt){
-	if(pts==null) init();
+	if(pts==null){
+	    synchronized(this){ if(pts==null) init(); }
+	}
+	
+	if(tree!=null){
+	    // closest segment of cache polyline
+	    SegmentSearch search = new SegmentSearch();
+	    tree.search(pt, pts, search);
+	    int i = search.index;
+	    double u = newton(pt, us[i] + (us[i+1]-us[i])*search.ratio);
+	    if(deviation==0) return u;
+	    // other segments which can be closer because the curve deviates from segments
+	    double dist = curve.pt(u).dist(pt);
+	    double limit = dist + deviation;
+	    search.candidates = new ArrayList<double[]>();
+	    tree.search(pt, pts, limit*limit, search);
+	    for(int j=0; j<search.candidates.size(); j++){
+		double[] c = search.candidates.get(j);
+		int k = (int)c[0];
+		if(k==i || Math.sqrt(c[2]) - deviations[k] >= dist) continue;
+		if(us[k] <= u && u <= us[k+1]) continue; // would converge to the same point
+		double u2 = newton(pt, us[k] + (us[k+1]-us[k])*c[1]);
+		double dist2 = curve.pt(u2).dist(pt);
+		if(dist2 < dist){ u=u2; dist=dist2; }
+	    }
+	    return u;
+	}
 	
 	int idx = closest(pt);
 	if(deg==1){
@@ -160,7 +219,9 @@ public class ICurveCache{
     
     /** approximate invert projection from 2D location to interanl parameter U */
     public double u(IVec2 pt){
-	if(pts2==null) init2();
+	if(pts2==null){
+	    synchronized(this){ if(pts2==null) init2(); }
+	}
 	
 	int idx = closest(pt);
 	if(deg==1){
@@ -264,7 +325,50 @@ public class ICurveCache{
 	return recursiveSearch(pt, (minU+maxU)/2, null, maxU, maxPt, depthCount);
     }
     
-        
+    
+    /**
+       Newton iteration of closest point on the curve from the initial parameter u.
+       It solves (C(u)-pt)&middot;C'(u)=0 and the step is halved when the distance doesn't decrease.
+    */
+    public double newton(IVec pt, double u){
+	IVec cpt = new IVec(), d1 = new IVec(), d2 = new IVec();
+	IVec cpt2 = new IVec(), d12 = new IVec(), d22 = new IVec();
+	derivatives(u, cpt, d1, d2);
+	double dist2 = pt.dist2(cpt);
+	for(int i=0; i<IConfig.cacheNewtonMaxIteration && dist2>0; i++){
+	    double tlen2 = d1.len2();
+	    if(tlen2==0) return u;
+	    double dx = cpt.x-pt.x, dy = cpt.y-pt.y, dz = cpt.z-pt.z;
+	    double f = dx*d1.x + dy*d1.y + dz*d1.z;
+	    double df = tlen2 + dx*d2.x + dy*d2.y + dz*d2.z;
+	    double du = df>0? -f/df : -f/tlen2; // Gauss-Newton step when not convex
+	    boolean improved=false;
+	    for(int j=0; j<10 && !improved; j++, du/=2){
+		double u2 = u+du;
+		if(u2<0){ u2=0; } else if(u2>1.0){ u2=1.0; }
+		if(u2==u) return u;
+		derivatives(u2, cpt2, d12, d22);
+		double dist2b = pt.dist2(cpt2);
+		if(dist2b < dist2){
+		    if(Math.abs(u2-u)*Math.sqrt(tlen2) < IConfig.tolerance) return u2;
+		    u=u2; dist2=dist2b;
+		    IVec tmp=cpt; cpt=cpt2; cpt2=tmp;
+		    tmp=d1; d1=d12; d12=tmp;
+		    tmp=d2; d2=d22; d22=tmp;
+		    improved=true;
+		}
+	    }
+	    if(!improved) return u;
+	}
+	return u;
+    }
+    
+    /** point, first and second derivative of the curve at u in one pass over control points */
+    public void derivatives(double u, IVec pt, IVec d1, IVec d2){
+	curve.derivatives(u, pt, d1, d2);
+    }
+    
+    
     public int closest(IVec pt){
 	int minIdx=-1;
 	double dist=0, minDist=0;
@@ -285,4 +389,142 @@ public class ICurveCache{
 	return minIdx;
     }
     
+    
+    /** result of closest segment search */
+    static public class SegmentSearch{
+	/** index of the start point of the closest segment */
+	public int index=-1;
+	/** ratio of the closest point on the segment */
+	public double ratio;
+	public double dist2;
+	/** segment index, ratio and squared distance of segments within a distance */
+	public ArrayList<double[]> candidates;
+    }
+    
+    /**
+       Bounding box tree of line segments between cache points.
+       Segments are split at the median of their centers on the longest axis of the box.
+    */
+    static public class SegmentNode{
+	static final int leafSize = 4;
+	/** index of segments; segment i is between point i and point i+1 */
+	public int[] segments;
+	/** range in <code>segments</code> */
+	public int start, end;
+	public SegmentNode child1, child2;
+	public double minX, minY, minZ, maxX, maxY, maxZ;
+	
+	/** tree of all segments of the polyline */
+	public SegmentNode(IVec[] pts){
+	    this(pts, new int[pts.length-1], 0, pts.length-1, true);
+	}
+	
+	SegmentNode(IVec[] pts, int[] segments, int start, int end, boolean root){
+	    this.segments=segments; this.start=start; this.end=end;
+	    if(root){ for(int i=start; i<end; i++){ segments[i]=i; } }
+	    minX=maxX=pts[segments[start]].x; minY=maxY=pts[segments[start]].y; minZ=maxZ=pts[segments[start]].z;
+	    for(int i=start; i<end; i++){
+		for(int j=0; j<2; j++){
+		    IVec p = pts[segments[i]+j];
+		    if(p.x<minX) minX=p.x; if(p.x>maxX) maxX=p.x;
+		    if(p.y<minY) minY=p.y; if(p.y>maxY) maxY=p.y;
+		    if(p.z<minZ) minZ=p.z; if(p.z>maxZ) maxZ=p.z;
+		}
+	    }
+	    if(end-start > leafSize){
+		int axis = maxX-minX >= maxY-minY && maxX-minX >= maxZ-minZ ? 0 : maxY-minY >= maxZ-minZ ? 1 : 2;
+		int mid = (start+end)/2;
+		select(pts, segments, start, end-1, mid, axis);
+		child1 = new SegmentNode(pts, segments, start, mid, false);
+		child2 = new SegmentNode(pts, segments, mid, end, false);
+	    }
+	}
+	
+	/** twice of center of segment on the axis */
+	static double center(IVec[] pts, int segment, int axis){
+	    IVec a = pts[segment], b = pts[segment+1];
+	    if(axis==0) return a.x+b.x;
+	    if(axis==1) return a.y+b.y;
+	    return a.z+b.z;
+	}
+	
+	/** partially sort segments between left and right (inclusive) to have k-th element in place */
+	static void select(IVec[] pts, int[] segments, int left, int right, int k, int axis){
+	    while(left<right){
+		double pivot = center(pts, segments[(left+right)/2], axis);
+		int i=left, j=right;
+		while(i<=j){
+		    while(center(pts, segments[i], axis) < pivot) i++;
+		    while(center(pts, segments[j], axis) > pivot) j--;
+		    if(i<=j){
+			int tmp=segments[i]; segments[i]=segments[j]; segments[j]=tmp;
+			i++; j--;
+		    }
+		}
+		if(k<=j){ right=j; }
+		else if(k>=i){ left=i; }
+		else{ return; }
+	    }
+	}
+	
+	public double boxDist2(IVec p){
+	    double dx = p.x<minX?minX-p.x:p.x>maxX?p.x-maxX:0;
+	    double dy = p.y<minY?minY-p.y:p.y>maxY?p.y-maxY:0;
+	    double dz = p.z<minZ?minZ-p.z:p.z>maxZ?p.z-maxZ:0;
+	    return dx*dx+dy*dy+dz*dz;
+	}
+	
+	/** ratio of the closest point on segment i */
+	static double ratio(IVec p, IVec[] pts, int i){
+	    IVec a = pts[i], b = pts[i+1];
+	    double dx=b.x-a.x, dy=b.y-a.y, dz=b.z-a.z;
+	    double len2 = dx*dx+dy*dy+dz*dz;
+	    if(len2==0) return 0;
+	    double r = ((p.x-a.x)*dx + (p.y-a.y)*dy + (p.z-a.z)*dz)/len2;
+	    if(r<0){ return 0; } else if(r>1.0){ return 1.0; }
+	    return r;
+	}
+	
+	static double dist2(IVec p, IVec[] pts, int i, double r){
+	    IVec a = pts[i], b = pts[i+1];
+	    double x=a.x+(b.x-a.x)*r-p.x, y=a.y+(b.y-a.y)*r-p.y, z=a.z+(b.z-a.z)*r-p.z;
+	    return x*x+y*y+z*z;
+	}
+	
+	/** find the closest segment */
+	public void search(IVec p, IVec[] pts, SegmentSearch search){
+	    if(child1==null){
+		for(int j=start; j<end; j++){
+		    int i = segments[j];
+		    double r = ratio(p, pts, i);
+		    double d2 = dist2(p, pts, i, r);
+		    if(search.index<0 || d2 < search.dist2 || d2==search.dist2 && i<search.index){
+			search.index=i; search.ratio=r; search.dist2=d2;
+		    }
+		}
+		return;
+	    }
+	    double d1 = child1.boxDist2(p), d2 = child2.boxDist2(p);
+	    SegmentNode first = d1<=d2?child1:child2, second = d1<=d2?child2:child1;
+	    if(search.index<0 || Math.min(d1,d2) <= search.dist2) first.search(p, pts, search);
+	    if(search.index<0 || Math.max(d1,d2) <= search.dist2) second.search(p, pts, search);
+	}
+	
+	/** collect segments within the squared distance into <code>search.candidates</code> */
+	public void search(IVec p, IVec[] pts, double limit2, SegmentSearch search){
+	    if(boxDist2(p) > limit2) return;
+	    if(child1==null){
+		for(int j=start; j<end; j++){
+		    int i = segments[j];
+		    double r = ratio(p, pts, i);
+		    double d2 = dist2(p, pts, i, r);
+		    if(d2 <= limit2){ search.candidates.add(new double[]{ i, r, d2 }); }
+		}
+		return;
+	    }
+	    child1.search(p, pts, limit2, search);
+	    child2.search(p, pts, limit2, search);
+	}
+    }
+    
 }
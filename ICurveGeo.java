@@ -49,10 +49,8 @@ public class ICurveGeo extends INurbsGeo implements ICurveI, IEntityParameter{
     
     /** bernstein basis function */
     public IBSplineBasisFunction basisFunction;
-    /** derivative of bernstein basis function */
-    public IBSplineBasisFunction derivativeFunction;
     
-    public ICurveCache uSearchCache;
+    public volatile ICurveCache uSearchCache;
     
     
     
@@ -291,10 +289,15 @@ public class ICurveGeo extends INurbsGeo implements ICurveI, IEntityParameter{
     public void pt(double u, IVec retval){
 	//IOut.p("u="+u); //
         int index = basisFunction.index(u);
-        double n[] = basisFunction.eval(index, u);
+	// control points are resolved before the scratch buffer is used because
+	// a reference control point can evaluate another curve in the same thread
+	IBSplineBasisFunction.Scratch scratch = IBSplineBasisFunction.scratch();
+	IVec[] cpts = scratch.takePoints(degree+1);
+	for(int i=0; i<=degree; i++){ cpts[i] = controlPoints[index-degree+i].get(); }
+	double n[] = basisFunction.eval(index, u, scratch.ensure(degree,0).basis);
         double weight=0;
         for(int i=0; i<=degree; i++){
-            IVec cpt=controlPoints[index-degree+i].get();
+	    IVec cpt=cpts[i];
 	    double w=1.;
 	    if(!defaultWeights[index-degree+i]) w=((IVec4)cpt).w;
             retval.x += cpt.x*w*n[i];
@@ -302,6 +305,7 @@ public class ICurveGeo extends INurbsGeo implements ICurveI, IEntityParameter{
             retval.z += cpt.z*w*n[i];
             weight += w*n[i];
         }
+	scratch.givePoints(cpts);
         retval.x/=weight;
         retval.y/=weight;
         retval.z/=weight;
@@ -314,47 +318,102 @@ public class ICurveGeo extends INurbsGeo implements ICurveI, IEntityParameter{
 	return retval;
     }
     public void tan(double u, IVec retval){
-	if(derivativeFunction==null){
-            derivativeFunction=new IBSplineBasisFunction(basisFunction);
-            derivativeFunction.differentiate();
-        }
-        int index = derivativeFunction.index(u);
-	
-        double dn[] = derivativeFunction.eval(index, u);
-        double n[] = basisFunction.eval(index, u);
-        
-        IVec4 val1 = new IVec4();
-        IVec4 val2 = new IVec4();
-        
-        for(int i=0; i<=degree; i++){
-            IVec cpt=controlPoints[index-degree+i].get();
-	    
-            double w=1.;
-            if(!defaultWeights[index-degree+i]) w=((IVec4)cpt).w;
-            
-            val1.x += cpt.x*w*n[i];
-            val1.y += cpt.y*w*n[i];
-            val1.z += cpt.z*w*n[i];
-            val1.w += w*n[i];
-	    
-	    val2.x += cpt.x*w*dn[i];
-            val2.y += cpt.y*w*dn[i];
-            val2.z += cpt.z*w*dn[i];
-            val2.w += w*dn[i];
-        }
-        val1.x*=val2.w;
-        val1.y*=val2.w;
-        val1.z*=val2.w;
-        
-        val2.x*=val1.w;
-        val2.y*=val1.w;
-        val2.z*=val1.w;
-        
-        val1.w*=val1.w;
-        
-        retval.x = (val2.x-val1.x)/val1.w;
-        retval.y = (val2.y-val1.y)/val1.w;
-        retval.z = (val2.z-val1.z)/val1.w;
+	derivatives(u, null, retval, null);
+    }
+    
+    /**
+       Point, first and second derivative of the curve at u in one pass over control points,
+       without allocation. Any of pt, d1 and d2 can be null when not needed.
+    */
+    public void derivatives(double u, IVec pt, IVec d1, IVec d2){
+	int n = d2!=null?2:d1!=null?1:0;
+        int index = basisFunction.index(u);
+	IBSplineBasisFunction.Scratch scratch = IBSplineBasisFunction.scratch();
+	IVec[] cpts = scratch.takePoints(degree+1); // resolved before the scratch buffer is used
+	for(int i=0; i<=degree; i++){ cpts[i] = controlPoints[index-degree+i].get(); }
+	double[][] ders = scratch.ensure(degree,n).ders;
+	basisFunction.derivatives(index, u, n, ders);
+	double x=0, y=0, z=0, w=0, x1=0, y1=0, z1=0, w1=0, x2=0, y2=0, z2=0, w2=0;
+	for(int i=0; i<=degree; i++){
+	    IVec cpt = cpts[i];
+	    double cw=1.;
+	    if(!defaultWeights[index-degree+i]) cw=((IVec4)cpt).w;
+	    double cx=cpt.x*cw, cy=cpt.y*cw, cz=cpt.z*cw;
+	    double b = ders[0][i];
+	    x += cx*b; y += cy*b; z += cz*b; w += cw*b;
+	    if(n>0){
+		b = ders[1][i];
+		x1 += cx*b; y1 += cy*b; z1 += cz*b; w1 += cw*b;
+		if(n>1){
+		    b = ders[2][i];
+		    x2 += cx*b; y2 += cy*b; z2 += cz*b; w2 += cw*b;
+		}
+	    }
+	}
+	scratch.givePoints(cpts);
+	x/=w; y/=w; z/=w;
+	if(pt!=null){ pt.set(x, y, z); }
+	if(n>0){
+	    x1 = (x1-w1*x)/w; y1 = (y1-w1*y)/w; z1 = (z1-w1*z)/w;
+	    if(d1!=null){ d1.set(x1, y1, z1); }
+	    if(n>1){ d2.set((x2-2*w1*x1-w2*x)/w, (y2-2*w1*y1-w2*y)/w, (z2-2*w1*z1-w2*z)/w); }
+	}
+    }
+    
+    /**
+       Points at multiple parameters in one call. The knot span search is skipped while consecutive parameters
+       stay in the same span, and large arrays are split into parallel threads by IConfig.parallelEvalMinNum.
+       @param u internal parameters
+       @param retval x, y, z of each point. if null, a new array of u.length*3 is created.
+       @return retval
+    */
+    public double[] pt(double[] u, double[] retval){ return evalBatch(u, retval, 0); }
+    
+    /**
+       Tangents at multiple parameters in one call in the same way with pt(double[],double[]).
+       @param retval x, y, z of each tangent. if null, a new array of u.length*3 is created.
+       @return retval
+    */
+    public double[] tan(double[] u, double[] retval){ return evalBatch(u, retval, 1); }
+    
+    /** batch evaluation of points (order 0) or tangents (order 1) */
+    protected double[] evalBatch(final double[] u, double[] retval, final int order){
+	if(retval==null){ retval = new double[u.length*3]; }
+	final double[] xyz = retval;
+	// control points multiplied by weights are extracted once
+	final double[] cpts = new double[controlPoints.length*4];
+	for(int i=0; i<controlPoints.length; i++){
+	    IVec cpt = controlPoints[i].get();
+	    double w=1.;
+	    if(!defaultWeights[i]) w=((IVec4)cpt).w;
+	    cpts[i*4] = cpt.x*w; cpts[i*4+1] = cpt.y*w; cpts[i*4+2] = cpt.z*w; cpts[i*4+3] = w;
+	}
+	IParallel.run(0, u.length, IConfig.parallelEvalMinNum, new IParallel.Task(){
+		public void run(int start, int end){
+		    double[][] ders = IBSplineBasisFunction.scratch().ensure(degree, order).ders;
+		    int index=-1;
+		    for(int k=start; k<end; k++){
+			index = basisFunction.index(u[k], index);
+			if(order==0){ basisFunction.eval(index, u[k], ders[0]); }
+			else{ basisFunction.derivatives(index, u[k], order, ders); }
+			double x=0, y=0, z=0, w=0, x1=0, y1=0, z1=0, w1=0;
+			for(int i=0, c=(index-degree)*4; i<=degree; i++, c+=4){
+			    double b = ders[0][i];
+			    x += cpts[c]*b; y += cpts[c+1]*b; z += cpts[c+2]*b; w += cpts[c+3]*b;
+			    if(order>0){
+				b = ders[1][i];
+				x1 += cpts[c]*b; y1 += cpts[c+1]*b; z1 += cpts[c+2]*b; w1 += cpts[c+3]*b;
+			    }
+			}
+			x/=w; y/=w; z/=w;
+			if(order==0){ xyz[k*3] = x; xyz[k*3+1] = y; xyz[k*3+2] = z; }
+			else{
+			    xyz[k*3] = (x1-w1*x)/w; xyz[k*3+1] = (y1-w1*y)/w; xyz[k*3+2] = (z1-w1*z)/w;
+			}
+		    }
+		}
+	    });
+	return xyz;
     }
     
     /** getting i-th control point */
@@ -408,13 +467,14 @@ public class ICurveGeo extends INurbsGeo implements ICurveI, IEntityParameter{
 	if( num==2 && controlPoints[0].eq(controlPoints[1])){ num=1; } // isn't taken care of already above?
 	
 	IVecI[] controlPoints2 = new IVecI[num+1];
-	for(int i=0; i<num; i++){ controlPoints2[i] = controlPoints[i]; }
+	System.arraycopy(controlPoints, 0, controlPoints2, 0, num);
 	controlPoints2[num] = pt;
 	// rebuild knots; because it's adding, ignoring the case of closed curve.
 	double[] knots2  =createKnots(degree, num+1);
+	// polynomials of basis function are not built until needed
 	IBSplineBasisFunction basisFunction2 = new IBSplineBasisFunction(degree, knots2);
 	boolean[] defaultWeights2 = new boolean[num+1];
-	for(int i=0; i<num; i++) defaultWeights2[i] = defaultWeights[i];
+	System.arraycopy(defaultWeights, 0, defaultWeights2, 0, num);
 	defaultWeights2[num] = !(pt instanceof IVec4I);
 	
 	controlPoints = controlPoints2;
@@ -533,6 +593,27 @@ public class ICurveGeo extends INurbsGeo implements ICurveI, IEntityParameter{
 	return this;
     }
     
+    /** replace all control points and rebuild the curve with default equal intervals of knots.
+	the array is used as it is and duplicated control points are not checked.
+	used to set many points added at once, like ITrajectoryGeo.
+    */
+    public ICurveGeo setCP(IVecI[] cpts, int degree){
+	boolean[] defaultWeights2 = new boolean[cpts.length];
+	for(int i=0; i<cpts.length; i++) defaultWeights2[i] = !(cpts[i] instanceof IVec4I);
+	double[] knots2 = createKnots(degree, cpts.length);
+	IBSplineBasisFunction basisFunction2 = new IBSplineBasisFunction(degree, knots2);
+	
+	this.degree = degree;
+	controlPoints = cpts;
+	knots = knots2;
+	basisFunction = basisFunction2;
+	defaultWeights = defaultWeights2;
+	
+	uSearchCache = null;
+	
+	return this;
+    }
+    
     /** add control point at i and rebuild the curve and change degree.
      	note that a knots is rebuilt with default equal intervals
 	and destroy original knot intervals if variable, like circle.
@@ -728,17 +809,19 @@ public class ICurveGeo extends INurbsGeo implements ICurveI, IEntityParameter{
     
     
     /** approximate invert projection from 3D location to interanl parameter U (closest point on curve) */
-    synchronized public double u(IVecI pt){
-	if(uSearchCache==null){ uSearchCache = new ICurveCache(this); }
-	return uSearchCache.u(pt.get());
+    public double u(IVecI pt){
+	ICurveCache cache = uSearchCache;
+	if(cache==null){ cache = new ICurveCache(this); uSearchCache = cache; }
+	return cache.u(pt.get());
     }
     public double u(ISwitchE r, IVecI pt){ return u(pt); }
     public IDouble u(ISwitchR r, IVecI pt){ return new IDouble(u(pt)); }
     
     /** approximate invert projection from 2D location to interanl parameter U */
     public double u(IVec2I pt){
-	if(uSearchCache==null){ uSearchCache = new ICurveCache(this); }
-	return uSearchCache.u(pt.get());
+	ICurveCache cache = uSearchCache;
+	if(cache==null){ cache = new ICurveCache(this); uSearchCache = cache; }
+	return cache.u(pt.get());
     }
     public double u(ISwitchE r, IVec2I pt){ return u(pt); }
     public IDouble u(ISwitchR r, IVec2I pt){ return new IDouble(u(pt)); }
@@ -915,7 +998,6 @@ public class ICurveGeo extends INurbsGeo implements ICurveI, IEntityParameter{
 		uend = uend2;
 	    }
 	    basisFunction = new IBSplineBasisFunction(degree, knots);
-	    derivativeFunction = null;
 	}
 	return this;
     }
@@ -23,6 +23,7 @@
 package igeo;
 
 import java.util.*;
+import java.math.BigDecimal;
 
 import igeo.gui.*;
 
@@ -82,129 +83,18 @@ public class IDelaunay2D {
 	    return new IVec2[][]{ new IVec2[]{ pts[0],pts[1],pts[2] } };
 	}
 	
-	ArrayList<IVec2[]> triangles = new ArrayList<IVec2[]>();
-
-	ArrayList<FaceIndex> triangleIndex = new ArrayList<FaceIndex>();
-	
-	
-	//IOut.p("pts.length = "+pts.length); //
-	//for(int i=0; i<pts.length; i++) IOut.p("pts["+i+"] = "+ pts[i]); //
-	
-	EdgeCounter edgeCount = new EdgeCounter(pts.length);
-	
-	for(int i=0; i<edgePtIdx.length; i++){
-	    for(int j=0; j<edgePtIdx[i].length; j++){
-		edgeCount.addEdge(edgePtIdx[i][j],edgePtIdx[i][(j+1)%edgePtIdx[i].length]);
-	    }
-	}
+	Triangulation triangulation = new Triangulation(pts);
+	if(edgePtIdx==null){ return triangulation.getTriangles(triangulation.inside(null), -1); }
 	
-	
-	// in case a point on edges are on other loop's edge
+	// edges of loops are constrained. points on other loop's edge split the edge.
+	ArrayList<int[]> edges = new ArrayList<int[]>();
 	for(int i=0; i<edgePtIdx.length; i++){
 	    for(int j=0; j<edgePtIdx[i].length; j++){
-		int ept1 = edgePtIdx[i][j];
-		int ept2 = edgePtIdx[i][(j+1)%edgePtIdx[i].length];
-		for(int k=0; k<edgePtIdx.length; k++){
-		    if(k!=i){
-			for(int l=0; l<edgePtIdx[k].length; l++){
-			    if(pts[edgePtIdx[k][l]].isStraight(pts[ept1],pts[ept2]) &&
-			       pts[edgePtIdx[k][l]].isBetween(pts[ept1],pts[ept2])){
-				edgeCount.addEdge(ept1, edgePtIdx[k][l]);
-				edgeCount.addEdge(ept2, edgePtIdx[k][l]);
-			    }
-			}
-		    }
-		}
-	    }
-	}
-	
-	
-	
-	for(int i=0; i<pts.length-2; i++){
-
-	    //IOut.p((i+1)+"/"+(pts.length-2)); //
-	    
-	    for(int j=i+1; j<pts.length-1; j++){
-		
-		for(int k=j+1; k<pts.length && edgeCount.isEdgeOpen(i,j); k++){
-		    boolean anyInside=false;
-		    
-		    //IOut.p("<"+i+","+j+","+k+">"); //
-		    //IOut.p("isFaceCrossing = "+ isFaceCrossing(pts, edgeCount, i, j, k));
-		    //IOut.p("checkDirectionOnEdgePoints = "+checkDirectionOnEdgePoints(pts,edgePts,i,j,k,innerPtsNum) );
-		    //IOut.p("isStraight = "+pts[i].isStraight(pts[j],pts[k])); //
-		    
-		    if(edgeCount.isEdgeOpen(i,k) && edgeCount.isEdgeOpen(j,k)
-		       && !isFaceCrossing(pts, edgeCount, i, j, k)
-		       //&& checkFaceDirection(pts, edgeCount, i, j, k)
-		       && checkDirectionOnEdgePoints(pts,edgePts,i,j,k,innerPtsNum) // added
-		       && !pts[i].isStraight(pts[j],pts[k]) // added
-		       ){
-			
-			for(int l=0; l<pts.length && !anyInside; l++)
-			    if(l!=i && l!=j && l!=k){
-				//IOut.p("<"+i+","+j+","+k+","+l+">"); //
-				
-				if(isInsideCircumcircle(pts[l],pts[i],pts[j],pts[k])){
-				    
-				    // check if case pts[l] is crossing edge of trim lines
-				    
-				    if(checkDirectionOfInnerCircumcirclePoint(pts,edgePts,
-									      i,j,k,l,
-									      innerPtsNum)){
-					anyInside=true;
-					//IOut.p(pts[l] + " is inside <"+pts[i]+", "+pts[j]+", "+pts[k]+">"); //
-					//IOut.p("pt["+l+"] is INside pt["+i+"], pt["+j+"], pt["+k+"]"); //
-				    }
-				    //else; // when pts[l] is crossing the edge of trim
-				 
-				}
-				else{
-				    //IOut.p(pts[l] + " is outside <"+pts[i]+", "+pts[j]+", "+pts[k]+">"); //
-				    //IOut.p("pt["+l+"] is OUTside pt["+i+"], pt["+j+"], pt["+k+"]"); //
-				}
-			    }
-			if(!anyInside){ // nothing is inside
-			    //IOut.p("<"+i+","+j+","+k+">: triangle is added at "+triangles.size()); //
-			    if(isClockwise(pts[i],pts[j],pts[k])){
-				triangles.add(new IVec2[]{ pts[i], pts[k], pts[j] });
-				triangleIndex.add(new FaceIndex(i,k,j));
-			    }
-			    else{
-				triangles.add(new IVec2[]{ pts[i], pts[j], pts[k] });
-				triangleIndex.add(new FaceIndex(i,j,k));
-			    }
-			    
-			    /*
-			    if(i==0&&j==1&&k==4){
-				new IGCurve(new IVec[]{ new IVec(pts[i]),
-							  new IVec(pts[j]),
-							  new IVec(pts[k])});
-			    }
-			    */
-			    
-			    edgeCount.addFace(i,j,k);
-			    
-			    //IOut.p("edgeCount.isEdgeOnOutline("+i+","+j+") = "+edgeCount.isEdgeOnOutline(i,j));
-			    //IOut.p("edgeCount.getEdgeNum("+i+","+j+") = "+edgeCount.getEdgeNum(i,j));
-			    //IOut.p("edgeCount.getFaceVertexIndex("+i+","+j+") = "+edgeCount.getFaceVertexIndex(i,j));
-			    
-			    //edgeCount.addEdge(i,j);
-			    //edgeCount.addEdge(i,k);
-			    //edgeCount.addEdge(j,k);
-			}
-			//else IOut.p("pt out"); //
-		    }
-		}
+		triangulation.insertEdge(edgePtIdx[i][j],edgePtIdx[i][(j+1)%edgePtIdx[i].length], edges);
 	    }
 	}
-	
-	// filling holes
-	checkNakedEdge(pts, triangleIndex, triangles, edgeCount);
-	
-	//IOut.p("trinangles.size()="+triangles.size()); //
-	
-	return triangles.toArray(new IVec2[triangles.size()][]);
+	// triangles on the left of loops (inside of counter clockwise outer loop and outside of clockwise holes)
+	return triangulation.getTriangles(triangulation.inside(edges), -1);
     }
     
     
@@ -220,60 +110,8 @@ public class IDelaunay2D {
 	    return new IVec2[][]{ new IVec2[]{ pts[0],pts[1],pts[2] } };
 	}
 	
-	ArrayList<IVec2[]> triangles = new ArrayList<IVec2[]>();
-	
-	//IOut.p("pts.length = "+pts.length); //
-	//for(int i=0; i<pts.length; i++) IOut.p("pts["+i+"] = "+ pts[i]); //
-	
-	//int[] edgeCount = createEdgeCounter(pts.length);
-	
-	for(int i=0; i<pts.length-2; i++){
-	    //IOut.p((i+1)+"/"+(pts.length-2)); //
-	    IOut.debug(40, (i+1)+"/"+(pts.length-2)); //
-	    for(int j=i+1; j<pts.length-1; j++){
-		
-		if(maxDistToCheck < 0 ||
-		   maxDistToCheck >= 0 && pts[i].dist(pts[j]) <= maxDistToCheck){
-		    
-		    
-		for(int k=j+1; k<pts.length; k++){
-
-		    if(maxDistToCheck < 0 ||
-		       maxDistToCheck >= 0 && pts[i].dist(pts[k]) <= maxDistToCheck){
-			
-			
-		    boolean anyInside=false;
-		    for(int l=0; l<pts.length && !anyInside; l++)
-			
-			
-			if(l!=i && l!=j && l!=k){
-			    //IOut.p("<"+i+","+j+","+k+","+l+">"); //
-			    if(isInsideCircumcircle(pts[l],pts[i],pts[j],pts[k])){
-				anyInside=true;
-				//IOut.p(pts[l] + " is inside <"+pts[i]+", "+pts[j]+", "+pts[k]+">"); //
-				//IOut.p("pt["+l+"] is INside pt["+i+"], pt["+j+"], pt["+k+"]"); //
-			    }
-			    else{
-				//IOut.p(pts[l] + " is outside <"+pts[i]+", "+pts[j]+", "+pts[k]+">"); //
-				//IOut.p("pt["+l+"] is OUTside pt["+i+"], pt["+j+"], pt["+k+"]"); //
-			    }
-			}
-		    if(!anyInside){ // nothing is inside
-			//IOut.p("<"+i+","+j+","+k+">: triangle is added"); //
-			if(isClockwise(pts[i],pts[j],pts[k]))
-			    triangles.add(new IVec2[]{ pts[i], pts[k], pts[j] });
-			else
-			    triangles.add(new IVec2[]{ pts[i], pts[j], pts[k] });
-		    }
-		    //else IOut.p("pt out"); //
-		    }
-		}
-		    
-		}
-	    }
-	}
-	//IOut.p("trinangles.size()="+triangles.size()); //
-	return triangles.toArray(new IVec2[triangles.size()][]);
+	Triangulation triangulation = new Triangulation(pts);
+	return triangulation.getTriangles(triangulation.inside(null), maxDistToCheck);
     }
     
     
@@ -916,4 +754,589 @@ public class IDelaunay2D {
 	
     }
     
+    /**
+       Incremental Delaunay triangulation (Bowyer-Watson) of 2D points in spatially sorted order.
+       Outside of the convex hull is covered by ghost triangles which have GHOST as one vertex.
+       Orientation and in-circle predicates fall back to exact arithmetic when floating point error can change the sign.
+       Constrained edges are inserted after all points by retriangulating triangles crossing the edge.
+    */
+    public static class Triangulation{
+	public static final int GHOST = -1;
+	public IVec2[] pts;
+	public double[] x, y;
+	/** vertex indices of triangles (3 per triangle, counter clockwise). -2 for removed triangle */
+	public int[] vertices;
+	/** neighbor triangle opposite to each vertex */
+	public int[] neighbors;
+	/** constrained flag of an edge opposite to each vertex */
+	public boolean[] constrained;
+	/** number of triangle slots used */
+	public int triangleNum;
+	/** a triangle touching each point; -1 when the point isn't inserted */
+	public int[] pointTriangle;
+	/** index of the same point which is inserted when points are duplicated */
+	public int[] pointIndex;
+	
+	int[] freeTriangles = new int[16];
+	int freeNum=0;
+	int[] mark;
+	int markStamp=0;
+	int lastTriangle=-1;
+	int random=1;
+	
+	// work buffers of a cavity
+	int[] cavity = new int[64];
+	int[] boundary = new int[64]; // triangle, slot in the outside triangle, e0, e1, outside triangle
+	int[] startVertex; // new triangle starting at vertex (+1 for GHOST)
+	int[] startStamp;
+	
+	public Triangulation(IVec2[] pts){
+	    this.pts = pts;
+	    int n = pts.length;
+	    x = new double[n];
+	    y = new double[n];
+	    for(int i=0; i<n; i++){ x[i] = pts[i].x; y[i] = pts[i].y; }
+	    pointTriangle = new int[n];
+	    Arrays.fill(pointTriangle, -1);
+	    pointIndex = new int[n];
+	    int cap = 2*n+8;
+	    vertices = new int[cap*3];
+	    neighbors = new int[cap*3];
+	    constrained = new boolean[cap*3];
+	    mark = new int[cap];
+	    startVertex = new int[n+1];
+	    startStamp = new int[n+1];
+	    build();
+	}
+	
+	/** true if all points are on a line and no triangle is created */
+	public boolean isDegenerate(){ return lastTriangle<0; }
+	
+	/*******************************************
+	 * predicates
+	 *******************************************/
+	
+	/** positive if a, b, c are counter clockwise, negative if clockwise and zero if on a line */
+	public double orient(int a, int b, int c){
+	    double acx=x[a]-x[c], bcx=x[b]-x[c], acy=y[a]-y[c], bcy=y[b]-y[c];
+	    double left = acx*bcy, right = acy*bcx;
+	    double det = left-right;
+	    double errbound = 3.3306690738754716e-16*(Math.abs(left)+Math.abs(right));
+	    if(det > errbound || -det > errbound) return det;
+	    return exactOrient(x[a],y[a],x[b],y[b],x[c],y[c]);
+	}
+	
+	static double exactOrient(double ax, double ay, double bx, double by, double cx, double cy){
+	    BigDecimal acx = new BigDecimal(ax).subtract(new BigDecimal(cx));
+	    BigDecimal bcx = new BigDecimal(bx).subtract(new BigDecimal(cx));
+	    BigDecimal acy = new BigDecimal(ay).subtract(new BigDecimal(cy));
+	    BigDecimal bcy = new BigDecimal(by).subtract(new BigDecimal(cy));
+	    return acx.multiply(bcy).subtract(acy.multiply(bcx)).signum();
+	}
+	
+	/** positive if d is inside of circumcircle of counter clockwise triangle a, b, c */
+	public double incircle(int a, int b, int c, int d){
+	    double adx=x[a]-x[d], ady=y[a]-y[d];
+	    double bdx=x[b]-x[d], bdy=y[b]-y[d];
+	    double cdx=x[c]-x[d], cdy=y[c]-y[d];
+	    double bdxcdy = bdx*cdy, cdxbdy = cdx*bdy;
+	    double cdxady = cdx*ady, adxcdy = adx*cdy;
+	    double adxbdy = adx*bdy, bdxady = bdx*ady;
+	    double alift = adx*adx+ady*ady;
+	    double blift = bdx*bdx+bdy*bdy;
+	    double clift = cdx*cdx+cdy*cdy;
+	    double det = alift*(bdxcdy-cdxbdy) + blift*(cdxady-adxcdy) + clift*(adxbdy-bdxady);
+	    double permanent = (Math.abs(bdxcdy)+Math.abs(cdxbdy))*alift
+		+ (Math.abs(cdxady)+Math.abs(adxcdy))*blift
+		+ (Math.abs(adxbdy)+Math.abs(bdxady))*clift;
+	    double errbound = 1.1102230246251577e-15*permanent;
+	    if(det > errbound || -det > errbound) return det;
+	    return exactIncircle(a,b,c,d);
+	}
+	
+	double exactIncircle(int a, int b, int c, int d){
+	    BigDecimal dx = new BigDecimal(x[d]), dy = new BigDecimal(y[d]);
+	    BigDecimal adx = new BigDecimal(x[a]).subtract(dx), ady = new BigDecimal(y[a]).subtract(dy);
+	    BigDecimal bdx = new BigDecimal(x[b]).subtract(dx), bdy = new BigDecimal(y[b]).subtract(dy);
+	    BigDecimal cdx = new BigDecimal(x[c]).subtract(dx), cdy = new BigDecimal(y[c]).subtract(dy);
+	    BigDecimal alift = adx.multiply(adx).add(ady.multiply(ady));
+	    BigDecimal blift = bdx.multiply(bdx).add(bdy.multiply(bdy));
+	    BigDecimal clift = cdx.multiply(cdx).add(cdy.multiply(cdy));
+	    return alift.multiply(bdx.multiply(cdy).subtract(cdx.multiply(bdy)))
+		.add(blift.multiply(cdx.multiply(ady).subtract(adx.multiply(cdy))))
+		.add(clift.multiply(adx.multiply(bdy).subtract(bdx.multiply(ady)))).signum();
+	}
+	
+	/** true if c is strictly between a and b, assuming they are on a line */
+	boolean isBetween(int a, int b, int c){
+	    if(x[a]!=x[b]){ return x[a]<x[b] ? x[a]<x[c] && x[c]<x[b] : x[b]<x[c] && x[c]<x[a]; }
+	    return y[a]<y[b] ? y[a]<y[c] && y[c]<y[b] : y[b]<y[c] && y[c]<y[a];
+	}
+	
+	/*******************************************
+	 * triangle storage
+	 *******************************************/
+	
+	public boolean isRemoved(int t){ return vertices[t*3]==-2; }
+	
+	public boolean isGhost(int t){
+	    return vertices[t*3]==GHOST || vertices[t*3+1]==GHOST || vertices[t*3+2]==GHOST;
+	}
+	
+	public int indexOf(int t, int v){
+	    if(vertices[t*3]==v) return 0;
+	    if(vertices[t*3+1]==v) return 1;
+	    if(vertices[t*3+2]==v) return 2;
+	    return -1;
+	}
+	
+	int newTriangle(int a, int b, int c){
+	    int t;
+	    if(freeNum>0){ t = freeTriangles[--freeNum]; }
+	    else{
+		if(triangleNum*3 >= vertices.length){
+		    int cap = triangleNum*2;
+		    vertices = Arrays.copyOf(vertices, cap*3);
+		    neighbors = Arrays.copyOf(neighbors, cap*3);
+		    constrained = Arrays.copyOf(constrained, cap*3);
+		    mark = Arrays.copyOf(mark, cap);
+		}
+		t = triangleNum++;
+	    }
+	    vertices[t*3]=a; vertices[t*3+1]=b; vertices[t*3+2]=c;
+	    constrained[t*3]=constrained[t*3+1]=constrained[t*3+2]=false;
+	    mark[t]=0;
+	    if(a>=0) pointTriangle[a]=t;
+	    if(b>=0) pointTriangle[b]=t;
+	    if(c>=0) pointTriangle[c]=t;
+	    if(a>=0 && b>=0 && c>=0) lastTriangle=t;
+	    return t;
+	}
+	
+	void removeTriangle(int t){
+	    vertices[t*3]=-2;
+	    if(freeNum==freeTriangles.length){ freeTriangles = Arrays.copyOf(freeTriangles, freeNum*2); }
+	    freeTriangles[freeNum++]=t;
+	}
+	
+	void link(int t1, int i1, int t2, int i2){
+	    neighbors[t1*3+i1]=t2;
+	    neighbors[t2*3+i2]=t1;
+	}
+	
+	/*******************************************
+	 * point insertion
+	 *******************************************/
+	
+	void build(){
+	    int n = pts.length;
+	    if(n<3){ for(int i=0; i<n; i++){ pointIndex[i]=i; } return; }
+	    
+	    // duplicated points are merged into the one with smallest index
+	    Integer[] sorted = new Integer[n];
+	    for(int i=0; i<n; i++){ sorted[i]=i; }
+	    Arrays.sort(sorted, new Comparator<Integer>(){
+		    public int compare(Integer i1, Integer i2){
+			if(x[i1]!=x[i2]) return x[i1]<x[i2]?-1:1;
+			if(y[i1]!=y[i2]) return y[i1]<y[i2]?-1:1;
+			return i1.compareTo(i2);
+		    }
+		});
+	    int uniqueNum=0;
+	    for(int i=0; i<n; i++){
+		int idx = sorted[i];
+		if(i>0 && x[idx]==x[sorted[i-1]] && y[idx]==y[sorted[i-1]]){ pointIndex[idx] = pointIndex[sorted[i-1]]; }
+		else{ pointIndex[idx] = idx; uniqueNum++; }
+	    }
+	    
+	    // insertion order along Hilbert curve to keep point location short
+	    double minx=x[0], maxx=x[0], miny=y[0], maxy=y[0];
+	    for(int i=1; i<n; i++){
+		if(x[i]<minx) minx=x[i]; if(x[i]>maxx) maxx=x[i];
+		if(y[i]<miny) miny=y[i]; if(y[i]>maxy) maxy=y[i];
+	    }
+	    double scale = Math.max(maxx-minx, maxy-miny);
+	    scale = scale>0 ? 65535/scale : 0;
+	    long[] keys = new long[uniqueNum];
+	    int k=0;
+	    for(int i=0; i<n; i++){
+		if(pointIndex[i]==i){
+		    long h = hilbert((int)((x[i]-minx)*scale), (int)((y[i]-miny)*scale));
+		    keys[k++] = (h<<31) | i;
+		}
+	    }
+	    Arrays.sort(keys);
+	    int[] order = new int[uniqueNum];
+	    for(int i=0; i<uniqueNum; i++){ order[i] = (int)(keys[i]&0x7fffffffL); }
+	    
+	    if(uniqueNum<3) return;
+	    
+	    // first triangle
+	    int a=order[0], b=order[1], c=-1, cidx=-1;
+	    for(int i=2; i<uniqueNum && c<0; i++){
+		if(orient(a,b,order[i])!=0){ c=order[i]; cidx=i; }
+	    }
+	    if(c<0) return; // all points are on a line
+	    
+	    if(orient(a,b,c)<0){ int tmp=b; b=c; c=tmp; }
+	    int t = newTriangle(a,b,c);
+	    int g0 = newTriangle(c,b,GHOST); // opposite a
+	    int g1 = newTriangle(a,c,GHOST); // opposite b
+	    int g2 = newTriangle(b,a,GHOST); // opposite c
+	    link(t,0,g0,2); link(t,1,g1,2); link(t,2,g2,2);
+	    link(g0,0,g2,1); // edge (b,GHOST)
+	    link(g0,1,g1,0); // edge (GHOST,c)
+	    link(g1,1,g2,0); // edge (GHOST,a)
+	    lastTriangle = t;
+	    
+	    for(int i=2; i<uniqueNum; i++){
+		if(i!=cidx) insert(order[i]);
+	    }
+	}
+	
+	/** index on Hilbert curve on 65536 x 65536 grid */
+	static long hilbert(int px, int py){
+	    final int n = 65536;
+	    long d=0;
+	    for(int s=n/2; s>0; s/=2){
+		int rx = (px&s)>0 ? 1 : 0;
+		int ry = (py&s)>0 ? 1 : 0;
+		d += (long)s*s*((3*rx)^ry);
+		if(ry==0){
+		    if(rx==1){ px = n-1-px; py = n-1-py; }
+		    int tmp=px; px=py; py=tmp;
+		}
+	    }
+	    return d;
+	}
+	
+	/** find a triangle whose circumcircle contains the point by walking from the last triangle */
+	public int locate(int p){
+	    int t = lastTriangle;
+	    while(true){
+		if(isGhost(t)) return t;
+		random = random*1103515245+12345;
+		int start = (random>>>16)%3;
+		boolean moved=false;
+		for(int k=0; k<3 && !moved; k++){
+		    int i = (start+k)%3;
+		    if(orient(vertices[t*3+(i+1)%3], vertices[t*3+(i+2)%3], p) < 0){
+			t = neighbors[t*3+i];
+			moved=true;
+		    }
+		}
+		if(!moved) return t;
+	    }
+	}
+	
+	/** true if the point is inside of circumcircle of the triangle */
+	public boolean isInCircle(int t, int p){
+	    int gi = indexOf(t, GHOST);
+	    if(gi<0) return incircle(vertices[t*3], vertices[t*3+1], vertices[t*3+2], p) > 0;
+	    // ghost triangle: outside of hull edge or on the edge
+	    int a = vertices[t*3+(gi+1)%3], b = vertices[t*3+(gi+2)%3];
+	    double o = orient(a,b,p);
+	    if(o>0) return true;
+	    if(o<0) return false;
+	    return isBetween(a,b,p);
+	}
+	
+	public void insert(int p){
+	    int t = locate(p);
+	    markStamp++;
+	    int cavityNum=0, boundaryNum=0;
+	    cavity[cavityNum++]=t;
+	    mark[t]=markStamp;
+	    for(int ci=0; ci<cavityNum; ci++){
+		int ct = cavity[ci];
+		for(int i=0; i<3; i++){
+		    int nt = neighbors[ct*3+i];
+		    if(mark[nt]==markStamp) continue;
+		    if(!constrained[ct*3+i] && isInCircle(nt, p)){
+			mark[nt]=markStamp;
+			if(cavityNum==cavity.length){ cavity = Arrays.copyOf(cavity, cavityNum*2); }
+			cavity[cavityNum++]=nt;
+		    }
+		    else{
+			if(boundaryNum*5+5 > boundary.length){ boundary = Arrays.copyOf(boundary, boundary.length*2); }
+			int slot = neighbors[nt*3]==ct?0:neighbors[nt*3+1]==ct?1:2;
+			boundary[boundaryNum*5] = ct;
+			boundary[boundaryNum*5+1] = slot;
+			boundary[boundaryNum*5+2] = vertices[ct*3+(i+1)%3];
+			boundary[boundaryNum*5+3] = vertices[ct*3+(i+2)%3];
+			boundary[boundaryNum*5+4] = nt;
+			boundaryNum++;
+		    }
+		}
+	    }
+	    
+	    boolean[] cons = new boolean[boundaryNum];
+	    for(int i=0; i<boundaryNum; i++){
+		int nt = boundary[i*5+4];
+		cons[i] = constrained[nt*3+boundary[i*5+1]];
+	    }
+	    for(int i=0; i<cavityNum; i++){ removeTriangle(cavity[i]); }
+	    
+	    // fan of new triangles from the point to boundary edges of the cavity
+	    markStamp++;
+	    int[] created = new int[boundaryNum];
+	    for(int i=0; i<boundaryNum; i++){
+		int e0 = boundary[i*5+2], e1 = boundary[i*5+3];
+		int nt = newTriangle(e0, e1, p);
+		mark[nt]=0;
+		created[i]=nt;
+		link(nt, 2, boundary[i*5+4], boundary[i*5+1]);
+		constrained[nt*3+2] = cons[i];
+		startVertex[e0+1] = nt;
+		startStamp[e0+1] = markStamp;
+	    }
+	    for(int i=0; i<boundaryNum; i++){
+		int nt = created[i];
+		int e1 = vertices[nt*3+1];
+		// edge (e1, p) is shared with the triangle starting at e1
+		int nt2 = startVertex[e1+1];
+		link(nt, 0, nt2, 1);
+	    }
+	    if(!isGhost(created[0])) lastTriangle = created[0];
+	}
+	
+	/*******************************************
+	 * constrained edges
+	 *******************************************/
+	
+	/** triangle which has the directed edge a to b, or -1 */
+	public int findEdge(int a, int b){
+	    int t0 = pointTriangle[a];
+	    int t = t0;
+	    do{
+		int ia = indexOf(t, a);
+		if(vertices[t*3+(ia+1)%3]==b) return t;
+		t = neighbors[t*3+(ia+1)%3]; // next triangle around a through edge (a, previous)
+	    }while(t!=t0);
+	    return -1;
+	}
+	
+	/**
+	   insert a constrained edge between point a and point b.
+	   if other points are on the edge, the edge is split at them.
+	   @param directedEdges collected directed sub edges (pairs of point index) if not null
+	*/
+	public void insertEdge(int a, int b, ArrayList<int[]> directedEdges){
+	    a = pointIndex[a]; b = pointIndex[b];
+	    while(a!=b){
+		if(pointTriangle[a]<0 || pointTriangle[b]<0) return;
+		int t = findEdge(a,b);
+		if(t<0){ t = findEdge(b,a); }
+		if(t>=0){
+		    for(int j=0; j<3; j++){
+			int v = vertices[t*3+j];
+			if(v!=a && v!=b){
+			    constrained[t*3+j] = true;
+			    int nt = neighbors[t*3+j];
+			    for(int k=0; k<3; k++){ if(neighbors[nt*3+k]==t) constrained[nt*3+k] = true; }
+			}
+		    }
+		    if(directedEdges!=null) directedEdges.add(new int[]{ a, b });
+		    return;
+		}
+		int end = insertCrossingEdge(a,b);
+		if(end<0) return; // failed
+		if(directedEdges!=null) directedEdges.add(new int[]{ a, end });
+		a = end;
+	    }
+	}
+	
+	/**
+	   remove triangles crossed by the edge from a toward b and retriangulate both sides.
+	   @return end point of inserted edge; b or a point on the edge
+	*/
+	int insertCrossingEdge(int a, int b){
+	    // find the triangle around a whose opposite edge is crossed
+	    int t0 = pointTriangle[a];
+	    int t = t0;
+	    int found=-1;
+	    int px=-1, py=-1;
+	    do{
+		int ia = indexOf(t, a);
+		int vx = vertices[t*3+(ia+1)%3], vy = vertices[t*3+(ia+2)%3];
+		if(vx!=GHOST && vy!=GHOST){
+		    double ox = orient(a,b,vx), oy = orient(a,b,vy);
+		    if(ox==0 && orient(a,vx,b)==0 && isBetween(a,b,vx)) return splitAt(a, vx);
+		    if(ox<0 && oy>0){ found=t; px=vx; py=vy; }
+		}
+		t = neighbors[t*3+(ia+1)%3];
+	    }while(t!=t0 && found<0);
+	    if(found<0) return -1;
+	    
+	    ArrayList<Integer> right = new ArrayList<Integer>();
+	    ArrayList<Integer> left = new ArrayList<Integer>();
+	    ArrayList<Integer> crossed = new ArrayList<Integer>();
+	    right.add(px); left.add(py);
+	    crossed.add(found);
+	    t = found;
+	    int end=-1;
+	    while(end<0){
+		// cross edge (px,py)
+		int i = 3 - indexOf(t,px) - indexOf(t,py);
+		int nt = neighbors[t*3+i];
+		crossed.add(nt);
+		int v = vertices[nt*3+(3-indexOf(nt,px)-indexOf(nt,py))];
+		if(v==b){ end=b; break; }
+		double o = orient(a,b,v);
+		if(o==0){ end=v; break; } // a point on the edge
+		if(o<0){ right.add(v); px=v; }
+		else{ left.add(v); py=v; }
+		t = nt;
+	    }
+	    if(constrainedCrossing(crossed, a, end)) return -1;
+	    
+	    // boundary edges of crossed triangles to outside triangles
+	    HashMap<Long,int[]> outside = new HashMap<Long,int[]>();
+	    markStamp++;
+	    for(int i=0; i<crossed.size(); i++){ mark[crossed.get(i)] = markStamp; }
+	    for(int i=0; i<crossed.size(); i++){
+		int ct = crossed.get(i);
+		for(int j=0; j<3; j++){
+		    int nt = neighbors[ct*3+j];
+		    if(mark[nt]!=markStamp){
+			int slot = neighbors[nt*3]==ct?0:neighbors[nt*3+1]==ct?1:2;
+			outside.put(edgeKey(vertices[ct*3+(j+1)%3], vertices[ct*3+(j+2)%3]),
+				    new int[]{ nt, slot, constrained[ct*3+j]?1:0 });
+		    }
+		}
+	    }
+	    for(int i=0; i<crossed.size(); i++){ removeTriangle(crossed.get(i)); }
+	    
+	    ArrayList<Integer> created = new ArrayList<Integer>();
+	    // left side: a, left..., end are counter clockwise around the region above a-end
+	    triangulatePolygon(a, end, left, 0, left.size(), true, created);
+	    triangulatePolygon(a, end, right, 0, right.size(), false, created);
+	    
+	    // link new triangles with each other and with outside
+	    HashMap<Long,int[]> inner = new HashMap<Long,int[]>();
+	    for(int i=0; i<created.size(); i++){
+		int nt = created.get(i);
+		for(int j=0; j<3; j++){
+		    int e0 = vertices[nt*3+(j+1)%3], e1 = vertices[nt*3+(j+2)%3];
+		    int[] o = outside.get(edgeKey(e0,e1));
+		    if(o!=null){
+			link(nt, j, o[0], o[1]);
+			constrained[nt*3+j] = o[2]==1;
+			continue;
+		    }
+		    int[] other = inner.remove(edgeKey(e1,e0));
+		    if(other!=null){
+			link(nt, j, other[0], other[1]);
+			if(e0==a&&e1==end || e0==end&&e1==a){
+			    constrained[nt*3+j] = true;
+			    constrained[other[0]*3+other[1]] = true;
+			}
+		    }
+		    else{ inner.put(edgeKey(e0,e1), new int[]{ nt, j }); }
+		}
+	    }
+	    return end;
+	}
+	
+	/** check if the edge crosses other constrained edge. such edge is not inserted */
+	boolean constrainedCrossing(ArrayList<Integer> crossed, int a, int end){
+	    for(int i=0; i<crossed.size()-1; i++){
+		int t1 = crossed.get(i), t2 = crossed.get(i+1);
+		for(int j=0; j<3; j++){ if(neighbors[t1*3+j]==t2 && constrained[t1*3+j]) return true; }
+	    }
+	    return false;
+	}
+	
+	int splitAt(int a, int v){
+	    // edge a-v exists in the triangle found in insertCrossingEdge
+	    int t = findEdge(a,v);
+	    if(t<0) t = findEdge(v,a);
+	    for(int j=0; j<3; j++){
+		int w = vertices[t*3+j];
+		if(w!=a && w!=v){
+		    constrained[t*3+j] = true;
+		    int nt = neighbors[t*3+j];
+		    for(int k=0; k<3; k++){ if(neighbors[nt*3+k]==t) constrained[nt*3+k] = true; }
+		}
+	    }
+	    return v;
+	}
+	
+	static long edgeKey(int e0, int e1){ return ((long)(e0+1)<<32) | (long)(e1+1); }
+	
+	/**
+	   triangulate a pseudo polygon of points between the edge from a to b.
+	   @param leftSide true if points are on the left of a to b
+	*/
+	void triangulatePolygon(int a, int b, ArrayList<Integer> poly, int start, int end,
+				boolean leftSide, ArrayList<Integer> created){
+	    if(start>=end) return;
+	    int ci=start;
+	    int c = poly.get(start);
+	    for(int i=start+1; i<end; i++){
+		int v = poly.get(i);
+		boolean inside = leftSide ? incircle(a,b,c,v)>0 : incircle(b,a,c,v)>0;
+		if(inside){ c=v; ci=i; }
+	    }
+	    triangulatePolygon(a, c, poly, start, ci, leftSide, created);
+	    triangulatePolygon(c, b, poly, ci+1, end, leftSide, created);
+	    if(leftSide) created.add(newTriangle(a,b,c));
+	    else created.add(newTriangle(b,a,c));
+	}
+	
+	/*******************************************
+	 * output
+	 *******************************************/
+	
+	/**
+	   triangles reachable from the left side of directed edges without crossing constrained edges.
+	   all real triangles if edges is null.
+	*/
+	public boolean[] inside(ArrayList<int[]> directedEdges){
+	    boolean[] in = new boolean[triangleNum];
+	    if(directedEdges==null){
+		for(int t=0; t<triangleNum; t++){ in[t] = !isRemoved(t) && !isGhost(t); }
+		return in;
+	    }
+	    int[] stack = new int[16];
+	    int num=0;
+	    for(int i=0; i<directedEdges.size(); i++){
+		int t = findEdge(directedEdges.get(i)[0], directedEdges.get(i)[1]);
+		if(t>=0 && !isGhost(t) && !in[t]){
+		    in[t]=true;
+		    if(num==stack.length) stack = Arrays.copyOf(stack, num*2);
+		    stack[num++]=t;
+		}
+	    }
+	    while(num>0){
+		int t = stack[--num];
+		for(int j=0; j<3; j++){
+		    int nt = neighbors[t*3+j];
+		    if(!constrained[t*3+j] && !in[nt] && !isGhost(nt)){
+			in[nt]=true;
+			if(num==stack.length) stack = Arrays.copyOf(stack, num*2);
+			stack[num++]=nt;
+		    }
+		}
+	    }
+	    return in;
+	}
+	
+	/**
+	   triangles as arrays of 3 points. vertices start from the smallest point index in counter clockwise order.
+	*/
+	public IVec2[][] getTriangles(boolean[] in, double maxDist){
+	    ArrayList<IVec2[]> triangles = new ArrayList<IVec2[]>();
+	    for(int t=0; t<triangleNum; t++){
+		if(!in[t]) continue;
+		int a=vertices[t*3], b=vertices[t*3+1], c=vertices[t*3+2];
+		if(b<a && b<c){ int tmp=a; a=b; b=c; c=tmp; }
+		else if(c<a && c<b){ int tmp=c; c=b; b=a; a=tmp; }
+		if(maxDist>=0 && (pts[a].dist(pts[b]) > maxDist || pts[a].dist(pts[c]) > maxDist)) continue;
+		triangles.add(new IVec2[]{ pts[a], pts[b], pts[c] });
+	    }
+	    return triangles.toArray(new IVec2[triangles.size()][]);
+	}
+    }
+    
 }
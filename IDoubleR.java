@@ -31,16 +31,66 @@ public class IDoubleR extends IParameterObject implements IDoubleI, IReferencePa
     
     protected IDoubleOp op;
     
-    public IDoubleR(double v){ op=new IDouble(v); }
+    /** value of op cached while IReferenceCache.version is not changed */
+    protected volatile Cache cache;
+    
+    public IDoubleR(double v){ op=new Constant(v); }
     public IDoubleR(IDoubleOp v){ op=v; }
     public IDoubleR(IIntegerI v){ op=new FromInt(v); }
     
-    public IDoubleR(IServerI s, double v){ super(s); op=new IDouble(v); }
+    public IDoubleR(IServerI s, double v){ super(s); op=new Constant(v); }
     public IDoubleR(IServerI s, IDoubleOp v){ super(s); op=v; }
     public IDoubleR(IServerI s, IIntegerI v){ super(s); op=new FromInt(v); }
     
-    public double x(){ return op.x(); }
-    public IDouble get(){ return op.get(); }
+    /** replacing operator. operators with only constant inputs are folded into a constant. */
+    protected IDoubleR op(IDoubleOp o){
+	op = fold(o);
+	IReferenceCache.update();
+	return this;
+    }
+    
+    /**
+       the value is cached when op depends only on constants and reference parameters
+       until any reference parameter changes.
+    */
+    public double x(){
+	IDoubleOp o = op;
+	long version = IReferenceCache.version();
+	Cache c = cache;
+	boolean cacheable;
+	if(c!=null && c.op==o && c.version==version){
+	    if(c.hasValue) return c.value;
+	    cacheable = c.cacheable;
+	}
+	else cacheable = IReferenceCache.isCacheable(o);
+	double v = o.x();
+	if(cacheable) cache = new Cache(o, version, true, true, v);
+	else if(c==null || c.op!=o || c.version!=version) cache = new Cache(o, version, false, false, 0);
+	return v;
+    }
+    
+    /** check if op can be cached. the result is kept until any reference parameter changes. */
+    protected boolean cacheable(){
+	IDoubleOp o = op;
+	long version = IReferenceCache.version();
+	Cache c = cache;
+	if(c!=null && c.op==o && c.version==version) return c.cacheable;
+	boolean cacheable = IReferenceCache.isCacheable(o);
+	cache = new Cache(o, version, cacheable, false, 0);
+	return cacheable;
+    }
+    
+    /** operator, version, cacheability and value published together */
+    static class Cache{
+	final IDoubleOp op;
+	final long version;
+	final boolean cacheable, hasValue;
+	final double value;
+	Cache(IDoubleOp op, long version, boolean cacheable, boolean hasValue, double value){
+	    this.op=op; this.version=version; this.cacheable=cacheable; this.hasValue=hasValue; this.value=value;
+	}
+    }
+    public IDouble get(){ return new IDouble(x()); }
     public IDoubleR getX(){ return this; }
     
     public IDoubleOp operator(){ return op; } // for viewer
@@ -56,45 +106,45 @@ public class IDoubleR extends IParameterObject implements IDoubleI, IReferencePa
     public IDoubleR cp(IDoubleI v){ return dup().add(v); }
     
     
-    public IDoubleR set(double u){ op=new IDouble(u); return this; }
-    public IDoubleR set(IDoubleI u){ op=u; return this; }
-    public IDoubleR set(IIntegerI u){ op=new FromInt(u); return this; }
+    public IDoubleR set(double u){ op(new Constant(u)); return this; }
+    public IDoubleR set(IDoubleI u){ op(u); return this; }
+    public IDoubleR set(IIntegerI u){ op(new FromInt(u)); return this; }
     
-    public IDoubleR add(IDoubleI u){ op = new Add(op,u); return this; }
-    public IDoubleR add(double u){ op = new Add(op, new IDouble(u)); return this; }
-    public IDoubleR sub(IDoubleI u){ op = new Sub(op,u); return this; }
-    public IDoubleR sub(double u){ op = new Sub(op, new IDouble(u)); return this; }
-    public IDoubleR mul(IDoubleI u){ op = new Mul(op,u); return this; }
-    public IDoubleR mul(double u){ op = new Mul(op, new IDouble(u)); return this; }
-    public IDoubleR div(IDoubleI u){ op = new Div(op,u); return this; }
-    public IDoubleR div(double u){ op = new Div(op, new IDouble(u)); return this; }
-    public IDoubleR neg(){ op = new Neg(op); return this; }
+    public IDoubleR add(IDoubleI u){ op(new Add(op,u)); return this; }
+    public IDoubleR add(double u){ op(new Add(op, new Constant(u))); return this; }
+    public IDoubleR sub(IDoubleI u){ op(new Sub(op,u)); return this; }
+    public IDoubleR sub(double u){ op(new Sub(op, new Constant(u))); return this; }
+    public IDoubleR mul(IDoubleI u){ op(new Mul(op,u)); return this; }
+    public IDoubleR mul(double u){ op(new Mul(op, new Constant(u))); return this; }
+    public IDoubleR div(IDoubleI u){ op(new Div(op,u)); return this; }
+    public IDoubleR div(double u){ op(new Div(op, new Constant(u))); return this; }
+    public IDoubleR neg(){ op(new Neg(op)); return this; }
     
-    public IDoubleR inv(){ op = new Inv(op); return this; }
+    public IDoubleR inv(){ op(new Inv(op)); return this; }
     
-    public IDoubleI abs(){ op = new Abs(op); return this; }
+    public IDoubleI abs(){ op(new Abs(op)); return this; }
     
-    public IDoubleI pow(double n){ op = new Pow(op,new IDouble(n)); return this; }
-    public IDoubleI pow(IDoubleI n){ op = new Pow(op,n); return this; }
+    public IDoubleI pow(double n){ op(new Pow(op,new Constant(n))); return this; }
+    public IDoubleI pow(IDoubleI n){ op(new Pow(op,n)); return this; }
     
-    public IDoubleI sq(){ op = new Sq(op); return this; }
-    public IDoubleI sqrt(){ op = new Sqrt(op); return this; }
+    public IDoubleI sq(){ op(new Sq(op)); return this; }
+    public IDoubleI sqrt(){ op(new Sqrt(op)); return this; }
     
-    public IDoubleI exp(){ op = new Exp(op); return this; }
-    public IDoubleI log(){ op = new Log(op); return this; }
+    public IDoubleI exp(){ op(new Exp(op)); return this; }
+    public IDoubleI log(){ op(new Log(op)); return this; }
     
-    public IDoubleI sin(){ op = new Sin(op); return this; }
-    public IDoubleI cos(){ op = new Cos(op); return this; }
-    public IDoubleI tan(){ op = new Tan(op); return this; }
+    public IDoubleI sin(){ op(new Sin(op)); return this; }
+    public IDoubleI cos(){ op(new Cos(op)); return this; }
+    public IDoubleI tan(){ op(new Tan(op)); return this; }
     
-    public IDoubleI asin(){ op = new ASin(op); return this; }
-    public IDoubleI acos(){ op = new ACos(op); return this; }
-    public IDoubleI atan(){ op = new ATan(op); return this; }
-    public IDoubleI atan2(double x2){ op = new ATan2(op,new IDouble(x2)); return this; }
-    public IDoubleI atan2(IDoubleI x2){ op = new ATan2(op,x2); return this; }
+    public IDoubleI asin(){ op(new ASin(op)); return this; }
+    public IDoubleI acos(){ op(new ACos(op)); return this; }
+    public IDoubleI atan(){ op(new ATan(op)); return this; }
+    public IDoubleI atan2(double x2){ op(new ATan2(op,new Constant(x2))); return this; }
+    public IDoubleI atan2(IDoubleI x2){ op(new ATan2(op,x2)); return this; }
     
-    public IDoubleI deg(){ op = new Deg(op); return this; }
-    public IDoubleI rad(){ op = new Rad(op); return this; }
+    public IDoubleI deg(){ op(new Deg(op)); return this; }
+    public IDoubleI rad(){ op(new Rad(op)); return this; }
     
     public boolean eq(double v){ return get().eq(v); }
     public boolean eq(IDoubleI v){ return get().eq(v); }
@@ -110,6 +160,40 @@ public class IDoubleR extends IParameterObject implements IDoubleI, IReferencePa
     
     
     
+    /**
+       folding operator. an operator with only constant inputs is replaced by a constant and
+       consecutive constant addition, subtraction and multiplication are combined.
+    */
+    static IDoubleOp fold(IDoubleOp o){
+	if(o instanceof Add){
+	    Add a = (Add)o;
+	    if(a.v1 instanceof Add && IReferenceCache.isConstant(((Add)a.v1).v2) && IReferenceCache.isConstant(a.v2)){
+		o = new Add(((Add)a.v1).v1, new Constant(((Add)a.v1).v2.x()+a.v2.x()));
+	    }
+	}
+	else if(o instanceof Sub){
+	    Sub s = (Sub)o;
+	    if(s.v1 instanceof Sub && IReferenceCache.isConstant(((Sub)s.v1).v2) && IReferenceCache.isConstant(s.v2)){
+		o = new Sub(((Sub)s.v1).v1, new Constant(((Sub)s.v1).v2.x()+s.v2.x()));
+	    }
+	}
+	else if(o instanceof Mul){
+	    Mul m = (Mul)o;
+	    if(m.v1 instanceof Mul && IReferenceCache.isConstant(((Mul)m.v1).v2) && IReferenceCache.isConstant(m.v2)){
+		o = new Mul(((Mul)m.v1).v1, new Constant(((Mul)m.v1).v2.x()*m.v2.x()));
+	    }
+	}
+	if(!IReferenceCache.isConstant(o) && IReferenceCache.hasConstantInputs(o)) return new Constant(o.x());
+	return o;
+    }
+    
+    /**
+       constant created by IDoubleR. it's not modified by IDoubleR and its value can be cached.
+    */
+    public static class Constant extends IDouble{
+	public Constant(double v){ super(v); }
+    }
+    
     public static class Add extends IParameterObject implements IDoubleOp{
 	public IDoubleOp v1,v2;
 	public Add(IDoubleOp v1, IDoubleOp v2){ this.v1=v1; this.v2=v2; }
@@ -48,6 +48,37 @@ public class IDynamicServer implements Runnable{
     public int duration = -1;
     public int time;
     
+    /** flags of phases in step(int) */
+    public static final int PREINTERACT = 1;
+    public static final int INTERACT = 2;
+    public static final int POSTINTERACT = 4;
+    public static final int PREUPDATE = 8;
+    public static final int UPDATE = 16;
+    public static final int POSTUPDATE = 32;
+    
+    /** flag of IDynamics.updateTarget() overridden, used in activePhases(Class) */
+    static final int UPDATE_TARGET = 64;
+    
+    /** cache of phases whose method is overridden from the empty implementation, per class of dynamics */
+    static final ClassValue<Integer> activePhasesCache = new ClassValue<Integer>(){
+	protected Integer computeValue(Class<?> cls){ return findActivePhases(cls); }
+    };
+    
+    /** spatial grid of dynamics built once in each step when neighbors are requested */
+    public INeighborGrid neighborGrid;
+    /** max radius requested to neighborGrid in the current step and the last step */
+    public double neighborRadius, lastNeighborRadius;
+    /** neighborGrid is built in parallel threads and the lock is not the server itself */
+    public Object neighborGridLock = new Object();
+    
+    /** if point fields are already applied by IPointFieldTree in the current step */
+    public boolean pointFieldsApplied=false;
+    
+    /** true while step() runs in the dynamics thread; graphics updated then are snapshot at the end of the step */
+    public volatile boolean snapshotting=false;
+    /** graphics updated in the current step, snapshot and published at the end of the step */
+    public ArrayList<IGraphicObject> snapshotGraphics = new ArrayList<IGraphicObject>();
+    
     public IDynamicServer(IServerI s){
 	server = s.server();
 	dynamics = new ArrayList<IDynamics>();
@@ -139,6 +170,7 @@ public class IDynamicServer implements Runnable{
 	addingDynamics.clear();
 	removingDynamics.clear();
 	dynamics.clear();
+	clearNeighborGrid();
     }
     
     public IDynamicServer duration(int dur){ duration = dur; return this; }
@@ -186,6 +218,8 @@ public class IDynamicServer implements Runnable{
 	    if(duration>=0 && time>=duration){ stop(); }
 	    else{
 		synchronized(this){
+		    snapshotting = IConfig.snapshotDynamics && thread!=null && !IConfig.syncDrawAndDynamics;
+		    
 		    // adding objects
 		    if(addingDynamics.size()>0){
 			dynamics.addAll(addingDynamics);//any possible exception?
@@ -198,135 +232,41 @@ public class IDynamicServer implements Runnable{
 			removingDynamics.clear();
 		    }
 		    
+		    clearNeighborGrid();
+		    pointFieldsApplied=false;
+		    
 		    // preinteract
-		    if(IConfig.loopPreinteract&&IConfig.enablePreinteract){
-			for(int i=0; i<dynamics.size(); i++){
-			    dynamics.get(i).preinteract(dynamics);
-			    
-			    if(dynamics.get(i).localDynamics()!=null){ // added 20120826
-				ArrayList<IDynamics> localDynamics = dynamics.get(i).localDynamics();
-				for(int j=0; j<localDynamics.size(); j++){
-				    localDynamics.get(j).preinteract(dynamics);
-				}
-			    }
-			}
-		    }
+		    if(IConfig.loopPreinteract&&IConfig.enablePreinteract){ step(PREINTERACT); }
 		    
-		    for(int i=0; i<dynamics.size(); i++){
-			// preinteract
-			if(!IConfig.loopPreinteract&&IConfig.enablePreinteract){
-			    dynamics.get(i).preinteract(dynamics);
-			    
-			    if(dynamics.get(i).localDynamics()!=null){ // added 20120826
-				ArrayList<IDynamics> localDynamics = dynamics.get(i).localDynamics();
-				for(int j=0; j<localDynamics.size(); j++){
-				    localDynamics.get(j).preinteract(dynamics);
-				}
-			    }
-			}
-			
-			// interact
-			dynamics.get(i).interact(dynamics);
-			if(dynamics.get(i).localDynamics()!=null){ // added 20120826
-			    ArrayList<IDynamics> localDynamics = dynamics.get(i).localDynamics();
-			    for(int j=0; j<localDynamics.size(); j++){
-				localDynamics.get(j).interact(dynamics);
-			    }
-			}
-			
-			
-			// postinteract
-			if(!IConfig.loopPostinteract&&IConfig.enablePostinteract){
-			    dynamics.get(i).postinteract(dynamics);
-			    if(dynamics.get(i).localDynamics()!=null){ // added 20120826
-				ArrayList<IDynamics> localDynamics = dynamics.get(i).localDynamics();
-				for(int j=0; j<localDynamics.size(); j++){
-				    localDynamics.get(j).postinteract(dynamics);
-				}
-			    }
-			}
-		    }
+		    int phases = INTERACT;
+		    if(!IConfig.loopPreinteract&&IConfig.enablePreinteract){ phases |= PREINTERACT; }
+		    if(!IConfig.loopPostinteract&&IConfig.enablePostinteract){ phases |= POSTINTERACT; }
+		    step(phases);
 		    
 		    // preupdate is executed before post interact to update force first and velocity second. // updated 20120826
 		    // preupdate
-		    if(IConfig.loopPreupdate&&IConfig.enablePreupdate){
-			for(int i=0; i<dynamics.size(); i++){
-			    dynamics.get(i).preupdate();
-			    if(dynamics.get(i).localDynamics()!=null){ // added 20120826
-				ArrayList<IDynamics> localDynamics = dynamics.get(i).localDynamics();
-				for(int j=0; j<localDynamics.size(); j++){
-				    localDynamics.get(j).preupdate();
-				}
-			    }
-			}
-		    }
+		    if(IConfig.loopPreupdate&&IConfig.enablePreupdate){ step(PREUPDATE); }
 		    
 		    // postinteract
-		    if(IConfig.loopPostinteract&&IConfig.enablePostinteract){
-			for(int i=0; i<dynamics.size(); i++){
-			    dynamics.get(i).postinteract(dynamics);
-			    if(dynamics.get(i).localDynamics()!=null){ // added 20120826
-				ArrayList<IDynamics> localDynamics = dynamics.get(i).localDynamics();
-				for(int j=0; j<localDynamics.size(); j++){
-				    localDynamics.get(j).postinteract(dynamics);
-				}
-			    }
-			}
-		    }
+		    if(IConfig.loopPostinteract&&IConfig.enablePostinteract){ step(POSTINTERACT); }
 		    
 		    // if anything is removed in interact (or preinteract/postinteract) process. // can this be any possible problem?
 		    if(removingDynamics.size()>0){
 			dynamics.removeAll(removingDynamics);//any possible exception?
 			removingDynamics.clear();
+			clearNeighborGrid();
 		    }
 		    
-		    
-		    //for(IDynamics d:dynamics){ d.update(); }
-		    for(int i=0; i<dynamics.size(); i++){
-			// preupdate
-			if(!IConfig.loopPreupdate&&IConfig.enablePreupdate){
-			    dynamics.get(i).preupdate();
-			    if(dynamics.get(i).localDynamics()!=null){ // added 20120826
-				ArrayList<IDynamics> localDynamics = dynamics.get(i).localDynamics();
-				for(int j=0; j<localDynamics.size(); j++){
-				    localDynamics.get(j).preupdate();
-				}
-			    }
-			}
-			
-			// update
-			dynamics.get(i).update();
-			if(dynamics.get(i).localDynamics()!=null){ // added 20120826
-			    ArrayList<IDynamics> localDynamics = dynamics.get(i).localDynamics();
-			    for(int j=0; j<localDynamics.size(); j++){
-				localDynamics.get(j).update();
-			    }
-			}
-			
-			// postupdate
-			if(!IConfig.loopPostupdate&&IConfig.enablePostupdate){
-			    dynamics.get(i).postupdate();
-			    if(dynamics.get(i).localDynamics()!=null){ // added 20120826
-				ArrayList<IDynamics> localDynamics = dynamics.get(i).localDynamics();
-				for(int j=0; j<localDynamics.size(); j++){
-				    localDynamics.get(j).postupdate();
-				}
-			    }
-			}
-		    }
+		    phases = UPDATE;
+		    if(!IConfig.loopPreupdate&&IConfig.enablePreupdate){ phases |= PREUPDATE; }
+		    if(!IConfig.loopPostupdate&&IConfig.enablePostupdate){ phases |= POSTUPDATE; }
+		    step(phases);
 		    
 		    // postupdate
-		    if(IConfig.loopPostupdate&&IConfig.enablePostupdate){
-			for(int i=0; i<dynamics.size(); i++){
-			    dynamics.get(i).postupdate();
-			    if(dynamics.get(i).localDynamics()!=null){ // added 20120826
-				ArrayList<IDynamics> localDynamics = dynamics.get(i).localDynamics();
-				for(int j=0; j<localDynamics.size(); j++){
-				    localDynamics.get(j).postupdate();
-				}
-			    }
-			}
-		    }
+		    if(IConfig.loopPostupdate&&IConfig.enablePostupdate){ step(POSTUPDATE); }
+		    
+		    snapshotting=false;
+		    publishSnapshots();
 		}
 		time++;
 		IOut.debug(20,"time="+time); //
@@ -335,6 +275,274 @@ public class IDynamicServer implements Runnable{
     }
     
     
+    /**
+       queue the graphic to be snapshot at the end of the current step.
+       @return false if the server is not in a step of the dynamics thread and the graphic needs to be updated by itself
+    */
+    public boolean snapshot(IGraphicObject g){
+	if(!snapshotting) return false;
+	synchronized(snapshotGraphics){
+	    if(!g.snapshotQueued){
+		g.snapshotQueued=true;
+		snapshotGraphics.add(g);
+	    }
+	}
+	return true;
+    }
+    
+    /**
+       copy geometry of graphics updated in the step into their snapshots while no dynamics is moving it.
+       the draw thread keeps drawing the previous snapshot until each new one is published.
+    */
+    public void publishSnapshots(){
+	final ArrayList<IGraphicObject> graphics;
+	synchronized(snapshotGraphics){
+	    if(snapshotGraphics.size()==0) return;
+	    graphics = new ArrayList<IGraphicObject>(snapshotGraphics);
+	    snapshotGraphics.clear();
+	}
+	if(IConfig.parallelDynamics && IParallel.threadNum()>1 && graphics.size()>=IConfig.parallelDynamicsMinNum){
+	    IParallel.run(0, graphics.size(), new IParallel.Task(){
+		    public void run(int start, int end){
+			for(int i=start; i<end; i++){ publishSnapshot(graphics.get(i)); }
+		    }
+		});
+	}
+	else{
+	    for(int i=0; i<graphics.size(); i++){ publishSnapshot(graphics.get(i)); }
+	}
+    }
+    
+    static void publishSnapshot(IGraphicObject g){
+	g.snapshotQueued=false;
+	g.snapshot();
+    }
+    
+    
+    /**
+       execute the specified phases of all dynamics. phases are bitwise OR of PREINTERACT, INTERACT, POSTINTERACT,
+       PREUPDATE, UPDATE and POSTUPDATE and executed in this order for each dynamics and then for its local dynamics.
+       If IConfig.parallelDynamics is true, a sequence of consecutive dynamics returning true at IDynamics.parallel()
+       longer than IConfig.parallelDynamicsMinNum is executed in parallel threads and
+       the rest is executed sequentially in the original order. The method returns after all threads finish.
+    */
+    public void step(final int phases){
+	if(!IConfig.parallelDynamics || IParallel.threadNum()<=1 ||
+	   dynamics.size()<IConfig.parallelDynamicsMinNum){
+	    for(int i=0; i<dynamics.size(); i++){ step(dynamics.get(i), phases); }
+	    return;
+	}
+	
+	int i=0;
+	while(i<dynamics.size()){
+	    int j=i;
+	    while(j<dynamics.size() && isParallel(dynamics.get(j))){ j++; }
+	    if(j-i >= IConfig.parallelDynamicsMinNum){
+		IParallel.run(i, j, new IParallel.Task(){
+			public void run(int start, int end){
+			    for(int k=start; k<end; k++){ step(dynamics.get(k), phases); }
+			}
+		    });
+	    }
+	    else{
+		for(int k=i; k<j; k++){ step(dynamics.get(k), phases); }
+	    }
+	    if(j<dynamics.size()){ step(dynamics.get(j), phases); }
+	    i = j+1;
+	}
+    }
+    
+    /** execute the specified phases of one dynamics and its local dynamics.
+	Methods which are not overridden from the empty implementation in IDynamicsBase or IAgent are skipped. */
+    public void step(IDynamics d, int phases){
+	ArrayList<IDynamics> localDynamics = null; // added 20120826
+	int active = activePhases(d);
+	if((phases&PREINTERACT)!=0){
+	    if((active&PREINTERACT)!=0) d.preinteract(dynamics);
+	    localDynamics = d.localDynamics();
+	    if(localDynamics!=null){
+		for(int j=0; j<localDynamics.size(); j++){
+		    if((activePhases(localDynamics.get(j))&PREINTERACT)!=0) localDynamics.get(j).preinteract(dynamics);
+		}
+	    }
+	}
+	if((phases&INTERACT)!=0){
+	    if((active&INTERACT)!=0) d.interact(dynamics);
+	    localDynamics = d.localDynamics();
+	    if(localDynamics!=null){
+		for(int j=0; j<localDynamics.size(); j++){
+		    if((activePhases(localDynamics.get(j))&INTERACT)!=0) localDynamics.get(j).interact(dynamics);
+		}
+	    }
+	}
+	if((phases&POSTINTERACT)!=0){
+	    if((active&POSTINTERACT)!=0) d.postinteract(dynamics);
+	    localDynamics = d.localDynamics();
+	    if(localDynamics!=null){
+		for(int j=0; j<localDynamics.size(); j++){
+		    if((activePhases(localDynamics.get(j))&POSTINTERACT)!=0) localDynamics.get(j).postinteract(dynamics);
+		}
+	    }
+	}
+	if((phases&PREUPDATE)!=0){
+	    if((active&PREUPDATE)!=0) d.preupdate();
+	    localDynamics = d.localDynamics();
+	    if(localDynamics!=null){
+		for(int j=0; j<localDynamics.size(); j++){
+		    if((activePhases(localDynamics.get(j))&PREUPDATE)!=0) localDynamics.get(j).preupdate();
+		}
+	    }
+	}
+	if((phases&UPDATE)!=0){
+	    if((active&UPDATE)!=0) d.update();
+	    localDynamics = d.localDynamics();
+	    if(localDynamics!=null){
+		for(int j=0; j<localDynamics.size(); j++){
+		    if((activePhases(localDynamics.get(j))&UPDATE)!=0) localDynamics.get(j).update();
+		}
+	    }
+	}
+	if((phases&POSTUPDATE)!=0){
+	    if((active&POSTUPDATE)!=0) d.postupdate();
+	    localDynamics = d.localDynamics();
+	    if(localDynamics!=null){
+		for(int j=0; j<localDynamics.size(); j++){
+		    if((activePhases(localDynamics.get(j))&POSTUPDATE)!=0) localDynamics.get(j).postupdate();
+		}
+	    }
+	}
+    }
+    
+    /** phases in which the dynamics needs to be executed. postupdate is skipped only when it has no target to update. */
+    public static int activePhases(IDynamics d){
+	int active = activePhasesCache.get(d.getClass());
+	if((active&UPDATE_TARGET)==0 && d.targetNum()>0) active |= POSTUPDATE; // default postupdate only calls updateTarget()
+	return active;
+    }
+    
+    /** find phases whose method is overridden from the empty implementation of IDynamicsBase or IAgent */
+    static int findActivePhases(Class<?> cls){
+	int active = 0;
+	Class<?> dc = declaringClass(cls, "preinteract", ArrayList.class);
+	if(dc!=IDynamicsBase.class) active |= PREINTERACT; // IAgent.preinteract updates time
+	dc = declaringClass(cls, "interact", ArrayList.class);
+	if(dc!=IDynamicsBase.class &&
+	   (dc!=IAgent.class || declaringClass(cls, "interact", IDynamics.class)!=IAgent.class)) active |= INTERACT;
+	dc = declaringClass(cls, "postinteract", ArrayList.class);
+	if(dc!=IDynamicsBase.class && dc!=IAgent.class) active |= POSTINTERACT;
+	dc = declaringClass(cls, "preupdate");
+	if(dc!=IDynamicsBase.class) active |= PREUPDATE; // IAgent.preupdate checks duration
+	dc = declaringClass(cls, "update");
+	if(dc!=IDynamicsBase.class && dc!=IAgent.class) active |= UPDATE;
+	dc = declaringClass(cls, "postupdate");
+	if(dc!=IDynamicsBase.class && dc!=IAgent.class) active |= POSTUPDATE;
+	dc = declaringClass(cls, "updateTarget");
+	if(dc!=IDynamicsBase.class && dc!=IAgent.class) active |= UPDATE_TARGET|POSTUPDATE;
+	return active;
+    }
+    
+    /** class declaring the public method. null if not found. */
+    static Class<?> declaringClass(Class<?> cls, String methodName, Class<?>... parameterTypes){
+	try{
+	    return cls.getMethod(methodName, parameterTypes).getDeclaringClass();
+	}catch(NoSuchMethodException e){ return null; }
+    }
+    
+    /**
+       get spatial grid of current dynamics to find neighbors within the radius.
+       The grid is built at the first call in each step with the cell size of the max radius requested
+       in the last step and it's shared in the rest of the step.
+       Positions are the ones at the time of building. The grid is not updated when dynamics move in the step.
+    */
+    public INeighborGrid neighborGrid(double radius){
+	synchronized(neighborGridLock){
+	    if(radius>neighborRadius) neighborRadius=radius;
+	    if(neighborGrid==null){
+		neighborGrid = new INeighborGrid(dynamics, Math.max(radius,lastNeighborRadius));
+	    }
+	    return neighborGrid;
+	}
+    }
+    
+    /**
+       get dynamics within the radius from the position which are instance of the type.
+       Dynamics which are not IVecI are not included. Dynamics are in the same order with the server.
+       @param type if null, all types are included
+    */
+    public ArrayList<IDynamics> neighbors(IVecI pos, double radius, Class<?> type){
+	ArrayList<IDynamics> neighbors = new ArrayList<IDynamics>();
+	if(radius<0) return neighbors;
+	INeighborGrid grid = neighborGrid(radius);
+	int[] idx = grid.find(pos, radius);
+	for(int i=0; i<idx.length; i++){
+	    IDynamics d = grid.get(idx[i]);
+	    if(type==null || type.isInstance(d)) neighbors.add(d);
+	}
+	return neighbors;
+    }
+    
+    /** get dynamics within the radius from the position. Dynamics which are not IVecI are not included. */
+    public ArrayList<IDynamics> neighbors(IVecI pos, double radius){ return neighbors(pos,radius,null); }
+    
+    /**
+       apply all point fields (see IPointFieldTree.isTreeField) to all particles at once with IPointFieldTree.
+       It's executed only once in each step and returns false if it's already executed.
+    */
+    public boolean applyPointFields(){
+	if(pointFieldsApplied) return false;
+	pointFieldsApplied=true;
+	
+	ArrayList<IPointFieldGeo> fields = new ArrayList<IPointFieldGeo>();
+	final ArrayList<IParticleI> particles = new ArrayList<IParticleI>();
+	ArrayList<IParticlePool> pools = new ArrayList<IParticlePool>();
+	for(int i=0; i<dynamics.size(); i++){
+	    IDynamics d = dynamics.get(i);
+	    if(IPointFieldTree.isTreeField(d)) fields.add((IPointFieldGeo)((I3DField)d).field);
+	    if(d instanceof IParticleI) particles.add((IParticleI)d);
+	    else if(d instanceof IParticlePool) pools.add((IParticlePool)d);
+	}
+	final IPointFieldTree tree = new IPointFieldTree(fields, IConfig.pointFieldTreeAngle);
+	if(IConfig.parallelDynamics){
+	    IParallel.run(0, particles.size(), 64, new IParallel.Task(){
+		    public void run(int start, int end){
+			for(int i=start; i<end; i++) tree.apply(particles.get(i));
+		    }
+		});
+	}
+	else{
+	    for(int i=0; i<particles.size(); i++) tree.apply(particles.get(i));
+	}
+	for(int i=0; i<pools.size(); i++){
+	    IParticlePool pool = pools.get(i);
+	    synchronized(pool){
+		for(int j=0; j<pool.num; j++) pool.push(j, tree.get(pool.pos(j),pool.vel(j)));
+	    }
+	}
+	return true;
+    }
+    
+    /** discard the current neighbor grid to be rebuilt at the next request */
+    public void clearNeighborGrid(){
+	synchronized(neighborGridLock){
+	    neighborGrid=null;
+	    if(neighborRadius>0) lastNeighborRadius=neighborRadius;
+	    neighborRadius=0;
+	}
+    }
+    
+    /** check if the dynamics and all of its local dynamics can be executed in parallel threads */
+    public static boolean isParallel(IDynamics d){
+	if(!d.parallel()) return false;
+	ArrayList<IDynamics> localDynamics = d.localDynamics();
+	if(localDynamics!=null){
+	    for(int i=0; i<localDynamics.size(); i++){
+		if(!localDynamics.get(i).parallel()) return false;
+	    }
+	}
+	return true;
+    }
+    
+    
     public void run(){
 	Thread thisThread = Thread.currentThread();
 	while(thread==thisThread){
@@ -64,6 +64,14 @@ public /*class*/interface IDynamics extends ISubobject{
     public ArrayList<IDynamics> localDynamics(); 
     
     
+    /** check if this dynamics can be executed in parallel threads when IConfig.parallelDynamics is true.
+	Returning true is a contract that in every phase (preinteract, interact, postinteract, preupdate, update, postupdate)
+	it only writes its own state (or state of its targets and local dynamics) which is not read by other dynamics in the same phase,
+	like accumulating force into itself in interact, and it doesn't add or delete objects or dynamics.
+    */
+    public boolean parallel();
+    
+    
     /** add terget object to be updated by this dynamic object. */
     public IDynamics target(IObject targetObj);
     /** get total target number. */
@@ -36,6 +36,9 @@ public class IDynamicsBase implements IDynamics{
     /** target objects to be updated by dynamic object */
     public ArrayList<IObject> targets;
     
+    /** if true, it's executed in parallel threads when IConfig.parallelDynamics is true. see IDynamics.parallel() */
+    public boolean parallel=false;
+    
     /** automatically registered in default IDynamicServer */
     public IDynamicsBase(){ initDynamicsBase(); }
     
@@ -91,10 +94,23 @@ public class IDynamicsBase implements IDynamics{
     }
     
     
+    /** dynamic server of the parent or the current one if the parent is not in any server */
+    public IDynamicServer dynamicServer(){
+	if(parent!=null && parent.server!=null) return parent.server.dynamicServer();
+	return IG.dynamicThread();
+    }
+    
+    
     /** IDynamicsBase doesn't implement local dynamics feature */
     public ArrayList<IDynamics> localDynamics(){ return null; }
     
     
+    /** check if it's executed in parallel threads. see IDynamics.parallel() */
+    public boolean parallel(){ return parallel; }
+    /** set true only when it follows the contract described at IDynamics.parallel() */
+    public IDynamicsBase parallel(boolean p){ parallel=p; return this; }
+    
+    
     /** add terget object to be updated by this dynamic object. */
     public IDynamicsBase target(IObject targetObj){
 	if(targets==null) targets = new ArrayList<IObject>();
@@ -73,11 +73,25 @@ abstract public class IField extends IAgent implements IFieldI{
 	       targetClasses!=null && isTargetClass(agents.get(i))){
 		applyField((IParticleI)agents.get(i));
 	    }
+	    else if(agents.get(i) instanceof IParticlePool &&
+		    (targetClasses==null || isTargetClass(agents.get(i)))){
+		applyField((IParticlePool)agents.get(i));
+	    }
 	}
     }
     
     abstract public void applyField(IParticleI particle);
     
+    /** apply field to all particles in the pool. the pool is locked not to grow its arrays while applying. */
+    public void applyField(IParticlePool pool){
+	synchronized(pool){
+	    for(int i=0; i<pool.num; i++) applyField(pool, i);
+	}
+    }
+    
+    /** apply field to i-th particle in the pool. nothing is done by default. */
+    public void applyField(IParticlePool pool, int i){}
+    
 
     /** default field vector ignoreing velocity */
     public IVal get(IVecI pos, IVecI vel){ return get(pos); }
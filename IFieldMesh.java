@@ -23,6 +23,8 @@
 package igeo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashSet;
 
 /**
    create polygon mesh as sampled interface of equal intensity of fields
@@ -54,16 +56,56 @@ public class IFieldMesh{
     public static IMesh create(ArrayList<IFieldI> fields,
 			       double intensity, IVecI minPos, IVecI maxPos,
 			       int xnum, int ynum, int znum){
+	MeshGeoOutput out = new MeshGeoOutput();
+	march(fields, intensity, minPos, maxPos, xnum, ynum, znum, out);
+	
+	if(out.meshGeo.faceNum()>0){
+	    //for(int i=0; i<meshGeo.vertexNum(); i++){ meshGeo.vertex(i).calcNormal(); }
+	    //meshGeo.removeDuplicatedEdge(); // no effect
+	    return new IMesh(out.meshGeo);
+	}
+	
+	IOut.err("no face is sampled"); //
+	return null;
+    }
+    
+    /** sample field at the given intensity and create indexed triangle buffer without creating IMesh */
+    public static TriangleBuffer createBuffer(double intensity, IVecI minPos, IVecI maxPos,
+					      int xnum, int ynum, int znum){
+	return createBuffer(IG.cur(), intensity, minPos, maxPos, xnum, ynum, znum);
+    }
+    /** sample field at the given intensity and create indexed triangle buffer without creating IMesh */
+    public static TriangleBuffer createBuffer(IG ig, double intensity, IVecI minPos, IVecI maxPos,
+					      int xnum, int ynum, int znum){
+	ArrayList<IFieldI> fields = new ArrayList<IFieldI>();
+	for(int i=0; i<ig.dynamicServer().dynamics.size(); i++){
+	    if(ig.dynamicServer().dynamics.get(i) instanceof IFieldI){
+		fields.add((IFieldI)ig.dynamicServer().dynamics.get(i));
+	    }
+	}
+	return createBuffer(fields, intensity, minPos, maxPos, xnum, ynum, znum);
+    }
+    /** sample field at the given intensity and create indexed triangle buffer without creating IMesh */
+    public static TriangleBuffer createBuffer(ArrayList<IFieldI> fields,
+					      double intensity, IVecI minPos, IVecI maxPos,
+					      int xnum, int ynum, int znum){
+	TriangleBuffer buf = new TriangleBuffer();
+	march(fields, intensity, minPos, maxPos, xnum, ynum, znum, buf);
+	if(buf.triangleNum==0){ IOut.err("no face is sampled"); } //
+	return buf.trim();
+    }
+    
+    /** sample field at the given intensity and put faces crossing the intensity to the output */
+    public static void march(ArrayList<IFieldI> fields,
+			     double intensity, IVecI minPos, IVecI maxPos,
+			     int xnum, int ynum, int znum, MeshOutput out){
 	
-	double[][][] intensities = new double[xnum+1][ynum+1][znum+1];
 	//IVertex[][][] xpt = new IVertex[xnum][ynum+1][znum+1];
 	//IVertex[][][] ypt = new IVertex[xnum+1][ynum][znum+1];
 	//IVertex[][][] zpt = new IVertex[xnum+1][ynum+1][znum];
 	
 	VertexGrid grid = new VertexGrid(xnum,ynum,znum);
 	
-	IMeshGeo meshGeo = new IMeshGeo();
-	
 	IVec dif = maxPos.get().dif(minPos);
 	dif.x /= xnum;
 	dif.y /= ynum;
@@ -71,6 +113,9 @@ public class IFieldMesh{
 	
 	grid.setGridPosition(minPos.get(), dif.x, dif.y, dif.z);
 	
+	double[][][] intensities = sample(fields, minPos, dif, xnum, ynum, znum);
+	
+	IVec pos = new IVec(); // reused; vertices are created from copies
 	
 	for(int i=0; i<=xnum; i++){
 	    double x = dif.x*i + minPos.x();
@@ -79,39 +124,7 @@ public class IFieldMesh{
 		for(int k=0; k<=znum; k++){
 		    double z = dif.z*k + minPos.z();
 		    
-		    IVec pos = new IVec(x,y,z);
-		    
-		    for(int l=0; l<fields.size(); l++){
-			
-			// remove the case when pos is exactly at the center of attractor
-			if(fields.get(l) instanceof IAttractor &&
-			   ((IAttractorGeo)((IAttractor)fields.get(l)).field).pos.eq(pos)
-			   && ((IAttractorGeo)((IAttractor)fields.get(l)).field).constantIntensity // sure?
-			   ){
-			    intensities[i][j][k] +=fields.get(l).intensity();
-			}
-			else{
-			    
-			    IVal val = fields.get(l).get(pos);
-			    
-			    if(val instanceof IVecOp){
-				IVec v = ((IVecOp)val).get();
-				intensities[i][j][k] += v.len();
-			    }
-			    else if(val instanceof IDoubleOp){
-				double v = ((IDoubleOp)val).x();
-				intensities[i][j][k] += v;
-			    }
-			    else if(val instanceof IIntegerOp){
-				int v = ((IIntegerOp)val).x();
-				intensities[i][j][k] += v;
-			    }
-			    
-			}
-		    }
-		    
-		    
-		    //new IPoint(pos).clr(0,0,1.).size(2); //
+		    pos.set(x,y,z);
 		    
 		    if((i*ynum*znum+j*znum+k)%200==0){ // not all
 			IOut.debug(10, "intensity("+i+","+j+","+k+") = "+intensities[i][j][k]); //
@@ -284,7 +297,7 @@ public class IFieldMesh{
 							       intensities[i-1][j-1][k]-intensity
 							   });
 				for(int l=0; l<faces.length; l++){
-				    meshGeo.addFace(faces[l]);
+				    out.add(faces[l]);
 				}
 			    }
 			    
@@ -303,7 +316,7 @@ public class IFieldMesh{
 							       intensities[i][j][k]-intensity
 							   });
 				for(int l=0; l<faces.length; l++){
-				    meshGeo.addFace(faces[l]);
+				    out.add(faces[l]);
 				}
 			    }
 			    
@@ -322,7 +335,7 @@ public class IFieldMesh{
 							       intensities[i][j-1][k-1]-intensity
 							   });
 				for(int l=0; l<faces.length; l++){
-				    meshGeo.addFace(faces[l]);
+				    out.add(faces[l]);
 				}
 			    }
 			    
@@ -341,7 +354,7 @@ public class IFieldMesh{
 							       intensities[i-1][j][k-1]-intensity
 							   });
 				for(int l=0; l<faces.length; l++){
-				    meshGeo.addFace(faces[l]);
+				    out.add(faces[l]);
 				}
 			    }
 			    
@@ -360,7 +373,7 @@ public class IFieldMesh{
 							       intensities[i-1][j-1][k]-intensity
 							   });
 				for(int l=0; l<faces.length; l++){
-				    meshGeo.addFace(faces[l]);
+				    out.add(faces[l]);
 				}
 			    }
 			    
@@ -380,7 +393,7 @@ public class IFieldMesh{
 							       intensities[i][j][k-1]-intensity,
 							       intensities[i][j-1][k]-intensity
 							   });
-				for(int l=0; l<faces.length; l++) meshGeo.addFace(faces[l]);
+				for(int l=0; l<faces.length; l++) out.add(faces[l]);
 			    }
 			    
 			    // corner 2
@@ -397,7 +410,7 @@ public class IFieldMesh{
 							       intensities[i-1][j-1][k-1]-intensity,
 							       intensities[i-1][j][k]-intensity
 							   });
-				for(int l=0; l<faces.length; l++) meshGeo.addFace(faces[l]);
+				for(int l=0; l<faces.length; l++) out.add(faces[l]);
 			    }
 			    
 			    // corner 3
@@ -414,7 +427,7 @@ public class IFieldMesh{
 							       intensities[i-1][j][k]-intensity,
 							       intensities[i-1][j-1][k-1]-intensity
 							   });
-				for(int l=0; l<faces.length; l++) meshGeo.addFace(faces[l]);
+				for(int l=0; l<faces.length; l++) out.add(faces[l]);
 			    }
 			    
 			    // corner 4
@@ -431,7 +444,7 @@ public class IFieldMesh{
 							       intensities[i][j-1][k]-intensity,
 							       intensities[i][j][k-1]-intensity
 							   });
-				for(int l=0; l<faces.length; l++) meshGeo.addFace(faces[l]);
+				for(int l=0; l<faces.length; l++) out.add(faces[l]);
 			    }
 			    
 			    // inside 
@@ -448,7 +461,7 @@ public class IFieldMesh{
 							       intensities[i][j-1][k]-intensity,
 							       intensities[i-1][j][k]-intensity
 							   });
-				for(int l=0; l<faces.length; l++) meshGeo.addFace(faces[l]);
+				for(int l=0; l<faces.length; l++) out.add(faces[l]);
 			    }
 			    
 			}
@@ -481,15 +494,149 @@ public class IFieldMesh{
 		}
 	    }
 	}
+    }
+    
+    /**
+       sample intensity of fields at each grid node.
+       slabs of the grid in x are sampled in parallel threads only when IConfig.parallelDynamics is true
+       because IFieldI.get() of the fields is called concurrently.
+    */
+    public static double[][][] sample(final ArrayList<IFieldI> fields, IVecI minPos, final IVec dif,
+				      final int xnum, final int ynum, final int znum){
+	final double[][][] intensities = new double[xnum+1][ynum+1][znum+1];
+	final double minx = minPos.x(), miny = minPos.y(), minz = minPos.z();
 	
-	if(meshGeo.faceNum()>0){
-	    //for(int i=0; i<meshGeo.vertexNum(); i++){ meshGeo.vertex(i).calcNormal(); }
-	    //meshGeo.removeDuplicatedEdge(); // no effect
-	    return new IMesh(meshGeo);
+	IParallel.Task task = new IParallel.Task(){
+		public void run(int start, int end){
+		    IVec pos = new IVec(); // one per slab; field values are consumed before it moves
+		    for(int i=start; i<end; i++){
+			double x = dif.x*i + minx;
+			for(int j=0; j<=ynum; j++){
+			    double y = dif.y*j + miny;
+			    for(int k=0; k<=znum; k++){
+				pos.set(x, y, dif.z*k + minz);
+				intensities[i][j][k] = intensity(fields, pos);
+			    }
+			}
+		    }
+		}
+	    };
+	if(IConfig.parallelDynamics){
+	    IParallel.run(0, xnum+1, Math.max(1,IConfig.parallelEvalMinNum/Math.max(1,(ynum+1)*(znum+1))), task);
+	}
+	else{ task.run(0, xnum+1); }
+	return intensities;
+    }
+    
+    /** sum of intensity of fields at the position */
+    public static double intensity(ArrayList<IFieldI> fields, IVec pos){
+	double intensity = 0;
+	for(int l=0; l<fields.size(); l++){
+	    // remove the case when pos is exactly at the center of attractor
+	    if(fields.get(l) instanceof IAttractor &&
+	       ((IAttractorGeo)((IAttractor)fields.get(l)).field).pos.eq(pos)
+	       && ((IAttractorGeo)((IAttractor)fields.get(l)).field).constantIntensity // sure?
+	       ){
+		intensity += fields.get(l).intensity();
+	    }
+	    else{
+		IVal val = fields.get(l).get(pos);
+		if(val instanceof IVecOp){
+		    intensity += ((IVecOp)val).get().len();
+		}
+		else if(val instanceof IDoubleOp){
+		    intensity += ((IDoubleOp)val).x();
+		}
+		else if(val instanceof IIntegerOp){
+		    intensity += ((IIntegerOp)val).x();
+		}
+	    }
+	}
+	return intensity;
+    }
+    
+    /** output of faces sampled by march() */
+    public interface MeshOutput{
+	/** a face whose vertices can be shared with faces added before */
+	public void add(IFace f);
+    }
+    
+    /** output to IMeshGeo */
+    public static class MeshGeoOutput implements MeshOutput{
+	public IMeshGeo meshGeo;
+	public HashSet<IVertex> vertexSet;
+	public MeshGeoOutput(){
+	    meshGeo = new IMeshGeo();
+	    vertexSet = new HashSet<IVertex>();
 	}
+	/**
+	   add a face whose edges are new to the mesh.
+	   vertices shared between neighboring cells are added only once, checked by a hash set
+	   instead of searching the vertex list of the mesh.
+	*/
+	public void add(IFace f){
+	    meshGeo.faces.add(f);
+	    for(int i=0; i<f.edges.length; i++){ meshGeo.edges.add(f.edges[i]); }
+	    for(int i=0; i<f.vertices.length; i++){
+		if(vertexSet.add(f.vertices[i])){ meshGeo.addVertex(f.vertices[i]); }
+	    }
+	}
+    }
+    
+    /**
+       output to an indexed triangle buffer. coordinates of vertices are stored in one array
+       and faces are stored as three vertex indices per triangle. quads are split into two triangles.
+       edges and the vertex lists of IMeshGeo are not created.
+    */
+    public static class TriangleBuffer implements MeshOutput{
+	/** x, y, z of each vertex */
+	public double[] coords;
+	public int vertexNum=0;
+	/** three vertex indices of each triangle */
+	public int[] indices;
+	public int triangleNum=0;
 	
-	IOut.err("no face is sampled"); //
-	return null;
+	public TriangleBuffer(){
+	    coords = new double[3*64];
+	    indices = new int[3*64];
+	}
+	
+	/** index of the vertex; it's added to coords at the first time. index field of the vertex is used. */
+	public int vertex(IVertex v){
+	    if(v.index<0){
+		if(vertexNum*3==coords.length){ coords = Arrays.copyOf(coords, coords.length*2); }
+		coords[vertexNum*3] = v.pos.x();
+		coords[vertexNum*3+1] = v.pos.y();
+		coords[vertexNum*3+2] = v.pos.z();
+		v.index = vertexNum++;
+	    }
+	    return v.index;
+	}
+	
+	public void triangle(int i1, int i2, int i3){
+	    if(triangleNum*3==indices.length){ indices = Arrays.copyOf(indices, indices.length*2); }
+	    indices[triangleNum*3] = i1;
+	    indices[triangleNum*3+1] = i2;
+	    indices[triangleNum*3+2] = i3;
+	    triangleNum++;
+	}
+	
+	public void add(IFace f){
+	    int i1 = vertex(f.vertices[0]);
+	    int i2 = vertex(f.vertices[1]);
+	    for(int i=2; i<f.vertices.length; i++){
+		int i3 = vertex(f.vertices[i]);
+		triangle(i1, i2, i3);
+		i2 = i3;
+	    }
+	}
+	
+	/** shrink arrays to the number of vertices and triangles */
+	public TriangleBuffer trim(){
+	    if(coords.length!=vertexNum*3) coords = Arrays.copyOf(coords, vertexNum*3);
+	    if(indices.length!=triangleNum*3) indices = Arrays.copyOf(indices, triangleNum*3);
+	    return this;
+	}
     }
 
     public static class VertexGrid{
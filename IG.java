@@ -1259,6 +1259,7 @@ public class IG implements IServerI{
 	    }
 	}
 	*/
+	ITrajectoryGeo.updateCurves(dynamicServer()); // curves of trajectories are rebuilt lazily
 	return IIO.save(file,this);
     }
     
@@ -56,6 +56,9 @@ abstract public class IGraphicObject /*extends ISubobject*/ implements ISubobjec
     
     public boolean update=false;
     
+    /** queued in IDynamicServer to be snapshot at the end of the current step */
+    public boolean snapshotQueued=false;
+    
     
     public IGraphicObject(IObject p){
 	parent = p;
@@ -85,8 +88,22 @@ abstract public class IGraphicObject /*extends ISubobject*/ implements ISubobjec
 	if(parent!=null&&parent.server!=null) parent.server.updateState();
     }
     
-    /** updating graphic when geometry change. actual update happens when it's drawn.*/
-    public void update(){ update=true; }
+    /**
+       updating graphic when geometry change. actual update happens when it's drawn.
+       when it's called in a step of the dynamics thread, the update is deferred to snapshot() at the end of the step.
+    */
+    public void update(){
+	if(IConfig.snapshotDynamics && parent!=null && parent.server!=null &&
+	   parent.server.dynamicServer!=null && parent.server.dynamicServer.snapshot(this)) return;
+	update=true;
+    }
+    
+    /**
+       called by IDynamicServer in the dynamics thread at the end of a step in which the graphic is updated.
+       subclasses copy the geometry to draw into a new array and publish it to the draw thread by replacing a volatile field.
+       by default it only flags update to be done when it's drawn.
+    */
+    public void snapshot(){ update=true; }
 
     public void setAttribute(IAttribute attr){
 	//color = attr.color;
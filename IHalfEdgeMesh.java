@@ -0,0 +1,540 @@
+/*---
+
+    iGeo - http://igeo.jp
+
+    Copyright (c) 2002-2013 Satoru Sugihara
+
+    This file is part of iGeo.
+
+    iGeo is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as
+    published by the Free Software Foundation, version 3.
+
+    iGeo is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with iGeo.  If not, see <http://www.gnu.org/licenses/>.
+
+---*/
+
+package igeo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+
+/**
+   Compact array-based half-edge representation of polygon mesh.
+   Topology is kept in int arrays and vertex coordinates in a double array,
+   and IVertex, IEdge and IFace are materialized only when requested as views.
+   Vertices, half-edges and faces are referred by index.
+   An undirected edge is represented by a half-edge whose twin is -1 (naked) or whose index is smaller than its twin.
+   
+   @author Satoru Sugihara
+*/
+public class IHalfEdgeMesh{
+    
+    /** x, y, z of vertices */
+    public double[] coords;
+    /** one outgoing half-edge of each vertex; -1 if the vertex is isolated */
+    public int[] vertexHalfEdge;
+    public int vertexNum;
+    
+    /** origin vertex of each half-edge */
+    public int[] heVertex;
+    /** next half-edge in the face loop */
+    public int[] heNext;
+    /** opposite half-edge; -1 if naked */
+    public int[] heTwin;
+    /** face of each half-edge */
+    public int[] heFace;
+    public int halfEdgeNum;
+    
+    /** one half-edge of each face */
+    public int[] faceHalfEdge;
+    public int faceNum;
+    
+    /** views materialized on demand. they are kept across topology operations except edges and faces which change. */
+    public IVertex[] vertexViews;
+    public IEdge[] edgeViews;
+    public IFace[] faceViews;
+    
+    
+    /**
+       @param coords x, y, z of vertices
+       @param faces vertex indices of each face in counter clockwise order
+    */
+    public IHalfEdgeMesh(double[] coords, int[][] faces){
+	int num=0;
+	for(int i=0; i<faces.length; i++) num+=faces[i].length;
+	int[] faceStart = new int[faces.length+1];
+	int[] faceVertices = new int[num];
+	for(int i=0, k=0; i<faces.length; i++){
+	    faceStart[i]=k;
+	    for(int j=0; j<faces[i].length; j++) faceVertices[k++] = faces[i][j];
+	}
+	faceStart[faces.length]=num;
+	init(coords, coords.length/3, faceStart, faceVertices, faces.length);
+    }
+    
+    /**
+       @param coords x, y, z of vertices
+       @param faceStart start position of each face in faceVertices; faceStart[faceNum] is the length of faceVertices
+       @param faceVertices vertex indices of all faces in counter clockwise order
+    */
+    public IHalfEdgeMesh(double[] coords, int vertexNum, int[] faceStart, int[] faceVertices, int faceNum){
+	init(coords, vertexNum, faceStart, faceVertices, faceNum);
+    }
+    
+    /** converting mesh. edges not belonging to any face are ignored. */
+    public IHalfEdgeMesh(IMeshGeo mesh){
+	HashMap<IVertex,Integer> vertexIndex = new HashMap<IVertex,Integer>(mesh.vertexNum()*2);
+	ArrayList<IVertex> vtx = new ArrayList<IVertex>(mesh.vertices);
+	for(int i=0; i<vtx.size(); i++){
+	    if(!vertexIndex.containsKey(vtx.get(i))) vertexIndex.put(vtx.get(i), i);
+	}
+	int num=0;
+	for(int i=0; i<mesh.faceNum(); i++) num += mesh.face(i).vertexNum();
+	int[] faceStart = new int[mesh.faceNum()+1];
+	int[] faceVertices = new int[num];
+	for(int i=0, k=0; i<mesh.faceNum(); i++){
+	    faceStart[i]=k;
+	    IFace f = mesh.face(i);
+	    for(int j=0; j<f.vertices.length; j++){
+		Integer idx = vertexIndex.get(f.vertices[j]);
+		if(idx==null){ // vertex missing in the vertex list
+		    idx = vtx.size();
+		    vtx.add(f.vertices[j]);
+		    vertexIndex.put(f.vertices[j], idx);
+		}
+		faceVertices[k++] = idx;
+	    }
+	}
+	faceStart[mesh.faceNum()]=num;
+	double[] xyz = new double[vtx.size()*3];
+	for(int i=0; i<vtx.size(); i++){
+	    IVec p = vtx.get(i).get();
+	    xyz[i*3]=p.x; xyz[i*3+1]=p.y; xyz[i*3+2]=p.z;
+	}
+	init(xyz, vtx.size(), faceStart, faceVertices, mesh.faceNum());
+    }
+    
+    
+    public void init(double[] coords, int vertexNum, int[] faceStart, int[] faceVertices, int faceNum){
+	// vertex views are kept when vertices stay the same, like triangulate()
+	if(coords!=this.coords || vertexNum!=this.vertexNum) vertexViews = null;
+	discardEdgeAndFaceViews();
+	this.coords = coords;
+	this.vertexNum = vertexNum;
+	this.faceNum = faceNum;
+	halfEdgeNum = faceStart[faceNum];
+	
+	vertexHalfEdge = new int[vertexNum];
+	heVertex = new int[halfEdgeNum];
+	heNext = new int[halfEdgeNum];
+	heTwin = new int[halfEdgeNum];
+	heFace = new int[halfEdgeNum];
+	faceHalfEdge = new int[faceNum];
+	
+	for(int i=0; i<vertexNum; i++) vertexHalfEdge[i] = -1;
+	
+	for(int i=0; i<faceNum; i++){
+	    int start = faceStart[i], end = faceStart[i+1];
+	    faceHalfEdge[i] = start;
+	    for(int h=start; h<end; h++){
+		heVertex[h] = faceVertices[h];
+		heNext[h] = h+1<end? h+1 : start;
+		heTwin[h] = -1;
+		heFace[h] = i;
+		if(vertexHalfEdge[faceVertices[h]]<0) vertexHalfEdge[faceVertices[h]] = h;
+	    }
+	}
+	
+	// pairing twins through outgoing half-edges of each vertex in compressed rows
+	int[] outStart = new int[vertexNum+1];
+	for(int h=0; h<halfEdgeNum; h++) outStart[heVertex[h]+1]++;
+	for(int i=0; i<vertexNum; i++) outStart[i+1] += outStart[i];
+	int[] out = new int[halfEdgeNum];
+	int[] fill = new int[vertexNum];
+	for(int h=0; h<halfEdgeNum; h++){
+	    int v = heVertex[h];
+	    out[outStart[v]+fill[v]++] = h;
+	}
+	for(int h=0; h<halfEdgeNum; h++){
+	    if(heTwin[h]>=0) continue;
+	    int v1 = heVertex[h];
+	    int v2 = heVertex[heNext[h]];
+	    for(int k=outStart[v2]; k<outStart[v2+1]; k++){
+		int t = out[k];
+		if(t!=h && heTwin[t]<0 && heVertex[heNext[t]]==v1){
+		    heTwin[h] = t;
+		    heTwin[t] = h;
+		    break;
+		}
+	    }
+	}
+    }
+    
+    
+    public int vertexNum(){ return vertexNum; }
+    public int faceNum(){ return faceNum; }
+    public int halfEdgeNum(){ return halfEdgeNum; }
+    /** number of undirected edges */
+    public int edgeNum(){
+	int num=0;
+	for(int h=0; h<halfEdgeNum; h++) if(isEdge(h)) num++;
+	return num;
+    }
+    
+    /** check if the half-edge represents an undirected edge */
+    public boolean isEdge(int halfEdge){
+	return heTwin[halfEdge]<0 || halfEdge<heTwin[halfEdge];
+    }
+    
+    public int origin(int halfEdge){ return heVertex[halfEdge]; }
+    public int destination(int halfEdge){ return heVertex[heNext[halfEdge]]; }
+    public int next(int halfEdge){ return heNext[halfEdge]; }
+    public int twin(int halfEdge){ return heTwin[halfEdge]; }
+    public int prev(int halfEdge){
+	int h = halfEdge;
+	while(heNext[h]!=halfEdge) h = heNext[h];
+	return h;
+    }
+    
+    public int faceVertexNum(int faceIndex){
+	int num=0;
+	int h = faceHalfEdge[faceIndex];
+	do{ num++; h = heNext[h]; }while(h!=faceHalfEdge[faceIndex]);
+	return num;
+    }
+    
+    public int[] faceVertices(int faceIndex){
+	int[] vtx = new int[faceVertexNum(faceIndex)];
+	int h = faceHalfEdge[faceIndex];
+	for(int i=0; i<vtx.length; i++){ vtx[i] = heVertex[h]; h = heNext[h]; }
+	return vtx;
+    }
+    
+    public IVec pos(int vertexIndex){
+	return new IVec(coords[vertexIndex*3], coords[vertexIndex*3+1], coords[vertexIndex*3+2]);
+    }
+    
+    public IHalfEdgeMesh pos(int vertexIndex, double x, double y, double z){
+	coords[vertexIndex*3] = x;
+	coords[vertexIndex*3+1] = y;
+	coords[vertexIndex*3+2] = z;
+	if(vertexViews!=null && vertexViews[vertexIndex]!=null) vertexViews[vertexIndex].set(x,y,z);
+	return this;
+    }
+    
+    /** half-edges without twin */
+    public int[] nakedEdges(){
+	int num=0;
+	for(int h=0; h<halfEdgeNum; h++) if(heTwin[h]<0) num++;
+	int[] naked = new int[num];
+	for(int h=0, i=0; h<halfEdgeNum; h++) if(heTwin[h]<0) naked[i++] = h;
+	return naked;
+    }
+    
+    
+    /*************************************************
+     * views
+     ************************************************/
+    
+    /** discard all materialized views */
+    public void clearViews(){
+	vertexViews = null;
+	edgeViews = null;
+	faceViews = null;
+    }
+    
+    /** vertex view created on demand and kept while the vertex exists.
+	the view keeps a copy of the position; use pos(int,double,double,double) to move a vertex. */
+    public IVertex vertex(int vertexIndex){
+	if(vertexViews==null) vertexViews = new IVertex[vertexNum];
+	else if(vertexViews.length<vertexNum) vertexViews = Arrays.copyOf(vertexViews, vertexNum);
+	if(vertexViews[vertexIndex]==null) vertexViews[vertexIndex] = new IVertex(coords[vertexIndex*3], coords[vertexIndex*3+1], coords[vertexIndex*3+2]);
+	return vertexViews[vertexIndex];
+    }
+    
+    /** edge view of the undirected edge of the half-edge created on demand.
+	the view is discarded when the edge is divided. */
+    public IEdge edge(int halfEdge){
+	if(!isEdge(halfEdge)) halfEdge = heTwin[halfEdge];
+	if(edgeViews==null) edgeViews = new IEdge[halfEdgeNum];
+	else if(edgeViews.length<halfEdgeNum) edgeViews = Arrays.copyOf(edgeViews, halfEdgeNum);
+	if(edgeViews[halfEdge]==null) edgeViews[halfEdge] = new IEdge(vertex(origin(halfEdge)), vertex(destination(halfEdge)));
+	return edgeViews[halfEdge];
+    }
+    
+    /** face view created on demand. the view is discarded when the face loop changes. */
+    public IFace face(int faceIndex){
+	if(faceViews==null) faceViews = new IFace[faceNum];
+	else if(faceViews.length<faceNum) faceViews = Arrays.copyOf(faceViews, faceNum);
+	if(faceViews[faceIndex]==null){
+	    IEdge[] e = new IEdge[faceVertexNum(faceIndex)];
+	    int h = faceHalfEdge[faceIndex];
+	    for(int i=0; i<e.length; i++){ e[i] = edge(h); h = heNext[h]; }
+	    faceViews[faceIndex] = new IFace(e);
+	}
+	return faceViews[faceIndex];
+    }
+    
+    /** discard the view of the edge of the half-edge and unlink it from vertex views */
+    void discardEdgeView(int halfEdge){
+	if(edgeViews==null) return;
+	if(!isEdge(halfEdge)) halfEdge = heTwin[halfEdge];
+	if(halfEdge>=edgeViews.length || edgeViews[halfEdge]==null) return;
+	IEdge e = edgeViews[halfEdge];
+	edgeViews[halfEdge] = null;
+	for(int i=0; i<e.vertices.length; i++){
+	    int k = e.vertices[i].edges.indexOf(e);
+	    if(k>=0){ e.vertices[i].edges.remove(k); e.vertices[i].linkedVertices.remove(k); }
+	}
+    }
+    
+    /** discard the view of the face and unlink it from edge and vertex views */
+    void discardFaceView(int faceIndex){
+	if(faceViews==null || faceIndex>=faceViews.length || faceViews[faceIndex]==null) return;
+	IFace f = faceViews[faceIndex];
+	faceViews[faceIndex] = null;
+	for(int i=0; i<f.vertices.length; i++) f.vertices[i].faces.remove(f);
+	for(int i=0; i<f.edges.length; i++) f.edges[i].faces.remove(f);
+    }
+    
+    /** discard all edge and face views and unlink them from vertex views */
+    void discardEdgeAndFaceViews(){
+	if(vertexViews!=null){
+	    for(int i=0; i<vertexViews.length; i++){
+		if(vertexViews[i]!=null){
+		    vertexViews[i].edges.clear();
+		    vertexViews[i].linkedVertices.clear();
+		    vertexViews[i].faces.clear();
+		}
+	    }
+	}
+	edgeViews = null;
+	faceViews = null;
+    }
+    
+    /** materialize all vertices, edges and faces as IMeshGeo */
+    public IMeshGeo meshGeo(){
+	ArrayList<IVertex> vtx = new ArrayList<IVertex>(vertexNum);
+	ArrayList<IEdge> edg = new ArrayList<IEdge>();
+	ArrayList<IFace> fcs = new ArrayList<IFace>(faceNum);
+	for(int i=0; i<faceNum; i++) fcs.add(face(i));
+	for(int i=0; i<vertexNum; i++) vtx.add(vertex(i));
+	for(int h=0; h<halfEdgeNum; h++) if(isEdge(h)) edg.add(edge(h));
+	return new IMeshGeo(vtx, edg, fcs);
+    }
+    
+    
+    /*************************************************
+     * topology operations
+     ************************************************/
+    
+    /** divide an edge at the ratio and split adjacent faces into triangles at the new vertex.
+	@param ratio [0-1]: 0 -> origin of the half-edge, 1 -> destination
+	@return index of the new vertex
+    */
+    public int divideEdge(int halfEdge, double ratio){
+	int v1 = origin(halfEdge), v2 = destination(halfEdge);
+	discardEdgeView(halfEdge);
+	discardFaceView(heFace[halfEdge]);
+	if(heTwin[halfEdge]>=0) discardFaceView(heFace[heTwin[halfEdge]]);
+	int v = addVertex(coords[v1*3]+(coords[v2*3]-coords[v1*3])*ratio,
+			  coords[v1*3+1]+(coords[v2*3+1]-coords[v1*3+1])*ratio,
+			  coords[v1*3+2]+(coords[v2*3+2]-coords[v1*3+2])*ratio);
+	
+	int twin = heTwin[halfEdge];
+	int h2 = splitHalfEdge(halfEdge, v);
+	vertexHalfEdge[v] = h2;
+	if(twin>=0){
+	    int t2 = splitHalfEdge(twin, v);
+	    heTwin[halfEdge] = t2; heTwin[t2] = halfEdge;
+	    heTwin[h2] = twin; heTwin[twin] = h2;
+	    triangulateAt(t2);
+	}
+	triangulateAt(h2);
+	return v;
+    }
+    
+    /** insert a vertex in the middle of the half-edge within its face. twin is not updated.
+	@return new half-edge from the inserted vertex */
+    int splitHalfEdge(int halfEdge, int vertexIndex){
+	int h = addHalfEdge(vertexIndex, heNext[halfEdge], heFace[halfEdge]);
+	heNext[halfEdge] = h;
+	return h;
+    }
+    
+    /** connect the origin of the half-edge with the vertices of its face and cut off triangles at both sides */
+    void triangulateAt(int halfEdge){
+	int n = faceVertexNum(heFace[halfEdge]);
+	if(n<=3) return;
+	int rest = splitFace(halfEdge, heNext[heNext[halfEdge]]);
+	if(n>4){
+	    // rest starts at the diagonal out of the vertex
+	    splitFace(prev(prev(rest)), rest);
+	}
+    }
+    
+    /** split a face by a diagonal between origins of two half-edges in the same face.
+	The original face keeps the loop from halfEdge1 and a new face gets the loop from halfEdge2.
+	@return new half-edge of the diagonal in the new face, starting at the origin of halfEdge1
+    */
+    public int splitFace(int halfEdge1, int halfEdge2){
+	int p1 = prev(halfEdge1), p2 = prev(halfEdge2);
+	int f = heFace[halfEdge1];
+	discardFaceView(f);
+	int newFace = addFace(halfEdge2);
+	int d1 = addHalfEdge(heVertex[halfEdge2], halfEdge1, f);
+	int d2 = addHalfEdge(heVertex[halfEdge1], halfEdge2, newFace);
+	heNext[p2] = d1;
+	heNext[p1] = d2;
+	heTwin[d1] = d2;
+	heTwin[d2] = d1;
+	faceHalfEdge[f] = halfEdge1;
+	int h = halfEdge2;
+	do{ heFace[h] = newFace; h = heNext[h]; }while(h!=halfEdge2);
+	return d2;
+    }
+    
+    /** subdivide all triangle faces into 4 triangles each divided at each mid point of edges. non-triangle faces are ignored.
+	@return new subdivided mesh
+    */
+    public IHalfEdgeMesh subdivide(){
+	int[] mid = new int[halfEdgeNum];
+	int midNum=0;
+	for(int h=0; h<halfEdgeNum; h++) if(isEdge(h)) mid[h] = vertexNum+midNum++;
+	for(int h=0; h<halfEdgeNum; h++) if(!isEdge(h)) mid[h] = mid[heTwin[h]];
+	
+	double[] xyz = new double[(vertexNum+midNum)*3];
+	System.arraycopy(coords, 0, xyz, 0, vertexNum*3);
+	for(int h=0; h<halfEdgeNum; h++){
+	    if(isEdge(h)){
+		int v1 = origin(h)*3, v2 = destination(h)*3, m = mid[h]*3;
+		xyz[m] = (coords[v1]+coords[v2])/2;
+		xyz[m+1] = (coords[v1+1]+coords[v2+1])/2;
+		xyz[m+2] = (coords[v1+2]+coords[v2+2])/2;
+	    }
+	}
+	
+	int triNum=0;
+	for(int i=0; i<faceNum; i++) if(faceVertexNum(i)==3) triNum++;
+	int[] faceStart = new int[triNum*4+1];
+	int[] faceVertices = new int[triNum*12];
+	int k=0, fi=0;
+	for(int i=0; i<faceNum; i++){
+	    int h1 = faceHalfEdge[i], h2 = heNext[h1], h3 = heNext[h2];
+	    if(heNext[h3]!=h1) continue;
+	    int v1 = heVertex[h1], v2 = heVertex[h2], v3 = heVertex[h3];
+	    int m1 = mid[h1], m2 = mid[h2], m3 = mid[h3];
+	    int[] tri = new int[]{ v1,m1,m3, v2,m2,m1, v3,m3,m2, m1,m2,m3 };
+	    for(int j=0; j<12; j++){
+		if(j%3==0) faceStart[fi++] = k;
+		faceVertices[k++] = tri[j];
+	    }
+	}
+	faceStart[fi] = k;
+	return new IHalfEdgeMesh(xyz, vertexNum+midNum, faceStart, faceVertices, triNum*4);
+    }
+    
+    public IHalfEdgeMesh triangulate(){ return triangulate(true); }
+    
+    /** triangulate all polygon faces alternately from both ends of the vertex loop in the same way with IFace.triangulate.
+	Triangle faces are kept in order and new triangles are appended after them.
+    */
+    public IHalfEdgeMesh triangulate(boolean triangulateDirection){
+	int triNum=0, polyNum=0, newTriNum=0;
+	for(int i=0; i<faceNum; i++){
+	    int n = faceVertexNum(i);
+	    if(n==3) triNum++;
+	    else if(n>3){ polyNum++; newTriNum += n-2; }
+	}
+	if(polyNum==0) return this;
+	
+	int[] faceStart = new int[triNum+newTriNum+1];
+	int[] faceVertices = new int[(triNum+newTriNum)*3];
+	int k=0, fi=0;
+	for(int i=0; i<faceNum; i++){
+	    if(faceVertexNum(i)!=3) continue;
+	    faceStart[fi++] = k;
+	    int h = faceHalfEdge[i];
+	    for(int j=0; j<3; j++){ faceVertices[k++] = heVertex[h]; h = heNext[h]; }
+	}
+	for(int i=0; i<faceNum; i++){
+	    if(faceVertexNum(i)<=3) continue;
+	    int[] v = faceVertices(i);
+	    int idx1=0, idx2=v.length-1;
+	    for(; idx1+1<=idx2-1; idx1++, idx2--){
+		if(idx1+1==idx2-1){
+		    faceStart[fi++] = k;
+		    faceVertices[k++] = v[idx1]; faceVertices[k++] = v[idx1+1]; faceVertices[k++] = v[idx2];
+		}
+		else if(triangulateDirection){
+		    faceStart[fi++] = k;
+		    faceVertices[k++] = v[idx1]; faceVertices[k++] = v[idx2-1]; faceVertices[k++] = v[idx2];
+		    faceStart[fi++] = k;
+		    faceVertices[k++] = v[idx1]; faceVertices[k++] = v[idx1+1]; faceVertices[k++] = v[idx2-1];
+		}
+		else{
+		    faceStart[fi++] = k;
+		    faceVertices[k++] = v[idx1]; faceVertices[k++] = v[idx1+1]; faceVertices[k++] = v[idx2];
+		    faceStart[fi++] = k;
+		    faceVertices[k++] = v[idx1+1]; faceVertices[k++] = v[idx2-1]; faceVertices[k++] = v[idx2];
+		}
+	    }
+	}
+	faceStart[fi] = k;
+	init(coords, vertexNum, faceStart, faceVertices, fi);
+	return this;
+    }
+    
+    
+    /*************************************************
+     * array management
+     ************************************************/
+    
+    public int addVertex(double x, double y, double z){
+	if((vertexNum+1)*3 > coords.length){
+	    double[] c = new double[Math.max((vertexNum+1)*3, coords.length*2)];
+	    System.arraycopy(coords, 0, c, 0, vertexNum*3);
+	    coords = c;
+	}
+	if(vertexNum+1 > vertexHalfEdge.length) vertexHalfEdge = grow(vertexHalfEdge, vertexNum+1);
+	coords[vertexNum*3] = x;
+	coords[vertexNum*3+1] = y;
+	coords[vertexNum*3+2] = z;
+	vertexHalfEdge[vertexNum] = -1;
+	return vertexNum++;
+    }
+    
+    int addHalfEdge(int vertexIndex, int next, int faceIndex){
+	if(halfEdgeNum+1 > heVertex.length){
+	    heVertex = grow(heVertex, halfEdgeNum+1);
+	    heNext = grow(heNext, halfEdgeNum+1);
+	    heTwin = grow(heTwin, halfEdgeNum+1);
+	    heFace = grow(heFace, halfEdgeNum+1);
+	}
+	heVertex[halfEdgeNum] = vertexIndex;
+	heNext[halfEdgeNum] = next;
+	heTwin[halfEdgeNum] = -1;
+	heFace[halfEdgeNum] = faceIndex;
+	return halfEdgeNum++;
+    }
+    
+    int addFace(int halfEdge){
+	if(faceNum+1 > faceHalfEdge.length) faceHalfEdge = grow(faceHalfEdge, faceNum+1);
+	faceHalfEdge[faceNum] = halfEdge;
+	return faceNum++;
+    }
+    
+    static int[] grow(int[] array, int minLength){
+	int[] a = new int[Math.max(minLength, array.length*2)];
+	System.arraycopy(array, 0, a, 0, array.length);
+	return a;
+    }
+}
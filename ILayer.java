@@ -23,6 +23,7 @@
 package igeo;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.awt.Color;
 
 /**
@@ -34,7 +35,12 @@ import java.awt.Color;
 */
 public class ILayer extends IObject{
     
+    /** list of objects derived from index. use allObjects() to read it because it's rebuilt lazily after removal */
     public ArrayList<IObject> objects;
+    /** objects indexed by class for type queries */
+    public IObjectIndex index;
+    /** true when objects are removed from index and the list of objects needs to be rebuilt */
+    public boolean objectsChanged=false;
     //public ILayer parentLayer = null;
     //public Color color;
     //public IMaterial material;
@@ -43,21 +49,23 @@ public class ILayer extends IObject{
     public ILayer(){
 	attribute = new IAttribute();
 	objects = new ArrayList<IObject>();
+	index = new IObjectIndex();
     }
     public ILayer(String name){ this(); attribute.name = name; }
     public ILayer(IServerI s){
 	super(s);
 	attribute = new IAttribute();
 	objects = new ArrayList<IObject>();
+	index = new IObjectIndex();
     }
     public ILayer(IServerI s, String name){ this(s); attribute.name = name; }
     
     
-    public int num(){ return objects.size(); }
-    public IObject get(int i){ return objects.get(i); }
+    public int num(){ return index.num(); }
+    public IObject get(int i){ return allObjects().get(i); }
     public synchronized ILayer add(IObject e){
-	if(!objects.contains(e)){
-	    objects.add(e);
+	if(index.add(e)){
+	    if(!objectsChanged) objects.add(e);
 	    if(e.layer()!=this) e.layer(this);
 	    //e.layer = this;
 	    // if e is ILayer, e.layer means parent layer
@@ -65,12 +73,19 @@ public class ILayer extends IObject{
 	//if(e instanceof ILayer){ ((ILayer)e).parentLayer = this; }
 	return this;
     }
-    public synchronized ILayer remove(int i){ objects.remove(i); return this; }
-    public synchronized ILayer remove(IObject e){ objects.remove(e); return this; }
+    public synchronized ILayer remove(int i){ return remove(allObjects().get(i)); }
+    public synchronized ILayer remove(IObject e){ if(index.remove(e)) objectsChanged=true; return this; }
     
-    public boolean contains(IObject e){ return objects.contains(e); }
+    public synchronized boolean contains(IObject e){ return index.contains(e); }
     
-    public ArrayList<IObject> allObjects(){ return objects; }
+    public synchronized ArrayList<IObject> allObjects(){
+	if(objectsChanged){ // rebuilt once after removal of any number of objects
+	    objects.clear();
+	    objects.addAll(index.objects);
+	    objectsChanged=false;
+	}
+	return objects;
+    }
     public ArrayList<IObject> getAllObjects(){ return allObjects(); }
     
     /***********************************************************************
@@ -80,15 +95,7 @@ public class ILayer extends IObject{
     /** Returns all point objects contained in a layer.
         IPointR objects are not included.
      */
-    public IPoint[] points(){
-        ArrayList<IPoint> points = new ArrayList<IPoint>();
-        synchronized(server){
-            for(int i=0; i<objects.size(); i++)
-                if(objects.get(i) instanceof IPoint)
-                    points.add((IPoint)objects.get(i));
-        }
-        return points.toArray(new IPoint[points.size()]);
-    }
+    public synchronized IPoint[] points(){ return index.array(IPoint.class); }
     /** alias of points() */
     public IPoint[] getPoints(){ return points(); }
     /** alias of points() */
@@ -98,15 +105,7 @@ public class ILayer extends IObject{
     /** Returns all curve objects contained in a layer.
         ICurveR objects are not included.
     */
-    public ICurve[] curves(){
-        ArrayList<ICurve> curves = new ArrayList<ICurve>();
-        synchronized(server){
-            for(int i=0; i<objects.size(); i++)
-                if(objects.get(i) instanceof ICurve)
-                    curves.add((ICurve)objects.get(i));
-        }
-        return curves.toArray(new ICurve[curves.size()]);
-    }
+    public synchronized ICurve[] curves(){ return index.array(ICurve.class); }
     /** alias of curves() */
     public ICurve[] getCurves(){ return curves(); }
     /** alias of curves() */
@@ -115,15 +114,7 @@ public class ILayer extends IObject{
     /** Returns all surface objects contained in a layer.
         ISurfaceR objects are not included.
     */
-    public ISurface[] surfaces(){
-        ArrayList<ISurface> surfaces = new ArrayList<ISurface>();
-        synchronized(server){
-            for(int i=0; i<objects.size(); i++)
-                if(objects.get(i) instanceof ISurface)
-                    surfaces.add((ISurface)objects.get(i));
-        }
-        return surfaces.toArray(new ISurface[surfaces.size()]);
-    }
+    public synchronized ISurface[] surfaces(){ return index.array(ISurface.class); }
     /** alias of surfaces() */
     public ISurface[] getSurfaces(){ return surfaces(); }
     /** alias of surfaces() */
@@ -133,43 +124,19 @@ public class ILayer extends IObject{
     /** Returns all mesh objects contained in a layer.
         IMeshR objects are not included.
     */
-    public IMesh[] meshes(){
-        ArrayList<IMesh> meshes = new ArrayList<IMesh>();
-        synchronized(server){
-            for(int i=0; i<objects.size(); i++)
-                if(objects.get(i) instanceof IMesh)
-                    meshes.add((IMesh)objects.get(i));
-        }
-        return meshes.toArray(new IMesh[meshes.size()]);
-    }
+    public synchronized IMesh[] meshes(){ return index.array(IMesh.class); }
     /** alias of meshes() */
     public IMesh[] getMeshes(){ return meshes(); }
     
     /** Returns all brep objects contained in a layer.
      */
-    public IBrep[] breps(){
-        ArrayList<IBrep> breps = new ArrayList<IBrep>();
-        synchronized(server){
-            for(int i=0; i<objects.size(); i++)
-                if(objects.get(i) instanceof IBrep)
-                    breps.add((IBrep)objects.get(i));
-        }
-        return breps.toArray(new IBrep[breps.size()]);
-    }
+    public synchronized IBrep[] breps(){ return index.array(IBrep.class); }
     /** alias of breps() */
     public IBrep[] getBreps(){ return breps(); }
     
     /** Returns all brep objects contained in a layer.
      */
-    public IGeometry[] geometries(){
-        ArrayList<IGeometry> geos = new ArrayList<IGeometry>();
-        synchronized(server){
-            for(int i=0; i<objects.size(); i++)
-                if(objects.get(i) instanceof IGeometry)
-                    geos.add((IGeometry)objects.get(i));
-        }
-        return geos.toArray(new IGeometry[geos.size()]);
-    }
+    public synchronized IGeometry[] geometries(){ return index.array(IGeometry.class); }
     /** alias of geometries() */
     public IGeometry[] getGeometries(){ return geometries(); }
     /** alias of geometries() */
@@ -177,22 +144,24 @@ public class ILayer extends IObject{
     
     /** Returns all objects of specified class contained in a layer.
      */
-    public IObject[] objects(Class cls){
-        ArrayList<IObject> objs = new ArrayList<IObject>();
-        synchronized(server){
-            for(int i=0; i<objs.size(); i++)
-                if(cls.isInstance(objects.get(i))) objs.add(objects.get(i));
-        }
-        return objs.toArray(new IObject[objs.size()]);
+    public synchronized IObject[] objects(Class cls){
+	List<?> list = index.list((Class<?>)cls);
+	return list.toArray(new IObject[list.size()]);
     }
     /** alias of objects(Class) */
     public IObject[] getObjects(Class cls){ return objects(cls); }
     /** alias of objects(Class) */
     public IObject[] objs(Class cls){ return objects(cls); }
     
+    /** Returns read-only list of objects of specified class contained in a layer without copying them.
+	The list is not updated when objects are added or removed after the call.
+     */
+    public synchronized <T> List<T> objectList(Class<T> cls){ return index.list(cls); }
+    
     /** Returns all objects contained in a layer.
      */
     public IObject[] objects(){
+	ArrayList<IObject> objects = allObjects();
 	return objects.toArray(new IObject[objects.size()]);
     }
     /** alias of objects() */
@@ -205,13 +174,7 @@ public class ILayer extends IObject{
     /** Returns i-th IPoint object contained in objects or null if not found.
         IPointR objects are not included.
     */
-    public synchronized IPoint point(int i){
-        int curIdx=0;
-	for(int j=0; j<objects.size(); j++)
-	    if(objects.get(j) instanceof IPoint)
-		if(i==curIdx++) return (IPoint)objects.get(j);
-        return null;
-    }
+    public synchronized IPoint point(int i){ return index.get(IPoint.class, i); }
     /** alias of point(int) */
     public IPoint getPoint(int i){ return point(i); }
     /** alias of point(int) */
@@ -221,13 +184,7 @@ public class ILayer extends IObject{
     /** Returns i-th ICurve object contained in objects or null if not found.
         ICurveR objects are not included.
     */
-    public synchronized ICurve curve(int i){
-        int curIdx=0;
-	for(int j=0; j<objects.size(); j++)
-	    if(objects.get(j) instanceof ICurve)
-		if(i==curIdx++) return (ICurve)objects.get(j);
-        return null;
-    }
+    public synchronized ICurve curve(int i){ return index.get(ICurve.class, i); }
     /** alias of curve(int) */
     public ICurve getCurve(int i){ return curve(i); }
     /** alias of curve(int) */
@@ -236,13 +193,7 @@ public class ILayer extends IObject{
     /** Returns i-th ISurface object contained in objects or null if not found.
         ISurfaceR objects are not included.
     */
-    public synchronized ISurface surface(int i){
-        int curIdx=0;
-	for(int j=0; j<objects.size(); j++)
-	    if(objects.get(j) instanceof ISurface)
-		if(i==curIdx++) return (ISurface)objects.get(j);
-	return null;
-    }
+    public synchronized ISurface surface(int i){ return index.get(ISurface.class, i); }
     /** alias of surface(int) */
     public ISurface getSurface(int i){ return surface(i); }
     /** alias of surface(int) */
@@ -252,50 +203,26 @@ public class ILayer extends IObject{
     /** Returns i-th IMesh object contained in objects or null if not found.
         IMeshR objects are not included.
     */
-    public synchronized IMesh mesh(int i){
-        int curIdx=0;
-	for(int j=0; j<objects.size(); j++)
-	    if(objects.get(j) instanceof IMesh)
-		if(i==curIdx++) return (IMesh)objects.get(j);
-        return null;
-    }
+    public synchronized IMesh mesh(int i){ return index.get(IMesh.class, i); }
     /** alias of mesh(int) */
     public IMesh getMesh(int i){ return mesh(i); }
     
     /** Returns i-th IBrep object contained in objects or null if not found.
     */
-    public synchronized IBrep brep(int i){
-        int curIdx=0;
-	for(int j=0; j<objects.size(); j++)
-	    if(objects.get(j) instanceof IBrep)
-		if(i==curIdx++) return (IBrep)objects.get(j);
-        return null;
-    }
+    public synchronized IBrep brep(int i){ return index.get(IBrep.class, i); }
     /** alias of brep(int) */
     public IBrep getBrep(int i){ return brep(i); }
     
     /** Returns i-th IGeometries object contained in objects or null if not found.
     */
-    public synchronized IGeometry geometry(int i){
-        int curIdx=0;
-	for(int j=0; j<objects.size(); j++)
-	    if(objects.get(j) instanceof IGeometry)
-		if(i==curIdx++) return (IGeometry)objects.get(j);
-        return null;
-    }
+    public synchronized IGeometry geometry(int i){ return index.get(IGeometry.class, i); }
     /** alias of geometry(int) */
     public IGeometry getGeometry(int i){ return geometry(i); }
     public IGeometry geo(int i){ return geometry(i); }
     
     /** Returns i-th object contained in objects or null if not found.
     */
-    public synchronized IObject object(Class cls, int i){
-        int curIdx=0;
-	for(int j=0; j<objects.size(); j++)
-	    if(cls.isInstance(objects.get(j))) 
-		if(i==curIdx++) return objects.get(j);
-        return null;
-    }
+    public synchronized IObject object(Class cls, int i){ return (IObject)index.get((Class<?>)cls, i); }
     /** alias of object(Class,int) */
     public IObject getObject(Class cls, int i){ return object(cls,i); }
     /** alias of object(Class,int) */
@@ -304,6 +231,7 @@ public class ILayer extends IObject{
     /** Returns i-th object contained in objects or null if not found.
     */
     public synchronized IObject object(int i){
+	ArrayList<IObject> objects = allObjects();
 	return i<0||i>=objects.size()?null:objects.get(i);
     }
     /** alias of object(Class,int) */
@@ -314,24 +242,14 @@ public class ILayer extends IObject{
     
     
     /** number of IPoint in objects */
-    public synchronized int pointNum(){
-        int num=0;
-	for(int i=0; i<objects.size(); i++)
-	    if(objects.get(i) instanceof IPoint) num++;
-        return num;
-    }
+    public synchronized int pointNum(){ return index.num(IPoint.class); }
     /** alias of pointsNum() */
     public int getPointNum(){ return pointNum(); }
     /** alias of pointsNum() */
     public int ptNum(){ return pointNum(); }
     
     /** number of ICurve in objects */
-    public synchronized int curveNum(){
-        int num=0;
-	for(int i=0; i<objects.size(); i++)
-	    if(objects.get(i) instanceof ICurve) num++;
-        return num;
-    }
+    public synchronized int curveNum(){ return index.num(ICurve.class); }
     /** alias of curveNum() */
     public int getCurveNum(){ return curveNum(); }
     /** alias of curveNum() */
@@ -339,63 +257,38 @@ public class ILayer extends IObject{
     
     
     /** number of ISurface in objects */
-    public synchronized int surfaceNum(){
-        int num=0;
-	for(int i=0; i<objects.size(); i++)
-	    if(objects.get(i) instanceof ISurface) num++;
-        return num;
-    }
+    public synchronized int surfaceNum(){ return index.num(ISurface.class); }
     /** alias of surfaceNum() */
     public int getSurfaceNum(){ return surfaceNum(); }
     /** alias of surfaceNum() */
     public int srfNum(){ return surfaceNum(); }
     
     /** number of IMesh in objects */
-    public synchronized int meshNum(){
-        int num=0;
-	for(int i=0; i<objects.size(); i++)
-	    if(objects.get(i) instanceof IMesh) num++;
-        return num;
-    }
+    public synchronized int meshNum(){ return index.num(IMesh.class); }
     /** alias of meshNum() */
     public int getMeshNum(){ return meshNum(); }
     
     /** number of IBrep in objects */
-    public synchronized int brepNum(){
-        int num=0;
-	for(int i=0; i<objects.size(); i++)
-	    if(objects.get(i) instanceof IBrep) num++;
-        return num;
-    }
+    public synchronized int brepNum(){ return index.num(IBrep.class); }
     /** alias of brepNum() */
     public int getBrepNum(){ return brepNum(); }
     
     /** number of IBrep in objects */
-    public synchronized int geometryNum(){
-        int num=0;
-	for(int i=0; i<objects.size(); i++)
-	    if(objects.get(i) instanceof IGeometry) num++;
-        return num;
-    }
+    public synchronized int geometryNum(){ return index.num(IGeometry.class); }
     /** alias of geometryNum() */
     public int getGeometryNum(){ return geometryNum(); }
     /** alias of geometryNum() */
     public int geoNum(){ return geometryNum(); }
     
     /** number of the specified class in objects */
-    public synchronized int objectNum(Class cls){
-        int num=0;
-	for(int i=0; i<objects.size(); i++)
-	    if(cls.isInstance(objects.get(i))) num++;
-        return num;
-    }
+    public synchronized int objectNum(Class cls){ return index.num(cls); }
     /** alias of objectNum(Class) */
     public int getObjectNum(Class cls){ return objectNum(cls); }
     /** alias of objectNum(Class) */
     public int objNum(Class cls){ return objectNum(cls); }
     
     /** number of the specified class in objects */
-    public synchronized int objectNum(){ return objects.size(); }
+    public synchronized int objectNum(){ return index.num(); }
     /** alias of objectNum() */
     public int getObjectNum(){ return objectNum(); }
     /** alias of objectNum() */
@@ -416,13 +309,13 @@ public class ILayer extends IObject{
     public ILayer hide(){
 	super.hide();
 	attribute.hide();
-	for(IObject o: objects) o.hide();
+	for(IObject o: allObjects()) o.hide();
 	return this;
     }
     public ILayer show(){
 	super.show();
 	attribute.show();
-	for(IObject o: objects) o.show();
+	for(IObject o: allObjects()) o.show();
 	return this;
     }
     
@@ -176,20 +176,36 @@ public class IMap{
 	return createImage(w,h);
     }
     
-    public BufferedImage createImage(int imgWidth, int imgHeight){
+    /** pixels are evaluated in parallel threads by columns when IConfig.parallelMap is true */
+    public BufferedImage createImage(final int imgWidth, final int imgHeight){
 	BufferedImage bi = new BufferedImage(imgWidth,imgHeight,BufferedImage.TYPE_INT_RGB);
-	for(int i=0; i<imgWidth; i++){
-	    for(int j=0; j<imgHeight; j++){
-		double val = get( (double)i/(imgWidth-1),  (double)j/(imgHeight-1) );
-		int grayval = (int)(val*255);
-		if(grayval<0) grayval=0; else if(grayval>255) grayval=255;
-		int rgb = grayval*256*256+grayval*256+grayval;
-		bi.setRGB(i,j,rgb);
-	    }
+	final int[] pixels = new int[imgWidth*imgHeight];
+	IParallel.Task task = new IParallel.Task(){
+		public void run(int start, int end){
+		    for(int i=start; i<end; i++){
+			for(int j=0; j<imgHeight; j++){
+			    double val = get( (double)i/(imgWidth-1),  (double)j/(imgHeight-1) );
+			    int grayval = (int)(val*255);
+			    if(grayval<0) grayval=0; else if(grayval>255) grayval=255;
+			    pixels[j*imgWidth+i] = grayval*256*256+grayval*256+grayval;
+			}
+		    }
+		}
+	    };
+	if(IConfig.parallelMap){
+	    IParallel.run(0, imgWidth, Math.max(1,IConfig.parallelEvalMinNum/Math.max(1,imgHeight)), task);
 	}
+	else{ task.run(0, imgWidth); }
+	bi.setRGB(0,0,imgWidth,imgHeight,pixels,0,imgWidth);
 	return bi;
     }
     
+    /** map caching values of this map on a grid to be queried many times. it needs to be invalidated when this map changes. */
+    public IRasterMap raster(){ return new IRasterMap(this); }
+    
+    /** map caching values of this map on a grid to be queried many times. it needs to be invalidated when this map changes. */
+    public IRasterMap raster(int width, int height){ return new IRasterMap(this,width,height); }
+    
     
     /**
        @param u range 0-1
@@ -23,6 +23,9 @@
 package igeo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.HashMap;
+import java.util.HashSet;
 
 /**
    Geometry of polygon mesh containing lists of vertices, edges and faces.
@@ -158,10 +161,12 @@ public class IMeshGeo extends IParameterObject implements IMeshI{
 	vertices = new ArrayList<IVertex>();
         edges = new ArrayList<IEdge>();
         faces = new ArrayList<IFace>();
+	HashSet<IVertex> vertexSet = new HashSet<IVertex>();
+	HashSet<IEdge> edgeSet = new HashSet<IEdge>();
 	for(IFace f : fcs){
 	    faces.add(f);
-	    for(IVertex v : f.vertices) if(!vertices.contains(v)) addVertex(v); //vertices.add(v);
-	    for(IEdge e : f.edges) if(!edges.contains(e)) edges.add(e);
+	    for(IVertex v : f.vertices) if(vertexSet.add(v)) addVertex(v); //vertices.add(v);
+	    for(IEdge e : f.edges) if(edgeSet.add(e)) edges.add(e);
 	}
 	
 	if(IConfig.removeDuplicatesAtMeshCreation){
@@ -186,6 +191,16 @@ public class IMeshGeo extends IParameterObject implements IMeshI{
 	
     }
     
+    /** materialize vertices, edges and faces of array-based half-edge mesh.
+	the mesh is made of the views of the half-edge mesh in lists and doesn't share the arrays of it.
+    */
+    public IMeshGeo(IHalfEdgeMesh m){
+	IMeshGeo mesh = m.meshGeo();
+	vertices = mesh.vertices;
+	edges = mesh.edges;
+	faces = mesh.faces;
+    }
+    
     
     /*
     public void initWithLines(ArrayList<ICurveI> lines, IMeshType creator){
@@ -398,6 +413,9 @@ public class IMeshGeo extends IParameterObject implements IMeshI{
     
     public IMeshGeo dup(){ return new IMeshGeo(this); }
     
+    /** array-based half-edge representation of the faces of this mesh */
+    public IHalfEdgeMesh halfEdgeMesh(){ return new IHalfEdgeMesh(this); }
+    
     public boolean isValid(){
 	if(vertices==null) return false;
 	for(int i=0; i<vertices.size(); i++){
@@ -1995,18 +2013,21 @@ public class IMeshGeo extends IParameterObject implements IMeshI{
     /** join other meshes into the current one and remove duplicated edges and vertices */
     public IMeshGeo join(IMeshGeo[] meshes, double tolerance){
 	synchronized(IG.lock){ // IG.lock or IG.dynamicServer() ?
+	    HashSet<IVertex> vertexSet = new HashSet<IVertex>(vertices);
+	    HashSet<IEdge> edgeSet = new HashSet<IEdge>(edges);
+	    HashSet<IFace> faceSet = new HashSet<IFace>(faces);
 	    for(int i=0; i<meshes.length; i++){
 		for(int j=0; j<meshes[i].vertexNum(); j++){
-		    if(!vertices.contains(meshes[i].vertex(j))){
+		    if(vertexSet.add(meshes[i].vertex(j))){
 			//vertices.add(meshes[i].vertex(j));
 			addVertex(meshes[i].vertex(j));
 		    }
 		}
 		for(int j=0; j<meshes[i].edgeNum(); j++){
-		    if(!edges.contains(meshes[i].edge(j))) edges.add(meshes[i].edge(j));
+		    if(edgeSet.add(meshes[i].edge(j))) edges.add(meshes[i].edge(j));
 		}
 		for(int j=0; j<meshes[i].faceNum(); j++){
-		    if(!faces.contains(meshes[i].face(j))) faces.add(meshes[i].face(j));
+		    if(faceSet.add(meshes[i].face(j))) faces.add(meshes[i].face(j));
 		}
 	    }
 	    removeDuplicates(tolerance);
@@ -2019,76 +2040,81 @@ public class IMeshGeo extends IParameterObject implements IMeshI{
     /** remove duplicated vertices and edges */
     public IMeshGeo removeDuplicates(){ return removeDuplicates(IConfig.tolerance); }
     
-    /** remove duplicated vertices and edges */
+    /** remove duplicated vertices and edges.
+	Vertices are welded through a spatial hash grid of the tolerance size;
+	each vertex is replaced by the first preceding kept vertex within the tolerance.
+	Edges are then unified by the pair of welded vertex indices.
+    */
     public IMeshGeo removeDuplicates(double tolerance){
 	
-	ArrayList<IVertex> vertices2 = new ArrayList<IVertex>(this.vertices);
-	ArrayList<IVertex> removedVertex = new ArrayList<IVertex>();
-	ArrayList<IVertex> replacingVertex = new ArrayList<IVertex>();
+	int vnum = vertices.size();
+	int[] weld = weldVertices(vertices, tolerance);
 	
-	for(int i=0; i<vertices2.size()-1; i++){
-	    IVertex v1 = vertices2.get(i);
-	    for(int j=i+1; j<vertices2.size(); j++){
-		IVertex v2 = vertices2.get(j);
-		if(v1.eq(v2, tolerance)){
-		    //v2.replaceVertex(v1); // this is buggy
-		    vertices2.remove(j);
-		    j--;
-		    removedVertex.add(v2);
-		    replacingVertex.add(v1);
-		}
-	    }
+	HashMap<IVertex,Integer> vertexIndex = new HashMap<IVertex,Integer>(vnum*2);
+	for(int i=0; i<vnum; i++){
+	    if(!vertexIndex.containsKey(vertices.get(i))) vertexIndex.put(vertices.get(i), weld[i]);
 	}
 	
-	for(int i=0; i<vertices2.size(); i++){
-	    vertices2.get(i).edges.clear();
-	    vertices2.get(i).faces.clear();
-	    vertices2.get(i).linkedVertices.clear();
+	ArrayList<IVertex> vertices2 = new ArrayList<IVertex>();
+	HashMap<IVertex,IVertex> replacingVertex = new HashMap<IVertex,IVertex>();
+	boolean welded=false;
+	for(int i=0; i<vnum; i++){
+	    if(weld[i]==i){ vertices2.add(vertices.get(i)); continue; }
+	    welded=true;
+	    if(vertices.get(i)!=vertices.get(weld[i])){
+		replacingVertex.put(vertices.get(i), vertices.get(weld[i]));
+	    }
 	}
 	
-	ArrayList<IEdge> edges2 = new ArrayList<IEdge>(this.edges);
-	ArrayList<IEdge> removedEdge = new ArrayList<IEdge>();
-	ArrayList<IEdge> replacingEdge = new ArrayList<IEdge>();
-	for(int i=0; i<edges2.size()-1; i++){
-	    IEdge e1 = edges2.get(i);
-	    for(int j=i+1; j<edges2.size(); j++){
-		IEdge e2 = edges2.get(j);
-		
-		if(e1.eq(e2, tolerance)){
-		    edges2.remove(j);
-		    j--;
-		    removedEdge.add(e2);
-		    replacingEdge.add(e1);
-		}
+	ArrayList<IEdge> edges2 = new ArrayList<IEdge>();
+	HashMap<IEdge,IEdge> replacingEdge = new HashMap<IEdge,IEdge>();
+	HashMap<Long,IEdge> edgeKeys = new HashMap<Long,IEdge>(edges.size()*2);
+	int extraIndex = vnum; // vertices referred by edges but missing in the vertex list
+	long indexLimit = vnum + edges.size()*2;
+	for(int i=0; i<edges.size(); i++){
+	    IEdge e = edges.get(i);
+	    Integer i1 = vertexIndex.get(e.vertices[0]);
+	    if(i1==null){ i1 = extraIndex++; vertexIndex.put(e.vertices[0], i1); }
+	    Integer i2 = vertexIndex.get(e.vertices[1]);
+	    if(i2==null){ i2 = extraIndex++; vertexIndex.put(e.vertices[1], i2); }
+	    long key = i1<i2 ? i1*indexLimit+i2 : i2*indexLimit+i1; // sorted index pair
+	    IEdge e1 = edgeKeys.get(key);
+	    if(e1==null){
+		edgeKeys.put(key, e);
+		edges2.add(e);
 	    }
+	    else if(e1!=e){ replacingEdge.put(e, e1); }
 	}
 	
-	if(removedVertex.size()==0 && removedEdge.size()==0){
+	if(!welded && replacingEdge.size()==0){
 	    return this; // no duplicates
 	}
 	
+	for(int i=0; i<vertices2.size(); i++){
+	    vertices2.get(i).edges.clear();
+	    vertices2.get(i).faces.clear();
+	    vertices2.get(i).linkedVertices.clear();
+	}
+	
 	for(int i=0; i<edges2.size(); i++){
-	    if( removedVertex.contains( edges2.get(i).vertices[0] ) ){
-		edges2.get(i).vertices[0] = replacingVertex.get(removedVertex.indexOf( edges2.get(i).vertices[0] ));
-	    }
-	    if( removedVertex.contains( edges2.get(i).vertices[1] ) ){
-		edges2.get(i).vertices[1] = replacingVertex.get(removedVertex.indexOf( edges2.get(i).vertices[1] ));
-	    }
-	    edges2.get(i).faces.clear();
+	    IEdge e = edges2.get(i);
+	    IVertex v1 = replacingVertex.get(e.vertices[0]);
+	    if(v1!=null){ e.vertices[0] = v1; }
+	    IVertex v2 = replacingVertex.get(e.vertices[1]);
+	    if(v2!=null){ e.vertices[1] = v2; }
+	    e.faces.clear();
 	    
-	    edges2.get(i).vertices[0].addEdge(edges2.get(i));
-	    edges2.get(i).vertices[1].addEdge(edges2.get(i));
+	    e.vertices[0].addEdge(e);
+	    e.vertices[1].addEdge(e);
 	}
 	
 	ArrayList<IFace> faces2 = new ArrayList<IFace>();
 	for(int i=0; i<faces.size(); i++){
 	    IEdge[] faceEdges = new IEdge[faces.get(i).edgeNum()];
 	    for(int j=0; j<faces.get(i).edgeNum(); j++){
-		if(removedEdge.contains(faces.get(i).edges[j])){
-		    faceEdges[j] = replacingEdge.get(removedEdge.indexOf(faces.get(i).edges[j]));
-		}
+		IEdge e = replacingEdge.get(faces.get(i).edges[j]);
+		if(e!=null){ faceEdges[j] = e; }
 		else{ faceEdges[j] =faces.get(i).edges[j]; }
-		//IG.err("face "+i+", "+j+": "+faceEdges[j].vertices[0].pos+" - "+faceEdges[j].vertices[1].pos);
 	    }
 	    faces2.add(new IFace(faceEdges));
 	}
@@ -2097,22 +2123,85 @@ public class IMeshGeo extends IParameterObject implements IMeshI{
 	    vertices.clear();
 	    edges.clear();
 	    faces = faces2;
+	    HashSet<IVertex> vertexSet = new HashSet<IVertex>();
+	    HashSet<IEdge> edgeSet = new HashSet<IEdge>();
 	    for(int i=0; i<faces2.size(); i++){
 		IFace f = faces2.get(i);
 		for(int j=0; j<f.vertices.length; j++){
-		    if(!vertices.contains(f.vertices[j])){
+		    if(vertexSet.add(f.vertices[j])){
 			//vertices.add(f.vertices[j]);
 			addVertex(f.vertices[j]);
 		    }
 		}
 		for(int j=0; j<f.edges.length; j++){
-		    if(!edges.contains(f.edges[j])) edges.add(f.edges[j]);
+		    if(edgeSet.add(f.edges[j])) edges.add(f.edges[j]);
 		}
 	    }
 	}
 	return this;
     }
     
+    /**
+       Welds vertices within the tolerance through a spatial hash grid whose cell size is the tolerance.
+       Each vertex is mapped to the first preceding vertex within the tolerance which is not welded to another,
+       which is the same result with comparing all pairs of vertices in the order of the list.
+       @return index of the vertex to be welded to, for each vertex. A vertex not welded has its own index.
+    */
+    public static int[] weldVertices(ArrayList<IVertex> vtx, double tolerance){
+	int num = vtx.size();
+	int[] weld = new int[num];
+	if(num==0) return weld;
+	
+	double[] xyz = new double[num*3];
+	for(int i=0; i<num; i++){
+	    IVec p = vtx.get(i).get();
+	    xyz[i*3] = p.x; xyz[i*3+1] = p.y; xyz[i*3+2] = p.z;
+	}
+	
+	double tol2 = tolerance*tolerance;
+	double cell = tolerance>0?tolerance:1.0;
+	int size = 1;
+	while(size < num*2) size<<=1;
+	int mask = size-1;
+	int[] head = new int[size]; // linked list of kept vertices in each bucket
+	Arrays.fill(head, -1);
+	int[] next = new int[num];
+	
+	for(int i=0; i<num; i++){
+	    double x = xyz[i*3], y = xyz[i*3+1], z = xyz[i*3+2];
+	    long cx = (long)Math.floor(x/cell);
+	    long cy = (long)Math.floor(y/cell);
+	    long cz = (long)Math.floor(z/cell);
+	    
+	    int found = -1;
+	    for(long ix=cx-1; ix<=cx+1; ix++){
+		for(long iy=cy-1; iy<=cy+1; iy++){
+		    for(long iz=cz-1; iz<=cz+1; iz++){
+			for(int j=head[cellHash(ix,iy,iz)&mask]; j>=0; j=next[j]){
+			    if(found>=0 && j>=found) continue;
+			    double dx = xyz[j*3]-x, dy = xyz[j*3+1]-y, dz = xyz[j*3+2]-z;
+			    if(dx*dx+dy*dy+dz*dz <= tol2){ found = j; }
+			}
+		    }
+		}
+	    }
+	    
+	    if(found>=0){ weld[i] = found; }
+	    else{
+		weld[i] = i;
+		int h = cellHash(cx,cy,cz)&mask;
+		next[i] = head[h];
+		head[h] = i;
+	    }
+	}
+	return weld;
+    }
+    
+    static int cellHash(long ix, long iy, long iz){
+	long h = ix*0x9E3779B97F4A7C15L + iy*0xC2B2AE3D27D4EB4FL + iz*0x165667B19E3779F9L;
+	return (int)(h^(h>>>29));
+    }
+    
     
     /** remove duplicated vertices and edges */
     //public static IMeshGeo unify(IMeshGeo mesh){ return unify(mesh, IConfig.tolerance); }
@@ -0,0 +1,159 @@
+/*---
+
+    iGeo - http://igeo.jp
+
+    Copyright (c) 2002-2013 Satoru Sugihara
+
+    This file is part of iGeo.
+
+    iGeo is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as
+    published by the Free Software Foundation, version 3.
+
+    iGeo is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with iGeo.  If not, see <http://www.gnu.org/licenses/>.
+
+---*/
+
+package igeo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+
+/**
+   Uniform grid of positions of dynamic objects to find neighbors without checking all the objects.
+   Cells are stored in a hash table and objects are sorted by cells. Objects which are not IVecI are not indexed.
+   Positions are copied when the grid is built and the grid doesn't follow later move of objects.
+   
+   @author Satoru Sugihara
+*/
+public class INeighborGrid{
+    
+    public double cellSize;
+    
+    /** indexed objects in the order of the original list */
+    public IDynamics[] items;
+    /** index in the original list */
+    public int[] indices;
+    public double[] x, y, z;
+    /** cell coordinates of each item */
+    public int[] ix, iy, iz;
+    
+    /** items sorted by hashed cell */
+    public int[] order;
+    /** start of each hash bucket in order. bucket i is from bucketStart[i] to bucketStart[i+1] */
+    public int[] bucketStart;
+    public int mask;
+    
+    /** number of items */
+    public int num;
+    
+    
+    public INeighborGrid(ArrayList<IDynamics> dynamics, double cellSize){
+	if(cellSize<=0) cellSize = IConfig.tolerance;
+	this.cellSize = cellSize;
+	
+	int n = dynamics.size();
+	items = new IDynamics[n];
+	indices = new int[n];
+	x = new double[n]; y = new double[n]; z = new double[n];
+	for(int i=0; i<n; i++){
+	    IDynamics d = dynamics.get(i);
+	    if(d instanceof IVecI){
+		IVecI v = (IVecI)d;
+		double vx=v.x(), vy=v.y(), vz=v.z();
+		if(!Double.isNaN(vx+vy+vz) && !Double.isInfinite(vx+vy+vz)){ // skip invalid position
+		    items[num]=d; indices[num]=i; x[num]=vx; y[num]=vy; z[num]=vz; num++;
+		}
+	    }
+	}
+	
+	ix = new int[num]; iy = new int[num]; iz = new int[num];
+	int bucketNum = 1;
+	while(bucketNum < num*2) bucketNum<<=1;
+	mask = bucketNum-1;
+	
+	// counting sort by bucket
+	int[] bucket = new int[num];
+	bucketStart = new int[bucketNum+1];
+	for(int i=0; i<num; i++){
+	    ix[i] = cell(x[i]); iy[i] = cell(y[i]); iz[i] = cell(z[i]);
+	    bucket[i] = bucket(ix[i],iy[i],iz[i]);
+	    bucketStart[bucket[i]+1]++;
+	}
+	for(int i=0; i<bucketNum; i++) bucketStart[i+1] += bucketStart[i];
+	order = new int[num];
+	int[] fill = Arrays.copyOf(bucketStart, bucketNum);
+	for(int i=0; i<num; i++) order[fill[bucket[i]]++] = i;
+    }
+    
+    public int cell(double v){
+	double c = Math.floor(v/cellSize);
+	if(c>Integer.MAX_VALUE/2) return Integer.MAX_VALUE/2;
+	if(c<Integer.MIN_VALUE/2) return Integer.MIN_VALUE/2;
+	return (int)c;
+    }
+    
+    public int bucket(int cx, int cy, int cz){
+	int h = cx*73856093 ^ cy*19349663 ^ cz*83492791;
+	return (h ^ (h>>>16)) & mask;
+    }
+    
+    public int num(){ return num; }
+    public IDynamics get(int i){ return items[i]; }
+    
+    
+    /**
+       find items within the radius from the point. 
+       It returns index of items (in the grid, to be used at get(int)) in the order of the original list.
+       The distance is checked with the positions when the grid is built.
+    */
+    public int[] find(double px, double py, double pz, double radius){
+	int[] found = new int[16];
+	int count=0;
+	double r2 = radius*radius*(1+1e-12); // margin for rounding error not to miss items on the radius
+	int cx0=cell(px-radius), cx1=cell(px+radius);
+	int cy0=cell(py-radius), cy1=cell(py+radius);
+	int cz0=cell(pz-radius), cz1=cell(pz+radius);
+	
+	if((double)(cx1-cx0+1)*(cy1-cy0+1)*(cz1-cz0+1) > num){ // checking all is cheaper
+	    for(int i=0; i<num; i++){
+		double dx=x[i]-px, dy=y[i]-py, dz=z[i]-pz;
+		if(dx*dx+dy*dy+dz*dz <= r2){
+		    if(count==found.length) found = Arrays.copyOf(found, count*2);
+		    found[count++]=i;
+		}
+	    }
+	    return Arrays.copyOf(found,count);
+	}
+	
+	for(int cx=cx0; cx<=cx1; cx++){
+	    for(int cy=cy0; cy<=cy1; cy++){
+		for(int cz=cz0; cz<=cz1; cz++){
+		    int b = bucket(cx,cy,cz);
+		    for(int j=bucketStart[b]; j<bucketStart[b+1]; j++){
+			int i = order[j];
+			// other cells in the same bucket are skipped
+			if(ix[i]!=cx || iy[i]!=cy || iz[i]!=cz) continue;
+			double dx=x[i]-px, dy=y[i]-py, dz=z[i]-pz;
+			if(dx*dx+dy*dy+dz*dz <= r2){
+			    if(count==found.length) found = Arrays.copyOf(found, count*2);
+			    found[count++]=i;
+			}
+		    }
+		}
+	    }
+	}
+	found = Arrays.copyOf(found,count);
+	Arrays.sort(found); // items are in the order of the original list
+	return found;
+    }
+    
+    public int[] find(IVecI pt, double radius){ return find(pt.x(),pt.y(),pt.z(),radius); }
+    
+}
@@ -0,0 +1,132 @@
+/*---
+
+    iGeo - http://igeo.jp
+
+    Copyright (c) 2002-2013 Satoru Sugihara
+
+    This file is part of iGeo.
+
+    iGeo is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as
+    published by the Free Software Foundation, version 3.
+
+    iGeo is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with iGeo.  If not, see <http://www.gnu.org/licenses/>.
+
+---*/
+
+package igeo;
+
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.Iterator;
+import java.util.LinkedHashSet;
+import java.util.List;
+import java.lang.reflect.Array;
+
+/**
+   Index of objects by class to answer type queries of IServer and ILayer without checking all the objects.
+   A class is indexed at the first query by scanning all the objects once and it's updated at every add and remove after that.
+   Objects are kept in the order of addition. Arrays returned by query methods are cached until objects of the class change.
+   
+   @author Satoru Sugihara
+*/
+public class IObjectIndex{
+    
+    /** all objects in the order of addition */
+    public LinkedHashSet<IObject> objects;
+    /** indexed classes */
+    public ArrayList<Entry> entries;
+    
+    public IObjectIndex(){
+	objects = new LinkedHashSet<IObject>();
+	entries = new ArrayList<Entry>();
+    }
+    
+    /** @return false if the object is already contained */
+    public boolean add(IObject e){
+	if(!objects.add(e)) return false;
+	for(int i=0; i<entries.size(); i++){ entries.get(i).add(e); }
+	return true;
+    }
+    
+    /** @return false if the object is not contained */
+    public boolean remove(IObject e){
+	if(!objects.remove(e)) return false;
+	for(int i=0; i<entries.size(); i++){ entries.get(i).remove(e); }
+	return true;
+    }
+    
+    public boolean contains(IObject e){ return objects.contains(e); }
+    
+    public int num(){ return objects.size(); }
+    
+    public void clear(){
+	objects.clear();
+	entries.clear();
+    }
+    
+    /** entry of the class. it's created at the first call. */
+    public Entry entry(Class<?> cls){
+	for(int i=0; i<entries.size(); i++){
+	    if(entries.get(i).type==cls) return entries.get(i);
+	}
+	Entry entry = new Entry(cls);
+	for(Iterator<IObject> it=objects.iterator(); it.hasNext(); ){ entry.add(it.next()); }
+	entries.add(entry);
+	return entry;
+    }
+    
+    /** number of objects of the class */
+    public int num(Class<?> cls){ return entry(cls).objects.size(); }
+    
+    /** new array of objects of the class */
+    @SuppressWarnings("unchecked")
+    public <T> T[] array(Class<T> cls){ return (T[])entry(cls).array().clone(); }
+    
+    /** read-only list of objects of the class. it's not updated when objects change after the call. */
+    @SuppressWarnings("unchecked")
+    public <T> List<T> list(Class<T> cls){ return Collections.unmodifiableList(Arrays.asList((T[])entry(cls).array())); }
+    
+    /** i-th object of the class or null if out of range */
+    public <T> T get(Class<T> cls, int i){
+	Object[] array = entry(cls).array();
+	if(i<0||i>=array.length) return null;
+	return cls.cast(array[i]);
+    }
+    
+    
+    /** objects of one class */
+    public static class Entry{
+	public Class<?> type;
+	public LinkedHashSet<IObject> objects;
+	/** cache of objects as array of the type. null when objects change. */
+	public Object[] array;
+	
+	public Entry(Class<?> type){
+	    this.type = type;
+	    objects = new LinkedHashSet<IObject>();
+	}
+	
+	public void add(IObject e){
+	    if(type.isInstance(e) && objects.add(e)) array=null;
+	}
+	
+	public void remove(IObject e){
+	    if(objects.remove(e)) array=null;
+	}
+	
+	public Object[] array(){
+	    if(array==null){
+		array = objects.toArray((Object[])Array.newInstance(type, objects.size()));
+	    }
+	    return array;
+	}
+    }
+}
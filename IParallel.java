@@ -0,0 +1,95 @@
+/*---
+
+    iGeo - http://igeo.jp
+
+    Copyright (c) 2002-2013 Satoru Sugihara
+
+    This file is part of iGeo.
+
+    iGeo is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as
+    published by the Free Software Foundation, version 3.
+
+    iGeo is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with iGeo.  If not, see <http://www.gnu.org/licenses/>.
+
+---*/
+
+package igeo;
+
+import java.util.concurrent.ForkJoinPool;
+import java.util.concurrent.ForkJoinTask;
+import java.util.concurrent.RecursiveAction;
+
+/**
+   Utility class to execute a task over a range of index in parallel threads of a shared fork-join pool.
+   
+   @author Satoru Sugihara
+*/
+public class IParallel{
+    
+    /** a task executed on a sub-range of index from start (inclusive) to end (exclusive). */
+    public interface Task{
+	public void run(int start, int end);
+    }
+    
+    static ForkJoinPool pool;
+    
+    /** number of threads defined by IConfig.threadNum */
+    public static int threadNum(){
+	if(IConfig.threadNum>0) return IConfig.threadNum;
+	return Runtime.getRuntime().availableProcessors();
+    }
+    
+    /** shared pool. it's re-created when IConfig.threadNum is changed. */
+    synchronized public static ForkJoinPool pool(){
+	if(pool==null || pool.getParallelism()!=threadNum()){
+	    if(pool!=null) pool.shutdown();
+	    pool = new ForkJoinPool(threadNum());
+	}
+	return pool;
+    }
+    
+    /** check if the current thread is a worker of the shared pool. */
+    public static boolean isWorker(){
+	return pool!=null && ForkJoinTask.getPool()==pool;
+    }
+    
+    /**
+       execute the task over index from start to end, splitting the range into chunks not smaller than grain.
+       it returns after all chunks are finished. when the range is small, only one thread is used, or when
+       it's called inside of a worker thread, the task is executed in the current thread.
+    */
+    public static void run(int start, int end, int grain, Task task){
+	if(end<=start) return;
+	if(grain<1) grain=1;
+	int num = threadNum();
+	if(num<=1 || end-start<=grain || isWorker()){ task.run(start,end); return; }
+	// at least a few chunks per thread for load balancing
+	int chunk = Math.max(grain, (end-start+num*4-1)/(num*4));
+	pool().invoke(new RangeAction(start,end,chunk,task));
+    }
+    
+    /** execute the task over index from start to end splitting it into chunks automatically. */
+    public static void run(int start, int end, Task task){ run(start,end,1,task); }
+    
+    
+    static class RangeAction extends RecursiveAction{
+	static final long serialVersionUID = 1L;
+	int start, end, chunk;
+	Task task;
+	RangeAction(int start, int end, int chunk, Task task){
+	    this.start=start; this.end=end; this.chunk=chunk; this.task=task;
+	}
+	protected void compute(){
+	    if(end-start<=chunk){ task.run(start,end); return; }
+	    int mid = (start+end)>>>1;
+	    invokeAll(new RangeAction(start,mid,chunk,task), new RangeAction(mid,end,chunk,task));
+	}
+    }
+}
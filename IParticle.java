@@ -417,6 +417,11 @@ public class IParticle extends IPointAgent implements IParticleI{
     public IParticle setSize(double sz){ return size(sz); }
     public IParticle size(double sz){ point.size(sz); return this; }
     
+    /** set true only when it follows the contract described at IDynamics.parallel() */
+    public IParticle parallel(boolean p){ super.parallel(p); return this; }
+    /** interact(IDynamics) is called only for agents within this distance */
+    public IParticle interactionRadius(double radius){ super.interactionRadius(radius); return this; }
+    
     /**************************************
      * methods of IObject
      *************************************/
@@ -107,15 +107,18 @@ public class IParticleGeo extends IDynamicsBase implements IParticleI, IVecI{
     }
     
     synchronized public void initParticle(){
+	parallel = true; // preupdate and update only change its own state
 	vel = new IVec();
 	//acc = new IVec();
 	frc = new IVec();
     }
     synchronized public void initParticle(IVec v){
+	parallel = true;
 	vel = v;
 	frc = new IVec();
     }
     synchronized public void initParticle(IVecI v){
+	parallel = true;
 	vel = v.get();
 	frc = new IVec();
     }
@@ -630,5 +633,7 @@ public class IParticleGeo extends IDynamicsBase implements IParticleI, IVecI{
     public IParticleGeo  removeTarget(int i){ super.removeTarget(i); return this; }
     /** remove target object. */
     public IParticleGeo  removeTarget(IObject obj){ super.removeTarget(obj); return this; }
+    /** set true only when it follows the contract described at IDynamics.parallel() */
+    public IParticleGeo parallel(boolean p){ super.parallel(p); return this; }
     
 }
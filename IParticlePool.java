@@ -0,0 +1,187 @@
+/*---
+
+    iGeo - http://igeo.jp
+
+    Copyright (c) 2002-2013 Satoru Sugihara
+
+    This file is part of iGeo.
+
+    iGeo is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as
+    published by the Free Software Foundation, version 3.
+
+    iGeo is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with iGeo.  If not, see <http://www.gnu.org/licenses/>.
+
+---*/
+
+package igeo;
+
+import java.util.Arrays;
+
+/**
+   A dynamics to manage many particles in arrays of coordinates instead of IParticleGeo instances.
+   Position, velocity and force of each particle are stored in contiguous arrays and
+   integrated in one loop in preupdate() and update() with the same formula of IParticleGeo.
+   Each particle is accessed by index. Particles in the pool are not IDynamics by themselves.
+   IField agents in the server apply their field to each particle in the pool through
+   IField.applyField(IParticlePool) but other dynamics which push IParticleI don't.
+   Growth of arrays in add() and capacity(int) waits for a running step because they
+   share the lock of the pool with preupdate(), update() and IField.applyField(IParticlePool).
+   
+   @author Satoru Sugihara
+*/
+public class IParticlePool extends IDynamicsBase{
+    
+    public int num=0;
+    public double[] x, y, z;
+    public double[] vx, vy, vz;
+    public double[] fx, fy, fz;
+    public double[] mass;
+    public double[] friction;
+    public boolean[] fixed;
+    
+    /** minimum number of particles to be integrated in parallel threads when IConfig.parallelDynamics is true */
+    public static int parallelMinNum = 10000;
+    
+    public IParticlePool(){ this(16); }
+    public IParticlePool(int capacity){ super(); initParticlePool(capacity); }
+    public IParticlePool(int capacity, IObject parent){ super(parent); initParticlePool(capacity); }
+    
+    public void initParticlePool(int capacity){
+	if(capacity<1) capacity=1;
+	x = new double[capacity]; y = new double[capacity]; z = new double[capacity];
+	vx = new double[capacity]; vy = new double[capacity]; vz = new double[capacity];
+	fx = new double[capacity]; fy = new double[capacity]; fz = new double[capacity];
+	mass = new double[capacity];
+	friction = new double[capacity];
+	fixed = new boolean[capacity];
+	parallel = true; // preupdate and update only change its own arrays
+    }
+    
+    public int num(){ return num; }
+    public int capacity(){ return x.length; }
+    
+    /** grow capacity of arrays at least to the number */
+    synchronized public IParticlePool capacity(int cap){
+	if(cap<=x.length) return this;
+	x = Arrays.copyOf(x,cap); y = Arrays.copyOf(y,cap); z = Arrays.copyOf(z,cap);
+	vx = Arrays.copyOf(vx,cap); vy = Arrays.copyOf(vy,cap); vz = Arrays.copyOf(vz,cap);
+	fx = Arrays.copyOf(fx,cap); fy = Arrays.copyOf(fy,cap); fz = Arrays.copyOf(fz,cap);
+	mass = Arrays.copyOf(mass,cap);
+	friction = Arrays.copyOf(friction,cap);
+	fixed = Arrays.copyOf(fixed,cap);
+	return this;
+    }
+    
+    /** add a particle and returns its index */
+    synchronized public int add(double px, double py, double pz, double pvx, double pvy, double pvz){
+	if(num==x.length) capacity(x.length*2);
+	x[num]=px; y[num]=py; z[num]=pz;
+	vx[num]=pvx; vy[num]=pvy; vz[num]=pvz;
+	fx[num]=fy[num]=fz[num]=0;
+	mass[num]=1.0;
+	friction[num]=IParticleGeo.defaultFriction;
+	fixed[num]=false;
+	return num++;
+    }
+    /** add a particle and returns its index */
+    public int add(double px, double py, double pz){ return add(px,py,pz,0,0,0); }
+    /** add a particle and returns its index */
+    public int add(IVecI pos){ return add(pos.x(),pos.y(),pos.z(),0,0,0); }
+    /** add a particle and returns its index */
+    public int add(IVecI pos, IVecI vel){ return add(pos.x(),pos.y(),pos.z(),vel.x(),vel.y(),vel.z()); }
+    
+    /** remove all particles */
+    synchronized public IParticlePool clear(){ num=0; return this; }
+    
+    /** position of i-th particle as a new instance */
+    public IVec pos(int i){ return new IVec(x[i],y[i],z[i]); }
+    public IParticlePool pos(int i, IVecI p){ x[i]=p.x(); y[i]=p.y(); z[i]=p.z(); return this; }
+    public IParticlePool pos(int i, double px, double py, double pz){ x[i]=px; y[i]=py; z[i]=pz; return this; }
+    
+    /** velocity of i-th particle as a new instance */
+    public IVec vel(int i){ return new IVec(vx[i],vy[i],vz[i]); }
+    public IParticlePool vel(int i, IVecI v){ vx[i]=v.x(); vy[i]=v.y(); vz[i]=v.z(); return this; }
+    public IParticlePool vel(int i, double pvx, double pvy, double pvz){ vx[i]=pvx; vy[i]=pvy; vz[i]=pvz; return this; }
+    
+    /** force of i-th particle as a new instance */
+    public IVec frc(int i){ return new IVec(fx[i],fy[i],fz[i]); }
+    public IParticlePool frc(int i, IVecI f){ fx[i]=f.x(); fy[i]=f.y(); fz[i]=f.z(); return this; }
+    
+    /** adding force */
+    public IParticlePool push(int i, double pfx, double pfy, double pfz){ fx[i]+=pfx; fy[i]+=pfy; fz[i]+=pfz; return this; }
+    /** adding force */
+    public IParticlePool push(int i, IVecI f){ return push(i,f.x(),f.y(),f.z()); }
+    /** adding negative force */
+    public IParticlePool pull(int i, double pfx, double pfy, double pfz){ fx[i]-=pfx; fy[i]-=pfy; fz[i]-=pfz; return this; }
+    /** adding negative force */
+    public IParticlePool pull(int i, IVecI f){ return pull(i,f.x(),f.y(),f.z()); }
+    
+    public double mass(int i){ return mass[i]; }
+    public IParticlePool mass(int i, double m){ mass[i]=m; return this; }
+    
+    public double fric(int i){ return friction[i]; }
+    public IParticlePool fric(int i, double f){ friction[i]=f; return this; }
+    
+    public boolean fixed(int i){ return fixed[i]; }
+    public IParticlePool fix(int i){ fixed[i]=true; fx[i]=fy[i]=fz[i]=0; vx[i]=vy[i]=vz[i]=0; return this; }
+    public IParticlePool unfix(int i){ fixed[i]=false; fx[i]=fy[i]=fz[i]=0; vx[i]=vy[i]=vz[i]=0; return this; }
+    
+    
+    /** update of velocity of all particles. same with IParticleGeo.preupdate() */
+    synchronized public void preupdate(){
+	if(IConfig.parallelDynamics && num>=parallelMinNum){
+	    IParallel.run(0, num, parallelMinNum/4, new IParallel.Task(){
+		    public void run(int start, int end){ preupdate(start,end); }
+		});
+	}
+	else{ preupdate(0,num); }
+    }
+    
+    /** update of velocity of particles from start to end (exclusive) */
+    public void preupdate(int start, int end){
+	final double rate = IConfig.updateRate;
+	for(int i=start; i<end; i++){
+	    if(fixed[i]) continue;
+	    double f = rate/mass[i];
+	    double d = 1.0-friction[i];
+	    vx[i] = (vx[i]+fx[i]*f)*d;
+	    vy[i] = (vy[i]+fy[i]*f)*d;
+	    vz[i] = (vz[i]+fz[i]*f)*d;
+	    fx[i]=0; fy[i]=0; fz[i]=0;
+	}
+    }
+    
+    /** update of position of all particles. same with IParticleGeo.update() */
+    synchronized public void update(){
+	if(IConfig.parallelDynamics && num>=parallelMinNum){
+	    IParallel.run(0, num, parallelMinNum/4, new IParallel.Task(){
+		    public void run(int start, int end){ update(start,end); }
+		});
+	}
+	else{ update(0,num); }
+    }
+    
+    /** update of position of particles from start to end (exclusive) */
+    public void update(int start, int end){
+	final double rate = IConfig.updateRate;
+	for(int i=start; i<end; i++){
+	    if(fixed[i]) continue;
+	    x[i] += vx[i]*rate;
+	    y[i] += vy[i]*rate;
+	    z[i] += vz[i]*rate;
+	}
+    }
+    
+    public IParticlePool parent(IObject par){ super.parent(par); return this; }
+    public IParticlePool target(IObject targetObj){ super.target(targetObj); return this; }
+    public IParticlePool removeTarget(int i){ super.removeTarget(i); return this; }
+    public IParticlePool removeTarget(IObject obj){ super.removeTarget(obj); return this; }
+    public IParticlePool parallel(boolean p){ super.parallel(p); return this; }
+}
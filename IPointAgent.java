@@ -522,6 +522,11 @@ public class IPointAgent extends IAgent implements IVecI{
     public double size(){ return point.size(); }
     
     
+    /** set true only when it follows the contract described at IDynamics.parallel() */
+    public IPointAgent parallel(boolean p){ super.parallel(p); return this; }
+    /** interact(IDynamics) is called only for agents within this distance */
+    public IPointAgent interactionRadius(double radius){ super.interactionRadius(radius); return this; }
+    
     /**************************************
      * methods of IObject
      *************************************/
@@ -0,0 +1,248 @@
+/*---
+
+    iGeo - http://igeo.jp
+
+    Copyright (c) 2002-2013 Satoru Sugihara
+
+    This file is part of iGeo.
+
+    iGeo is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as
+    published by the Free Software Foundation, version 3.
+
+    iGeo is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with iGeo.  If not, see <http://www.gnu.org/licenses/>.
+
+---*/
+
+package igeo;
+
+import java.util.ArrayList;
+
+/**
+   Octree of point fields (IAttractor, IPointCurlField, IGravity with position) to apply all of them to particles in one pass.
+   Attractors with no decay and constant intensity far from a particle are approximated as one attractor
+   at the center of a cluster when size of the cluster divided by the distance is smaller than the opening angle
+   (Barnes-Hut approximation). Attractors with no decay and non constant intensity are summed up exactly as one linear force.
+   Other fields are evaluated exactly but clusters out of decay threshold are skipped.
+   Linear decay is exactly zero beyond the threshold. Gaussian decay is seen as zero beyond
+   IConfig.gaussianFieldCutoff times threshold.
+   
+   @author Satoru Sugihara
+*/
+public class IPointFieldTree{
+    
+    /** max number of fields in a leaf node */
+    public static int leafSize = 8;
+    /** max depth of tree */
+    public static int maxDepth = 16;
+    
+    /** opening angle of Barnes-Hut approximation */
+    public double angle;
+    
+    /** fields without position evaluated for every particle */
+    public ArrayList<IPointFieldGeo> globalFields;
+    
+    /** sum of intensity and intensity weighted position of attractors with no decay and non constant intensity */
+    public double linearIntensity, linearX, linearY, linearZ;
+    
+    /** tree of attractors approximated by Barnes-Hut algorithm */
+    public Node approxRoot;
+    /** tree of fields evaluated exactly */
+    public Node exactRoot;
+    
+    
+    public IPointFieldTree(ArrayList<IPointFieldGeo> fields, double openingAngle){
+	angle = openingAngle;
+	globalFields = new ArrayList<IPointFieldGeo>();
+	ArrayList<Entry> approx = new ArrayList<Entry>();
+	ArrayList<Entry> exact = new ArrayList<Entry>();
+	for(int i=0; i<fields.size(); i++){
+	    IPointFieldGeo f = fields.get(i);
+	    if(f.pos==null){ globalFields.add(f); continue; }
+	    IVec p = f.pos.get();
+	    if(isLinear(f)){
+		linearIntensity += f.intensity;
+		linearX += f.intensity*p.x;
+		linearY += f.intensity*p.y;
+		linearZ += f.intensity*p.z;
+	    }
+	    else if(isApproximable(f)){ approx.add(new Entry(f,p)); }
+	    else{ exact.add(new Entry(f,p)); }
+	}
+	if(approx.size()>0) approxRoot = new Node(approx.toArray(new Entry[approx.size()]),0,approx.size(),0);
+	if(exact.size()>0) exactRoot = new Node(exact.toArray(new Entry[exact.size()]),0,exact.size(),0);
+    }
+    
+    /** check if the field agent can be applied by the tree instead of its own interact */
+    public static boolean isTreeField(Object obj){
+	if(!(obj instanceof I3DField)) return false;
+	I3DField f = (I3DField)obj;
+	Class<?> cls = f.getClass();
+	if(cls!=I3DField.class && cls!=IAttractor.class && cls!=IPointCurlField.class && cls!=IGravity.class) return false;
+	if(f.targetClasses!=null || f.interactOverridden || f.field==null) return false;
+	Class<?> fcls = f.field.getClass();
+	return fcls==IPointFieldGeo.class || fcls==IAttractorGeo.class || fcls==IPointCurlFieldGeo.class;
+    }
+    
+    /** attractor whose force is (position - point)*intensity, summed up exactly */
+    public static boolean isLinear(IPointFieldGeo f){
+	return f.getClass()==IAttractorGeo.class && f.decay==IFieldGeo.Decay.None &&
+	    !f.constantIntensity && !f.bidirectional;
+    }
+    
+    /** attractor whose force is unit(position - point)*intensity, approximated at clusters */
+    public static boolean isApproximable(IPointFieldGeo f){
+	return f.getClass()==IAttractorGeo.class && f.decay==IFieldGeo.Decay.None &&
+	    f.constantIntensity && !f.bidirectional;
+    }
+    
+    /** distance beyond which the field output is seen as zero */
+    public static double cutoff(IPointFieldGeo f){
+	if(f.pos==null) return Double.POSITIVE_INFINITY;
+	if(f.decay==IFieldGeo.Decay.Linear) return f.threshold;
+	if(f.decay==IFieldGeo.Decay.Gaussian && IConfig.gaussianFieldCutoff>0)
+	    return f.threshold*IConfig.gaussianFieldCutoff;
+	return Double.POSITIVE_INFINITY;
+    }
+    
+    
+    /** sum of all field vectors at the point */
+    public IVec get(IVecI pt, IVecI vel){
+	IVec p = pt.get();
+	IVec force = new IVec();
+	for(int i=0; i<globalFields.size(); i++){ force.add(globalFields.get(i).get(p,vel)); }
+	if(linearIntensity!=0){
+	    force.add(linearX-p.x*linearIntensity, linearY-p.y*linearIntensity, linearZ-p.z*linearIntensity);
+	}
+	if(approxRoot!=null) approxRoot.approximate(p, force);
+	if(exactRoot!=null) exactRoot.evaluate(p, vel, force);
+	return force;
+    }
+    
+    /** apply all fields to the particle */
+    public void apply(IParticleI particle){ particle.push(get(particle.pos(), particle.vel())); }
+    
+    
+    static class Entry{
+	IPointFieldGeo field;
+	double x,y,z;
+	double cutoff;
+	Entry(IPointFieldGeo f, IVec p){ field=f; x=p.x; y=p.y; z=p.z; cutoff=cutoff(f); }
+    }
+    
+    
+    public class Node{
+	Entry[] entries;
+	int start, end;
+	Node[] children;
+	double minX, minY, minZ, maxX, maxY, maxZ;
+	/** max size of bounding box */
+	double size;
+	/** max cutoff distance of fields in the node */
+	double cutoff;
+	/** sum of intensity */
+	double intensity;
+	/** center weighted by absolute value of intensity */
+	double centerX, centerY, centerZ;
+	
+	Node(Entry[] entries, int start, int end, int depth){
+	    this.entries=entries; this.start=start; this.end=end;
+	    minX=minY=minZ=Double.POSITIVE_INFINITY;
+	    maxX=maxY=maxZ=Double.NEGATIVE_INFINITY;
+	    double weight=0;
+	    for(int i=start; i<end; i++){
+		Entry e = entries[i];
+		if(e.x<minX) minX=e.x; if(e.x>maxX) maxX=e.x;
+		if(e.y<minY) minY=e.y; if(e.y>maxY) maxY=e.y;
+		if(e.z<minZ) minZ=e.z; if(e.z>maxZ) maxZ=e.z;
+		if(e.cutoff>cutoff) cutoff=e.cutoff;
+		double w = Math.abs(e.field.intensity);
+		intensity += e.field.intensity;
+		centerX += e.x*w; centerY += e.y*w; centerZ += e.z*w;
+		weight+=w;
+	    }
+	    if(weight>0){ centerX/=weight; centerY/=weight; centerZ/=weight; }
+	    else{ centerX=(minX+maxX)/2; centerY=(minY+maxY)/2; centerZ=(minZ+maxZ)/2; }
+	    size = Math.max(maxX-minX, Math.max(maxY-minY, maxZ-minZ));
+	    
+	    if(end-start > leafSize && depth < maxDepth && size>0) split(depth);
+	}
+	
+	/** sort entries into octants and create children */
+	void split(int depth){
+	    double mx=(minX+maxX)/2, my=(minY+maxY)/2, mz=(minZ+maxZ)/2;
+	    int[] count = new int[8];
+	    int[] octant = new int[end-start];
+	    for(int i=start; i<end; i++){
+		Entry e = entries[i];
+		int o = (e.x>mx?1:0)|(e.y>my?2:0)|(e.z>mz?4:0);
+		octant[i-start]=o;
+		count[o]++;
+	    }
+	    int[] offset = new int[9];
+	    offset[0]=start;
+	    for(int i=0; i<8; i++) offset[i+1]=offset[i]+count[i];
+	    Entry[] sorted = new Entry[end-start];
+	    int[] fill = new int[8];
+	    for(int i=start; i<end; i++){
+		int o = octant[i-start];
+		sorted[offset[o]-start+fill[o]++] = entries[i];
+	    }
+	    System.arraycopy(sorted,0,entries,start,end-start);
+	    ArrayList<Node> nodes = new ArrayList<Node>();
+	    for(int i=0; i<8; i++){
+		if(count[i]>0) nodes.add(new Node(entries, offset[i], offset[i+1], depth+1));
+	    }
+	    children = nodes.toArray(new Node[nodes.size()]);
+	}
+	
+	/** distance from the point to the bounding box */
+	double boxDist(IVec p){
+	    double dx = p.x<minX?minX-p.x:p.x>maxX?p.x-maxX:0;
+	    double dy = p.y<minY?minY-p.y:p.y>maxY?p.y-maxY:0;
+	    double dz = p.z<minZ?minZ-p.z:p.z>maxZ?p.z-maxZ:0;
+	    return Math.sqrt(dx*dx+dy*dy+dz*dz);
+	}
+	
+	/** add Barnes-Hut approximation of attractors with constant intensity */
+	void approximate(IVec p, IVec force){
+	    double dx=centerX-p.x, dy=centerY-p.y, dz=centerZ-p.z;
+	    double dist = Math.sqrt(dx*dx+dy*dy+dz*dz);
+	    if(children!=null && dist>0 && size/dist < angle && boxDist(p)>0){
+		if(dist>=IConfig.tolerance){
+		    double r = intensity/dist;
+		    force.add(dx*r, dy*r, dz*r);
+		}
+		return;
+	    }
+	    if(children!=null){
+		for(int i=0; i<children.length; i++) children[i].approximate(p, force);
+		return;
+	    }
+	    for(int i=start; i<end; i++){ force.add(entries[i].field.get(p,null)); }
+	}
+	
+	/** add field vectors of fields within cutoff distance */
+	void evaluate(IVec p, IVecI vel, IVec force){
+	    if(cutoff!=Double.POSITIVE_INFINITY && boxDist(p)>cutoff) return;
+	    if(children!=null){
+		for(int i=0; i<children.length; i++) children[i].evaluate(p, vel, force);
+		return;
+	    }
+	    for(int i=start; i<end; i++){
+		Entry e = entries[i];
+		if(e.cutoff!=Double.POSITIVE_INFINITY){
+		    double dx=e.x-p.x, dy=e.y-p.y, dz=e.z-p.z;
+		    if(dx*dx+dy*dy+dz*dz > e.cutoff*e.cutoff) continue;
+		}
+		force.add(e.field.get(p,vel));
+	    }
+	}
+    }
+}
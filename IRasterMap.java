@@ -0,0 +1,146 @@
+/*---
+
+    iGeo - http://igeo.jp
+
+    Copyright (c) 2002-2013 Satoru Sugihara
+
+    This file is part of iGeo.
+
+    iGeo is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as
+    published by the Free Software Foundation, version 3.
+
+    iGeo is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with iGeo.  If not, see <http://www.gnu.org/licenses/>.
+
+---*/
+
+package igeo;
+
+import java.util.concurrent.atomic.AtomicReferenceArray;
+
+/**
+   A subclass of IMap caching values of another map on a grid of samples to answer get(u,v) by bilinear interpolation
+   without evaluating the original map. Samples are stored in square tiles of float array and
+   each tile is evaluated at the first access or all tiles are evaluated by rasterize().
+   Tiles need to be invalidated by invalidate() when the original map or its inputs change.
+   
+   @author Satoru Sugihara
+*/
+public class IRasterMap extends IMap{
+    public static int defaultRasterWidth=256;
+    public static int defaultRasterHeight=256;
+    
+    /** number of samples on one side of a tile */
+    public static final int tileSize=64;
+    
+    public IMap map;
+    /** number of samples in u and v. sample i is at u = i/(width-1). */
+    public int width, height;
+    public int tileNumU, tileNumV;
+    /**
+       samples of each tile in u major order. when not evaluated, it's null at first or an empty array
+       which is newly created at every invalidation to be used as the version of the tile.
+    */
+    public AtomicReferenceArray<float[]> tiles;
+    
+    public IRasterMap(IMap map){ this(map, defaultRasterWidth, defaultRasterHeight); }
+    
+    public IRasterMap(IMap map, int width, int height){
+	this.map = map;
+	if(width<2) width=2;
+	if(height<2) height=2;
+	this.width = width;
+	this.height = height;
+	tileNumU = (width+tileSize-1)/tileSize;
+	tileNumV = (height+tileSize-1)/tileSize;
+	tiles = new AtomicReferenceArray<float[]>(tileNumU*tileNumV);
+    }
+    
+    public int width(){ return width; }
+    public int height(){ return height; }
+    
+    /** evaluate all tiles not evaluated yet. they're evaluated in parallel threads when IConfig.parallelMap is true. */
+    public IRasterMap rasterize(){
+	IParallel.Task task = new IParallel.Task(){
+		public void run(int start, int end){
+		    for(int i=start; i<end; i++){ tile(i); }
+		}
+	    };
+	if(IConfig.parallelMap){ IParallel.run(0, tiles.length(), task); }
+	else{ task.run(0, tiles.length()); }
+	return this;
+    }
+    
+    /** clear all tiles to be evaluated again */
+    public IRasterMap invalidate(){
+	for(int i=0; i<tiles.length(); i++){ tiles.set(i, new float[0]); }
+	return this;
+    }
+    
+    /** clear tiles containing samples between u1-u2 and v1-v2 and their neighbors used in interpolation */
+    public IRasterMap invalidate(double u1, double v1, double u2, double v2){
+	int i1 = sampleIndex(Math.min(u1,u2), width)-1, i2 = sampleIndex(Math.max(u1,u2), width)+1;
+	int j1 = sampleIndex(Math.min(v1,v2), height)-1, j2 = sampleIndex(Math.max(v1,v2), height)+1;
+	if(i1<0) i1=0; if(i2>=width) i2=width-1;
+	if(j1<0) j1=0; if(j2>=height) j2=height-1;
+	for(int i=i1/tileSize; i<=i2/tileSize; i++){
+	    for(int j=j1/tileSize; j<=j2/tileSize; j++){ tiles.set(i*tileNumV+j, new float[0]); }
+	}
+	return this;
+    }
+    
+    static int sampleIndex(double u, int num){
+	if(u<=0) return 0;
+	if(u>=1) return num-1;
+	return (int)(u*(num-1));
+    }
+    
+    /** samples of the tile. it's evaluated if not yet. */
+    public float[] tile(int index){
+	float[] version = tiles.get(index);
+	if(version!=null && version.length>0) return version;
+	int iu = index/tileNumV, iv = index%tileNumV;
+	int i0 = iu*tileSize, j0 = iv*tileSize;
+	float[] tile = new float[tileSize*tileSize];
+	int inum = Math.min(tileSize, width-i0), jnum = Math.min(tileSize, height-j0);
+	for(int i=0; i<inum; i++){
+	    double u = (double)(i0+i)/(width-1);
+	    for(int j=0; j<jnum; j++){
+		tile[i*tileSize+j] = (float)map.get(u, (double)(j0+j)/(height-1));
+	    }
+	}
+	// not published if the tile is invalidated or evaluated by other thread while evaluating
+	tiles.compareAndSet(index, version, tile);
+	return tile;
+    }
+    
+    /** value of the sample at i in u and j in v */
+    public double sample(int i, int j){
+	return tile((i/tileSize)*tileNumV+j/tileSize)[(i%tileSize)*tileSize+j%tileSize];
+    }
+    
+    public double get(double u, double v){
+	if(u<0) u=0; else if(u>1) u=1;
+	if(v<0) v=0; else if(v>1) v=1;
+	double fu = u*(width-1), fv = v*(height-1);
+	int i = (int)fu, j = (int)fv;
+	if(i>width-2) i=width-2;
+	if(j>height-2) j=height-2;
+	double ru = fu-i, rv = fv-j;
+	if(i/tileSize==(i+1)/tileSize && j/tileSize==(j+1)/tileSize){ // all samples in one tile
+	    float[] tile = tile((i/tileSize)*tileNumV+j/tileSize);
+	    int k = (i%tileSize)*tileSize+j%tileSize;
+	    return (tile[k]*(1-ru) + tile[k+tileSize]*ru)*(1-rv) + (tile[k+1]*(1-ru) + tile[k+tileSize+1]*ru)*rv;
+	}
+	return (sample(i,j)*(1-ru) + sample(i+1,j)*ru)*(1-rv) + (sample(i,j+1)*(1-ru) + sample(i+1,j+1)*ru)*rv;
+    }
+    
+    public void flipU(){ map.flipU(); invalidate(); }
+    public void flipV(){ map.flipV(); invalidate(); }
+}
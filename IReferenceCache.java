@@ -0,0 +1,97 @@
+/*---
+
+    iGeo - http://igeo.jp
+
+    Copyright (c) 2002-2013 Satoru Sugihara
+
+    This file is part of iGeo.
+
+    iGeo is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as
+    published by the Free Software Foundation, version 3.
+
+    iGeo is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with iGeo.  If not, see <http://www.gnu.org/licenses/>.
+
+---*/
+
+package igeo;
+
+import java.lang.reflect.Field;
+import java.util.ArrayList;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+   Version stamp and dependency check to cache values of reference parameters (IVecR and IDoubleR).
+   The version is incremented whenever a reference parameter replaces its operator.
+   A cached value is valid while the version is the same and its operator tree depends only on constants
+   created by reference parameters and on other reference parameters.
+   Other inputs like IVec or IDouble can be modified directly without notification and their trees are evaluated every time.
+   
+   @author Satoru Sugihara
+*/
+public class IReferenceCache{
+    
+    /** version of operators of all reference parameters */
+    public static final AtomicLong version = new AtomicLong();
+    
+    /** public operand fields of operator classes nested in IVecR and IDoubleR. null for other classes. */
+    static final ClassValue<Field[]> operandFields = new ClassValue<Field[]>(){
+	protected Field[] computeValue(Class<?> cls){
+	    Class<?> dc = cls.getDeclaringClass();
+	    if(dc!=IVecR.class && dc!=IDoubleR.class) return null;
+	    ArrayList<Field> fields = new ArrayList<Field>();
+	    for(Field f : cls.getFields()){
+		if(IParameter.class.isAssignableFrom(f.getType())) fields.add(f);
+	    }
+	    return fields.toArray(new Field[fields.size()]);
+	}
+    };
+    
+    /** current version */
+    public static long version(){ return version.get(); }
+    
+    /** increment the version when an operator of a reference parameter is replaced */
+    public static void update(){ version.incrementAndGet(); }
+    
+    /**
+       check if the value of the operator depends only on constants and reference parameters.
+    */
+    public static boolean isCacheable(Object op){
+	if(op==null) return true;
+	if(op instanceof IVecR.Constant || op instanceof IDoubleR.Constant) return true;
+	if(op instanceof IVecR) return ((IVecR)op).cacheable(); // memoized by the reference
+	if(op instanceof IDoubleR) return ((IDoubleR)op).cacheable();
+	Field[] fields = operandFields.get(op.getClass());
+	if(fields==null) return false;
+	try{
+	    for(int i=0; i<fields.length; i++){
+		if(!isCacheable(fields[i].get(op))) return false;
+	    }
+	}catch(IllegalAccessException e){ return false; }
+	return true;
+    }
+    
+    /** check if all inputs of the operator nested in IVecR or IDoubleR are constants */
+    public static boolean hasConstantInputs(Object op){
+	Field[] fields = operandFields.get(op.getClass());
+	if(fields==null || fields.length==0) return false;
+	try{
+	    for(int i=0; i<fields.length; i++){
+		Object input = fields[i].get(op);
+		if(!(input instanceof IParameter) || !isConstant((IParameter)input)) return false;
+	    }
+	}catch(IllegalAccessException e){ return false; }
+	return true;
+    }
+    
+    /** check if the operator is a constant created by reference parameters */
+    public static boolean isConstant(IParameter op){
+	return op instanceof IVecR.Constant || op instanceof IDoubleR.Constant;
+    }
+}
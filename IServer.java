@@ -23,6 +23,7 @@
 package igeo;
 
 import java.util.ArrayList;
+import java.util.List;
 import java.awt.Color;
 import igeo.gui.*;
 
@@ -36,7 +37,12 @@ import igeo.gui.*;
 */
 public class IServer implements IServerI{
     
+    /** list of objects derived from index. use allObjects() to read it because it's rebuilt lazily after removal */
     public ArrayList<IObject> objects; // elements
+    /** objects indexed by class for type queries */
+    public IObjectIndex index;
+    /** true when objects are removed from index and the list of objects needs to be rebuilt */
+    public boolean objectsChanged=false;
     //ArrayList<IGraphicObject> graphics;
     //public ArrayList<IDynamicObject> dynamics;
     
@@ -59,6 +65,7 @@ public class IServer implements IServerI{
     public IServer(IG ig){
 	this.ig =ig;
 	objects = new ArrayList<IObject>();
+	index = new IObjectIndex();
 	//graphics = new ArrayList<IGraphicObject>();
 	//dynamics = new ArrayList<IDynamicObject>();
 	//graphicServer = new IGraphicServer(this);
@@ -72,6 +79,7 @@ public class IServer implements IServerI{
     public IServer(IG ig, IPanelI panel){
 	this.ig =ig;
 	objects = new ArrayList<IObject>();
+	index = new IObjectIndex();
 	//graphics = new ArrayList<IGraphicObject>();
 	//dynamics = new ArrayList<IDynamicObject>();
 	//graphicServer = new IGraphicServer(this);
@@ -96,7 +104,7 @@ public class IServer implements IServerI{
     public void add(IObject e){
 	//synchronized(IG.lock){
 	synchronized(ig){
-	    if(!objects.contains(e)) objects.add(e);
+	    if(index.add(e) && !objectsChanged) objects.add(e);
 	    e.server = this;
 	    if(e instanceof ILayer){ layers.add((ILayer)e); }
 	    //if(isGraphicMode()) graphicServer.add(e);
@@ -139,11 +147,23 @@ public class IServer implements IServerI{
     
     
     public ArrayList<IObject> getAllObjects(){ return allObjects(); }
-    public ArrayList<IObject> allObjects(){ return objects; }
+    public ArrayList<IObject> allObjects(){
+	if(objectsChanged){
+	    synchronized(ig){
+		if(objectsChanged){ // rebuilt once after removal of any number of objects
+		    objects.clear();
+		    objects.addAll(index.objects);
+		    objectsChanged=false;
+		}
+	    }
+	}
+	return objects;
+    }
     
     //public IObject getObject(int i){ return objects.get(i); }
     public IObject getObject(int i){ return object(i); }
     public IObject object(int i){
+	ArrayList<IObject> objects = allObjects();
 	if(i<0||i>=objects.size()) return null;
 	return objects.get(i);
     }
@@ -152,7 +172,7 @@ public class IServer implements IServerI{
     //public IDynamicObject getDynamicObject(int i){ return dynamicObject(i); }
     //public IDynamicObject dynamicObject(int i){ if(i<0||i>=dynamics.size()){ return null; } return dynamics.get(i); }
     
-    public int objectNum(){ return objects.size(); }
+    public int objectNum(){ return index.num(); }
     /** alias of objectNum() */
     public int getObjectNum(){ return objectNum(); }
     //public int graphicObjectNum(){ return graphics.size(); }
@@ -161,18 +181,17 @@ public class IServer implements IServerI{
     
     
     public void remove(int i){
-	if(i<0||i>=objects.size()) return;
 	//synchronized(IG.lock){
 	synchronized(ig){
-	    if(graphicServer!=null && objects.get(i).graphics!=null){
-		IObject e = objects.get(i);
+	    IObject e = object(i);
+	    if(e==null) return;
+	    if(graphicServer!=null && e.graphics!=null){
 		for(int j=0; j<e.graphics.size(); j++) graphicServer.remove(e.graphics.get(j));
 	    }
-	    if(objects.get(i).dynamics!=null){
-		IObject e = objects.get(i);
+	    if(e.dynamics!=null){
 		for(int j=0; j<e.dynamics.size(); j++) dynamicServer.remove(e.dynamics.get(j)); //removeDynamicObject(e.dynamics.get(j));
 	    }
-	    objects.remove(i);
+	    if(index.remove(e)) objectsChanged=true;
 	    updateState();
 	}
     }
@@ -189,7 +208,7 @@ public class IServer implements IServerI{
 	    if(e.attribute!=null && e.attribute.layer!=null){
 		e.attribute.layer.remove(e); // 20111217
 	    }
-	    objects.remove(e);
+	    if(index.remove(e)) objectsChanged=true;
 	    if(e instanceof ILayer){ layers.remove(e); }
 	    updateState();
 	}
@@ -219,6 +238,8 @@ public class IServer implements IServerI{
     //public void delete(){ objects.clear(); }
     public void clear(){
 	objects.clear();
+	index.clear();
+	objectsChanged=false;
 	//dynamics.clear();
 	if(graphicServer!=null) graphicServer.clearObjects();
 	if(dynamicServer!=null) dynamicServer.clear();
@@ -266,13 +287,7 @@ public class IServer implements IServerI{
 	IPointR objects are not included.
     */
     public IPoint[] points(){
-	ArrayList<IPoint> points = new ArrayList<IPoint>();
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IPoint)
-		    points.add((IPoint)objects.get(i));
-	}
-	return points.toArray(new IPoint[points.size()]);
+	synchronized(ig){ return index.array(IPoint.class); }
     }
     /** alias of points() */
     public IPoint[] getPoints(){ return points(); }
@@ -281,13 +296,7 @@ public class IServer implements IServerI{
 	ICurveR objects are not included.
     */
     public ICurve[] curves(){
-	ArrayList<ICurve> curves = new ArrayList<ICurve>();
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof ICurve)
-		    curves.add((ICurve)objects.get(i));
-	}
-	return curves.toArray(new ICurve[curves.size()]);
+	synchronized(ig){ return index.array(ICurve.class); }
     }
     /** alias of curves() */
     public ICurve[] getCurves(){ return curves(); }
@@ -298,13 +307,7 @@ public class IServer implements IServerI{
 	ICurve - IPolycurve relationship is still under work. This is temporary measure.
     */
     public IPolycurve[] polycurves(){
-	ArrayList<IPolycurve> polycurves = new ArrayList<IPolycurve>();
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IPolycurve)
-		    polycurves.add((IPolycurve)objects.get(i));
-	}
-	return polycurves.toArray(new IPolycurve[polycurves.size()]);
+	synchronized(ig){ return index.array(IPolycurve.class); }
     }
     /** alias of curves() */
     public IPolycurve[] getPolycurves(){ return polycurves(); }
@@ -314,13 +317,7 @@ public class IServer implements IServerI{
 	ISurfaceR objects are not included.
     */
     public ISurface[] surfaces(){
-	ArrayList<ISurface> surfaces = new ArrayList<ISurface>();
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof ISurface)
-		    surfaces.add((ISurface)objects.get(i));
-	}
-	return surfaces.toArray(new ISurface[surfaces.size()]);
+	synchronized(ig){ return index.array(ISurface.class); }
     }
     /** alias of surfaces() */
     public ISurface[] getSurfaces(){ return surfaces(); }
@@ -329,52 +326,28 @@ public class IServer implements IServerI{
 	IMeshR objects are not included.
     */
     public IMesh[] meshes(){
-	ArrayList<IMesh> meshes = new ArrayList<IMesh>();
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IMesh)
-		    meshes.add((IMesh)objects.get(i));
-	}
-	return meshes.toArray(new IMesh[meshes.size()]);
+	synchronized(ig){ return index.array(IMesh.class); }
     }
     /** alias of meshes() */
     public IMesh[] getMeshes(){ return meshes(); }
     
     /** Returns all brep objects contained in objects. */
     public IBrep[] breps(){
-	ArrayList<IBrep> breps = new ArrayList<IBrep>();
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IBrep)
-		    breps.add((IBrep)objects.get(i));
-	}
-	return breps.toArray(new IBrep[breps.size()]);
+	synchronized(ig){ return index.array(IBrep.class); }
     }
     /** alias of breps */
     public IBrep[] getBreps(){ return breps(); }
     
     /** Returns all text objects contained in objects. */
     public IText[] texts(){
-	ArrayList<IText> texts = new ArrayList<IText>();
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IText)
-		    texts.add((IText)objects.get(i));
-	}
-	return texts.toArray(new IText[texts.size()]);
+	synchronized(ig){ return index.array(IText.class); }
     }
     /** alias of texts */
     public IText[] getTexts(){ return texts(); }
     
     /** Returns all geometry objects contained in objects. */
     public IGeometry[] geometries(){
-	ArrayList<IGeometry> geoms = new ArrayList<IGeometry>();
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IGeometry)
-		    geoms.add((IGeometry)objects.get(i));
-	}
-	return geoms.toArray(new IGeometry[geoms.size()]);
+	synchronized(ig){ return index.array(IGeometry.class); }
     }
     /** alias of breps */
     public IGeometry[] getGeometries(){ return breps(); }
@@ -382,19 +355,27 @@ public class IServer implements IServerI{
     /** Returns all objects of specified class contained in objects.
      */
     public IObject[] objects(Class cls){
-	ArrayList<IObject> objs = new ArrayList<IObject>();
 	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(cls.isInstance(objects.get(i))) objs.add(objects.get(i));
+	    List<?> list = index.list((Class<?>)cls);
+	    return list.toArray(new IObject[list.size()]);
 	}
-	return objs.toArray(new IObject[objs.size()]);
     }
     /** alias of objects(Class) */
     public IObject[] getObjects(Class cls){ return objects(cls); }
     
+    /** Returns read-only list of objects of specified class contained in objects without copying them.
+	The list is not updated when objects are added or removed after the call.
+     */
+    public <T> List<T> objectList(Class<T> cls){
+	synchronized(ig){ return index.list(cls); }
+    }
+    
     /** Returns all objects contained in objects.
      */
-    public IObject[] objects(){ return objects.toArray(new IObject[objects.size()]); }
+    public IObject[] objects(){
+	ArrayList<IObject> objects = allObjects();
+	return objects.toArray(new IObject[objects.size()]);
+    }
     public IObject[] getObjects(){ return objects(); }
     
     
@@ -402,13 +383,7 @@ public class IServer implements IServerI{
 	IPointR objects are not included.
     */
     public IPoint point(int i){
-	int curIdx=0;
-	synchronized(ig){
-	    for(int j=0; j<objects.size(); j++)
-		if(objects.get(j) instanceof IPoint)
-		    if(i==curIdx++) return (IPoint)objects.get(j);
-	}
-	return null;
+	synchronized(ig){ return index.get(IPoint.class, i); }
     }
     /** alias of point(int) */
     public IPoint getPoint(int i){ return point(i); }
@@ -418,13 +393,7 @@ public class IServer implements IServerI{
 	ICurveR objects are not included.
     */
     public ICurve curve(int i){
-	int curIdx=0;
-	synchronized(ig){
-	    for(int j=0; j<objects.size(); j++)
-		if(objects.get(j) instanceof ICurve)
-		    if(i==curIdx++) return (ICurve)objects.get(j);
-	}
-	return null;
+	synchronized(ig){ return index.get(ICurve.class, i); }
     }
     /** alias of curve(int) */
     public ICurve getCurve(int i){ return curve(i); }
@@ -435,13 +404,7 @@ public class IServer implements IServerI{
 	ICurve - IPolycurve relationship is still under work. This is temporary measure.
     */
     public IPolycurve polycurve(int i){
-	int curIdx=0;
-	synchronized(ig){
-	    for(int j=0; j<objects.size(); j++)
-		if(objects.get(j) instanceof IPolycurve)
-		    if(i==curIdx++) return (IPolycurve)objects.get(j);
-	}
-	return null;
+	synchronized(ig){ return index.get(IPolycurve.class, i); }
     }
     /** alias of polycurve(int) */
     public IPolycurve getPolycurve(int i){ return polycurve(i); }
@@ -451,13 +414,7 @@ public class IServer implements IServerI{
 	ISurfaceR objects are not included.
     */
     public ISurface surface(int i){
-	int curIdx=0;
-	synchronized(ig){
-	    for(int j=0; j<objects.size(); j++)
-		if(objects.get(j) instanceof ISurface)
-		    if(i==curIdx++) return (ISurface)objects.get(j);
-	}
-	return null;
+	synchronized(ig){ return index.get(ISurface.class, i); }
     }
     /** alias of surface(int) */
     public ISurface getSurface(int i){ return surface(i); }
@@ -467,13 +424,7 @@ public class IServer implements IServerI{
 	IMeshR objects are not included.
     */
     public IMesh mesh(int i){
-	int curIdx=0;
-	synchronized(ig){
-	    for(int j=0; j<objects.size(); j++)
-		if(objects.get(j) instanceof IMesh)
-		    if(i==curIdx++) return (IMesh)objects.get(j);
-	}
-	return null;
+	synchronized(ig){ return index.get(IMesh.class, i); }
     }
     /** alias of mesh(int) */
     public IMesh getMesh(int i){ return mesh(i); }
@@ -481,13 +432,7 @@ public class IServer implements IServerI{
     /** Returns i-th IBrep object contained in objects or null if not found.
     */
     public IBrep brep(int i){
-	int curIdx=0;
-	synchronized(ig){
-	    for(int j=0; j<objects.size(); j++)
-		if(objects.get(j) instanceof IBrep)
-		    if(i==curIdx++) return (IBrep)objects.get(j);
-	}
-	return null;
+	synchronized(ig){ return index.get(IBrep.class, i); }
     }
     /** alias of brep(int) */
     public IBrep getBrep(int i){ return brep(i); }
@@ -495,13 +440,7 @@ public class IServer implements IServerI{
     /** Returns i-th IText object contained in objects or null if not found.
      */
     public IText text(int i){
-	int curIdx=0;
-	synchronized(ig){
-	    for(int j=0; j<objects.size(); j++)
-		if(objects.get(j) instanceof IText)
-		    if(i==curIdx++) return (IText)objects.get(j);
-	}
-	return null;
+	synchronized(ig){ return index.get(IText.class, i); }
     }
     /** alias of text(int) */
     public IText getText(int i){ return text(i); }
@@ -510,13 +449,7 @@ public class IServer implements IServerI{
     /** Returns i-th IGeometry object contained in objects or null if not found.
     */
     public IGeometry geometry(int i){
-	int curIdx=0;
-	synchronized(ig){
-	    for(int j=0; j<objects.size(); j++)
-		if(objects.get(j) instanceof IGeometry)
-		    if(i==curIdx++) return (IGeometry)objects.get(j);
-	}
-	return null;
+	synchronized(ig){ return index.get(IGeometry.class, i); }
     }
     /** alias of geometry(int) */
     public IGeometry getGeometry(int i){ return geometry(i); }
@@ -524,13 +457,7 @@ public class IServer implements IServerI{
     /** Returns i-th object contained in objects or null if not found.
     */
     public IObject object(Class cls, int i){
-	int curIdx=0;
-	synchronized(ig){
-	    for(int j=0; j<objects.size(); j++)
-		if(cls.isInstance(objects.get(j))) 
-		    if(i==curIdx++) return objects.get(j);
-	}
-	return null;
+	synchronized(ig){ return (IObject)index.get((Class<?>)cls, i); }
     }
     /** alias of object(Class,int) */
     public IObject getObject(Class cls, int i){ return object(cls,i); }
@@ -539,24 +466,14 @@ public class IServer implements IServerI{
     
     /** number of IPoint in objects */
     public int pointNum(){
-	int num=0;
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IPoint) num++;
-	}
-	return num;
+	synchronized(ig){ return index.num(IPoint.class); }
     }
     /** alias of pointsNum() */
     public int getPointNum(){ return pointNum(); }
     
     /** number of ICurve in objects */
     public int curveNum(){
-	int num=0;
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof ICurve) num++;
-	}
-	return num;
+	synchronized(ig){ return index.num(ICurve.class); }
     }
     /** alias of curveNum() */
     public int getCurveNum(){ return curveNum(); }
@@ -566,24 +483,14 @@ public class IServer implements IServerI{
 	ICurve - IPolycurve relationship is still under work. This is temporary measure.
     */
     public int polycurveNum(){
-	int num=0;
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IPolycurve) num++;
-	}
-	return num;
+	synchronized(ig){ return index.num(IPolycurve.class); }
     }
     /** alias of polycurveNum() */
     public int getPolycurveNum(){ return polycurveNum(); }
     
     /** number of ISurface in objects */
     public int surfaceNum(){
-	int num=0;
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof ISurface) num++;
-	}
-	return num;
+	synchronized(ig){ return index.num(ISurface.class); }
     }
     /** alias of surfaceNum() */
     public int getSurfaceNum(){ return surfaceNum(); }
@@ -591,12 +498,7 @@ public class IServer implements IServerI{
     
     /** number of IMesh in objects */
     public int meshNum(){
-	int num=0;
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IMesh) num++;
-	}
-	return num;
+	synchronized(ig){ return index.num(IMesh.class); }
     }
     /** alias of meshNum() */
     public int getMeshNum(){ return meshNum(); }
@@ -604,48 +506,28 @@ public class IServer implements IServerI{
     
     /** number of IBrep in objects */
     public int brepNum(){
-	int num=0;
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IBrep) num++;
-	}
-	return num;
+	synchronized(ig){ return index.num(IBrep.class); }
     }
     /** alias of brepNum() */
     public int getBrepNum(){ return brepNum(); }
     
     /** number of IText in objects */
     public int textNum(){
-	int num=0;
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IText) num++;
-	}
-	return num;
+	synchronized(ig){ return index.num(IText.class); }
     }
     /** alias of textNum() */
     public int getTextNum(){ return textNum(); }
     
     /** number of the IGeometry in objects */
     public int geometryNum(){
-	int num=0;
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(objects.get(i) instanceof IGeometry) num++;
-	}
-	return num;
+	synchronized(ig){ return index.num(IGeometry.class); }
     }
     /** alias of geometryNum() */
     public int getGeometryNum(){ return geometryNum(); }
     
     /** number of the specified class in objects */
     public int objectNum(Class cls){
-	int num=0;
-	synchronized(ig){
-	    for(int i=0; i<objects.size(); i++)
-		if(cls.isInstance(objects.get(i))) num++;
-	}
-	return num;
+	synchronized(ig){ return index.num(cls); }
     }
     /** alias of objectNum(Class) */
     public int getObjectNum(Class cls){ return objectNum(cls); }
@@ -137,6 +137,9 @@ public class ISpringLine extends ICurve implements ISpringI, IDynamics{
     /** IDynamicsBase doesn't implement local dynamics feature */
     public ArrayList<IDynamics> localDynamics(){ return null; }
     
+    /** not executed in parallel threads */
+    public boolean parallel(){ return false; }
+    
     public ISpringLine target(IObject targetObj){
         if(targets==null) targets = new ArrayList<IObject>();
         targets.add(targetObj);
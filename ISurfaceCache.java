@@ -22,6 +22,8 @@
 
 package igeo;
 
+import java.util.ArrayList;
+
 /**
    Point cache of a surface for proximity search.
    
@@ -32,8 +34,16 @@ public class ISurfaceCache{
     public ISurfaceGeo surface;
     public int uresolution,vresolution;
     public int udeg, vdeg;
-    public IVec[][] pts;
-    public IVec2[][] pts2;
+    public volatile IVec[][] pts;
+    public volatile IVec2[][] pts2;
+    /** internal parameter U and V at cache points */
+    public double[] us, vs;
+    /** bounding box tree of cells between cache points for 3d search */
+    public CellNode tree;
+    /** deviation of the surface from each cell, measured at the center of the cell. index is u index * (v number-1) + v index */
+    public double[] deviations;
+    /** max of deviations */
+    public double deviation;
     
     public ISurfaceCache(ISurfaceGeo surf, int resolution){
 	surface = surf;
@@ -47,35 +57,54 @@ public class ISurfaceCache{
 	this(surf,IConfig.surfaceCacheResolution);
     }
     
+    /** cache points are filled before they are set to <code>pts</code> so that other threads don't read partially filled cache */
     public void init(){
 	//if(udeg==1){ uresolution=1; }
 	//if(vdeg==1){ vresolution=1; }
 	int unum = (surface.uepNum()-1)*uresolution + 1;
 	int vnum = (surface.vepNum()-1)*vresolution + 1;
-	pts = new IVec[unum][vnum];
-	int uepnum = surface.uepNum();
-	int vepnum = surface.vepNum();
-	for(int i=0; i<uepnum; i++){
-	    for(int j=0; j<uresolution; j++){
-		if(i<uepnum-1 || j==0){
-		    for(int k=0; k<vepnum; k++){
-			for(int l=0; l<vresolution; l++){
-			    if(k<vepnum-1 || l==0){
-				pts[i*uresolution+j][k*vresolution+l] =
-				    surface.pt(surface.u(i, (double)j/uresolution),
-					       surface.v(k, (double)l/vresolution));
-			    }
-			}
-		    }
+	IVec[][] pts = new IVec[unum][vnum];
+	double[] us = new double[unum];
+	double[] vs = new double[vnum];
+	for(int i=0; i<unum; i++){ us[i] = u(i); }
+	for(int i=0; i<vnum; i++){ vs[i] = v(i); }
+	double[] xyz = surface.ptGrid(us, vs, null);
+	for(int i=0; i<unum; i++){
+	    for(int j=0; j<vnum; j++){
+		int k = (i*vnum+j)*3;
+		pts[i][j] = new IVec(xyz[k], xyz[k+1], xyz[k+2]);
+	    }
+	}
+	if(unum>1 && vnum>1){
+	    double[] devs = new double[(unum-1)*(vnum-1)];
+	    double dev=0;
+	    double[] midus = new double[unum-1];
+	    double[] midvs = new double[vnum-1];
+	    for(int i=0; i<unum-1; i++){ midus[i] = (us[i]+us[i+1])/2; }
+	    for(int j=0; j<vnum-1; j++){ midvs[j] = (vs[j]+vs[j+1])/2; }
+	    double[] midxyz = surface.ptGrid(midus, midvs, null);
+	    for(int i=0; i<unum-1; i++){
+		for(int j=0; j<vnum-1; j++){
+		    IVec center = pts[i][j].dup().add(pts[i+1][j]).add(pts[i][j+1]).add(pts[i+1][j+1]).div(4);
+		    int k = (i*(vnum-1)+j)*3;
+		    double d = center.dist(midxyz[k], midxyz[k+1], midxyz[k+2]);
+		    devs[i*(vnum-1)+j] = d;
+		    if(d>dev){ dev=d; }
 		}
 	    }
+	    deviations = devs;
+	    deviation = dev;
+	    tree = new CellNode(pts);
 	}
+	this.us = us;
+	this.vs = vs;
+	this.pts = pts;
     }
     
     public void init2(){
 	int unum = (surface.uepNum()-1)*uresolution + 1;
 	int vnum = (surface.vepNum()-1)*vresolution + 1;
-	pts2 = new IVec2[unum][vnum];
+	IVec2[][] pts2 = new IVec2[unum][vnum];
 	int uepnum = surface.uepNum();
 	int vepnum = surface.vepNum();
 	for(int i=0; i<uepnum; i++){
@@ -93,6 +122,7 @@ public class ISurfaceCache{
 		}
 	    }
 	}
+	this.pts2 = pts2;
     }    
     
     
@@ -202,7 +232,34 @@ public class ISurfaceCache{
     
     /** approximate invert projection from 3D location to interanl parameter U (closest point on curve) */
     public IVec2 uv(IVec pt){
-	if(pts==null) init();
+	if(pts==null){
+	    synchronized(this){ if(pts==null) init(); }
+	}
+	
+	if(tree!=null){
+	    // closest cell of cache points
+	    CellSearch search = new CellSearch();
+	    tree.search(pt, pts, search);
+	    IVec2 uv = newton(pt, cellUV(search.cell, search.s, search.t));
+	    if(deviation==0) return uv;
+	    // other cells which can be closer because the surface deviates from cells
+	    double dist = surface.pt(uv.x, uv.y).dist(pt);
+	    double limit = dist + deviation;
+	    search.candidates = new ArrayList<double[]>();
+	    tree.search(pt, pts, limit*limit, search);
+	    int vnum = pts[0].length;
+	    for(int i=0; i<search.candidates.size(); i++){
+		double[] c = search.candidates.get(i);
+		int cell = (int)c[0];
+		if(cell==search.cell || Math.sqrt(c[3]) - deviations[cell] >= dist) continue;
+		int ui = cell/(vnum-1), vi = cell%(vnum-1);
+		if(us[ui] <= uv.x && uv.x <= us[ui+1] && vs[vi] <= uv.y && uv.y <= vs[vi+1]) continue; // would converge to the same point
+		IVec2 uv2 = newton(pt, cellUV(cell, c[1], c[2]));
+		double dist2 = surface.pt(uv2.x, uv2.y).dist(pt);
+		if(dist2 < dist){ uv=uv2; dist=dist2; }
+	    }
+	    return uv;
+	}
 	
 	int[] idx = closest(pt);
 	int[] cellIdx = getCloserTriangle(pt, idx[0], idx[1]);
@@ -223,7 +280,9 @@ public class ISurfaceCache{
     
     /** approximate invert projection from 3D location to interanl parameter U (closest point on curve) */
     public IVec2 uv(IVec2 pt){
-	if(pts2==null) init2();
+	if(pts2==null){
+	    synchronized(this){ if(pts2==null) init2(); }
+	}
 	
 	int[] idx = closest(pt);
 	int[] cellIdx = getCloserTriangle(pt, idx[0], idx[1]);
@@ -369,6 +428,124 @@ public class ISurfaceCache{
     }
     
     
+    /**
+       UV parameter of a point on a cell; the cell is split into two triangles
+       (u0v0, u1v0, u1v1) and (u0v0, u1v1, u0v1). Second triangle has t larger than 1.
+    */
+    public IVec2 cellUV(int cell, double s, double t){
+	int vnum = vs.length;
+	int i = cell/(vnum-1), j = cell%(vnum-1);
+	double du = us[i+1]-us[i], dv = vs[j+1]-vs[j];
+	if(t<=1.0){ return new IVec2(us[i]+(s+t)*du, vs[j]+t*dv); }
+	t-=2;
+	return new IVec2(us[i]+s*du, vs[j]+(s+t)*dv);
+    }
+    
+    
+    /**
+       Newton iteration of closest point on the surface from the initial parameter uv.
+       It solves (S-pt)&middot;Su=0 and (S-pt)&middot;Sv=0 and the step is halved when the distance doesn't decrease.
+    */
+    public IVec2 newton(IVec pt, IVec2 uv){
+	double u = uv.x, v = uv.y;
+	double[] d = new double[18]; // S, Su, Sv, Suu, Suv, Svv
+	double[] d2 = new double[18];
+	derivatives(u, v, d);
+	double dist2 = pt.dist2(d[0],d[1],d[2]);
+	for(int i=0; i<IConfig.cacheNewtonMaxIteration && dist2>0; i++){
+	    double dx = d[0]-pt.x, dy = d[1]-pt.y, dz = d[2]-pt.z;
+	    double uu = d[3]*d[3]+d[4]*d[4]+d[5]*d[5];
+	    double uv_ = d[3]*d[6]+d[4]*d[7]+d[5]*d[8];
+	    double vv = d[6]*d[6]+d[7]*d[7]+d[8]*d[8];
+	    double fu = dx*d[3]+dy*d[4]+dz*d[5];
+	    double fv = dx*d[6]+dy*d[7]+dz*d[8];
+	    double huu = uu + dx*d[9]+dy*d[10]+dz*d[11];
+	    double huv = uv_ + dx*d[12]+dy*d[13]+dz*d[14];
+	    double hvv = vv + dx*d[15]+dy*d[16]+dz*d[17];
+	    double det = huu*hvv-huv*huv;
+	    if(huu<=0 || det<=0){ // Gauss-Newton step when not convex
+		huu=uu; huv=uv_; hvv=vv;
+		det = huu*hvv-huv*huv;
+	    }
+	    if(det<=0){ break; }
+	    double du = -( hvv*fu - huv*fv)/det;
+	    double dv = -(-huv*fu + huu*fv)/det;
+	    // on the boundary of parameter space, fix the parameter and search along the boundary
+	    boolean ufixed = u<=0 && du<0 || u>=1.0 && du>0;
+	    boolean vfixed = v<=0 && dv<0 || v>=1.0 && dv>0;
+	    if(ufixed && vfixed){ break; }
+	    if(ufixed){
+		if(vv==0){ break; }
+		du=0; dv = -fv/(hvv>0?hvv:vv);
+	    }
+	    else if(vfixed){
+		if(uu==0){ break; }
+		dv=0; du = -fu/(huu>0?huu:uu);
+	    }
+	    boolean improved=false;
+	    for(int j=0; j<10 && !improved; j++, du/=2, dv/=2){
+		double u2 = u+du, v2 = v+dv;
+		if(u2<0){ u2=0; } else if(u2>1.0){ u2=1.0; }
+		if(v2<0){ v2=0; } else if(v2>1.0){ v2=1.0; }
+		if(u2==u && v2==v){ return new IVec2(u,v); }
+		derivatives(u2, v2, d2);
+		double dist2b = pt.dist2(d2[0],d2[1],d2[2]);
+		if(dist2b < dist2){
+		    double move = Math.sqrt((u2-u)*(u2-u)*uu + (v2-v)*(v2-v)*vv);
+		    u=u2; v=v2; dist2=dist2b;
+		    if(move < IConfig.tolerance){ return new IVec2(u,v); }
+		    double[] tmp=d; d=d2; d2=tmp;
+		    improved=true;
+		}
+	    }
+	    if(!improved) break;
+	}
+	return new IVec2(u,v);
+    }
+    
+    /**
+       Point, first and second derivatives of the surface at u, v in one pass over control points.
+       retval is filled with S, Su, Sv, Suu, Suv, Svv in this order (18 values).
+    */
+    public void derivatives(double u, double v, double[] retval){
+	ISurfaceGeo s = surface;
+	int uindex = s.basisFunctionU.index(u);
+	int vindex = s.basisFunctionV.index(v);
+	double[][] nu = new double[3][udeg+1];
+	double[][] nv = new double[3][vdeg+1];
+	s.basisFunctionU.derivatives(uindex, u, 2, nu);
+	s.basisFunctionV.derivatives(vindex, v, 2, nv);
+	// homogeneous derivatives A (x,y,z,w): 0:A, 1:Au, 2:Av, 3:Auu, 4:Auv, 5:Avv
+	double[] a = new double[24];
+	for(int i=0; i<=udeg; i++){
+	    for(int j=0; j<=vdeg; j++){
+		IVec cpt = s.controlPoints[uindex-udeg+i][vindex-vdeg+j].get();
+		double w=1.;
+		if(!s.defaultWeights[uindex-udeg+i][vindex-vdeg+j]) w=((IVec4)cpt).w;
+		double x=cpt.x*w, y=cpt.y*w, z=cpt.z*w;
+		for(int k=0; k<6; k++){
+		    // 0:(0,0), 1:(1,0), 2:(0,1), 3:(2,0), 4:(1,1), 5:(0,2) of derivative order in u and v
+		    int ku = k==1||k==4?1:k==3?2:0, kv = k==2||k==4?1:k==5?2:0;
+		    double f = nu[ku][i]*nv[kv][j];
+		    a[k*4] += x*f; a[k*4+1] += y*f; a[k*4+2] += z*f; a[k*4+3] += w*f;
+		}
+	    }
+	}
+	double w=a[3], wu=a[7], wv=a[11], wuu=a[15], wuv=a[19], wvv=a[23];
+	for(int k=0; k<3; k++){
+	    double p = a[k]/w;
+	    double pu = (a[4+k]-wu*p)/w;
+	    double pv = (a[8+k]-wv*p)/w;
+	    retval[k] = p;
+	    retval[3+k] = pu;
+	    retval[6+k] = pv;
+	    retval[9+k] = (a[12+k]-2*wu*pu-wuu*p)/w;
+	    retval[12+k] = (a[16+k]-wu*pv-wv*pu-wuv*p)/w;
+	    retval[15+k] = (a[20+k]-2*wv*pv-wvv*p)/w;
+	}
+    }
+    
+    
     public int[] closest(IVec pt){
 	int minIdxU=-1, minIdxV=-1;
 	double dist=0, minDist=0;
@@ -399,4 +576,175 @@ public class ISurfaceCache{
 	return new int[]{ minIdxU, minIdxV };
     }
     
+    
+    /** result of closest cell search */
+    static public class CellSearch{
+	/** index of the closest cell; u index * (v number-1) + v index */
+	public int cell=-1;
+	/** barycentric parameters of the closest point on the triangles of the cell (see cellUV) */
+	public double s, t;
+	public double dist2;
+	/** cell index, s, t and squared distance of cells within a distance */
+	public ArrayList<double[]> candidates;
+    }
+    
+    /**
+       Bounding box tree of cells between cache points.
+       Cells are split at the median of their centers on the longest axis of the box.
+    */
+    static public class CellNode{
+	static final int leafSize = 4;
+	/** index of cells; u index * (v number-1) + v index */
+	public int[] cells;
+	/** range in <code>cells</code> */
+	public int start, end;
+	public CellNode child1, child2;
+	public double minX, minY, minZ, maxX, maxY, maxZ;
+	
+	/** tree of all cells of the cache point grid */
+	public CellNode(IVec[][] pts){
+	    this(pts, new int[(pts.length-1)*(pts[0].length-1)], 0, (pts.length-1)*(pts[0].length-1), true);
+	}
+	
+	CellNode(IVec[][] pts, int[] cells, int start, int end, boolean root){
+	    this.cells=cells; this.start=start; this.end=end;
+	    if(root){ for(int i=start; i<end; i++){ cells[i]=i; } }
+	    int vn = pts[0].length-1;
+	    IVec p0 = pts[cells[start]/vn][cells[start]%vn];
+	    minX=maxX=p0.x; minY=maxY=p0.y; minZ=maxZ=p0.z;
+	    for(int i=start; i<end; i++){
+		int ui = cells[i]/vn, vi = cells[i]%vn;
+		for(int j=0; j<4; j++){
+		    IVec p = pts[ui+j/2][vi+j%2];
+		    if(p.x<minX) minX=p.x; if(p.x>maxX) maxX=p.x;
+		    if(p.y<minY) minY=p.y; if(p.y>maxY) maxY=p.y;
+		    if(p.z<minZ) minZ=p.z; if(p.z>maxZ) maxZ=p.z;
+		}
+	    }
+	    if(end-start > leafSize){
+		int axis = maxX-minX >= maxY-minY && maxX-minX >= maxZ-minZ ? 0 : maxY-minY >= maxZ-minZ ? 1 : 2;
+		int mid = (start+end)/2;
+		select(pts, cells, start, end-1, mid, axis);
+		child1 = new CellNode(pts, cells, start, mid, false);
+		child2 = new CellNode(pts, cells, mid, end, false);
+	    }
+	}
+	
+	/** twice of center of diagonal of cell on the axis */
+	static double center(IVec[][] pts, int cell, int axis){
+	    int vn = pts[0].length-1;
+	    IVec a = pts[cell/vn][cell%vn], b = pts[cell/vn+1][cell%vn+1];
+	    if(axis==0) return a.x+b.x;
+	    if(axis==1) return a.y+b.y;
+	    return a.z+b.z;
+	}
+	
+	/** partially sort cells between left and right (inclusive) to have k-th element in place */
+	static void select(IVec[][] pts, int[] cells, int left, int right, int k, int axis){
+	    while(left<right){
+		double pivot = center(pts, cells[(left+right)/2], axis);
+		int i=left, j=right;
+		while(i<=j){
+		    while(center(pts, cells[i], axis) < pivot) i++;
+		    while(center(pts, cells[j], axis) > pivot) j--;
+		    if(i<=j){
+			int tmp=cells[i]; cells[i]=cells[j]; cells[j]=tmp;
+			i++; j--;
+		    }
+		}
+		if(k<=j){ right=j; }
+		else if(k>=i){ left=i; }
+		else{ return; }
+	    }
+	}
+	
+	public double boxDist2(IVec p){
+	    double dx = p.x<minX?minX-p.x:p.x>maxX?p.x-maxX:0;
+	    double dy = p.y<minY?minY-p.y:p.y>maxY?p.y-maxY:0;
+	    double dz = p.z<minZ?minZ-p.z:p.z>maxZ?p.z-maxZ:0;
+	    return dx*dx+dy*dy+dz*dz;
+	}
+	
+	/**
+	   squared distance to the cell. barycentric parameters of the closest point are set to st;
+	   st[1] is offset by 2 on the second triangle.
+	*/
+	static double dist2(IVec p, IVec[][] pts, int cell, double[] st){
+	    int vn = pts[0].length-1;
+	    int ui = cell/vn, vi = cell%vn;
+	    IVec p00 = pts[ui][vi], p10 = pts[ui+1][vi], p01 = pts[ui][vi+1], p11 = pts[ui+1][vi+1];
+	    double d1 = triangleDist2(p, p00, p10, p11, st);
+	    double s = st[0], t = st[1];
+	    double d2 = triangleDist2(p, p00, p11, p01, st);
+	    if(d1 <= d2){ st[0]=s; st[1]=t; return d1; }
+	    st[1] += 2;
+	    return d2;
+	}
+	
+	/** squared distance to a triangle abc. closest point is a + st[0]*(b-a) + st[1]*(c-a) */
+	static double triangleDist2(IVec p, IVec a, IVec b, IVec c, double[] st){
+	    double abx=b.x-a.x, aby=b.y-a.y, abz=b.z-a.z;
+	    double acx=c.x-a.x, acy=c.y-a.y, acz=c.z-a.z;
+	    double apx=p.x-a.x, apy=p.y-a.y, apz=p.z-a.z;
+	    double d1 = abx*apx+aby*apy+abz*apz, d2 = acx*apx+acy*apy+acz*apz;
+	    double s, t;
+	    if(d1<=0 && d2<=0){ s=0; t=0; }
+	    else{
+		double bpx=p.x-b.x, bpy=p.y-b.y, bpz=p.z-b.z;
+		double d3 = abx*bpx+aby*bpy+abz*bpz, d4 = acx*bpx+acy*bpy+acz*bpz;
+		double cpx=p.x-c.x, cpy=p.y-c.y, cpz=p.z-c.z;
+		double d5 = abx*cpx+aby*cpy+abz*cpz, d6 = acx*cpx+acy*cpy+acz*cpz;
+		double vc = d1*d4-d3*d2, vb = d5*d2-d1*d6, va = d3*d6-d5*d4;
+		if(d3>=0 && d4<=d3){ s=1; t=0; }
+		else if(vc<=0 && d1>=0 && d3<=0){ s=d1/(d1-d3); t=0; }
+		else if(d6>=0 && d5<=d6){ s=0; t=1; }
+		else if(vb<=0 && d2>=0 && d6<=0){ s=0; t=d2/(d2-d6); }
+		else if(va<=0 && d4-d3>=0 && d5-d6>=0){ t=(d4-d3)/((d4-d3)+(d5-d6)); s=1-t; }
+		else if(va+vb+vc==0){ s=0; t=0; } // degenerated triangle
+		else{
+		    double denom = 1/(va+vb+vc);
+		    s = vb*denom; t = vc*denom;
+		}
+	    }
+	    st[0]=s; st[1]=t;
+	    double x = a.x+abx*s+acx*t-p.x, y = a.y+aby*s+acy*t-p.y, z = a.z+abz*s+acz*t-p.z;
+	    return x*x+y*y+z*z;
+	}
+	
+	/** find the closest cell */
+	public void search(IVec p, IVec[][] pts, CellSearch search){
+	    if(child1==null){
+		double[] st = new double[2];
+		for(int j=start; j<end; j++){
+		    int i = cells[j];
+		    double d2 = dist2(p, pts, i, st);
+		    if(search.cell<0 || d2 < search.dist2 || d2==search.dist2 && i<search.cell){
+			search.cell=i; search.s=st[0]; search.t=st[1]; search.dist2=d2;
+		    }
+		}
+		return;
+	    }
+	    double d1 = child1.boxDist2(p), d2 = child2.boxDist2(p);
+	    CellNode first = d1<=d2?child1:child2, second = d1<=d2?child2:child1;
+	    if(search.cell<0 || Math.min(d1,d2) <= search.dist2) first.search(p, pts, search);
+	    if(search.cell<0 || Math.max(d1,d2) <= search.dist2) second.search(p, pts, search);
+	}
+	
+	/** collect cells within the squared distance into <code>search.candidates</code> */
+	public void search(IVec p, IVec[][] pts, double limit2, CellSearch search){
+	    if(boxDist2(p) > limit2) return;
+	    if(child1==null){
+		double[] st = new double[2];
+		for(int j=start; j<end; j++){
+		    int i = cells[j];
+		    double d2 = dist2(p, pts, i, st);
+		    if(d2 <= limit2){ search.candidates.add(new double[]{ i, st[0], st[1], d2 }); }
+		}
+		return;
+	    }
+	    child1.search(p, pts, limit2, search);
+	    child2.search(p, pts, limit2, search);
+	}
+    }
+    
 }
@@ -52,7 +52,7 @@ public class ISurfaceGeo extends INurbsGeo implements ISurfaceI, IEntityParamete
     /*protected*/ public boolean[][] defaultWeights;
     
     /*protected*/ public IBSplineBasisFunction basisFunctionU, basisFunctionV;
-    /*protected*/ public IBSplineBasisFunction derivativeFunctionU, derivativeFunctionV;
+    /*protected*/ public volatile IBSplineBasisFunction derivativeFunctionU, derivativeFunctionV;
     
     
     // trim
@@ -62,7 +62,7 @@ public class ISurfaceGeo extends INurbsGeo implements ISurfaceI, IEntityParamete
     /*protected*/ public boolean outerTrimClosed=false;
     
     /** point cache for proximity search */
-    public ISurfaceCache uvSearchCache;
+    public volatile ISurfaceCache uvSearchCache;
     public ITrimCache trimCache;
     
     
@@ -807,9 +807,11 @@ public class ISurfaceGeo extends INurbsGeo implements ISurfaceI, IEntityParamete
 	return retval;
     }
     public void utan(double u, double v, IVec retval){
-        if(derivativeFunctionU==null){
-            derivativeFunctionU=new IBSplineBasisFunction(basisFunctionU);
-            derivativeFunctionU.differentiate();
+	IBSplineBasisFunction derivativeU = derivativeFunctionU;
+	if(derivativeU==null){
+	    derivativeU=new IBSplineBasisFunction(basisFunctionU);
+	    derivativeU.differentiate();
+	    derivativeFunctionU=derivativeU; // set after differentiation for other threads
         }
         int uindex = basisFunctionU.index(u);
         int vindex = basisFunctionV.index(v);
@@ -817,7 +819,7 @@ public class ISurfaceGeo extends INurbsGeo implements ISurfaceI, IEntityParamete
         double[] nu = basisFunctionU.eval(uindex, u);
         double[] nv = basisFunctionV.eval(vindex, v);
         
-        double[] dnu = derivativeFunctionU.eval(uindex, u);
+	double[] dnu = derivativeU.eval(uindex, u);
         
         IVec4 val1 = new IVec4();
         IVec4 val2 = new IVec4();
@@ -864,9 +866,11 @@ public class ISurfaceGeo extends INurbsGeo implements ISurfaceI, IEntityParamete
 	return retval;
     }
     public void vtan(double u, double v, IVec retval){
-        if(derivativeFunctionV==null){
-            derivativeFunctionV=new IBSplineBasisFunction(basisFunctionV);
-            derivativeFunctionV.differentiate();
+	IBSplineBasisFunction derivativeV = derivativeFunctionV;
+	if(derivativeV==null){
+	    derivativeV=new IBSplineBasisFunction(basisFunctionV);
+	    derivativeV.differentiate();
+	    derivativeFunctionV=derivativeV; // set after differentiation for other threads
         }
         int uindex = basisFunctionU.index(u);
         int vindex = basisFunctionV.index(v);
@@ -874,7 +878,7 @@ public class ISurfaceGeo extends INurbsGeo implements ISurfaceI, IEntityParamete
         double[] nu = basisFunctionU.eval(uindex, u);
         double[] nv = basisFunctionV.eval(vindex, v);
         
-        double[] dnv = derivativeFunctionV.eval(vindex, v);
+	double[] dnv = derivativeV.eval(vindex, v);
         
         IVec4 val1 = new IVec4();
         IVec4 val2 = new IVec4();
@@ -955,6 +959,109 @@ public class ISurfaceGeo extends INurbsGeo implements ISurfaceI, IEntityParamete
     }
     public void normal(double u, double v, IVec retval){ nml(u,v,retval); }
     
+    /**
+       Points on the grid of parameters u and v in one call.
+       Knot spans and basis values are computed once for each u and each v,
+       and control points are blended along u once for each row.
+       Large grids are split by rows into parallel threads by IConfig.parallelEvalMinNum.
+       @param retval x, y, z of each point at index (i*v.length+j)*3 for u[i] and v[j]. if null, a new array is created.
+       @return retval
+    */
+    public double[] ptGrid(double[] u, double[] v, double[] retval){ return evalGrid(u, v, retval, false); }
+    
+    /**
+       Normals on the grid of parameters u and v in one call in the same way with ptGrid().
+       The length of normal is same with nml(u,v); it's not unitized.
+       @param retval x, y, z of each normal at index (i*v.length+j)*3 for u[i] and v[j]. if null, a new array is created.
+       @return retval
+    */
+    public double[] nmlGrid(double[] u, double[] v, double[] retval){ return evalGrid(u, v, retval, true); }
+    
+    /** batch evaluation of points or normals on grid */
+    protected double[] evalGrid(final double[] u, final double[] v, double[] retval, final boolean normal){
+	if(retval==null){ retval = new double[u.length*v.length*3]; }
+	final double[] xyz = retval;
+	final int order = normal?1:0;
+	final int ucpnum = controlPoints.length;
+	final int vcpnum = controlPoints[0].length;
+	// control points multiplied by weights are extracted once
+	final double[] cpts = new double[ucpnum*vcpnum*4];
+	for(int i=0; i<ucpnum; i++){
+	    for(int j=0; j<vcpnum; j++){
+		IVec cpt = controlPoints[i][j].get();
+		double w=1.;
+		if(!defaultWeights[i][j]) w=((IVec4)cpt).w;
+		int c = (i*vcpnum+j)*4;
+		cpts[c] = cpt.x*w; cpts[c+1] = cpt.y*w; cpts[c+2] = cpt.z*w; cpts[c+3] = w;
+	    }
+	}
+	// spans and basis values in v
+	final int vd1 = vdegree+1;
+	final int[] vindex = new int[v.length];
+	final double[] vbasis = new double[v.length*vd1*(order+1)];
+	double[][] ders = new double[order+1][vd1];
+	for(int j=0, index=-1; j<v.length; j++){
+	    index = vindex[j] = basisFunctionV.index(v[j], index);
+	    if(normal){ basisFunctionV.derivatives(index, v[j], 1, ders); }
+	    else{ basisFunctionV.eval(index, v[j], ders[0]); }
+	    for(int k=0; k<=order; k++){
+		System.arraycopy(ders[k], 0, vbasis, (j*(order+1)+k)*vd1, vd1);
+	    }
+	}
+	
+	IParallel.run(0, u.length, Math.max(1, IConfig.parallelEvalMinNum/Math.max(1,v.length)), new IParallel.Task(){
+		public void run(int start, int end){
+		    double[][] uders = IBSplineBasisFunction.scratch().ensure(udegree, order).ders;
+		    double[] row = new double[vcpnum*4]; // control points blended along u
+		    double[] rowu = normal?new double[vcpnum*4]:null; // blended by u derivative
+		    IVec nml = normal?new IVec():null;
+		    int uindex=-1;
+		    for(int i=start; i<end; i++){
+			uindex = basisFunctionU.index(u[i], uindex);
+			if(normal){ basisFunctionU.derivatives(uindex, u[i], 1, uders); }
+			else{ basisFunctionU.eval(uindex, u[i], uders[0]); }
+			for(int c=0; c<vcpnum*4; c++){
+			    double sum=0, sumu=0;
+			    for(int a=0; a<=udegree; a++){
+				double cp = cpts[(uindex-udegree+a)*vcpnum*4+c];
+				sum += cp*uders[0][a];
+				if(normal){ sumu += cp*uders[1][a]; }
+			    }
+			    row[c] = sum;
+			    if(normal){ rowu[c] = sumu; }
+			}
+			for(int j=0; j<v.length; j++){
+			    int b0 = (j*(order+1))*vd1;
+			    double x=0, y=0, z=0, w=0, xu=0, yu=0, zu=0, wu=0, xv=0, yv=0, zv=0, wv=0;
+			    for(int b=0, c=(vindex[j]-vdegree)*4; b<=vdegree; b++, c+=4){
+				double n = vbasis[b0+b];
+				x += row[c]*n; y += row[c+1]*n; z += row[c+2]*n; w += row[c+3]*n;
+				if(normal){
+				    xu += rowu[c]*n; yu += rowu[c+1]*n; zu += rowu[c+2]*n; wu += rowu[c+3]*n;
+				    double dn = vbasis[b0+vd1+b];
+				    xv += row[c]*dn; yv += row[c+1]*dn; zv += row[c+2]*dn; wv += row[c+3]*dn;
+				}
+			    }
+			    x/=w; y/=w; z/=w;
+			    int k = (i*v.length+j)*3;
+			    if(!normal){ xyz[k] = x; xyz[k+1] = y; xyz[k+2] = z; continue; }
+			    xu = (xu-wu*x)/w; yu = (yu-wu*y)/w; zu = (zu-wu*z)/w;
+			    xv = (xv-wv*x)/w; yv = (yv-wv*y)/w; zv = (zv-wv*z)/w;
+			    if((xu!=0||yu!=0||zu!=0) && (xv!=0||yv!=0||zv!=0)){
+				xyz[k] = yu*zv-zu*yv; xyz[k+1] = zu*xv-xu*zv; xyz[k+2] = xu*yv-yu*xv;
+			    }
+			    else{ // degenerated tangent
+				nml.set(0,0,0);
+				nml(u[i], v[j], nml);
+				xyz[k] = nml.x; xyz[k+1] = nml.y; xyz[k+2] = nml.z;
+			    }
+			}
+		    }
+		}
+	    });
+	return xyz;
+    }
+    
     /** getting control point at i and j */
     public IVecI cp(int i, int j){ return controlPoints[i][j]/*.get()*/; }
     /** getting control point at i and j */
@@ -1196,14 +1303,16 @@ public class ISurfaceGeo extends INurbsGeo implements ISurfaceI, IEntityParamete
     
     
     /** approximate invert projection from 3D location to interanl UV parameter (closest point on surface) */
-    synchronized public IVec2 uv(IVecI pt){
-	if(uvSearchCache==null){ uvSearchCache = new ISurfaceCache(this); }
-	return uvSearchCache.uv(pt.get());
+    public IVec2 uv(IVecI pt){
+	ISurfaceCache cache = uvSearchCache;
+	if(cache==null){ cache = new ISurfaceCache(this); uvSearchCache = cache; }
+	return cache.uv(pt.get());
     }
 /** approximate invert projection from 2D location to interanl UV parameter (closest point on surface) */
-    synchronized public IVec2 uv(IVec2I pt){
-	if(uvSearchCache==null){ uvSearchCache = new ISurfaceCache(this); }
-	return uvSearchCache.uv(pt.get());
+    public IVec2 uv(IVec2I pt){
+	ISurfaceCache cache = uvSearchCache;
+	if(cache==null){ cache = new ISurfaceCache(this); uvSearchCache = cache; }
+	return cache.uv(pt.get());
     }
     
     
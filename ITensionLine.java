@@ -148,6 +148,9 @@ public class ITensionLine extends ICurve implements ITensionI, IDynamics /*!!! a
     /** IDynamicsBase doesn't implement local dynamics feature */
     public ArrayList<IDynamics> localDynamics(){ return null; }
     
+    /** not executed in parallel threads */
+    public boolean parallel(){ return false; }
+    
     public ITensionLine target(IObject targetObj){
         if(targets==null) targets = new ArrayList<IObject>();
         targets.add(targetObj);
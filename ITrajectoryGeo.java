@@ -23,10 +23,13 @@
 package igeo;
 
 import java.util.ArrayList;
+import java.util.Arrays;
 
 /**
    IDyanmics class to have trajectory curve object.
    In every update, specified vector position is added to the trajectory curve.
+   Points are kept in an array growing by doubling and the curve is rebuilt out of them
+   at the end of each update cycle when the curve is displayed, or when it's accessed by curve().
    
    @author Satoru Sugihara
 */
@@ -35,6 +38,14 @@ public class ITrajectoryGeo extends IDynamicsBase implements ITrajectoryI{
     public ICurve curve;
     public IVecI pos;
     
+    /** points of the trajectory. only first pointNum points are used and the array grows by doubling. */
+    public IVecI[] points;
+    public int pointNum;
+    /** degree of the curve out of the points; it's raised to degree when enough points are added. */
+    public int pointDegree=1;
+    /** true when points are changed after the curve is rebuilt */
+    public boolean pointsChanged;
+    
     public ITrajectoryGeo(IVecI pos){ this.pos = pos; degree=1; initTrajectory(); }
     public ITrajectoryGeo(IVecI pos, int curveDegree){ this.pos = pos; degree=curveDegree; initTrajectory(); }
     
@@ -55,24 +66,88 @@ public class ITrajectoryGeo extends IDynamicsBase implements ITrajectoryI{
     public void show(){ if(curve!=null) curve.show(); }
     public void del(){ if(curve!=null){ curve.del(); } if(parent!=null){ parent.deleteDynamics(this); } }
     
-    public ICurve curve(){ return curve; }
+    public ICurve curve(){ updateCurve(); return curve; }
     public ICurve trajectory(){ return curve(); }
     
     /** add a point at the end of trajectory curve */
     public ITrajectoryGeo addCP(IVecI pt){
+	if(IConfig.checkDuplicatedControlPoint){ checkDuplicatedPoint(pt); }
+	addPoint(pt);
+	updateCurve();
+	return this;
+    }
+    
+    /** add a point at the end of points in the same way with ICurveGeo.addCP(IVecI,int) without rebuilding the curve */
+    public void addPoint(IVecI pt){
+	if(points==null){ // same with ICurve(IVecI)
+	    points = new IVecI[16];
+	    points[0] = pt;
+	    points[1] = pt.dup();
+	    pointNum = 2;
+	    pointsChanged = true;
+	    return;
+	}
+	if(!pt.isValid()){
+	    IOut.err("input pt is invalid. not added");
+	    return;
+	}
+	boolean duplicatedStart = pointNum==2 && points[0].eq(points[1]);
+	if(pointDegree!=degree && !duplicatedStart && pointNum+1 > degree){ pointDegree = degree; }
+	
+	pointsChanged = true;
+	// in case of first addition after the curve is instantiated with one point.
+	if(pointNum==2 &&
+	   points[0].x()==points[1].x() &&
+	   points[0].y()==points[1].y() &&
+	   points[0].z()==points[1].z()){ // replace the second point with new one
+	    points[1] = pt;
+	    return;
+	}
+	if(duplicatedStart){ pointNum=1; }
+	if(pointNum==points.length){ points = Arrays.copyOf(points, pointNum*2); }
+	points[pointNum++] = pt;
+    }
+    
+    /** duplicate points identical to the input pt */
+    public void checkDuplicatedPoint(IVecI pt){
+	for(int i=0; i<pointNum; i++){ if(points[i]==pt){ points[i] = pt.dup(); pointsChanged=true; } }
+    }
+    
+    /** rebuild the curve out of the points if they are changed */
+    public void updateCurve(){
+	if(!pointsChanged) return;
+	pointsChanged = false;
+	IVecI[] cpts = Arrays.copyOf(points, pointNum);
 	if(curve==null){
-	    curve = new ICurve(pt);
+	    curve = new ICurve(cpts, pointDegree);
 	    if(parent!=null){
 		if(parent.attr()!=null){ curve.attr(parent.attr()); }
 		else if(parent.clr()!=null){ curve.clr(parent.clr()); }
 	    }
 	}
-	else{ curve.addCP(pt, degree); }
-	return this;
+	else{ curve.setCP(cpts, pointDegree); }
     }
     
+    /** rebuild curves of all trajectories in the dynamic server if their points are changed */
+    public static void updateCurves(IDynamicServer server){
+	for(int i=0; i<server.num(); i++){
+	    IDynamics d = server.get(i);
+	    if(d instanceof ITrajectoryGeo){ ((ITrajectoryGeo)d).updateCurve(); }
+	    ArrayList<IDynamics> localDynamics = d.localDynamics();
+	    if(localDynamics!=null){
+		for(int j=0; j<localDynamics.size(); j++){
+		    if(localDynamics.get(j) instanceof ITrajectoryGeo){
+			((ITrajectoryGeo)localDynamics.get(j)).updateCurve();
+		    }
+		}
+	    }
+	}
+    }
+    
+    /** points are added without rebuilding the curve. the curve is rebuilt in postupdate() or curve(). */
     public void update(){
-	addCP(pos.get().dup());
+	addPoint(pos.get().dup());
+	if(curve==null){ updateCurve(); }
 	/*
 	if(curve==null){
 	    curve = new ICurve(pos.get().dup());
@@ -85,6 +160,11 @@ public class ITrajectoryGeo extends IDynamicsBase implements ITrajectoryI{
 	*/
     }
     
+    /** rebuilding the curve once in an update cycle if it's displayed. the target is not updated here. */
+    public void postupdate(){
+	if(curve!=null && curve.graphicsNum()>0){ updateCurve(); }
+    }
+    
     
     // Curve Object methods
     
@@ -30,34 +30,95 @@ package igeo;
 public class IVecR extends IParameterObject implements IVecI, IReferenceParameter{
     protected IVecOp op;
     
-    public IVecR(double x, double y, double z){ op = new IVec(x,y,z); }
+    /** value of op cached while IReferenceCache.version is not changed */
+    protected volatile Cache cache;
+    
+    public IVecR(double x, double y, double z){ op = new Constant(x,y,z); }
     public IVecR(IVecOp v){ op=v; }
     public IVecR(IDoubleI x, IDoubleI y, IDoubleI z){ op = new FromXYZ(x,y,z); }
     
-    public IVecR(IServerI s, double x, double y, double z){ super(s); op = new IVec(x,y,z); }
+    public IVecR(IServerI s, double x, double y, double z){ super(s); op = new Constant(x,y,z); }
     public IVecR(IServerI s, IVecOp v){ super(s); op=v; }
     public IVecR(IServerI s, IDoubleI x, IDoubleI y, IDoubleI z){ super(s); op = new FromXYZ(x,y,z); }
     
+    /** replacing operator. operators with only constant inputs are folded into a constant. */
+    protected IVecR op(IVecOp o){
+	op = fold(o);
+	IReferenceCache.update();
+	return this;
+    }
+    
+    /**
+       evaluating op. the returned vector should not be modified.
+       the value is cached when op depends only on constants and reference parameters
+       and x, y and z are evaluated together until any reference parameter changes.
+    */
+    protected IVec eval(){ return eval(false); }
+    
+    /** @param copy if true, the returned vector is not shared with the cache or the input */
+    protected IVec eval(boolean copy){
+	IVecOp o = op;
+	long version = IReferenceCache.version();
+	Cache c = cache;
+	boolean cacheable;
+	if(c!=null && c.op==o && c.version==version){
+	    if(c.value!=null) return copy?c.value.dup():c.value;
+	    cacheable = c.cacheable;
+	}
+	else cacheable = IReferenceCache.isCacheable(o);
+	IVec v = o.get();
+	if(cacheable){
+	    cache = new Cache(o, version, true, v);
+	    return copy?v.dup():v;
+	}
+	if(c==null || c.op!=o || c.version!=version) cache = new Cache(o, version, false, null);
+	if(copy && (v==o || !(o instanceof IParameterObject))) return v.dup(); // not to modify input
+	return v;
+    }
+    
+    /** check if op can be cached. the result is kept until any reference parameter changes. */
+    protected boolean cacheable(){
+	IVecOp o = op;
+	long version = IReferenceCache.version();
+	Cache c = cache;
+	if(c!=null && c.op==o && c.version==version) return c.cacheable;
+	boolean cacheable = IReferenceCache.isCacheable(o);
+	cache = new Cache(o, version, cacheable, null);
+	return cacheable;
+    }
+    
+    /** operator, version, cacheability and value published together */
+    static class Cache{
+	final IVecOp op;
+	final long version;
+	final boolean cacheable;
+	/** null until evaluated or when op can't be cached */
+	final IVec value;
+	Cache(IVecOp op, long version, boolean cacheable, IVec value){
+	    this.op=op; this.version=version; this.cacheable=cacheable; this.value=value;
+	}
+    }
+    
     /** getting x component */
-    public double x(){ return op.get().x; }
+    public double x(){ return eval().x; }
     /** getting y component */
-    public double y(){ return op.get().y; }
+    public double y(){ return eval().y; }
     /** getting z component */
-    public double z(){ return op.get().z; }
+    public double z(){ return eval().z; }
     
     /** setting x component */
-    public IVecR x(double vx){ op = new FromX(op,new IDouble(vx)); return this; }
+    public IVecR x(double vx){ op(new FromX(op,new IDoubleR.Constant(vx))); return this; }
     /** setting y component */
-    public IVecR y(double vy){ op = new FromY(op,new IDouble(vy)); return this; }
+    public IVecR y(double vy){ op(new FromY(op,new IDoubleR.Constant(vy))); return this; }
     /** setting z component */
-    public IVecR z(double vz){ op = new FromZ(op,new IDouble(vz)); return this; }
+    public IVecR z(double vz){ op(new FromZ(op,new IDoubleR.Constant(vz))); return this; }
     
     /** setting x component */
-    public IVecR x(IDoubleI vx){ op = new FromX(op,vx); return this; }
+    public IVecR x(IDoubleI vx){ op(new FromX(op,vx)); return this; }
     /** setting y component */
-    public IVecR y(IDoubleI vy){ op = new FromY(op,vy); return this; }
+    public IVecR y(IDoubleI vy){ op(new FromY(op,vy)); return this; }
     /** setting z component */
-    public IVecR z(IDoubleI vz){ op = new FromZ(op,vz); return this; }
+    public IVecR z(IDoubleI vz){ op(new FromZ(op,vz)); return this; }
     
     /** getting x component */
     public double x(ISwitchE e){ return x(); }
@@ -74,7 +135,8 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     public IDoubleR z(ISwitchR r){ return new IDoubleR(new Z(op)); }
     
     
-    public IVec get(){ return op.get(); }
+    /** evaluating op into a new vector */
+    public IVec get(){ return eval(true); }
     
     public IVecR dup(){ return new IVecR(op); }
     
@@ -102,32 +164,32 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     
     
     
-    public IVecR set(IVecI u){ op=u; return this; }
-    public IVecR set(double x, double y, double z){ op = new IVec(x,y,z); return this; }
+    public IVecR set(IVecI u){ op(u); return this; }
+    public IVecR set(double x, double y, double z){ op(new Constant(x,y,z)); return this; }
     public IVecR set(IDoubleI x, IDoubleI y, IDoubleI z){
-	op = new FromXYZ(x,y,z); return this;
+	op(new FromXYZ(x,y,z)); return this;
     }
     
     public IVecR add(double x, double y, double z){
-	op=new Add(op,new IVec(x,y,z)); return this;
+	op(new Add(op,new Constant(x,y,z))); return this;
     }
     public IVecR add(IDoubleI x, IDoubleI y, IDoubleI z){
-	op=new Add(op,new IVecR(x,y,z)); return this;
+	op(new Add(op,new IVecR(x,y,z))); return this;
     }
-    public IVecR add(IVecI u){ op=new Add(op,u); return this; }
+    public IVecR add(IVecI u){ op(new Add(op,u)); return this; }
     
     public IVecR sub(double x, double y, double z){
-	op=new Sub(op,new IVec(x,y,z)); return this;
+	op(new Sub(op,new Constant(x,y,z))); return this;
     }
     public IVecR sub(IDoubleI x, IDoubleI y, IDoubleI z){
-	op=new Sub(op,new IVecR(x,y,z)); return this;
-    }
-    public IVecR sub(IVecI u){ op=new Sub(op,u); return this; }
-    public IVecR mul(IDoubleI u){ op=new Mul(op,u); return this; }
-    public IVecR mul(double u){ op=new Mul(op,new IDouble(u)); return this; }
-    public IVecR div(IDoubleI u){ op=new Div(op,u); return this; }
-    public IVecR div(double u){ op=new Div(op,new IDouble(u)); return this; }
-    public IVecR neg(){ op=new Neg(op); return this; }
+	op(new Sub(op,new IVecR(x,y,z))); return this;
+    }
+    public IVecR sub(IVecI u){ op(new Sub(op,u)); return this; }
+    public IVecR mul(IDoubleI u){ op(new Mul(op,u)); return this; }
+    public IVecR mul(double u){ op(new Mul(op,new IDoubleR.Constant(u))); return this; }
+    public IVecR div(IDoubleI u){ op(new Div(op,u)); return this; }
+    public IVecR div(double u){ op(new Div(op,new IDoubleR.Constant(u))); return this; }
+    public IVecR neg(){ op(new Neg(op)); return this; }
     /** alias of neg() */
     public IVecR rev(){ return neg(); }
     /** alias of neg() */
@@ -150,11 +212,11 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     public IDoubleR dot(ISwitchR r, IVecI u){ return new IDoubleR(new Dot(op,u)); }
     
     
-    //public IVecR cross(IVecI u){ op=new Cross(op,u); return this; }
+    //public IVecR cross(IVecI u){ op(new Cross(op,u)); return this; }
     /** cross is creating a new instance (2011/08/03) */
     public IVecR cross(IVecI u){ return new IVecR(new Cross(op,u)); }
     public IVecR cross(double ux, double uy, double uz){
-	return new IVecR(new Cross(op,new IVec(ux,uy,uz)));
+	return new IVecR(new Cross(op,new Constant(ux,uy,uz)));
     }
     
     public double len(){ return get().len(); }
@@ -165,10 +227,10 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     public double len2(ISwitchE e){ return len2(); }
     public IDoubleR len2(ISwitchR r){ return new IDoubleR(new Len2(op)); }
     
-    public IVecR len(IDoubleI l){ op=new SetLen(op,l); return this; }
-    public IVecR len(double l){ op=new SetLen(op,new IDouble(l)); return this; }
+    public IVecR len(IDoubleI l){ op(new SetLen(op,l)); return this; }
+    public IVecR len(double l){ op(new SetLen(op,new IDoubleR.Constant(l))); return this; }
     
-    public IVecR unit(){ op=new Unit(op); return this; }
+    public IVecR unit(){ op(new Unit(op)); return this; }
     
     public double dist(IVecI v){ return get().dist(v); }
     public double dist(double vx, double vy, double vz){ return get().dist(vx,vy,vz); }
@@ -239,27 +301,27 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
 	return new IDoubleR(new Angle(op,u,axis));
     }
     
-    public IVecR rot(IDoubleI angle){ op=new Rot2(op,angle); return this; }
-    public IVecR rot(double angle){ return rot(new IDouble(angle)); }
+    public IVecR rot(IDoubleI angle){ op(new Rot2(op,angle)); return this; }
+    public IVecR rot(double angle){ return rot(new IDoubleR.Constant(angle)); }
     
     public IVecR rot(IVecI axis, IDoubleI angle){
-	op=new Rot(op,axis,angle); return this; 
+	op(new Rot(op,axis,angle)); return this; 
     }
-    public IVecR rot(IVecI axis, double angle){ return rot(axis,new IDouble(angle)); }
+    public IVecR rot(IVecI axis, double angle){ return rot(axis,new IDoubleR.Constant(angle)); }
     public IVecR rot(double axisX, double axisY, double axisZ, double angle){
-	return rot(new IVec(axisX,axisY,axisZ),new IDouble(angle));
+	return rot(new Constant(axisX,axisY,axisZ),new IDoubleR.Constant(angle));
     }
     
     public IVecR rot(IVecI center, IVecI axis, IDoubleI angle){
 	if(center==this){ return this; } return sub(center).rot(axis,angle).add(center);
     }
     public IVecR rot(IVecI center, IVecI axis, double angle){
-	return rot(center,axis,new IDouble(angle));
+	return rot(center,axis,new IDoubleR.Constant(angle));
     }
     public IVecR rot(double centerX, double centerY, double centerZ,
 		     double axisX, double axisY, double axisZ, double angle){
-	return rot(new IVec(centerX,centerY,centerZ),new IVec(axisX,axisY,axisZ),
-		   new IDouble(angle));
+	return rot(new Constant(centerX,centerY,centerZ),new Constant(axisX,axisY,axisZ),
+		   new IDoubleR.Constant(angle));
     }
     
     /** rotate to destination direction vector */
@@ -281,10 +343,10 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
 	if(center==this){ return this; } return sub(center).rot(angle).add(center);
     }
     /** rotation on xy-plane */
-    public IVecR rot2(IVecI center, double angle){ return rot2(center,new IDouble(angle)); }
+    public IVecR rot2(IVecI center, double angle){ return rot2(center,new IDoubleR.Constant(angle)); }
     /** rotation on xy-plane */
     public IVecR rot2(double centerX, double centerY, double angle){
-	return rot2(new IVec(centerX,centerY),new IDouble(angle));
+	return rot2(new Constant(centerX,centerY),new IDoubleR.Constant(angle));
     }
     /** rotation on xy-plane to destination direction vector */
     public IVecR rot2(IVecI destDir){
@@ -309,24 +371,24 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
 	return sub(center).mul(f).add(center);
     }
     public IVecR scale(double centerX, double centerY, double centerZ, double f){
-	return scale(new IVec(centerX,centerY,centerZ),f);
+	return scale(new Constant(centerX,centerY,centerZ),f);
     }
     
     /** scale only in 1 direction */
-    public IVecR scale1d(IVecI axis, double f){ return scale1d(axis,new IDouble(f)); }
+    public IVecR scale1d(IVecI axis, double f){ return scale1d(axis,new IDoubleR.Constant(f)); }
     public IVecR scale1d(double axisX, double axisY, double axisZ, double f){
-	return scale1d(new IVec(axisX,axisY,axisZ),new IDouble(f));
+	return scale1d(new Constant(axisX,axisY,axisZ),new IDoubleR.Constant(f));
     }
     public IVecR scale1d(IVecI axis, IDoubleI f){
-	op = new Scale1d(op, axis, f); return this;
+	op(new Scale1d(op, axis, f)); return this;
     }
     public IVecR scale1d(IVecI center, IVecI axis, double f){
-	return scale1d(center,axis,new IDouble(f));
+	return scale1d(center,axis,new IDoubleR.Constant(f));
     }
     public IVecR scale1d(double centerX, double centerY, double centerZ,
 			 double axisX, double axisY, double axisZ, double f){
-	return scale1d(new IVec(centerX, centerY, centerZ),
-		       new IVec(axisX,axisY,axisZ),new IDouble(f));
+	return scale1d(new Constant(centerX, centerY, centerZ),
+		       new Constant(axisX,axisY,axisZ),new IDoubleR.Constant(f));
     }
     public IVecR scale1d(IVecI center, IVecI axis, IDoubleI f){
 	if(center==this) return this;
@@ -337,9 +399,9 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     /**
        reflect (mirror) 3 dimensionally to the other side of the plane
     */
-    public IVecR ref(IVecI planeDir){ op=new Ref(op,planeDir); return this; }
+    public IVecR ref(IVecI planeDir){ op(new Ref(op,planeDir)); return this; }
     public IVecR ref(double planeX, double planeY, double planeZ){
-	op=new Ref(op,new IVec(planeX,planeY,planeZ)); return this;
+	op(new Ref(op,new Constant(planeX,planeY,planeZ))); return this;
     }
     public IVecR ref(IVecI center, IVecI planeDir){
 	if(center==this) return this;
@@ -347,7 +409,7 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     }
     public IVecR ref(double centerX, double centerY, double centerZ,
 		     double planeX, double planeY, double planeZ){
-	return ref(new IVec(centerX,centerY,centerZ),new IVec(planeX,planeY,planeZ));
+	return ref(new Constant(centerX,centerY,centerZ),new Constant(planeX,planeY,planeZ));
     }
     public IVecR mirror(IVecI planeDir){ return ref(planeDir); }
     public IVecR mirror(double planeX, double planeY, double planeZ){
@@ -362,12 +424,12 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     
     /** shear operation */
     public IVecR shear(double sxy, double syx, double syz, double szy, double szx, double sxz){
-	return shear(new IDouble(sxy),new IDouble(syx),new IDouble(syz),
-		     new IDouble(szy),new IDouble(szx),new IDouble(sxz));
+	return shear(new IDoubleR.Constant(sxy),new IDoubleR.Constant(syx),new IDoubleR.Constant(syz),
+		     new IDoubleR.Constant(szy),new IDoubleR.Constant(szx),new IDoubleR.Constant(sxz));
     }
     public IVecR shear(IDoubleI sxy, IDoubleI syx, IDoubleI syz,
 		       IDoubleI szy, IDoubleI szx, IDoubleI sxz){
-	op = new Shear(op,sxy,syx,syz,szy,szx,sxz); return this;
+	op(new Shear(op,sxy,syx,syz,szy,szx,sxz)); return this;
     }
     public IVecR shear(IVecI center, double sxy, double syx, double syz, double szy, double szx, double sxz){
 	if(center==this) return this;
@@ -416,13 +478,13 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     /**
        transform with matrix
     */
-    public IVecR transform(IMatrix3I mat){ op = new Transform3(op,mat); return this; }
-    public IVecR transform(IMatrix4I mat){ op = new Transform4(op,mat); return this; }
+    public IVecR transform(IMatrix3I mat){ op(new Transform3(op,mat)); return this; }
+    public IVecR transform(IMatrix4I mat){ op(new Transform4(op,mat)); return this; }
     public IVecR transform(IVecI xvec, IVecI yvec, IVecI zvec){
-	op = new TransformVec3(op,xvec,yvec,zvec); return this;
+	op(new TransformVec3(op,xvec,yvec,zvec)); return this;
     }
     public IVecR transform(IVecI xvec, IVecI yvec, IVecI zvec, IVecI translate){
-	op = new TransformVec4(op,xvec,yvec,zvec,translate); return this;
+	op(new TransformVec4(op,xvec,yvec,zvec,translate)); return this;
     }
     
     
@@ -445,13 +507,13 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
      * methods creating new instance
      ********************************************************************************/
     public IVecR dif(IVecI v){ return dup().sub(v); }
-    public IVecR dif(double vx, double vy, double vz){ return dup().sub(new IVec(vx,vy,vz)); }
+    public IVecR dif(double vx, double vy, double vz){ return dup().sub(new Constant(vx,vy,vz)); }
     public IVecR diff(IVecI v){ return dif(v); }
     public IVecR diff(double vx, double vy, double vz){ return dif(vx,vy,vz); }
     public IVecR mid(IVecI v){ return dup().add(v).div(2); }
-    public IVecR mid(double vx, double vy, double vz){ return dup().add(new IVec(vx,vy,vz)).div(2); }
+    public IVecR mid(double vx, double vy, double vz){ return dup().add(new Constant(vx,vy,vz)).div(2); }
     public IVecR sum(IVecI v){ return dup().add(v); }
-    public IVecR sum(double vx, double vy, double vz){ return dup().add(new IVec(vx,vy,vz)); }
+    public IVecR sum(double vx, double vy, double vz){ return dup().add(new Constant(vx,vy,vz)); }
     public IVecR sum(IVecI... v){
 	IVecR ret = this.dup();
 	for(IVecI vi: v) ret.add(vi);
@@ -474,9 +536,9 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     }
     
     public IVecR sum(IVecI v2, double w1, double w2){
-	return sum(v2,new IDouble(w1),new IDouble(w2));
+	return sum(v2,new IDoubleR.Constant(w1),new IDoubleR.Constant(w2));
     }
-    public IVecR sum(IVecI v2, double w2){ return sum(v2,new IDouble(w2)); }
+    public IVecR sum(IVecI v2, double w2){ return sum(v2,new IDoubleR.Constant(w2)); }
     
     
     /**
@@ -508,36 +570,107 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     // subclasses
     // /////////////////////////////////
     
+    /**
+       evaluating operator into a vector which can be modified.
+       operators nested in this class return a new instance but other inputs can return themselves.
+    */
+    static IVec value(IVecOp v){
+	if(v instanceof IParameterObject && !(v instanceof IVec)) return v.get();
+	return v.get().dup();
+    }
+    
+    static boolean isConstant(IParameter p){ return IReferenceCache.isConstant(p); }
+    
+    /**
+       folding operator. an operator with only constant inputs is replaced by a constant,
+       nested component setters are merged and consecutive constant addition, subtraction and multiplication are combined.
+    */
+    static IVecOp fold(IVecOp o){
+	if(o instanceof FromX || o instanceof FromY || o instanceof FromZ){
+	    // later setters overwrite the component of earlier ones
+	    IDoubleOp x=null, y=null, z=null;
+	    IVecOp v = o;
+	    while(v instanceof FromX || v instanceof FromY || v instanceof FromZ){
+		if(v instanceof FromX){ if(x==null) x=((FromX)v).x; v=((FromX)v).v; }
+		else if(v instanceof FromY){ if(y==null) y=((FromY)v).y; v=((FromY)v).v; }
+		else{ if(z==null) z=((FromZ)v).z; v=((FromZ)v).v; }
+	    }
+	    if(x!=null && y!=null && z!=null) o = new FromXYZ(x,y,z);
+	    else{
+		if(x!=null) v = new FromX(v,x);
+		if(y!=null) v = new FromY(v,y);
+		if(z!=null) v = new FromZ(v,z);
+		o = v;
+	    }
+	}
+	else if(o instanceof Add){
+	    Add a = (Add)o;
+	    if(a.v1 instanceof Add && isConstant(((Add)a.v1).v2) && isConstant(a.v2)){
+		Add a1 = (Add)a.v1;
+		o = new Add(a1.v1, new Constant(value(a1.v2).add(a.v2.get())));
+	    }
+	}
+	else if(o instanceof Sub){
+	    Sub s = (Sub)o;
+	    if(s.v1 instanceof Sub && isConstant(((Sub)s.v1).v2) && isConstant(s.v2)){
+		Sub s1 = (Sub)s.v1;
+		o = new Sub(s1.v1, new Constant(value(s1.v2).add(s.v2.get())));
+	    }
+	}
+	else if(o instanceof Mul){
+	    Mul m = (Mul)o;
+	    if(m.v instanceof Mul && isConstant(((Mul)m.v).d) && isConstant(m.d)){
+		Mul m1 = (Mul)m.v;
+		o = new Mul(m1.v, new IDoubleR.Constant(m1.d.x()*m.d.x()));
+	    }
+	}
+	
+	if(!isConstant(o) && IReferenceCache.hasConstantInputs(o)){
+	    return new Constant(o.get());
+	}
+	return o;
+    }
+    
+    
+    /**
+       constant vector created by IVecR. it's not modified by IVecR and its value can be cached.
+    */
+    static public class Constant extends IVec{
+	public Constant(double x, double y, double z){ super(x,y,z); }
+	public Constant(double x, double y){ super(x,y); }
+	public Constant(IVec v){ super(v); }
+    }
+    
     static public class Add extends IParameterObject implements IVecOp{
 	public IVecOp v1, v2;
 	public Add(IVecOp v1, IVecOp v2){ this.v1=v1; this.v2=v2; }
-	public IVec get(){ return v1.get().add(v2.get()); }
+	public IVec get(){ return value(v1).add(v2.get()); }
     }
     
     static public class Sub extends IParameterObject implements IVecOp{
 	public IVecOp v1, v2;
 	public Sub(IVecOp v1, IVecOp v2){ this.v1=v1; this.v2=v2; }
-	public IVec get(){ return v1.get().sub(v2.get()); }
+	public IVec get(){ return value(v1).sub(v2.get()); }
     }
     
     static public class Mul extends IParameterObject implements IVecOp{
 	public IVecOp v;
 	public IDoubleOp d;
 	public Mul(IVecOp v, IDoubleOp d){ this.v=v; this.d=d; }
-	public IVec get(){ return v.get().mul(d.x()); }
+	public IVec get(){ return value(v).mul(d.x()); }
     }
     
     static public class Div extends IParameterObject implements IVecOp{
 	public IVecOp v;
 	public IDoubleOp d;
 	public Div(IVecOp v, IDoubleOp d){ this.v=v; this.d=d; }
-	public IVec get(){ return v.get().div(d.x()); }
+	public IVec get(){ return value(v).div(d.x()); }
     }
     
     static public class Neg extends IParameterObject implements IVecOp{
 	public IVecOp v;
 	public Neg(IVecOp v){ this.v=v; }
-	public IVec get(){ return v.get().neg(); }
+	public IVec get(){ return value(v).neg(); }
     }
     
     static public class FromXYZ extends IParameterObject implements IVecOp{
@@ -550,21 +683,21 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
 	public IDoubleOp x;
 	public IVecOp v;
 	public FromX(IVecOp v, IDoubleOp x){ this.v=v; this.x=x; }
-	public IVec get(){ return new IVec(x.x(),v.get().y(),v.get().z()); }
+	public IVec get(){ IVec u=v.get(); return new IVec(x.x(),u.y,u.z); }
     }
     
     static public class FromY extends IParameterObject implements IVecOp{
 	public IDoubleOp y;
 	public IVecOp v;
 	public FromY(IVecOp v, IDoubleOp y){ this.v=v; this.y=y; }
-	public IVec get(){ return new IVec(v.get().x(),y.x(),v.get().z()); }
+	public IVec get(){ IVec u=v.get(); return new IVec(u.x,y.x(),u.z); }
     }
     
     static public class FromZ extends IParameterObject implements IVecOp{
 	public IDoubleOp z;
 	public IVecOp v;
 	public FromZ(IVecOp v, IDoubleOp z){ this.v=v; this.z=z; }
-	public IVec get(){ return new IVec(v.get().x(),v.get().y(),z.x()); }
+	public IVec get(){ IVec u=v.get(); return new IVec(u.x,u.y,z.x()); }
     }
     
     static public class ToVec2 extends IParameterObject implements IVec2Op{
@@ -631,14 +764,14 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
 	public IVecOp v,axis;
 	public IDoubleOp angle;
 	public Rot(IVecOp u, IVecOp ax, IDoubleOp a){ v=u; axis=ax; angle=a; }
-	public IVec get(){ return v.get().rot(axis.get(),angle.x()); }
+	public IVec get(){ return value(v).rot(axis.get(),angle.x()); }
     }
     
     static public class Rot2 extends IParameterObject implements IVecOp{
 	public IVecOp v;
 	public IDoubleOp angle;
 	public Rot2(IVecOp u, IDoubleOp a){ v=u; angle=a; }
-	public IVec get(){ return v.get().rot(angle.x()); }
+	public IVec get(){ return value(v).rot(angle.x()); }
     }
     
     static public class Len extends IParameterObject implements IDoubleOp{
@@ -679,14 +812,14 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
     static public class Unit extends IParameterObject implements IVecOp{
 	public IVecOp v;
 	public Unit(IVecOp v){ this.v=v; }
-	public IVec get(){ return v.get().unit(); }
+	public IVec get(){ return value(v).unit(); }
     }
     
     static public class SetLen extends IParameterObject implements IVecOp{
 	public IVecOp v;
 	public IDoubleOp l;
 	public SetLen(IVecOp v, IDoubleOp l){ this.v=v; this.l=l; }
-	public IVec get(){ return v.get().len(l.x()); }
+	public IVec get(){ return value(v).len(l.x()); }
     }
     
     
@@ -768,13 +901,13 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
 	public IVecOp v, axis;
 	public IDoubleI factor;
 	public Scale1d(IVecOp v, IVecOp axis, IDoubleI factor){ this.v=v; this.axis=axis; this.factor=factor; }
-	public IVec get(){ return v.get().scale1d(axis.get(),factor.get()); }
+	public IVec get(){ return value(v).scale1d(axis.get(),factor.get()); }
     }
     
     static public class Ref extends IParameterObject implements IVecOp{
 	public IVecOp v, plane;
 	public Ref(IVecOp v, IVecOp plane){ this.v=v; this.plane=plane; }
-	public IVec get(){ return v.get().ref(plane.get()); }
+	public IVec get(){ return value(v).ref(plane.get()); }
     }
     
     static public class Shear extends IParameterObject implements IVecOp{
@@ -785,7 +918,7 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
 	    this.v=v; this.sxy = sxy; this.syx = syx; this.syz = syz; this.szy = szy;
 	    this.szx = szx; this.sxz = sxz;
 	}
-	public IVec get(){ return v.get().shear(sxy.get(), syx.get(),
+	public IVec get(){ return value(v).shear(sxy.get(), syx.get(),
 						syz.get(), szy.get(),
 						szx.get(), sxz.get());
 	}
@@ -795,14 +928,14 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
 	public IVecOp v;
 	public IMatrix3Op mat;
 	public Transform3(IVecOp v, IMatrix3Op m){ this.v=v; mat=m; }
-	public IVec get(){ return v.get().transform(mat.get()); }
+	public IVec get(){ return value(v).transform(mat.get()); }
     }
     
     static public class Transform4 extends IParameterObject implements IVecOp{
 	public IVecOp v;
 	public IMatrix4Op mat;
 	public Transform4(IVecOp v, IMatrix4Op m){ this.v=v; mat=m; }
-	public IVec get(){ return v.get().transform(mat.get()); }
+	public IVec get(){ return value(v).transform(mat.get()); }
     }
     
     static public class TransformVec3 extends IParameterObject implements IVecOp{
@@ -810,7 +943,7 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
 	public TransformVec3(IVecOp v, IVecOp x, IVecOp y, IVecOp z){
 	    this.v=v; this.x=x; this.y=y; this.z=z;
 	}
-	public IVec get(){ return v.get().transform(x.get(),y.get(),z.get()); }
+	public IVec get(){ return value(v).transform(x.get(),y.get(),z.get()); }
     }
     
     static public class TransformVec4 extends IParameterObject implements IVecOp{
@@ -818,7 +951,7 @@ public class IVecR extends IParameterObject implements IVecI, IReferenceParamete
 	public TransformVec4(IVecOp v, IVecOp x, IVecOp y, IVecOp z, IVecOp trans){
 	    this.v=v; this.x=x; this.y=y; this.z=z; this.trans=trans;
 	}
-	public IVec get(){ return v.get().transform(x.get(),y.get(),z.get(),trans.get()); }
+	public IVec get(){ return value(v).transform(x.get(),y.get(),z.get(),trans.get()); }
     }
     
     
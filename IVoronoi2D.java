@@ -53,11 +53,15 @@ public class IVoronoi2D {
 	
 	IVec2[][] cellPts = new IVec2[pts.length][];
 	
+	IdentityHashMap<IVec2,ArrayList<Integer>> pointTriangles = pointTriangles(tri);
+	
 	for(int i=0; i<pts.length; i++){
 	    
 	    ArrayList<IVec2> cpts = new ArrayList<IVec2>();
 	    
-	    for(int j=0; j<tri.length; j++){
+	    ArrayList<Integer> triIdx = pointTriangles.get(pts[i]);
+	    for(int l=0; triIdx!=null && l<triIdx.size(); l++){
+		int j = triIdx.get(l);
 		boolean match = false;
 		for(int k=0; k<tri[j].length && cnt[j]!=null && !match; k++){
 		    if(pts[i]==tri[j][k]){
@@ -80,6 +84,19 @@ public class IVoronoi2D {
 	return cellPts;
     }
     
+    /** indices of triangles touching each point, in the order of triangles */
+    static IdentityHashMap<IVec2,ArrayList<Integer>> pointTriangles(IVec2[][] tri){
+	IdentityHashMap<IVec2,ArrayList<Integer>> map = new IdentityHashMap<IVec2,ArrayList<Integer>>();
+	for(int j=0; j<tri.length; j++){
+	    for(int k=0; k<tri[j].length; k++){
+		ArrayList<Integer> list = map.get(tri[j][k]);
+		if(list==null){ list = new ArrayList<Integer>(); map.put(tri[j][k], list); }
+		if(list.size()==0 || list.get(list.size()-1)!=j){ list.add(j); }
+	    }
+	}
+	return map;
+    }
+    
     
     /**
        Getting voronoi polygons out of array of 2D points.
@@ -99,12 +116,16 @@ public class IVoronoi2D {
 
 	IVec2[][][] connectedTriangles = new IVec2[pts.length][][];
 	
+	IdentityHashMap<IVec2,ArrayList<Integer>> pointTriangles = pointTriangles(tri);
+	
 	for(int i=0; i<pts.length; i++){
 	    
 	    //ArrayList<IVec2> cpts = new ArrayList<IVec2>();
 	    ArrayList<IVec2[]> triangles = new ArrayList<IVec2[]>();
 	    
-	    for(int j=0; j<tri.length; j++){
+	    ArrayList<Integer> triIdx = pointTriangles.get(pts[i]);
+	    for(int l=0; triIdx!=null && l<triIdx.size(); l++){
+		int j = triIdx.get(l);
 		boolean match = false;
 		for(int k=0; k<tri[j].length && !match; k++){
 		    if(pts[i]==tri[j][k]){ match=true; }
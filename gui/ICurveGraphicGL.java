@@ -39,6 +39,9 @@ public class ICurveGraphicGL extends IGraphicObject{
     //public IGLLineStrip polyline;
     public IVec[] pts;
     
+    /** copy of pts published at the end of a dynamics step. it's not modified after published. */
+    public volatile IVec[] snapshot;
+    
     public ICurveGraphicGL(ICurve crv){
 	super(crv);
 	//curve = crv.curve;
@@ -61,10 +64,41 @@ public class ICurveGraphicGL extends IGraphicObject{
 	
 	//IVec[] pts=null;
 	
+	pts = curvePoints(pts, false);
+	
+	//if(polyline==null || polyline.pts != pts){ polyline = new IGLLineStrip(pts); }
+	
+	if(update) update=false;
+	}
+    }
+    
+    /**
+       evaluate the curve into new points in the dynamics thread to be drawn until the next step.
+       control points of a degree 1 curve are copied, unlike pts in initCurve() which refers
+       the control points directly, because they are modified in the next step while drawn.
+    */
+    public void snapshot(){
+	synchronized(parent){
+	    if(curve==null){
+		if(parent instanceof ICurve){ curve = ((ICurve)parent).curve; }
+		else if(parent instanceof ICurveR){ curve = ((ICurveR)parent).curve; }
+	    }
+	    snapshot = curvePoints(null, true);
+	}
+    }
+    
+    /**
+       fill points on the curve into the array. a new array is created if its length doesn't match.
+       @param copyCP if true, control points of a degree 1 curve are copied
+    */
+    public IVec[] curvePoints(IVec[] p, boolean copyCP){
 	if(curve.deg()==1){
 	    int num = curve.num();
-	    if(pts==null || pts.length!=num){ pts=new IVec[num]; }
-	    for(int i=0; i<num; i++) pts[i] = curve.cp(i).get(); // how about when ustar!=0||uend!=1 ?
+	    if(p==null || p.length!=num){ p=new IVec[num]; }
+	    for(int i=0; i<num; i++){ // how about when ustar!=0||uend!=1 ?
+		if(copyCP) p[i] = curve.cp(i).get().dup();
+		else p[i] = curve.cp(i).get();
+	    }
 	    
 	    //if(polyline!=null && polyline.pts!=null && polyline.pts.length==num){ pts = polyline.pts; }
 	    //else{ pts = new IVec[num]; }
@@ -74,22 +108,18 @@ public class ICurveGraphicGL extends IGraphicObject{
 	    int reso = IConfig.segmentResolution;
 	    int epnum = curve.epNum() ;
 	    int num = (epnum-1)*reso+1;
-	    if(pts==null || pts.length!=num){ pts=new IVec[num]; }
+	    if(p==null || p.length!=num){ p=new IVec[num]; }
 	    //if(polyline!=null && polyline.pts!=null && polyline.pts.length==num){ pts = polyline.pts; }
 	    //else{ pts = new IVec[num]; }
 	    for(int i=0; i<epnum; i++){
 		for(int j=0; j<reso; j++){
 		    if(i<epnum-1 || j==0){
-			pts[i*reso + j] = curve.pt(curve.u(i,(double)j/reso)).get();
+			p[i*reso + j] = curve.pt(curve.u(i,(double)j/reso)).get();
 		    }
 		}
 	    }
 	}
-	
-	//if(polyline==null || polyline.pts != pts){ polyline = new IGLLineStrip(pts); }
-	
-	if(update) update=false;
-	}
+	return p;
     }
     
     public void setWeight(float w){ weight=w; }
@@ -102,8 +132,13 @@ public class ICurveGraphicGL extends IGraphicObject{
     
     synchronized public void draw(IGraphics g){
 	
-	if(curve==null || update /*&& curve.deg()>1*/ ) // now need to be updated with deg 1
-	    initCurve(); // not initizlized at the constructor // shouldn't it?
+	IVec[] pts = snapshot;
+	if(update){ snapshot=pts=null; } // updated outside of dynamics
+	if(pts==null){
+	    if(curve==null || update /*&& curve.deg()>1*/ || this.pts==null) // now need to be updated with deg 1
+		initCurve(); // not initizlized at the constructor // shouldn't it?
+	    pts = this.pts;
+	}
 
 	if(g.type() == IGraphicMode.GraphicType.GL ||
 	   g.type() == IGraphicMode.GraphicType.P3D ){
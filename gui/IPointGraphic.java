@@ -38,6 +38,9 @@ public class IPointGraphic extends IGraphicObject{
     
     public float weight=IConfig.pointSize; //defaultSize;
     
+    /** copy of the position published at the end of a dynamics step. it's not modified after published. */
+    public volatile IVec snapshot=null;
+    
     //public IPointGraphic(IPoint p){ super(p); parent = p; pt = p; }
     public IPointGraphic(IPoint p){
 	super(p);
@@ -58,6 +61,12 @@ public class IPointGraphic extends IGraphicObject{
 	}
     }
     
+    /** copy the position in the dynamics thread to be drawn until the next step */
+    public void snapshot(){
+	if(pt==null) initPoint();
+	snapshot = pt.get().dup();
+    }
+    
     public void size(float sz){ weight(sz); }
     public double size(){ return weight(); }
     
@@ -71,6 +80,10 @@ public class IPointGraphic extends IGraphicObject{
 	
 	if(pt==null) initPoint(); // if drawn before finishing constructor
 	
+	if(update){ snapshot=null; update=false; } // updated outside of dynamics
+	IVec p = snapshot;
+	if(p==null) p = pt.get();
+	
 	//if(g.view().mode().isGL()){
 	if(g.type() == IGraphicMode.GraphicType.GL ||
 	   g.type() == IGraphicMode.GraphicType.P3D){
@@ -115,7 +128,7 @@ public class IPointGraphic extends IGraphicObject{
 	    //g3d.clr(red,green,blue,alpha);
 	    g3d.stroke(rgba); // in PIGraphicsP3D, it should be stroke color; in IGraphicsGL, clr and stroke is same.
 	    
-	    g3d.drawPoint(pt.get());
+	    g3d.drawPoint(p);
 	    
 	    if(g3d.view().mode().isLight()&&!g.view().mode().isLightWireframe())
 		g3d.enableLight();
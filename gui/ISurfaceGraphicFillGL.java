@@ -199,10 +199,14 @@ public class ISurfaceGraphicFillGL extends IGraphicObject{
 	
 	IVec[][] pts = new IVec[uval.length][vval.length];
 	IVec[][] nrm = new IVec[uval.length][vval.length];
+	ISurfaceGeo geo = surface.get();
+	double[] xyz = geo.ptGrid(uval, vval, null);
+	double[] nxyz = geo.nmlGrid(uval, vval, null);
 	for(int i=0; i<uval.length; i++){
 	    for(int j=0; j<vval.length; j++){
-		pts[i][j] = surface.pt(uval[i], vval[j]).get();
-		nrm[i][j] = surface.normal(uval[i], vval[j]).get().unit();
+		int k = (i*vval.length+j)*3;
+		pts[i][j] = new IVec(xyz[k], xyz[k+1], xyz[k+2]);
+		nrm[i][j] = new IVec(nxyz[k], nxyz[k+1], nxyz[k+2]).unit();
 	    }
 	}
 	
@@ -400,10 +404,14 @@ public class ISurfaceGraphicFillGL extends IGraphicObject{
 	    quads = new IVec[uvalCache.length][vvalCache.length];
 	    quadsNormal = new IVec[uvalCache.length][vvalCache.length];
 	}
+	ISurfaceGeo geo = surface.get();
+	double[] xyz = geo.ptGrid(uvalCache, vvalCache, null);
+	double[] nxyz = geo.nmlGrid(uvalCache, vvalCache, null);
 	for(int i=0; i<uvalCache.length; i++){
 	    for(int j=0; j<vvalCache.length; j++){
-		quads[i][j] = surface.pt(uvalCache[i], vvalCache[j]).get();
-		quadsNormal[i][j] = surface.normal(uvalCache[i], vvalCache[j]).get().unit();
+		int k = (i*vvalCache.length+j)*3;
+		quads[i][j] = new IVec(xyz[k], xyz[k+1], xyz[k+2]);
+		quadsNormal[i][j] = new IVec(nxyz[k], nxyz[k+1], nxyz[k+2]).unit();
 	    }
 	}
 	/*
@@ -0,0 +1,98 @@
+/*---
+
+    iGeo - http://igeo.jp
+
+    Copyright (c) 2002-2013 Satoru Sugihara
+
+    This file is part of iGeo.
+
+    iGeo is free software: you can redistribute it and/or modify
+    it under the terms of the GNU Lesser General Public License as
+    published by the Free Software Foundation, version 3.
+
+    iGeo is distributed in the hope that it will be useful,
+    but WITHOUT ANY WARRANTY; without even the implied warranty of
+    MERCHANTABILITY or FITNESS FOR A PARTICULAR PURPOSE.  See the
+    GNU Lesser General Public License for more details.
+
+    You should have received a copy of the GNU Lesser General Public
+    License along with iGeo.  If not, see <http://www.gnu.org/licenses/>.
+
+---*/
+
+package igeo.io;
+
+import java.io.*;
+import java.nio.*;
+
+/**
+   Input stream reading from a ByteBuffer without copying its content.
+   The buffer is read in little endian order as 3dm file is.
+   Primitive values are read directly with ByteBuffer getters
+   and a part of the buffer can be cut out as a slice sharing the same memory.
+   
+   @author Satoru Sugihara
+*/
+public class IByteBufferInputStream extends InputStream{
+    
+    public ByteBuffer buffer;
+    
+    public IByteBufferInputStream(ByteBuffer buf){
+	buffer = buf;
+	buffer.order(ByteOrder.LITTLE_ENDIAN);
+    }
+    
+    public int read(){
+	if(!buffer.hasRemaining()) return -1;
+	return buffer.get()&0xFF;
+    }
+    
+    public int read(byte[] b, int off, int len){
+	if(len==0) return 0;
+	int rem = buffer.remaining();
+	if(rem==0) return -1;
+	if(len>rem) len = rem;
+	buffer.get(b, off, len);
+	return len;
+    }
+    
+    public long skip(long n){
+	if(n<=0) return 0;
+	int rem = buffer.remaining();
+	if(n>rem) n = rem;
+	buffer.position(buffer.position()+(int)n);
+	return n;
+    }
+    
+    public int available(){ return buffer.remaining(); }
+    
+    public int position(){ return buffer.position(); }
+    
+    public int remaining(){ return buffer.remaining(); }
+    
+    void check(int len)throws EOFException{
+	if(buffer.remaining()<len) throw new EOFException();
+    }
+    
+    public short readInt16()throws IOException{ check(2); return buffer.getShort(); }
+    
+    public int readInt32()throws IOException{ check(4); return buffer.getInt(); }
+    
+    public long readInt64()throws IOException{ check(8); return buffer.getLong(); }
+    
+    public float readFloat()throws IOException{ check(4); return buffer.getFloat(); }
+    
+    public double readDouble()throws IOException{ check(8); return buffer.getDouble(); }
+    
+    /**
+       cutting out next len bytes as a buffer sharing the same memory and advancing the position.
+    */
+    public ByteBuffer slice(int len)throws IOException{
+	check(len);
+	ByteBuffer buf = buffer.slice();
+	buf.limit(len);
+	buf.order(ByteOrder.LITTLE_ENDIAN);
+	buffer.position(buffer.position()+len);
+	return buf;
+    }
+}
@@ -25,7 +25,9 @@ package igeo.io;
 import java.io.*;
 import java.awt.*;
 import java.util.*;
-import java.text.*;
+import java.math.*;
+import java.nio.*;
+import java.nio.channels.*;
 
 import igeo.*;
 import igeo.gui.*;
@@ -39,14 +41,20 @@ public class IObjFileExporter{
     
     public static final int maxColumn=20; // max number of data per line
     
+    /** number of mesh vertices or faces formatted in one buffer in parallel export */
+    public static final int parallelBlockSize=4096;
+    
     protected int vertexNumber, parametricVertexNumber, textureVertexNumber, normalVertexNumber, objectNumber, curve2DNumber;
     
-    protected NumberFormat f;
+    /** maximum number of digits after decimal point. if negative, shortest digits to represent a double value are written. */
+    public int precision=-1;
     
     protected HashMap<IVertex, int[]> vertexMap;
     
     public IObjFileExporter(){}
     
+    public IObjFileExporter(int precision){ this.precision = precision; }
+    
     public void init(){
         vertexNumber=1;
         parametricVertexNumber=1;
@@ -54,17 +62,180 @@ public class IObjFileExporter{
         normalVertexNumber=1;
         objectNumber=1;
         curve2DNumber=1;
+    }
+    
+    /**
+       Text buffer to write ASCII text of OBJ file.
+       Numbers are formatted directly into the buffer without creating strings
+       and the buffer is written out to a channel when it's full.
+       Without a channel, the buffer grows to keep all the text.
+    */
+    public static class OutputBuffer{
+	public byte[] buf;
+	public int len=0;
+	public WritableByteChannel channel;
+	/** maximum number of digits after decimal point. negative for shortest representation */
+	public int precision=-1;
+	
+	static final double[] pow10 = new double[23];
+	static{ pow10[0]=1; for(int i=1; i<pow10.length; i++) pow10[i] = pow10[i-1]*10; }
+	static final double maxExactLong = 9007199254740992.0; // 2^53
+	
+	char[] digits = new char[24];
+	
+	public OutputBuffer(){ buf = new byte[1024]; }
+	
+	public OutputBuffer(int precision){ this(); this.precision = precision; }
+	
+	/** buffer size to write a whole file or stream */
+	public static final int streamBufferSize = 1<<20;
+	/** buffer size to write one element to a PrintStream */
+	public static final int elementBufferSize = 1<<13;
+	
+	public OutputBuffer(WritableByteChannel ch, int precision){ this(ch, precision, streamBufferSize); }
+	
+	public OutputBuffer(WritableByteChannel ch, int precision, int bufferSize){
+	    buf = new byte[bufferSize];
+	    channel = ch;
+	    this.precision = precision;
+	}
+	
+	public OutputBuffer(OutputStream os, int precision){ this(Channels.newChannel(os), precision); }
+	
+	public OutputBuffer(OutputStream os, int precision, int bufferSize){
+	    this(Channels.newChannel(os), precision, bufferSize);
+	}
+	
+	void ensure(int n){
+	    if(len+n<=buf.length) return;
+	    if(channel!=null){
+		flushBuffer();
+		if(n<=buf.length) return;
+	    }
+	    buf = Arrays.copyOf(buf, Math.max(buf.length*2, len+n));
+	}
+	
+	void flushBuffer(){
+	    try{
+		ByteBuffer b = ByteBuffer.wrap(buf, 0, len);
+		while(b.hasRemaining()) channel.write(b);
+	    }catch(IOException e){ e.printStackTrace(); }
+	    len=0;
+	}
+	
+	/** writing out the buffer to the channel */
+	public void flush(){ if(channel!=null && len>0) flushBuffer(); }
+	
+	public OutputBuffer print(char c){
+	    ensure(1);
+	    buf[len++] = (byte)c;
+	    return this;
+	}
+	
+	public OutputBuffer print(String s){
+	    int n = s.length();
+	    ensure(n);
+	    for(int i=0; i<n; i++) buf[len++] = (byte)s.charAt(i);
+	    return this;
+	}
+	
+	public OutputBuffer println(){ return print('\n'); }
+	
+	public OutputBuffer println(String s){ return print(s).print('\n'); }
 	
-	f = NumberFormat.getInstance();
-	if(f instanceof DecimalFormat){
-	    // default setting
-	    ((DecimalFormat)f).setDecimalSeparatorAlwaysShown(false);
-	    ((DecimalFormat)f).setMaximumFractionDigits(100);
-	    ((DecimalFormat)f).setMinimumFractionDigits(0);
-	    ((DecimalFormat)f).setGroupingUsed(false);
+	public OutputBuffer print(int i){ return print((long)i); }
+	
+	public OutputBuffer print(long l){
+	    if(l<0){
+		if(l==Long.MIN_VALUE) return print(String.valueOf(l));
+		print('-');
+		l=-l;
+	    }
+	    int n=0;
+	    do{ digits[n++] = (char)('0'+l%10); l/=10; }while(l>0);
+	    ensure(n);
+	    while(n>0) buf[len++] = (byte)digits[--n];
+	    return this;
 	}
-	else{
-	    IOut.p("ERROR: fail to get DecimalFormat"); 
+	
+	/** writing m / 10^k as decimal without trailing zeros */
+	void printDecimal(long m, int k){
+	    while(k>0 && m%10==0){ m/=10; k--; }
+	    int n=0;
+	    for(int i=0; i<k; i++){ digits[n++] = (char)('0'+m%10); m/=10; }
+	    if(k>0) digits[n++] = '.';
+	    do{ digits[n++] = (char)('0'+m%10); m/=10; }while(m>0);
+	    ensure(n);
+	    while(n>0) buf[len++] = (byte)digits[--n];
+	}
+	
+	/**
+	   writing a double value in plain decimal notation.
+	   without precision, the shortest digits which is read back to the same value are written.
+	*/
+	public OutputBuffer print(double d){
+	    if(Double.isNaN(d) || Double.isInfinite(d)) return print(String.valueOf(d));
+	    if(d<0 || (d==0 && 1/d<0)){ print('-'); d=-d; }
+	    if(d==0) return print('0');
+	    
+	    int maxk = precision>=0 ? Math.min(precision, pow10.length-1) : pow10.length-1;
+	    for(int k=0; k<=maxk && d*pow10[k]<maxExactLong; k++){
+		long m = Math.round(d*pow10[k]);
+		if(m/pow10[k]==d){ printDecimal(m,k); return this; }
+	    }
+	    if(precision>=0 && precision<pow10.length && d*pow10[precision]<maxExactLong){
+		printDecimal(Math.round(d*pow10[precision]), precision);
+		return this;
+	    }
+	    if(precision>=0){
+		BigDecimal b = new BigDecimal(Double.toString(d)).setScale(precision, RoundingMode.HALF_EVEN);
+		if(b.signum()==0) return print('0');
+		return print(b.stripTrailingZeros().toPlainString());
+	    }
+	    return printPlain(Double.toString(d));
+	}
+	
+	/** writing a string of Double.toString() in plain decimal notation without exponent and trailing zeros */
+	OutputBuffer printPlain(String s){
+	    int e = s.indexOf('E');
+	    int end = e<0 ? s.length() : e;
+	    int exp = e<0 ? 0 : Integer.parseInt(s.substring(e+1));
+	    int dot = s.indexOf('.');
+	    if(dot<0||dot>end) dot = end;
+	    int n=0;
+	    for(int i=0; i<end; i++) if(i!=dot) digits[n++] = s.charAt(i);
+	    while(n>dot+exp && n>1 && digits[n-1]=='0') n--; // trailing zeros after the point
+	    int point = dot+exp; // number of digits before the point
+	    ensure(n + Math.abs(point) + 3);
+	    if(point<=0){
+		buf[len++] = (byte)'0';
+		buf[len++] = (byte)'.';
+		for(int i=point; i<0; i++) buf[len++] = (byte)'0';
+		for(int i=0; i<n; i++) buf[len++] = (byte)digits[i];
+	    }
+	    else{
+		for(int i=0; i<n || i<point; i++){
+		    if(i==point) buf[len++] = (byte)'.';
+		    buf[len++] = i<n ? (byte)digits[i] : (byte)'0';
+		}
+	    }
+	    return this;
+	}
+	
+	/** appending content of another buffer */
+	public OutputBuffer print(OutputBuffer b){
+	    if(channel!=null && b.len>buf.length){
+		flush();
+		try{
+		    ByteBuffer bb = ByteBuffer.wrap(b.buf, 0, b.len);
+		    while(bb.hasRemaining()) channel.write(bb);
+		}catch(IOException e){ e.printStackTrace(); }
+		return this;
+	    }
+	    ensure(b.len);
+	    System.arraycopy(b.buf, 0, buf, len, b.len);
+	    len += b.len;
+	    return this;
 	}
     }
     
@@ -76,19 +247,7 @@ public class IObjFileExporter{
        @return Boolean true if writing is successful. Otherwise false.
     */
     static public boolean write(String filename, IServerI server){
-	PrintStream ps = null;
-	try{ ps = new PrintStream(new FileOutputStream(filename)); }
-	catch(Exception e){ e.printStackTrace(); }
-	
-	if(ps==null){
-	    IOut.p("ERROR: file coundn't be opened: "+filename); return false;
-	}
-	
-	IObjFileExporter export = new IObjFileExporter();
-	export.write(ps, server);
-	
-	ps.close();
-	return true;
+	return write(new File(filename), server);
     }
     
     /**
@@ -99,23 +258,32 @@ public class IObjFileExporter{
        @return Boolean true if writing is successful. Otherwise false.
     */
     static public boolean write(File file, IServerI server){
-	PrintStream ps = null;
-	try{ ps = new PrintStream(new FileOutputStream(file)); }
+	FileOutputStream fos = null;
+	try{ fos = new FileOutputStream(file); }
 	catch(Exception e){ e.printStackTrace(); }
 	
-	if(ps==null){
+	if(fos==null){
 	    IOut.p("ERROR: file coundn't be opened: "+file); return false;
 	}
 	
 	IObjFileExporter export = new IObjFileExporter();
-	export.write(ps, server);
+	OutputBuffer out = new OutputBuffer(fos.getChannel(), export.precision);
+	export.write(out, server);
+	out.flush();
 	
-	ps.close();
+	try{ fos.close(); }catch(IOException e){ e.printStackTrace(); }
 	return true;
     }
     
     
     public void write(PrintStream ps, IServerI server){
+	OutputBuffer out = new OutputBuffer(ps, precision);
+	write(out, server);
+	out.flush();
+	ps.flush();
+    }
+    
+    public void write(OutputBuffer out, IServerI server){
 	IServer serv = server.server();
 	synchronized(IG.lock){
 	    init();
@@ -128,29 +296,29 @@ public class IObjFileExporter{
 		//if(e instanceof IPoint){
 		if(e instanceof IVecI){
 		    //IOut.p("saving: "+ e + "-"+e.parameter); //
-		    ps.println("g group_"+objectNumber); //
-		    ps.println("o object_"+objectNumber); //
-		    writePoint(ps, (IVecI)e);
+		    out.print("g group_").print(objectNumber).println(); //
+		    out.print("o object_").print(objectNumber).println(); //
+		    writePoint(out, (IVecI)e);
 		    objectNumber++;
 		}
 		else if(e instanceof ICurveI){
 		    //IOut.p("saving: "+ e + "-"+e.parameter); //
-		    ps.println("g group_"+objectNumber); //
-		    ps.println("o object_"+objectNumber); //
-		    writeCurve(ps, (ICurveI)e);
+		    out.print("g group_").print(objectNumber).println(); //
+		    out.print("o object_").print(objectNumber).println(); //
+		    writeCurve(out, (ICurveI)e);
 		    objectNumber++;
 		}
 		else if(e instanceof ISurfaceI){
 		    //IOut.p("saving: "+ e + "-"+e.parameter); //
-		    ps.println("g group_"+objectNumber); //
-		    ps.println("o object_"+objectNumber); //
-		    writeSurface(ps, (ISurfaceI)e);
+		    out.print("g group_").print(objectNumber).println(); //
+		    out.print("o object_").print(objectNumber).println(); //
+		    writeSurface(out, (ISurfaceI)e);
 		    objectNumber++;
 		}
 		else if(e instanceof IMeshI){
-		    ps.println("g group_"+objectNumber); //
-		    ps.println("o object_"+objectNumber); //
-		    writeMesh(ps, (IMeshI)e);
+		    out.print("g group_").print(objectNumber).println(); //
+		    out.print("o object_").print(objectNumber).println(); //
+		    writeMesh(out, (IMeshI)e);
 		    objectNumber++;
 		}
 		else{
@@ -162,12 +330,16 @@ public class IObjFileExporter{
     }
     
     
+    public void writePoint(PrintStream ps, IVecI point){
+	OutputBuffer out = new OutputBuffer(ps, precision, OutputBuffer.elementBufferSize); writePoint(out, point); out.flush();
+    }
+    
     /** Exports a point object.
 	Because OBJ file doesn't have point object, a point is exported as a line with zero length.
-	@param ps PrintStream to write out.
+	@param out OutputBuffer to write out.
 	@param point Point object.
     */
-    public void writePoint(PrintStream ps, IVecI point){
+    public void writePoint(OutputBuffer out, IVecI point){
 	int deg = 1;
 	double[] knots = new double[]{ 0., 1. };
 	double ustart = 0;
@@ -175,25 +347,29 @@ public class IObjFileExporter{
 	IVec pt = point.get();
 	IVec[] cpts = new IVec[]{ pt, pt };
 	for(int i=0; i<cpts.length; i++){
-	    ps.println("v "+f.format(cpts[i].x)+" "+f.format(cpts[i].y)+
-		       " " +f.format(cpts[i].z));
-	}
-	ps.println("cstype bspline");
-	ps.println("deg "+deg);
-	ps.print("curv "+ustart+" "+uend);
-	for(int i=1; i<=cpts.length; i++, vertexNumber++) ps.print(" "+vertexNumber);
-	ps.println();
-	ps.print("parm u");
-	for(int i=0; i<knots.length; i++) ps.print(" " + f.format(knots[i]));
-	ps.println();
-	ps.println("end"); //
+	    out.print("v ").print(cpts[i].x).print(' ').print(cpts[i].y).
+		print(' ').print(cpts[i].z).println();
+	}
+	out.println("cstype bspline");
+	out.print("deg ").print(deg).println();
+	out.print("curv "+ustart+" "+uend);
+	for(int i=1; i<=cpts.length; i++, vertexNumber++) out.print(' ').print(vertexNumber);
+	out.println();
+	out.print("parm u");
+	for(int i=0; i<knots.length; i++) out.print(' ').print(knots[i]);
+	out.println();
+	out.println("end"); //
+    }
+    
+    public void writeCurve(PrintStream ps, ICurveI curve){
+	OutputBuffer out = new OutputBuffer(ps, precision, OutputBuffer.elementBufferSize); writeCurve(out, curve); out.flush();
     }
     
     /** Exports a curve object.
-	@param ps PrintStream to write out.
+	@param out OutputBuffer to write out.
 	@param curve Curve object.
     */
-    public void writeCurve(PrintStream ps, ICurveI curve){
+    public void writeCurve(OutputBuffer out, ICurveI curve){
 	int deg = curve.deg();
 	double[] knots = new double[curve.knotNum()];
 	double ustart = curve.ustart();
@@ -213,36 +389,33 @@ public class IObjFileExporter{
 	}
 	
 	for(int i=0; i<cpts.length; i++){
-	    if(rational)
-		if(cpts[i] instanceof IVec4)
-		    ps.println("v "+f.format(cpts[i].x)+" "+f.format(cpts[i].y)+
-			       " " +f.format(cpts[i].z)+" "+f.format(((IVec4)cpts[i]).w));
-		else ps.println("v "+f.format(cpts[i].x)+" "+f.format(cpts[i].y)+
-				" " +f.format(cpts[i].z)+" "+"1.0");
-	    else
-		ps.println("v "+f.format(cpts[i].x)+" "+f.format(cpts[i].y)+
-			   " " +f.format(cpts[i].z));
-	}
-	if(rational) ps.println("cstype rat bspline");
-	else ps.println("cstype bspline");
-	ps.println("deg "+deg);
-	ps.print("curv "+ustart+" "+uend);
+	    out.print("v ").print(cpts[i].x).print(' ').print(cpts[i].y).print(' ').print(cpts[i].z);
+	    if(rational){
+		if(cpts[i] instanceof IVec4) out.print(' ').print(((IVec4)cpts[i]).w);
+		else out.print(" 1.0");
+	    }
+	    out.println();
+	}
+	if(rational) out.println("cstype rat bspline");
+	else out.println("cstype bspline");
+	out.print("deg ").print(deg).println();
+	out.print("curv "+ustart+" "+uend);
 	for(int i=1; i<=cpts.length; i++, vertexNumber++){
-	    ps.print(" "+vertexNumber);
-	    if(i%maxColumn==0 && i!=cpts.length) ps.println(" \\"); // too long line can't be read
+	    out.print(' ').print(vertexNumber);
+	    if(i%maxColumn==0 && i!=cpts.length) out.println(" \\"); // too long line can't be read
 	}
-	ps.println();
-	ps.print("parm u");
+	out.println();
+	out.print("parm u");
 	for(int i=0; i<knots.length; i++){
-            ps.print(" " + f.format(knots[i]));
-            if((i%maxColumn==0)&&(i!=0)&&(i!=(knots.length-1))) ps.println(" \\");// too long line can'
+	    out.print(' ').print(knots[i]);
+	    if((i%maxColumn==0)&&(i!=0)&&(i!=(knots.length-1))) out.println(" \\");// too long line can'
 	}
-	ps.println();
-	ps.println("end"); //
+	out.println();
+	out.println("end"); //
     }
-
-
-
+    
+    
+    
     static public void checkTrimLoopDirection(ArrayList<ArrayList<ITrimCurveI>> trimLoops,
 					      boolean isOuter){
 	for(int i=0; i<trimLoops.size(); i++){
@@ -258,11 +431,15 @@ public class IObjFileExporter{
     }
     
     
+    public void writeSurface(PrintStream ps, ISurfaceI surface){
+	OutputBuffer out = new OutputBuffer(ps, precision, OutputBuffer.elementBufferSize); writeSurface(out, surface); out.flush();
+    }
+    
     /** Exports a surface object.
-	@param ps PrintStream to write out.
+	@param out OutputBuffer to write out.
 	@param surface Surface object.
     */
-    public void writeSurface(PrintStream ps, ISurfaceI surface){
+    public void writeSurface(OutputBuffer out, ISurfaceI surface){
 	int unum = surface.ucpNum();
 	int vnum = surface.vcpNum();
 	
@@ -304,7 +481,7 @@ public class IObjFileExporter{
 		outerTrimIdx[i] = new int[outloops.get(i).size()];
 		for(int j=0; j<outloops.get(i).size(); j++){
 		    outerTrimIdx[i][j] = curve2DNumber;
-		    writeTrimCurve(ps, outloops.get(i).get(j));
+		    writeTrimCurve(out, outloops.get(i).get(j));
 		}
 	    }
 	}
@@ -314,7 +491,7 @@ public class IObjFileExporter{
 		innerTrimIdx[i] = new int[inloops.get(i).size()];
 		for(int j=0; j<inloops.get(i).size(); j++){
 		    innerTrimIdx[i][j] = curve2DNumber;
-		    writeTrimCurve(ps, inloops.get(i).get(j));
+		    writeTrimCurve(out, inloops.get(i).get(j));
 		}
 	    }
 	}
@@ -351,80 +528,82 @@ public class IObjFileExporter{
 	
 	for(int j=0; j<vnum; j++){
 	    for(int i=0; i<unum; i++){
-		if(rational)
-                    ps.println("v "+f.format(cpts[i][j].x)+" "+f.format(cpts[i][j].y)+
-			       " " +f.format(cpts[i][j].z)+" "+f.format(((IVec4)cpts[i][j]).w));
-                else ps.println("v "+f.format(cpts[i][j].x)+" "+f.format(cpts[i][j].y)+
-				" " +f.format(cpts[i][j].z));
+		out.print("v ").print(cpts[i][j].x).print(' ').print(cpts[i][j].y).print(' ').print(cpts[i][j].z);
+		if(rational) out.print(' ').print(((IVec4)cpts[i][j]).w);
+		out.println();
 	    }
 	}
 	
-        if(rational) ps.println("cstype rat bspline");
-        else ps.println("cstype bspline");
+	if(rational) out.println("cstype rat bspline");
+	else out.println("cstype bspline");
         
-        ps.println("deg " + udeg + " " + vdeg);
+	out.print("deg ").print(udeg).print(' ').print(vdeg).println();
         
-        ps.print("surf ");
-        ps.print(f.format(ustart) + " " + f.format(uend) + " ");
-        ps.print(f.format(vstart) + " " + f.format(vend) );
+	out.print("surf ");
+	out.print(ustart).print(' ').print(uend).print(' ');
+	out.print(vstart).print(' ').print(vend);
 	
 	for(int i=1; i<=(unum*vnum); i++, vertexNumber++){
-	    ps.print(" "+vertexNumber);
-	    if(i%maxColumn==0 && i!=(unum*vnum)) ps.println(" \\"); // too long line can't be read
+	    out.print(' ').print(vertexNumber);
+	    if(i%maxColumn==0 && i!=(unum*vnum)) out.println(" \\"); // too long line can't be read
 	}
-	ps.println();
+	out.println();
 	
-        ps.print("parm u");
+	out.print("parm u");
         for(int i=0; i<uknots.length; i++){
-            ps.print(" " + f.format(uknots[i]));
+	    out.print(' ').print(uknots[i]);
             //ps.print(" " + uknots[i]);
-            if((i%maxColumn==0)&&(i!=0)&&(i!=(uknots.length-1))) ps.println(" \\");// too long line can't be read
+	    if((i%maxColumn==0)&&(i!=0)&&(i!=(uknots.length-1))) out.println(" \\");// too long line can't be read
         }
-        ps.println();
+	out.println();
         
-        ps.print("parm v");
+	out.print("parm v");
         for(int i=0; i<vknots.length; i++){
-            ps.print(" " + f.format(vknots[i]));
+	    out.print(' ').print(vknots[i]);
             //ps.print(" " + vknots[i]);
-            if((i%maxColumn==0)&&(i!=0)&&(i!=(vknots.length-1))) ps.println(" \\");//too long line can't be read
+	    if((i%maxColumn==0)&&(i!=0)&&(i!=(vknots.length-1))) out.println(" \\");//too long line can't be read
         }
-        ps.println();
+	out.println();
 	
 	
 	if(outloops.size()>0){
 	    for(int i=0; i<outloops.size(); i++){
-		ps.print("trim");
+		out.print("trim");
 		for(int j=0; j<outloops.get(i).size(); j++){
 		    ITrimCurveI tr = outloops.get(i).get(j);
-		    ps.print(" "+f.format(tr.ustart()));
-		    ps.print(" "+f.format(tr.uend()));
-		    ps.print(" "+outerTrimIdx[i][j]);
+		    out.print(' ').print(tr.ustart());
+		    out.print(' ').print(tr.uend());
+		    out.print(' ').print(outerTrimIdx[i][j]);
 		    if(j>0 && j%(maxColumn/2)==0 && j<outloops.get(i).size()-1)
-			ps.println(" \\"); 
+			out.println(" \\"); 
 		}
-		ps.println();
+		out.println();
 	    }
 	}
 	if(inloops.size()>0){
 	    for(int i=0; i<inloops.size(); i++){
-		ps.print("hole");
+		out.print("hole");
 		for(int j=0; j<inloops.get(i).size(); j++){
 		    ITrimCurveI tr = inloops.get(i).get(j);
-		    ps.print(" "+f.format(tr.ustart()));
-		    ps.print(" "+f.format(tr.uend()));
-		    ps.print(" "+innerTrimIdx[i][j]);
+		    out.print(' ').print(tr.ustart());
+		    out.print(' ').print(tr.uend());
+		    out.print(' ').print(innerTrimIdx[i][j]);
 		    if(j>0 && j%(maxColumn/2)==0 && j<inloops.get(i).size()-1)
-			ps.println(" \\"); 
+			out.println(" \\"); 
 		}
-		ps.println();
+		out.println();
 	    }
 	}
 	
-	ps.println("end");
+	out.println("end");
     }
     
     
     public void writeTrimCurve(PrintStream ps, ITrimCurveI trimCurve){
+	OutputBuffer out = new OutputBuffer(ps, precision, OutputBuffer.elementBufferSize); writeTrimCurve(out, trimCurve); out.flush();
+    }
+    
+    public void writeTrimCurve(OutputBuffer out, ITrimCurveI trimCurve){
 	int deg = trimCurve.deg();
 	double[] knots = new double[trimCurve.knotNum()];
 	double ustart = trimCurve.ustart();
@@ -455,31 +634,29 @@ public class IObjFileExporter{
 	}
 	
 	for(int i=0; i<cpts.length; i++){
-	    if(rational)
-		if(cpts[i] instanceof IVec4)
-		    ps.println("vp "+f.format(cpts[i].x)+" "+f.format(cpts[i].y)+
-			       " "+f.format(((IVec4)cpts[i]).w));
-		else ps.println("vp "+f.format(cpts[i].x)+" "+f.format(cpts[i].y)+
-				" "+"1.0");
-	    else
-		ps.println("vp "+f.format(cpts[i].x)+" "+f.format(cpts[i].y));
-	}
-	if(rational) ps.println("cstype rat bspline");
-	else ps.println("cstype bspline");
-	ps.println("deg "+deg);
-	ps.print("curv2");
+	    out.print("vp ").print(cpts[i].x).print(' ').print(cpts[i].y);
+	    if(rational){
+		if(cpts[i] instanceof IVec4) out.print(' ').print(((IVec4)cpts[i]).w);
+		else out.print(" 1.0");
+	    }
+	    out.println();
+	}
+	if(rational) out.println("cstype rat bspline");
+	else out.println("cstype bspline");
+	out.print("deg ").print(deg).println();
+	out.print("curv2");
 	for(int i=1; i<=cpts.length; i++, parametricVertexNumber++){
-	    ps.print(" "+parametricVertexNumber);
-	    if(i%maxColumn==0 && i!=cpts.length) ps.println(" \\"); // too long line can't be read
+	    out.print(' ').print(parametricVertexNumber);
+	    if(i%maxColumn==0 && i!=cpts.length) out.println(" \\"); // too long line can't be read
 	}
-	ps.println();
-	ps.print("parm u");
+	out.println();
+	out.print("parm u");
 	for(int i=0; i<knots.length; i++){
-            ps.print(" " + f.format(knots[i]));
-            if((i%maxColumn==0)&&(i!=0)&&(i!=(knots.length-1))) ps.println(" \\");// too long line can'
+	    out.print(' ').print(knots[i]);
+	    if((i%maxColumn==0)&&(i!=0)&&(i!=(knots.length-1))) out.println(" \\");// too long line can'
 	}
-	ps.println();
-	ps.println("end"); //
+	out.println();
+	out.println("end"); //
 	
 	curve2DNumber++;
     }
@@ -490,39 +667,106 @@ public class IObjFileExporter{
 	@param mesh Polygon mesh object.
     */
     public void writeMesh(PrintStream ps, IMeshI mesh){
-        for(int i=0; i<mesh.vertexNum(); i++) writeVertex(ps, mesh.vertex(i));
-        for(int i=0; i<mesh.faceNum(); i++) writeFace(ps, mesh.face(i)); 
+	OutputBuffer out = new OutputBuffer(ps, precision, OutputBuffer.elementBufferSize); writeMesh(out, mesh); out.flush();
     }
     
-    public void writeVertex(PrintStream ps, IVertex vertex){
+    /** Exports a polygon mesh object.
+	When IConfig.parallelExport is true, vertices and faces of a large mesh are formatted
+	in blocks in parallel threads and the blocks are appended in order.
+	@param out OutputBuffer to write out.
+	@param mesh Polygon mesh object.
+    */
+    public void writeMesh(OutputBuffer out, IMeshI mesh){
+	if(IConfig.parallelExport && IParallel.threadNum()>1 &&
+	   mesh.vertexNum()+mesh.faceNum() > parallelBlockSize){
+	    writeMeshParallel(out, mesh);
+	    return;
+	}
+	for(int i=0; i<mesh.vertexNum(); i++) writeVertex(out, mesh.vertex(i));
+	for(int i=0; i<mesh.faceNum(); i++) writeFace(out, mesh.face(i)); 
+    }
+    
+    /** numbering all vertices first and formatting blocks of vertices and faces into separate buffers in parallel */
+    protected void writeMeshParallel(OutputBuffer out, final IMeshI mesh){
 	if(vertexMap==null) vertexMap = new HashMap<IVertex,int[]>();
 	
+	final int vnum = mesh.vertexNum();
+	final int fnum = mesh.faceNum();
+	for(int i=0; i<vnum; i++){ vertexMap.put(mesh.vertex(i), referenceNumber(mesh.vertex(i))); }
+	
+	final int vblock = (vnum+parallelBlockSize-1)/parallelBlockSize;
+	final int fblock = (fnum+parallelBlockSize-1)/parallelBlockSize;
+	final OutputBuffer[] blocks = new OutputBuffer[vblock+fblock];
+	
+	IParallel.run(0, blocks.length, 1, new IParallel.Task(){
+		public void run(int start, int end){
+		    for(int b=start; b<end; b++){
+			OutputBuffer o = new OutputBuffer(precision);
+			if(b<vblock){
+			    int e = Math.min((b+1)*parallelBlockSize, vnum);
+			    for(int i=b*parallelBlockSize; i<e; i++) formatVertex(o, mesh.vertex(i));
+			}
+			else{
+			    int e = Math.min((b-vblock+1)*parallelBlockSize, fnum);
+			    for(int i=(b-vblock)*parallelBlockSize; i<e; i++) writeFace(o, mesh.face(i));
+			}
+			blocks[b] = o;
+		    }
+		}
+	    });
+	
+	for(int i=0; i<blocks.length; i++) out.print(blocks[i]);
+    }
+    
+    public void writeVertex(PrintStream ps, IVertex vertex){
+	OutputBuffer out = new OutputBuffer(ps, precision, OutputBuffer.elementBufferSize); writeVertex(out, vertex); out.flush();
+    }
+    
+    public void writeVertex(OutputBuffer out, IVertex vertex){
+	if(vertexMap==null) vertexMap = new HashMap<IVertex,int[]>();
+	formatVertex(out, vertex);
+	vertexMap.put(vertex,referenceNumber(vertex));
+    }
+    
+    /** assigning vertex, texture and normal numbers to a vertex in the order of writing */
+    protected int[] referenceNumber(IVertex vertex){
 	int[] referenceNum = new int[3];
-	IVec v = vertex.get();
-	ps.println("v "+f.format(v.x)+" "+f.format(v.y)+" "+f.format(v.z));
 	referenceNum[0] = vertexNumber;
 	vertexNumber++;
 	
         if(vertex.texture()!=null){
-	    IVec2 t = vertex.texture().get();
-            ps.println("vt "+f.format(t.x)+" "+f.format(t.y));
 	    referenceNum[1] = textureVertexNumber;
             textureVertexNumber++;
         }
 	else{ referenceNum[1] = -1; }
 	
 	if(vertex.normal()!=null){
-	    IVec n = vertex.normal().get();
-            ps.println("vn "+f.format(n.x)+" "+f.format(n.y)+" "+f.format(n.z));
 	    referenceNum[2] = normalVertexNumber;
             normalVertexNumber++;
         }
 	else{ referenceNum[2] = -1; }
-	
-	vertexMap.put(vertex,referenceNum);
+	return referenceNum;
+    }
+    
+    /** writing lines of position, texture and normal of a vertex */
+    protected void formatVertex(OutputBuffer out, IVertex vertex){
+	IVec v = vertex.get();
+	out.print("v ").print(v.x).print(' ').print(v.y).print(' ').print(v.z).println();
+        if(vertex.texture()!=null){
+	    IVec2 t = vertex.texture().get();
+	    out.print("vt ").print(t.x).print(' ').print(t.y).println();
+        }
+	if(vertex.normal()!=null){
+	    IVec n = vertex.normal().get();
+	    out.print("vn ").print(n.x).print(' ').print(n.y).print(' ').print(n.z).println();
+        }
     }
     
     public void writeFace(PrintStream ps, IFace face){
+	OutputBuffer out = new OutputBuffer(ps, precision, OutputBuffer.elementBufferSize); writeFace(out, face); out.flush();
+    }
+    
+    public void writeFace(OutputBuffer out, IFace face){
         
         //for(int i=0; i<vertices.length; i++) writer.print(" "+vertices[i].referenceNum);
         
@@ -545,20 +789,20 @@ public class IObjFileExporter{
 	for(int i=0; i<vertexRef.length&&writeTexture; i++) if(vertexRef[i][1] < 0) writeTexture=false;
         for(int i=0; i<vertexRef.length&&writeNormal; i++) if(vertexRef[i][2] < 0) writeNormal=false;
         
-	ps.print("f");
+	out.print('f');
         for(int i=0; i<vertexRef.length; i++){
 	    
 	    // fold line when it's too long?
 	    
-            ps.print(" "+vertexRef[i][0]);
+	    out.print(' ').print(vertexRef[i][0]);
             if(writeNormal||writeTexture){
-                ps.print("/");
-                if(writeTexture) ps.print(vertexRef[i][1]);
-                ps.print("/");
-                if(writeNormal) ps.print(vertexRef[i][2]);
+		out.print('/');
+		if(writeTexture) out.print(vertexRef[i][1]);
+		out.print('/');
+		if(writeNormal) out.print(vertexRef[i][2]);
             }
         }
-        ps.println();
+	out.println();
     }
     
     
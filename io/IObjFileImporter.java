@@ -100,7 +100,56 @@ public class IObjFileImporter {
     // vertex data
     // //////////////////////
     public static class GeometricVertex extends Entity{
+	/** x, y, z, w of vertices. Data is created only when requested by getData() */
+	public double[] coords = new double[4*256];
+	public int num=0;
+	/** vertices instantiated on demand and shared by faces */
+	public IVertex[] vertices;
+	
 	public String getLabel(){ return("v"); }
+	
+	public void add(EntityData d){
+	    if(d instanceof Data){ Data v = (Data)d; add(v.x, v.y, v.z, v.w); }
+	    else add(0, 0, 0, 1); // keep index of following vertices
+	}
+	
+	public void add(double x, double y, double z, double w){
+	    if(num*4==coords.length) coords = Arrays.copyOf(coords, coords.length*2);
+	    coords[num*4] = x;
+	    coords[num*4+1] = y;
+	    coords[num*4+2] = z;
+	    coords[num*4+3] = w;
+	    num++;
+	}
+	
+	/** converting input reference number (from 1 or negative for relative number) into index from 0 */
+	public int index(int i){
+	    if(i>0){ i--; } else if(i<0){ i = num + i; }
+	    if(i<0 || i>=num) throw new IndexOutOfBoundsException("Index: "+i+", Size: "+num);
+	    return i;
+	}
+	
+	public EntityData getData(int i){
+	    i = index(i);
+	    Data d = new Data();
+	    d.index = i;
+	    d.x = coords[i*4];
+	    d.y = coords[i*4+1];
+	    d.z = coords[i*4+2];
+	    d.w = coords[i*4+3];
+	    return d;
+	}
+	
+	public EntityData getLatestData(){ return getData(num); }
+	
+	/** @param i index from 0 */
+	public IVertex vertex(int i){
+	    if(vertices==null) vertices = new IVertex[Math.max(num,16)];
+	    else if(i>=vertices.length) vertices = Arrays.copyOf(vertices, Math.max(num, vertices.length*2));
+	    if(vertices[i]==null) vertices[i] = new IVertex(coords[i*4], coords[i*4+1], coords[i*4+2]);
+	    return vertices[i];
+	}
+	
 	public EntityData parse(String[] args){
 	    if( args.length != (3+1) && args.length != (4+1) ){
 		String errMsg = "";
@@ -120,13 +169,15 @@ public class IObjFileImporter {
 	}
 	public class Data extends EntityData{
 	    public double x, y, z, w=1;
+	    public int index=-1;
 	    //IGSpatialElement vertex=null;
 	    //IObject vertex=null;
 	    public IVertex vertex=null;
 	    //public IObject getVertex(){
 	    public IVertex getVertex(){
 		if(vertex==null){
-		    vertex = new IVertex(x,y,z); 
+		    if(index>=0) vertex = vertex(index);
+		    else vertex = new IVertex(x,y,z); 
 		    
 		    //if(meshType==meshTypeTriMesh){ vertex = new IGTriMesh.Vertex(x,y,z); }
 		    //else if(meshType==meshTypeQuadMesh){ vertex = new IGQuadMesh.Vertex(x,y,z); }
@@ -139,7 +190,42 @@ public class IObjFileImporter {
     }
     
     public static class TextureVertex extends Entity{
+	/** u, v, w of texture vertices */
+	public double[] coords = new double[3*256];
+	public int num=0;
+	
 	public String getLabel(){ return("vt"); }
+	
+	public void add(EntityData d){
+	    if(d instanceof Data){ Data v = (Data)d; add(v.u, v.v, v.w); }
+	    else add(0, 0, 1);
+	}
+	
+	public void add(double u, double v, double w){
+	    if(num*3==coords.length) coords = Arrays.copyOf(coords, coords.length*2);
+	    coords[num*3] = u;
+	    coords[num*3+1] = v;
+	    coords[num*3+2] = w;
+	    num++;
+	}
+	
+	public int index(int i){
+	    if(i>0){ i--; } else if(i<0){ i = num + i; }
+	    if(i<0 || i>=num) throw new IndexOutOfBoundsException("Index: "+i+", Size: "+num);
+	    return i;
+	}
+	
+	public EntityData getData(int i){
+	    i = index(i);
+	    Data d = new Data();
+	    d.u = coords[i*3];
+	    d.v = coords[i*3+1];
+	    d.w = coords[i*3+2];
+	    return d;
+	}
+	
+	public EntityData getLatestData(){ return getData(num); }
+	
 	public EntityData parse(String[] args){
 	    if( args.length != (2+1) && args.length != (3+1) ){
 		String errMsg="";
@@ -163,7 +249,42 @@ public class IObjFileImporter {
     }
     
     public static class VertexNormal extends Entity{
+	/** x, y, z of vertex normals */
+	public double[] coords = new double[3*256];
+	public int num=0;
+	
 	public String getLabel(){ return("vn"); }
+	
+	public void add(EntityData d){
+	    if(d instanceof Data){ Data n = (Data)d; add(n.x, n.y, n.z); }
+	    else add(0, 0, 0);
+	}
+	
+	public void add(double x, double y, double z){
+	    if(num*3==coords.length) coords = Arrays.copyOf(coords, coords.length*2);
+	    coords[num*3] = x;
+	    coords[num*3+1] = y;
+	    coords[num*3+2] = z;
+	    num++;
+	}
+	
+	public int index(int i){
+	    if(i>0){ i--; } else if(i<0){ i = num + i; }
+	    if(i<0 || i>=num) throw new IndexOutOfBoundsException("Index: "+i+", Size: "+num);
+	    return i;
+	}
+	
+	public EntityData getData(int i){
+	    i = index(i);
+	    Data d = new Data();
+	    d.x = coords[i*3];
+	    d.y = coords[i*3+1];
+	    d.z = coords[i*3+2];
+	    return d;
+	}
+	
+	public EntityData getLatestData(){ return getData(num); }
+	
 	public EntityData parse(String[] args){
 	    if( args.length != (3+1) ){
 		String errMsg = "";
@@ -363,13 +484,27 @@ public class IObjFileImporter {
 	//public IObject mesh;
 	public IMesh mesh;
 	
+	/** corners of faces of the current mesh as indices (from 0) of vertices, texture vertices and normals. texture and normal indices are -1 when not specified. */
+	public int[] cornerVertex = new int[1024];
+	public int[] cornerTexture = new int[1024];
+	public int[] cornerNormal = new int[1024];
+	public int cornerNum=0;
+	/** start of corners of each face. faceStart[faceNum] is cornerNum */
+	public int[] faceStart = new int[257];
+	public int faceNum=0;
+	
+	/** serial number of mesh where each vertex is used first and last */
+	int[] vertexFirstMesh, vertexLastMesh;
+	int meshCount=0;
+	
 	public GroupName.Data group=null;
 	public void setGroup(GroupName.Data g){ group=g; }
 	public void addToGroup(IObject elem){ if(group!=null) group.add(elem); }
 	
 	
 	public String getLabel(){ return("f"); }
-	public EntityData parse(String[] args){
+	
+	public void findVertexEntities(){
 	    if(geometryVertex==null)
 		for(int i=0; i<entities.size() && geometryVertex==null; i++)
 		    if(entities.get(i) instanceof GeometricVertex)
@@ -382,72 +517,140 @@ public class IObjFileImporter {
 		for(int i=0; i<entities.size() && vertexNormal==null; i++)
 		    if(entities.get(i) instanceof VertexNormal)
 			vertexNormal = (VertexNormal)entities.get(i);
-	    
-	    
-	    //if(newface){ mesh = new IGTriMesh(); newface=false; }
-	    if(newface){
-		/*
-		if(meshType==meshTypeTriMesh) mesh = new IGTriMesh(); 
-		else if(meshType==meshTypeQuadMesh) mesh = new IGTriMesh();
-		else if(meshType==meshTypeMeshField) mesh = new MeshField();
-		else mesh = new IMesh();
-		*/
-		mesh = new IMesh(server);
-		newface=false;
-	    }
-	    
-	    
-	    Data d = new Data();
+	}
+	
+	/** faces are kept as indices until the mesh is created at resetMesh(). null is returned. */
+	public EntityData parse(String[] args){
+	    findVertexEntities();
 	    for(int i=1; i<args.length; i++){
 		String[] index = args[i].split("/");
 		try{
-		    int vnum = Integer.parseInt(index[0]);
-		    GeometricVertex.Data v =
-			(GeometricVertex.Data)geometryVertex.getData(vnum);
-		    d.vertices.add(v);
-		    
+		    int v = geometryVertex.index(Integer.parseInt(index[0]));
+		    int vt = -1, vn = -1;
 		    if( (index.length>1) && (index[1].length()>0) ){
-			int vtnum = Integer.parseInt(index[1]);
-			TextureVertex.Data vt =
-			    (TextureVertex.Data)textureVertex.getData(vtnum);
-			d.textureVertices.add(vt);
+			vt = textureVertex.index(Integer.parseInt(index[1]));
 		    }
-		    
 		    if( (index.length>2) && (index[2].length()>0) ){
-			int vnnum = Integer.parseInt(index[2]);
-			VertexNormal.Data vn =
-			    (VertexNormal.Data)vertexNormal.getData(vnnum);
-			d.vertexNormals.add(vn);
+			vn = vertexNormal.index(Integer.parseInt(index[2]));
 		    }
-		    
+		    addCorner(v, vt, vn);
 		}catch(Exception e){ e.printStackTrace(); }
 	    }
-	    /*
-	    if(meshType==meshTypeTriMesh){
-		//IGTriMesh.Face f = (IGTriMesh.Face)d.instantiate();
-		//((IGTriMesh)mesh).addFace(f);
+	    endFace();
+	    return null;
+	}
+	
+	public void add(EntityData d){ if(d!=null) super.add(d); }
+	
+	/** adding a corner of a face. indices are from 0. */
+	public void addCorner(int v, int vt, int vn){
+	    if(cornerNum==cornerVertex.length){
+		cornerVertex = Arrays.copyOf(cornerVertex, cornerNum*2);
+		cornerTexture = Arrays.copyOf(cornerTexture, cornerNum*2);
+		cornerNormal = Arrays.copyOf(cornerNormal, cornerNum*2);
 	    }
-	    else if(meshType==meshTypeQuadMesh){
-		//IGQuadMesh.Face f = (IGQuadMesh.Face)d.instantiate();
-		//((IGQuadMesh)mesh).addFace(f);
+	    cornerVertex[cornerNum] = v;
+	    cornerTexture[cornerNum] = vt;
+	    cornerNormal[cornerNum] = vn;
+	    cornerNum++;
+	}
+	
+	/** closing corners added after the last face as a face */
+	public void endFace(){
+	    if(cornerNum==faceStart[faceNum]) return; // no corner
+	    if(faceNum+1==faceStart.length) faceStart = Arrays.copyOf(faceStart, faceStart.length*2);
+	    faceNum++;
+	    faceStart[faceNum] = cornerNum;
+	    newface=false;
+	}
+	
+	/** instantiating faces kept as indices into a mesh */
+	public IMesh createMesh(){
+	    if(faceNum==0) return null;
+	    
+	    meshCount++;
+	    int vnum = geometryVertex.num;
+	    if(vertexLastMesh==null){
+		vertexFirstMesh = new int[vnum];
+		vertexLastMesh = new int[vnum];
 	    }
-	    else if(meshType==meshTypeMeshField){
-		//MeshField.Face f = (MeshField.Face)d.instantiate();
-		//((MeshField)mesh).addFace(f);
+	    else if(vertexLastMesh.length<vnum){
+		vertexFirstMesh = Arrays.copyOf(vertexFirstMesh, vnum);
+		vertexLastMesh = Arrays.copyOf(vertexLastMesh, vnum);
 	    }
-	    else{
-		//IFace f = (IFace)d.instantiate();
-		//((IMesh)mesh).addFace(f);
+	    
+	    ArrayList<IVertex> vertices = new ArrayList<IVertex>();
+	    ArrayList<IEdge> edges = new ArrayList<IEdge>();
+	    ArrayList<IFace> faces = new ArrayList<IFace>(faceNum);
+	    // edges between vertices used in previous meshes can be already there
+	    HashSet<IEdge> sharedEdges = null;
+	    
+	    for(int f=0; f<faceNum; f++){
+		int start = faceStart[f];
+		int num = faceStart[f+1]-start;
+		
+		boolean texture = true, normal = true; // only when all corners have them
+		for(int i=start; i<start+num; i++){
+		    if(cornerTexture[i]<0) texture=false;
+		    if(cornerNormal[i]<0) normal=false;
+		}
+		
+		IVertex[] vtx = new IVertex[num];
+		for(int i=0; i<num; i++){
+		    int vi = cornerVertex[start+i];
+		    vtx[i] = geometryVertex.vertex(vi);
+		    if(vertexLastMesh[vi]!=meshCount){
+			vertexLastMesh[vi] = meshCount;
+			if(vertexFirstMesh[vi]==0) vertexFirstMesh[vi] = meshCount;
+			vertices.add(vtx[i]);
+		    }
+		    if(texture){
+			int ti = cornerTexture[start+i]*3;
+			vtx[i].texture(textureVertex.coords[ti], textureVertex.coords[ti+1]);
+		    }
+		    if(normal){
+			int ni = cornerNormal[start+i]*3;
+			vtx[i].setNormal(new IVec(vertexNormal.coords[ni], vertexNormal.coords[ni+1], vertexNormal.coords[ni+2]));
+		    }
+		}
+		
+		IEdge[] edg = new IEdge[num];
+		for(int i=0; i<num; i++){
+		    int j = (i+1)%num;
+		    boolean shared = vertexFirstMesh[cornerVertex[start+i]]<meshCount &&
+			vertexFirstMesh[cornerVertex[start+j]]<meshCount;
+		    IEdge e = vtx[i].getEdgeTo(vtx[j]);
+		    if(e==null){
+			e = new IEdge(vtx[i], vtx[j]);
+			edges.add(e);
+			if(shared){
+			    if(sharedEdges==null) sharedEdges = new HashSet<IEdge>();
+			    sharedEdges.add(e);
+			}
+		    }
+		    else if(shared){
+			if(sharedEdges==null) sharedEdges = new HashSet<IEdge>();
+			if(sharedEdges.add(e)) edges.add(e);
+		    }
+		    edg[i] = e;
+		}
+		faces.add(new IFace(edg));
 	    }
-	    */
-	    IFace f = d.instantiate();
-	    mesh.addFace(f);
 	    
-	    return d;
+	    cornerNum=0;
+	    faceNum=0;
+	    
+	    return new IMesh(server, new IMeshGeo(vertices, edges, faces));
+	}
+	
+	/** instantiating the current mesh if it's not yet. */
+	public void flushMesh(){
+	    if(mesh==null) mesh = createMesh();
 	}
 	
 	public void resetMesh(){
 	    newface=true; 
+	    flushMesh();
 	    if(mesh!=null) addToGroup(mesh);
 	    mesh=null;
 	}
@@ -1228,6 +1431,358 @@ public class IObjFileImporter {
     }
     
 
+    /**
+       Streaming tokenizer reading lines of OBJ file from bytes.
+       A line is kept in a reused byte buffer and tokens are parsed from it
+       without creating strings. Lines ending with backslash are joined.
+    */
+    public static class Tokenizer{
+	public InputStream stream;
+	public byte[] buf = new byte[1<<16];
+	public int bufLen=0, bufPos=0;
+	/** current line */
+	public byte[] line = new byte[256];
+	public int lineLen=0;
+	/** position in the current line */
+	public int pos=0;
+	
+	static final double[] pow10 = new double[23];
+	static{ pow10[0]=1; for(int i=1; i<pow10.length; i++) pow10[i] = pow10[i-1]*10; }
+	
+	public Tokenizer(InputStream is){ stream = is; }
+	
+	int readByte() throws IOException{
+	    if(bufPos==bufLen){
+		bufLen = stream.read(buf, 0, buf.length);
+		bufPos = 0;
+		if(bufLen<=0){ bufLen=0; return -1; }
+	    }
+	    return buf[bufPos++]&0xFF;
+	}
+	
+	void append(int c){
+	    if(lineLen==line.length) line = Arrays.copyOf(line, lineLen*2);
+	    line[lineLen++] = (byte)c;
+	}
+	
+	/** reading next line. @return false at the end of stream */
+	public boolean nextLine() throws IOException{
+	    lineLen=0;
+	    pos=0;
+	    int c = readByte();
+	    if(c<0) return false;
+	    while(c>=0 && c!='\n'){
+		if(c!='\r') append(c);
+		c = readByte();
+		if(c=='\n' && lineLen>0 && line[lineLen-1]=='\\'){ // continued line
+		    lineLen--;
+		    c = readByte();
+		}
+	    }
+	    return true;
+	}
+	
+	public String lineString(){ return new String(line, 0, lineLen); }
+	
+	static boolean isSpace(int c){ return c==' ' || c=='\t'; }
+	
+	/** skipping spaces. @return true if a token follows */
+	public boolean hasToken(){
+	    while(pos<lineLen && isSpace(line[pos])) pos++;
+	    return pos<lineLen;
+	}
+	
+	/** checking if the next token is the keyword and consuming it if so */
+	public boolean keyword(String key){
+	    int len = key.length();
+	    if(pos+len>lineLen) return false;
+	    for(int i=0; i<len; i++) if(line[pos+i]!=key.charAt(i)) return false;
+	    if(pos+len<lineLen && !isSpace(line[pos+len])) return false;
+	    pos += len;
+	    return true;
+	}
+	
+	int tokenEnd(){
+	    int end=pos;
+	    while(end<lineLen && !isSpace(line[end])) end++;
+	    return end;
+	}
+	
+	public double nextDouble(){
+	    int start=pos, end=tokenEnd();
+	    int i=start;
+	    boolean negative=false;
+	    if(i<end && (line[i]=='-' || line[i]=='+')){ negative = line[i]=='-'; i++; }
+	    long mantissa=0;
+	    int digits=0, exp=0;
+	    boolean valid=false;
+	    while(i<end && line[i]>='0' && line[i]<='9'){
+		if(digits<18){ mantissa = mantissa*10 + (line[i]-'0'); if(mantissa>0) digits++; }
+		else exp++;
+		i++; valid=true;
+	    }
+	    if(i<end && line[i]=='.'){
+		i++;
+		while(i<end && line[i]>='0' && line[i]<='9'){
+		    if(digits<18){ mantissa = mantissa*10 + (line[i]-'0'); if(mantissa>0) digits++; exp--; }
+		    i++; valid=true;
+		}
+	    }
+	    if(valid && i<end && (line[i]=='e' || line[i]=='E')){
+		i++;
+		boolean negExp=false;
+		if(i<end && (line[i]=='-' || line[i]=='+')){ negExp = line[i]=='-'; i++; }
+		int e=0;
+		boolean validExp=false;
+		while(i<end && line[i]>='0' && line[i]<='9'){
+		    if(e<100000) e = e*10 + (line[i]-'0');
+		    i++; validExp=true;
+		}
+		if(!validExp) valid=false;
+		exp += negExp?-e:e;
+	    }
+	    pos = end;
+	    // exact when mantissa and power of 10 are both exact in double
+	    if(valid && i==end && mantissa < (1L<<53) && exp>=-22 && exp<=22){
+		double d = mantissa;
+		d = exp>=0 ? d*pow10[exp] : d/pow10[-exp];
+		return negative?-d:d;
+	    }
+	    return Double.parseDouble(new String(line, start, end-start));
+	}
+	
+	/** reading an integer till a space or a slash */
+	public int nextInt(){
+	    int start=pos;
+	    boolean negative=false;
+	    if(pos<lineLen && (line[pos]=='-' || line[pos]=='+')){ negative = line[pos]=='-'; pos++; }
+	    long val=0;
+	    int digitStart=pos;
+	    while(pos<lineLen && line[pos]>='0' && line[pos]<='9' && val<=Integer.MAX_VALUE){
+		val = val*10 + (line[pos]-'0');
+		pos++;
+	    }
+	    if(pos==digitStart || val>Integer.MAX_VALUE ||
+	       (pos<lineLen && !isSpace(line[pos]) && line[pos]!='/')){
+		int end=tokenEnd();
+		while(end>pos && line[end-1]=='/') end--;
+		String str = new String(line, start, Math.max(end,pos)-start);
+		pos = tokenEnd();
+		throw new NumberFormatException("For input string: \""+str+"\"");
+	    }
+	    return (int)(negative?-val:val);
+	}
+	
+	/** checking if a slash follows and consuming it */
+	public boolean slash(){
+	    if(pos<lineLen && line[pos]=='/'){ pos++; return true; }
+	    return false;
+	}
+	
+	/** checking if the current token ended */
+	public boolean tokenEnded(){ return pos>=lineLen || isSpace(line[pos]); }
+	
+	public void skipToken(){ pos = tokenEnd(); }
+    }
+    
+    
+    /**
+       Processor of lines keeping state between lines of a file.
+    */
+    public static class Processor{
+	public ArrayList<IObject> createdObjects;
+	public ArrayList<Entity> entityProcessors;
+	public Face faceProcessor;
+	public GeometricVertex vertexProcessor;
+	public TextureVertex textureProcessor;
+	public VertexNormal normalProcessor;
+	
+	public GroupName.Data currentGroup=null;
+	public ParametricGeometryData currentGeometry=null;
+	
+	public Processor(IServerI server){
+	    createdObjects = new ArrayList<IObject>();
+	    entityProcessors = init(server, createdObjects);
+	    
+	    // assume sequential creation of face means they are in one mesh
+	    for(int i=0; i<entityProcessors.size(); i++){
+		Entity e = entityProcessors.get(i);
+		if(e instanceof Face) faceProcessor = (Face)e;
+		else if(e instanceof GeometricVertex) vertexProcessor = (GeometricVertex)e;
+		else if(e instanceof TextureVertex) textureProcessor = (TextureVertex)e;
+		else if(e instanceof VertexNormal) normalProcessor = (VertexNormal)e;
+	    }
+	    faceProcessor.findVertexEntities();
+	}
+	
+	/** processing a line as a string */
+	public void process(String line){
+	    
+	    Entity currentEntity=null;
+	    
+	    String label = (line.split(" +"))[0]; 
+	    for(int i=0; i<entityProcessors.size()&&currentEntity==null; i++){
+		Entity e = entityProcessors.get(i);
+		if(label.equals(e.getLabel())) currentEntity = e;
+		//if(line.startsWith(e.getLabel())) currentEntity = e;
+	    }
+	    
+	    if(currentEntity!=null){
+		
+		beginEntity(currentEntity);
+		
+		currentEntity.read(line);
+		
+		postProcess(currentEntity);
+	    }
+	}
+	
+	/** processing the current line of tokenizer. vertices and faces are parsed directly from bytes. */
+	public void process(Tokenizer t){
+	    if(!t.hasToken()) return;
+	    
+	    if(t.keyword("v")){ beginEntity(vertexProcessor); readVertex(t); postProcess(vertexProcessor); }
+	    else if(t.keyword("f")){ readFace(t); postProcess(faceProcessor); }
+	    else if(t.keyword("vt")){ beginEntity(textureProcessor); readTextureVertex(t); postProcess(textureProcessor); }
+	    else if(t.keyword("vn")){ beginEntity(normalProcessor); readVertexNormal(t); postProcess(normalProcessor); }
+	    else if(t.pos==0) process(t.lineString());
+	}
+	
+	public void readVertex(Tokenizer t){
+	    double x=0, y=0, z=0, w=1;
+	    int n=0;
+	    try{
+		for(; t.hasToken(); n++){
+		    if(n==0) x = t.nextDouble();
+		    else if(n==1) y = t.nextDouble();
+		    else if(n==2) z = t.nextDouble();
+		    else if(n==3) w = t.nextDouble();
+		    else t.skipToken();
+		}
+	    }catch(NumberFormatException e){ e.printStackTrace(); }
+	    if(n!=3 && n!=4){ IOut.err("wrong number of arguments ("+(n+1)+" )"+t.lineString()); }
+	    vertexProcessor.add(x, y, z, w);
+	}
+	
+	public void readTextureVertex(Tokenizer t){
+	    double u=0, v=0, w=1;
+	    int n=0;
+	    try{
+		for(; t.hasToken(); n++){
+		    if(n==0) u = t.nextDouble();
+		    else if(n==1) v = t.nextDouble();
+		    else if(n==2) w = t.nextDouble();
+		    else t.skipToken();
+		}
+	    }catch(NumberFormatException e){ e.printStackTrace(); }
+	    if(n!=2 && n!=3){ IOut.err("wrong number of arguments; args.length="+(n+1)+": "+t.lineString()); }
+	    textureProcessor.add(u, v, w);
+	}
+	
+	public void readVertexNormal(Tokenizer t){
+	    double x=0, y=0, z=0;
+	    int n=0;
+	    try{
+		for(; t.hasToken(); n++){
+		    if(n==0) x = t.nextDouble();
+		    else if(n==1) y = t.nextDouble();
+		    else if(n==2) z = t.nextDouble();
+		    else t.skipToken();
+		}
+	    }catch(NumberFormatException e){ e.printStackTrace(); }
+	    if(n!=3){ IOut.err("wrong number of arguments; args.length="+(n+1)+": "+t.lineString()); }
+	    normalProcessor.add(x, y, z);
+	}
+	
+	public void readFace(Tokenizer t){
+	    while(t.hasToken()){
+		try{
+		    int v = vertexProcessor.index(t.nextInt());
+		    int vt = -1, vn = -1;
+		    if(t.slash()){
+			if(!t.tokenEnded() && t.line[t.pos]!='/') vt = textureProcessor.index(t.nextInt());
+			if(t.slash() && !t.tokenEnded()) vn = normalProcessor.index(t.nextInt());
+		    }
+		    faceProcessor.addCorner(v, vt, vn);
+		}catch(Exception e){ e.printStackTrace(); }
+		t.skipToken();
+	    }
+	    faceProcessor.endFace();
+	}
+	
+	/** a mesh is put in the server before objects of following lines */
+	public void beginEntity(Entity currentEntity){
+	    if(currentEntity != faceProcessor && faceProcessor.creatingMesh()){
+		faceProcessor.flushMesh();
+	    }
+	}
+	
+	public void postProcess(Entity currentEntity){
+	    // post process
+	    if(currentEntity instanceof GroupName){
+		currentGroup = (GroupName.Data)currentEntity.getLatestData();
+	    }
+	    else if(currentEntity instanceof Curve){
+		currentGeometry =
+		    (ParametricGeometryData)currentEntity.getLatestData();
+	    }
+	    
+	    else if(currentEntity instanceof Curve2D){
+		currentGeometry =
+		    (ParametricGeometryData)currentEntity.getLatestData();
+	    }
+	    else if(currentEntity instanceof Surface){
+		currentGeometry =
+		    (ParametricGeometryData)currentEntity.getLatestData();
+	    }
+	    else if(currentEntity instanceof CurveType){
+		currentGeometry=null; // reset for next parametric geometry
+	    }
+	    else if(currentEntity instanceof EndStatement){
+		if(currentGeometry!=null){
+		// curve2d is instantiated later in surface
+		if(!(currentGeometry instanceof Curve2D.Data)){
+		    if(currentGroup!=null) currentGeometry.setGroup(currentGroup);
+		    currentGeometry.instantiate();
+		    currentGeometry = null;
+		}
+		}
+		else{
+		IOut.err("no correspondent statement to end statement"); //
+		}
+	    }
+	    else if(currentEntity instanceof Degree){
+		if(currentGeometry!=null){
+		currentGeometry.setDegree((Degree.Data)currentEntity.getLatestData());
+		}
+	    }
+	    else if(currentEntity instanceof Parameter){
+		currentGeometry.setKnots((Parameter.Data)currentEntity.getLatestData());
+	    }
+	    else if(currentEntity instanceof InnerTrimmingLoop &&
+		currentGeometry instanceof Surface.Data ){
+		((Surface.Data)currentGeometry).setInnerTrimmingLoop((InnerTrimmingLoop.Data)currentEntity.getLatestData());
+	    }
+	    else if(currentEntity instanceof OuterTrimmingLoop &&
+		currentGeometry instanceof Surface.Data ){
+		((Surface.Data)currentGeometry).setOuterTrimmingLoop((OuterTrimmingLoop.Data)currentEntity.getLatestData());
+	    }
+	    
+	    if(currentEntity != faceProcessor){
+		endMesh();
+	    }
+	}
+	
+	/** instantiating a mesh out of faces read so far */
+	public void endMesh(){
+	    if(faceProcessor.creatingMesh()){
+		if(currentGroup!=null) faceProcessor.setGroup(currentGroup);
+		faceProcessor.resetMesh();
+	    }
+	}
+    }
+    
+    
     /**
        Reading an OBJ file and creating objects in a server.
        The main entry of the importer class.
@@ -1236,7 +1791,12 @@ public class IObjFileImporter {
        @return ArrayList of created IObject.
     */
     static public ArrayList<IObject> read(File file, IServerI server){
-        try{ return IObjFileImporter.read(new FileReader(file), server); }
+	try{
+	    FileInputStream fis = new FileInputStream(file);
+	    ArrayList<IObject> retval = IObjFileImporter.read(fis, server);
+	    fis.close();
+	    return retval;
+	}
         catch(IOException e){ e.printStackTrace(); }
 	return null; 
     }
@@ -1244,12 +1804,27 @@ public class IObjFileImporter {
     /**
        Reading an OBJ file and creating objects in a server.
        The main entry of the importer class.
+       Lines are tokenized from bytes and vertices and faces are kept in primitive arrays until meshes are created.
        @param stream An input stream.
        @param server A server interface to put imported objects in. 
        @return ArrayList of created IObject.
     */
     static public ArrayList<IObject> read(InputStream stream, IServerI server){
-        return IObjFileImporter.read(new InputStreamReader(stream), server);
+	
+	Processor processor = new Processor(server);
+	Tokenizer tokenizer = new Tokenizer(stream);
+	
+	try {
+	    synchronized(IG.lock){
+		while(tokenizer.nextLine()){ processor.process(tokenizer); }
+		processor.endMesh();
+	    }
+	}catch(IOException e) {
+	    e.printStackTrace();
+	}
+	
+	IOut.debug(0,"reading complete"); //
+	return(processor.createdObjects);
     }
     
     /**
@@ -1262,21 +1837,11 @@ public class IObjFileImporter {
 	
 	BufferedReader reader = null;
 	
-	ArrayList<IObject> createdObjects = new ArrayList<IObject>();
-	ArrayList<Entity> entityProcessors = init(server, createdObjects);
-	
-	// assume sequential creation of face means they are in one mesh
-	Face faceProcessor=null;
-	for(int i=0; i<entityProcessors.size() && faceProcessor==null; i++)
-	    if(entityProcessors.get(i) instanceof Face)
-		faceProcessor = (Face)entityProcessors.get(i);
+	Processor processor = new Processor(server);
 	
 	try {
 	    reader = new BufferedReader(filereader);
-	    String line, line2;
-	    
-	    GroupName.Data currentGroup=null;
-	    ParametricGeometryData currentGeometry=null;
+	    String line;
 	    
 	    synchronized(IG.lock){
 		
@@ -1284,78 +1849,10 @@ public class IObjFileImporter {
 		    
 		    //IOut.print("."); //
 		    
-		    Entity currentEntity=null;
-		    
-		    for(int i=0; i<entityProcessors.size()&&currentEntity==null; i++){
-			Entity e = entityProcessors.get(i);
-			if((line.split(" +"))[0].equals(e.getLabel())) currentEntity = e; // better split beforehand?
-			//if(line.startsWith(e.getLabel())) currentEntity = e;
-		    }
-		    
-		    if(currentEntity!=null){
-			
-			currentEntity.read(line);
-			
-			// post process
-			if(currentEntity instanceof GroupName){
-			    currentGroup = (GroupName.Data)currentEntity.getLatestData();
-			}
-			else if(currentEntity instanceof Curve){
-			    currentGeometry =
-				(ParametricGeometryData)currentEntity.getLatestData();
-			}
-			
-			else if(currentEntity instanceof Curve2D){
-			    currentGeometry =
-				(ParametricGeometryData)currentEntity.getLatestData();
-			}
-			else if(currentEntity instanceof Surface){
-			    currentGeometry =
-				(ParametricGeometryData)currentEntity.getLatestData();
-			}
-			else if(currentEntity instanceof CurveType){
-			    currentGeometry=null; // reset for next parametric geometry
-			}
-			else if(currentEntity instanceof EndStatement){
-			    if(currentGeometry!=null){
-				// curve2d is instantiated later in surface
-				if(!(currentGeometry instanceof Curve2D.Data)){
-				    if(currentGroup!=null) currentGeometry.setGroup(currentGroup);
-				    currentGeometry.instantiate();
-				    currentGeometry = null;
-				}
-			    }
-			    else{
-				IOut.err("no correspondent statement to end statement"); //
-			    }
-			}
-			else if(currentEntity instanceof Degree){
-			    if(currentGeometry!=null){
-				currentGeometry.setDegree((Degree.Data)currentEntity.getLatestData());
-			    }
-			}
-			else if(currentEntity instanceof Parameter){
-			    currentGeometry.setKnots((Parameter.Data)currentEntity.getLatestData());
-			}
-			else if(currentEntity instanceof InnerTrimmingLoop &&
-				currentGeometry instanceof Surface.Data ){
-			    ((Surface.Data)currentGeometry).setInnerTrimmingLoop((InnerTrimmingLoop.Data)currentEntity.getLatestData());
-			}
-			else if(currentEntity instanceof OuterTrimmingLoop &&
-				currentGeometry instanceof Surface.Data ){
-			    ((Surface.Data)currentGeometry).setOuterTrimmingLoop((OuterTrimmingLoop.Data)currentEntity.getLatestData());
-			}
-			
-			if(currentEntity != faceProcessor){
-			    if(faceProcessor.creatingMesh()){
-				if(currentGroup!=null) faceProcessor.setGroup(currentGroup);
-				faceProcessor.resetMesh();
-			    }
-			}
-			
-		    }
+		    processor.process(line);
 		    
 		}
+		processor.endMesh();
 		
 	    }
 	    
@@ -1370,7 +1867,7 @@ public class IObjFileImporter {
 	}
 	
 	IOut.debug(0,"reading complete"); //
-	return(createdObjects);
+	return(processor.createdObjects);
     }
     
     /*
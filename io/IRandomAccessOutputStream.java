@@ -23,75 +23,105 @@
 package igeo.io;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 import java.util.ArrayList;
 
 import igeo.*;
 
 /**
-   Byte Output Stream keeping byte framgents as fragments never integrating into one buffer
+   Output stream to a file which can write back to a previous position.
+   Bytes are buffered in a direct buffer and written through the file channel.
+   Direct buffers are pooled and reused by next streams.
    
    @author Satoru Sugihara
 */
 public class IRandomAccessOutputStream extends OutputStream{
+    /** size of direct buffer to write through the file channel */
+    public static int bufferSize = 1<<20; // 1MB
+    
+    static ArrayList<ByteBuffer> bufferPool = new ArrayList<ByteBuffer>();
+    
     public RandomAccessFile file;
+    public FileChannel channel;
+    public ByteBuffer buffer;
+    /** file position of the beginning of the buffer */
+    public long bufferStart;
     
-    public IRandomAccessOutputStream(String f) throws IOException{
-	file = new RandomAccessFile(new File(f), "rw");
-    }
+    public IRandomAccessOutputStream(String f) throws IOException{ this(new File(f)); }
     
     public IRandomAccessOutputStream(File f) throws IOException{
 	file = new RandomAccessFile(f, "rw");
+	file.setLength(0); // an old longer file would leave its tail
+	channel = file.getChannel();
+	buffer = getBuffer();
+	bufferStart = 0;
     }
     
-    public void write(byte[] b)throws IOException{ 
-	final int maxBuf = 5000000; //5MB //10000000; // 10MB // added 2012/09/02
-	try{
-	    if(b.length>maxBuf){
-		for(int i=0; i*maxBuf < b.length; i++){
-		    file.write(b, i*maxBuf, (b.length-i*maxBuf>maxBuf)?maxBuf:(b.length-i*maxBuf));
-		}
-	    }
-	    else{
-		file.write(b); 
-	    }
-	}
-	catch(OutOfMemoryError e){
-	    IOut.err("write buffer size = "+b.length); //
-	    e.printStackTrace();
-	    throw e;
-	}
-	catch(IOException e){
-	    throw e;
+    static synchronized ByteBuffer getBuffer(){
+	for(int i=bufferPool.size()-1; i>=0; i--){
+	    ByteBuffer b = bufferPool.remove(i);
+	    if(b.capacity()==bufferSize){ b.clear(); return b; }
 	}
+	return ByteBuffer.allocateDirect(bufferSize);
     }
     
-    public void write(byte[] b, int off, int len)throws IOException{ file.write(b,off,len); }
+    static synchronized void releaseBuffer(ByteBuffer b){ bufferPool.add(b); }
     
-    public void write(int i)throws IOException{ file.write(i); }
+    void flushBuffer()throws IOException{
+	buffer.flip();
+	while(buffer.hasRemaining()) bufferStart += channel.write(buffer);
+	buffer.clear();
+    }
     
-    public void seek(long l)throws IOException{ file.seek(l); }
+    public void write(byte[] b)throws IOException{ write(b, 0, b.length); }
     
-    public long pointer()throws IOException{ return file.getFilePointer(); }
+    public void write(byte[] b, int off, int len)throws IOException{
+	while(len>0){
+	    if(!buffer.hasRemaining()) flushBuffer();
+	    int n = Math.min(len, buffer.remaining());
+	    buffer.put(b, off, n);
+	    off+=n;
+	    len-=n;
+	}
+    }
     
-    public void close()throws IOException{ file.close(); }
+    public void write(int i)throws IOException{
+	if(!buffer.hasRemaining()) flushBuffer();
+	buffer.put((byte)i);
+    }
     
-/*
-    public byte[] toByteArray(){
-	int len = length();
-	byte[] buf = new byte[len];
-	for(int i=0, idx=0; i<bytes.size(); i++){
-	    byte[] b = (byte[])bytes.get(i);
-	    for(int j=0; j<b.length; j++,idx++) buf[idx] = b[j];
+    /** writing bytes at a previous position without moving the current position */
+    public void write(long pos, byte[] b)throws IOException{
+	if(pos>=bufferStart){
+	    for(int i=0; i<b.length; i++) buffer.put((int)(pos-bufferStart)+i, b[i]);
+	}
+	else if(pos+b.length>bufferStart){ // over the boundary of the buffer
+	    flushBuffer();
+	    channel.write(ByteBuffer.wrap(b), pos);
+	}
+	else{
+	    channel.write(ByteBuffer.wrap(b), pos);
 	}
-	return buf;
     }
     
-    public int length(){
-	if(bytes==null) return 0;
-	int len = 0;
-	for(int i=0; i<bytes.size(); i++) len+=bytes.get(i).length;
-	return len;
+    public void seek(long l)throws IOException{
+	flushBuffer();
+	channel.position(l);
+	bufferStart = l;
+    }
+    
+    public long pointer()throws IOException{ return bufferStart + buffer.position(); }
+    
+    public void flush()throws IOException{ flushBuffer(); }
+    
+    public void close()throws IOException{
+	if(buffer!=null){
+	    flushBuffer();
+	    releaseBuffer(buffer);
+	    buffer=null;
+	}
+	file.close();
     }
-*/
     
 }
@@ -41,6 +41,7 @@ import igeo.gui.*;
 import java.io.*;
 import java.util.*;
 import java.util.zip.CRC32;
+import java.nio.ByteBuffer;
 //import java.awt.Color;
 
 import static igeo.io.IRhino3dmImporter.*;
@@ -572,6 +573,9 @@ public class IRhino3dm{
 	
 	public ArrayList<byte[]> contents = null; // for test. not really used yet
 	
+	/** content as a slice of a memory-mapped file when read by IRhino3dmImporter from a file channel. content is copied out of it only when requested by content() */
+	public ByteBuffer buffer = null;
+	
 	public CRC32 crc;
 	
 	//boolean enableCRC=true; //false;
@@ -584,6 +588,11 @@ public class IRhino3dm{
 	    header = h; body = b; content = c; this.crc = crc;
 	}
 	
+	/** chunk whose content is a slice of a buffer. CRC is not computed for this chunk. */
+	public Chunk(int h, int b, ByteBuffer buf){
+	    header = h; body = b; buffer = buf;
+	}
+	
 	//Chunk(byte[] h, byte[] b, byte[] c){
 	public Chunk(int h, int b, byte[] c){
 	    header = h; body = b; content = c;
@@ -703,6 +712,28 @@ public class IRhino3dm{
 	    return b;
 	}
 	
+	public boolean hasContent(){ return content!=null || buffer!=null; }
+	
+	/** content as a byte array. buffer content is copied out only for this chunk, not for outer chunks. */
+	public byte[] content(){
+	    if(content==null && buffer!=null){
+		ByteBuffer buf = buffer.duplicate();
+		byte[] b = new byte[buf.remaining()];
+		buf.get(b);
+		return b;
+	    }
+	    return content;
+	}
+	
+	/** input stream to read content. buffer content is read without copy. */
+	public InputStream stream(){
+	    if(buffer!=null){
+		ByteBuffer buf = buffer.duplicate();
+		return new IByteBufferInputStream(buf);
+	    }
+	    return new ByteArrayInputStream(content);
+	}
+	
 	public boolean isShort(){
 	    final int shortChunkMask = 0x80000000;
 	    return (header & shortChunkMask) != 0;
@@ -804,9 +835,7 @@ public class IRhino3dm{
 	    if(doCRC()) writeInt32(ros,getCRC(),null); // ever do this?
 	    long currentPointer = ros.pointer();
 	    body = (int)(currentPointer - bodyPointer - 4); // excludes 4byte of body itself
-	    ros.seek(bodyPointer);
-	    writeInt32(ros,body,null); // seek and write the length of content
-	    ros.seek(currentPointer);
+	    ros.write(bodyPointer, itob(body)); // write back the length of content
 	}
 	
 	
@@ -1308,6 +1337,9 @@ public class IRhino3dm{
 	
 	public IObject createIObject(Rhino3dmFile context, IServerI s){ return null; } // instantiate for igeo
 	
+	/** creating geometry used by createIObject in advance. this is called in parallel threads by the importer and shouldn't touch a server. */
+	public void prepareIObject(Rhino3dmFile context){}
+	
 	public void setAttributesToIObject(Rhino3dmFile context, IObject e){
 	    if(attributes==null){
 		IOut.err("no attributes is set");
@@ -1437,11 +1469,11 @@ public class IRhino3dm{
 		// v4 material
 		
 		Chunk ck = readChunk(is);
-		if(ck.content==null){
+		if(!ck.hasContent()){
 		    IOut.err("chunk content is null"); //
 		    throw new IOException("chunk content is null");
 		}
-		ByteArrayInputStream bais = new ByteArrayInputStream(ck.content);
+		InputStream bais = ck.stream();
 		majorVersion = readInt(bais);
 		minorVersion = readInt(bais);
 		
@@ -1488,11 +1520,11 @@ public class IRhino3dm{
 		
 		
 		Chunk textureChunk = readChunk(bais);
-		if(ck.content==null){
+		if(!ck.hasContent()){
 		    IOut.err("chunk content is null"); //
 		    throw new IOException("chunk content is null");
 		}
-		ByteArrayInputStream tis = new ByteArrayInputStream(textureChunk.content);
+		InputStream tis = textureChunk.stream();
 		
 		int textureMajorVersion = readInt(tis);
 		int textureMinorVersion = readInt(tis);
@@ -1677,11 +1709,11 @@ public class IRhino3dm{
 	
 	public void read(Rhino3dmFile context, InputStream is) throws IOException{
 	    Chunk ck = readChunk(is);
-	    if(ck.content==null){
+	    if(!ck.hasContent()){
 		IOut.err("chunk content is null"); //
 		throw new IOException("chunk content is null");
 	    }
-	    ByteArrayInputStream bais = new ByteArrayInputStream(ck.content);
+	    InputStream bais = ck.stream();
 	    int majorVersion = readInt(bais);
 	    int minorVersion = readInt(bais);
 	    if(majorVersion!=1){
@@ -1735,11 +1767,11 @@ public class IRhino3dm{
 	
 	public void read(Rhino3dmFile context, InputStream is) throws IOException{
 	    Chunk ck = readChunk(is);
-	    if(ck.content==null){
+	    if(!ck.hasContent()){
 		IOut.err("chunk content is null"); //
 		throw new IOException("chunk content is null");
 	    }
-	    ByteArrayInputStream bais = new ByteArrayInputStream(ck.content);
+	    InputStream bais = ck.stream();
 	    int majorVersion = readInt(bais);
 	    int minorVersion = readInt(bais);
 	    if(majorVersion!=1){
@@ -1804,13 +1836,13 @@ public class IRhino3dm{
 	    
 	    Chunk chunk = readChunk(is);
 
-	    //if(chunk.content==null){
-	    if(chunk==null || chunk.content==null){ // chunk==null added 20121122
+	    //if(!chunk.hasContent()){
+	    if(chunk==null || !chunk.hasContent()){ // chunk==null added 20121122
 		IOut.err("no chunk content"); //
 		throw new IOException("no chunk content"); 
 	    }
 	    
-	    ByteArrayInputStream bais = new ByteArrayInputStream(chunk.content);
+	    InputStream bais = chunk.stream();
 	    int majorVersion = readInt(bais);
 	    int minorVersion = readInt(bais);
 	    if(majorVersion!=1)
@@ -1886,11 +1918,11 @@ public class IRhino3dm{
 	public byte[] revisionHistory;
 	
 	public void setOpenNurbsVersion(Chunk c){ openNurbsVersion=c.body; }
-	public void setNotes(Chunk c){ notes=c.content; }
-	public void setPreviewImage(Chunk c){ previewImage=c.content; }
-	public void setApplication(Chunk c){ application=c.content; }
-	public void setCompressedPreviewImage(Chunk c){ compressedPreviewImage=c.content; }
-	public void setRevisionHistory(Chunk c){ revisionHistory=c.content; }
+	public void setNotes(Chunk c){ notes=c.content(); }
+	public void setPreviewImage(Chunk c){ previewImage=c.content(); }
+	public void setApplication(Chunk c){ application=c.content(); }
+	public void setCompressedPreviewImage(Chunk c){ compressedPreviewImage=c.content(); }
+	public void setRevisionHistory(Chunk c){ revisionHistory=c.content(); }
     }
 
 
@@ -2200,7 +2232,7 @@ public class IRhino3dm{
 	    Chunk chunk = readChunk(is);
 	    if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
 	    
-	    is = new ByteArrayInputStream(chunk.content);
+	    is = chunk.stream();
 	    int[] version = readChunkVersion(is);
 	    int majorVersion = version[0];
 	    int minorVersion = version[1];
@@ -2350,7 +2382,7 @@ public class IRhino3dm{
 	public void setUnitsAndTols(Rhino3dmFile file, Chunk c) throws IOException{
 	    //IOut.p("setUnitsAndTols: " + c);
 	    
-	    ByteArrayInputStream bais = new ByteArrayInputStream(c.content);
+	    InputStream bais = c.stream();
 	    
 	    unitsAndTolerances = new UnitsAndTolerances(file.server.server());
 	    unitsAndTolerances.read(file, bais);
@@ -3324,7 +3356,7 @@ public class IRhino3dm{
 	    if(context.version >= 5 && context.openNurbsVersion >= 200710180){
 		Chunk chunk = readChunk(is);
 		if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-		is = new ByteArrayInputStream(chunk.content);
+		is = chunk.stream();
 		
 		
 	    }
@@ -3650,7 +3682,7 @@ public class IRhino3dm{
 		
 		Chunk chunk = readChunk(is);
 		if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-		is = new ByteArrayInputStream(chunk.content);
+		is = chunk.stream();
 		super.read(context,is);
 	    }
 	    else{
@@ -4420,7 +4452,7 @@ public class IRhino3dm{
 	public void read(Rhino3dmFile context, InputStream is)throws IOException{
 	    Chunk chunk = readChunk(is);
 	    if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-	    is = new ByteArrayInputStream(chunk.content);
+	    is = chunk.stream();
 	    int[] version = readChunkVersion(is);
 	    int majorVersion = version[0];
 	    int minorVersion = version[1];
@@ -4468,7 +4500,7 @@ public class IRhino3dm{
 	public void read(Rhino3dmFile context, InputStream is)throws IOException{
 	    Chunk chunk = readChunk(is);
 	    if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-	    is = new ByteArrayInputStream(chunk.content);
+	    is = chunk.stream();
 	    int[] version = readChunkVersion(is);
 	    int majorVersion = version[0];
 	    int minorVersion = version[1];
@@ -4518,7 +4550,7 @@ public class IRhino3dm{
 	public void read(Rhino3dmFile context, InputStream is)throws IOException{
 	    Chunk chunk = readChunk(is);
 	    if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-	    is = new ByteArrayInputStream(chunk.content);
+	    is = chunk.stream();
 	    int[] version = readChunkVersion(is);
 	    int majorVersion = version[0];
 	    int minorVersion = version[1];
@@ -4554,7 +4586,7 @@ public class IRhino3dm{
 	public void read(Rhino3dmFile context, InputStream is)throws IOException{
 	    Chunk chunk = readChunk(is);
 	    if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-	    is = new ByteArrayInputStream(chunk.content);
+	    is = chunk.stream();
 	    int[] version = readChunkVersion(is);
 	    int majorVersion = version[0];
 	    int minorVersion = version[1];
@@ -4591,7 +4623,7 @@ public class IRhino3dm{
 	public void read(Rhino3dmFile context, InputStream is)throws IOException{
 	    Chunk chunk = readChunk(is);
 	    if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-	    is = new ByteArrayInputStream(chunk.content);
+	    is = chunk.stream();
 	    int[] version = readChunkVersion(is);
 	    int majorVersion = version[0];
 	    int minorVersion = version[1];
@@ -4628,7 +4660,7 @@ public class IRhino3dm{
 	public void read(Rhino3dmFile context, InputStream is)throws IOException{
 	    Chunk chunk = readChunk(is);
 	    if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-	    is = new ByteArrayInputStream(chunk.content);
+	    is = chunk.stream();
 	    int[] version = readChunkVersion(is);
 	    int majorVersion = version[0];
 	    if(majorVersion==1){
@@ -4663,7 +4695,7 @@ public class IRhino3dm{
 	public void read(Rhino3dmFile context, InputStream is)throws IOException{
 	    Chunk chunk = readChunk(is);
 	    if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-	    is = new ByteArrayInputStream(chunk.content);
+	    is = chunk.stream();
 	    int[] version = readChunkVersion(is);
 	    int majorVersion = version[0];
 	    if(majorVersion==1){
@@ -6035,6 +6067,10 @@ public class IRhino3dm{
 	//public MeshPartition partition;
 	//public MeshTree mtree;
 
+	
+	/** geometry created by prepareIObject */
+	public IMeshGeo preparedGeometry;
+
 	public Mesh(){}
 
 	public Mesh(IMeshI mesh){
@@ -6047,9 +6083,12 @@ public class IRhino3dm{
 	    color = new ArrayList<IColor>();
 	    surfaceCurvature = new ArrayList<SurfaceCurvature>();
 	    
+	    // vertices are looked up by identity in a local map not to write IVertex.index
+	    // because vertices can be shared by meshes converted in other threads in parallel export
+	    IdentityHashMap<IVertex,Integer> vindex = new IdentityHashMap<IVertex,Integer>();
 	    for(int i=0; i<mesh.vertexNum(); i++){
 		IVertex v = mesh.vertex(i);
-		v.index = i;
+		vindex.put(v,i);
 		vtx.add(v);
 		vertices.add(v.get());
 		if(v.normal!=null){ normals.add(v.normal.get()); }// not calc a new normal
@@ -6065,9 +6104,9 @@ public class IRhino3dm{
 		    //int vi1 = vtx.indexOf(f.vertex(0));
 		    //int vi2 = vtx.indexOf(f.vertex(1));
 		    //int vi3 = vtx.indexOf(f.vertex(2));
-		    int vi1 = f.vertex(0).index;
-		    int vi2 = f.vertex(1).index;
-		    int vi3 = f.vertex(2).index;
+		    int vi1 = vertexIndex(vindex,f.vertex(0));
+		    int vi2 = vertexIndex(vindex,f.vertex(1));
+		    int vi3 = vertexIndex(vindex,f.vertex(2));
 		    if(vi1>=0 && vi2>=0 && vi3>=0) faces.add(new MeshFace(vi1,vi2,vi3));
 		    else{
 			IOut.err("vertex of the face is missing int the vertices array");
@@ -6078,10 +6117,10 @@ public class IRhino3dm{
 		    //int vi2 = vtx.indexOf(f.vertex(1));
 		    //int vi3 = vtx.indexOf(f.vertex(2));
 		    //int vi4 = vtx.indexOf(f.vertex(3));
-		    int vi1 = f.vertex(0).index;
-		    int vi2 = f.vertex(1).index;
-		    int vi3 = f.vertex(2).index;
-		    int vi4 = f.vertex(3).index;
+		    int vi1 = vertexIndex(vindex,f.vertex(0));
+		    int vi2 = vertexIndex(vindex,f.vertex(1));
+		    int vi3 = vertexIndex(vindex,f.vertex(2));
+		    int vi4 = vertexIndex(vindex,f.vertex(3));
 		    if(vi1>=0 && vi2>=0 && vi3>=0 && vi4>=0) faces.add(new MeshFace(vi1,vi2,vi3,vi4));
 		    else{
 			IOut.err("vertex of the face is missing int the vertices array");
@@ -6090,15 +6129,15 @@ public class IRhino3dm{
 		else if(f.vertexNum()>4){ // divide
 		    //int vi1 = vtx.indexOf(f.vertex(0));
 		    //int vi2 = vtx.indexOf(f.vertex(1));
-		    int vi1 = f.vertex(0).index;
-		    int vi2 = f.vertex(1).index;
+		    int vi1 = vertexIndex(vindex,f.vertex(0));
+		    int vi2 = vertexIndex(vindex,f.vertex(1));
 		    if(vi1>=0&&vi2>=0){
 			for(int j=2; j<f.vertexNum(); j+=2){
 			    if(j<f.vertexNum()-1){
 				//int vi3 = vtx.indexOf(f.vertex(j));
 				//int vi4 = vtx.indexOf(f.vertex(j+1));
-				int vi3 = f.vertex(j).index;
-				int vi4 = f.vertex(j+1).index;
+				int vi3 = vertexIndex(vindex,f.vertex(j));
+				int vi4 = vertexIndex(vindex,f.vertex(j+1));
 				if(vi3>=0&&vi4>=0) faces.add(new MeshFace(vi1,vi2,vi3,vi4));
 				else{
 				    IOut.err("vertex of the face is missing int the vertices array");
@@ -6107,7 +6146,7 @@ public class IRhino3dm{
 			    }
 			    else{
 				//int vi3 = vtx.indexOf(f.vertex(j));
-				int vi3 = f.vertex(j).index;
+				int vi3 = vertexIndex(vindex,f.vertex(j));
 				if(vi3>=0) faces.add(new MeshFace(vi1,vi2,vi3));
 				else{
 				    IOut.err("vertex of the face is missing int the vertices array");
@@ -6201,6 +6240,13 @@ public class IRhino3dm{
 	    }
 	}
 	
+	/** index of the vertex in the map or -1 if it's missing */
+	static int vertexIndex(IdentityHashMap<IVertex,Integer> vindex, IVertex v){
+	    Integer i = vindex.get(v);
+	    if(i==null) return -1;
+	    return i;
+	}
+	
 	
 	public void read(Rhino3dmFile context, InputStream is)throws IOException{
 	    //IOut.err("reading start"); 
@@ -6241,7 +6287,7 @@ public class IRhino3dm{
 		if(b>0){
 		    Chunk chunk = readChunk(is);
 		    if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-		    ByteArrayInputStream bais = new ByteArrayInputStream(chunk.content);
+		    InputStream bais = chunk.stream();
 		    
 		    meshParameters = new MeshParameters();
 		    meshParameters.read(context,bais);
@@ -6254,7 +6300,7 @@ public class IRhino3dm{
 		    if(b>0){
 			Chunk chunk = readChunk(is);
 			if(chunk.header != tcodeAnonymousChunk) throw new IOException("invalid type code = "+hex(chunk.header));
-			ByteArrayInputStream bais = new ByteArrayInputStream(chunk.content);
+			InputStream bais = chunk.stream();
 			curvatureStat[i] = new MeshCurvatureStats();
 			curvatureStat[i].read(context,bais);
 		    }
@@ -6434,9 +6480,18 @@ public class IRhino3dm{
 	
 	
 	public IMesh createIObject(Rhino3dmFile context, IServerI s){
+	    if(preparedGeometry!=null){
+		IMeshGeo mesh = preparedGeometry;
+		preparedGeometry = null;
+		return new IMesh(s,mesh);
+	    }
 	    return new IMesh(s,createIGeometry(context,s));
 	}
 	
+	public void prepareIObject(Rhino3dmFile context){
+	    preparedGeometry = createIGeometry(context,null);
+	}
+	
 	public IMeshGeo createIGeometry(Rhino3dmFile context, IServerI s){
 	    if(vertices==null){
 		IOut.err("mesh vertices is null");
@@ -6828,7 +6883,7 @@ public class IRhino3dm{
 	
 	public void read(Rhino3dmFile context, InputStream is)throws IOException{
 	    Chunk chunk = readChunk(is);
-	    is = new ByteArrayInputStream(chunk.content);
+	    is = chunk.stream();
 	    
 	    int majorVersion = readInt(is);
 	    int minorVersion = readInt(is);
@@ -6902,6 +6957,10 @@ public class IRhino3dm{
 	//public double[] cv;
 	public IVec[] cv;
 	
+	
+	/** geometry created by prepareIObject */
+	public ICurveGeo preparedGeometry;
+	
 	public NurbsCurve(){}
 	
 	public NurbsCurve(ICurveGeo crv){
@@ -7108,6 +7167,11 @@ public class IRhino3dm{
 	}
 	
 	public ICurve createIObject(Rhino3dmFile context, IServerI s){
+	    if(preparedGeometry!=null){
+		ICurveGeo crv = preparedGeometry;
+		preparedGeometry = null;
+		return new ICurve(s,crv);
+	    }
 	    double[] knot2 = getIGKnots();
 	    double ustart=0, uend=1;
 	    if(knot.length>order-2){
@@ -7129,6 +7193,9 @@ public class IRhino3dm{
 	    //setAttributesToIObject(context,crv);
 	    return crv;
 	}
+	public void prepareIObject(Rhino3dmFile context){
+	    preparedGeometry = createIGeometry(context,null);
+	}
 	public ICurveGeo createIGeometry(Rhino3dmFile context, IServerI s){
 	    double[] knot2 = getIGKnots();
 	    double ustart=0, uend=1;
@@ -7222,6 +7289,10 @@ public class IRhino3dm{
 	//public int[] cvCapacity;
 	public IVec[][] cv;
 	
+	
+	/** geometry created by prepareIObject */
+	public ISurfaceGeo preparedGeometry;
+	
 	public NurbsSurface(){}
 	
 	public NurbsSurface(ISurfaceGeo surf){
@@ -7431,6 +7502,11 @@ public class IRhino3dm{
 	}
 	
 	public ISurface createIObject(Rhino3dmFile context, IServerI s){
+	    if(preparedGeometry!=null){
+		ISurfaceGeo surf = preparedGeometry;
+		preparedGeometry = null;
+		return new ISurface(s,surf);
+	    }
 	    if(order==null){
 		IOut.err("order is null");
 		return null;
@@ -7514,6 +7590,10 @@ public class IRhino3dm{
 	    
 	}
 	
+	public void prepareIObject(Rhino3dmFile context){
+	    preparedGeometry = createIGeometry(context,null);
+	}
+	
 	
     }
     
@@ -44,8 +44,8 @@ import java.util.zip.*;
 
 /**
    Rhinoceros 3dm exporter class.
-   The current implementation is inefficient for large data.
-   To be improved.
+   Object records are encoded one by one into a reusable buffer and streamed out
+   and the length of the object table is written back at the end.
    
    @author Satoru Sugihara
 */
@@ -64,6 +64,13 @@ public class IRhino3dmExporter extends IRhino3dm{
     
     public int currentPos;
     
+    /** number of object records encoded at once per thread in parallel export */
+    public static int parallelBatchPerThread = 64;
+    /** minimum byte size of a buffer deflated in blocks in parallel threads */
+    public static int parallelDeflateMinSize = 1<<20;
+    /** byte size of a block deflated in one thread */
+    public static int parallelDeflateBlockSize = 1<<18;
+    
     
     public IRhino3dmExporter(OutputStream ostr, IServerI svr){ ostream = ostr; server = svr; }
     
@@ -317,60 +324,149 @@ public class IRhino3dmExporter extends IRhino3dm{
 	ChunkTable objectTable = new ChunkTable(tcodeObjectTable);
 	
 	IRandomAccessOutputStream raostream = null;
+	ByteArrayOutputStream tableStream = null;
+	OutputStream os = null;
+	long tableStart = 0;
 	
 	if(ostream instanceof IRandomAccessOutputStream){
 	    raostream = (IRandomAccessOutputStream)ostream;
+	    tableStart = raostream.pointer();
 	    objectTable.writeTableHeader(raostream);
+	    os = raostream;
+	}
+	else{ // length of the table is not known until all records are written
+	    tableStream = new ByteArrayOutputStream();
+	    os = tableStream;
 	}
 	
-	int objectNum = server.server().objectNum();
+	final IServer serv = server.server();
+	final int objectNum = serv.objectNum();
 	
 	IOut.debug(0, "writing " + objectNum + "objects");
 	
 	int objCount=0;
-	for(int i=0; i<objectNum; i++){
-	    
-	    //if(i%100==0&&i>0){ IOut.debug(1, "object #"+i+"/"+objectNum); } //
-	    if(i%100==0&&i>0){ IOut.debug(0, "object #"+i+"/"+objectNum); } //
-	    
-	    IObject obj = server.server().getObject(i);
-	    if(obj.isValid()){
-		//Chunk objChunk = getObjectChunk(server.server().getObject(i));
-		Chunk objChunk = getObjectChunk(obj);
-
-		
-		if(obj instanceof IMesh){ // somehow this prevent saving meshes from crashing. why!? timing of GC?
-		    //IOut.debug(100,i+": chunk ="+objChunk); // ??
-		    //if(objChunk!=null) IOut.debug(100,i+": chunk size="+objChunk.contentLength()); // ??
+	if(IConfig.parallelExport && IParallel.threadNum()>1 && objectNum>1){
+	    // records are encoded (and deflated) in parallel in batches and written in the order of the server
+	    int batch = IParallel.threadNum()*parallelBatchPerThread;
+	    final RecordOutputStream[] records = new RecordOutputStream[Math.min(batch,objectNum)];
+	    final boolean[] encoded = new boolean[records.length];
+	    for(int i=0; i<records.length; i++) records[i] = new RecordOutputStream();
+	    for(int i=0; i<objectNum; i+=batch){
+		final int start = i;
+		int end = Math.min(i+batch, objectNum);
+		IParallel.run(start, end, new IParallel.Task(){
+			public void run(int s, int e){
+			    for(int j=s; j<e; j++){
+				records[j-start].reset();
+				encoded[j-start] = writeObjectRecord(records[j-start], serv.getObject(j));
+			    }
+			}
+		    });
+		for(int j=start; j<end; j++){
+		    if(encoded[j-start]){
+			records[j-start].writeTo(os);
+			objCount++;
+		    }
 		}
+		IOut.debug(0, "object #"+end+"/"+objectNum);
+	    }
+	}
+	else{
+	    RecordOutputStream record = new RecordOutputStream(); // reused for all records
+	    for(int i=0; i<objectNum; i++){
 		
-		if(objChunk!=null){
-		    if(raostream!=null){
-
-			objectTable.writeTableEntry(raostream,objChunk);
-			
-			objChunk.clear();
-			objChunk = null;
-		    }
-		    else{ objectTable.add(objChunk); }
-		    
+		//if(i%100==0&&i>0){ IOut.debug(1, "object #"+i+"/"+objectNum); } //
+		if(i%100==0&&i>0){ IOut.debug(0, "object #"+i+"/"+objectNum); } //
+		
+		record.reset();
+		if(writeObjectRecord(record, serv.getObject(i))){
+		    record.writeTo(os);
 		    objCount++;
 		}
 	    }
-	    else{
-		IOut.err("invalid object " + obj + " is skipped.");
-	    }
 	}
 	if(raostream!=null){
 	    objectTable.writeTableEnd(raostream);
+	    currentPos += (int)(raostream.pointer() - tableStart);
 	}
 	else{
-	    objectTable.serialize();
+	    writeChunk(tableStream, new Chunk(objectTable.endTCode,0));
+	    objectTable.content = tableStream.toByteArray();
+	    objectTable.body = objectTable.content.length;
+	    objectTable.serialized = true; // chunks are already written in content
 	    writeChunkTable(objectTable);
 	}
 	IOut.debug(1, objCount + " objects are wrote"); //
     }
     
+    /**
+       Encoding one object record with nested chunks directly into the stream.
+       Chunk lengths are written back after the content and CRC is computed while writing.
+       @return false if the object is not written because it's invalid or has no data.
+    */
+    public boolean writeObjectRecord(RecordOutputStream os, IObject e){
+	if(!e.isValid()){
+	    IOut.err("invalid object " + e + " is skipped.");
+	    return false;
+	}
+	try{
+	    RhinoObject obj = getRhinoObject(e, file);
+	    if(obj==null) return false;
+	    
+	    int start = os.size();
+	    int table = os.beginChunk(tcodeObjectRecord);
+	    
+	    // object type
+	    writeChunk(os, new Chunk(tcodeObjectRecordType, obj.getType()));
+	    
+	    // object
+	    if(!writeObjectChunk(os, obj)){ // no obj data
+		os.setSize(start);
+		return false;
+	    }
+	    
+	    // attributes
+	    if(obj.attributes!=null){
+		CRC32 crc = new CRC32();
+		int attr = os.beginChunk(tcodeObjectRecordAttributes);
+		obj.attributes.write(file, os, crc);
+		os.endChunk(attr, crc);
+	    }
+	    
+	    writeChunk(os, new Chunk(tcodeObjectRecordEnd,0));
+	    os.endChunk(table, null);
+	    return true;
+	}catch(IOException ex){ ex.printStackTrace(); }
+	return false;
+    }
+    
+    /**
+       Encoding openNURBS class chunk of an object directly into the stream.
+       @return false if the object has no data. the stream needs to be set back then.
+    */
+    public boolean writeObjectChunk(RecordOutputStream os, RhinoObject obj)throws IOException{
+	int table = os.beginChunk(tcodeOpenNurbsClass);
+	
+	CRC32 crc = new CRC32();
+	int uuid = os.beginChunk(tcodeOpenNurbsClassUUID);
+	obj.getClassUUID().write(os,crc);
+	os.endChunk(uuid, crc);
+	
+	crc = new CRC32();
+	int data = os.beginChunk(tcodeOpenNurbsClassData);
+	obj.write(file,os,crc);
+	if(os.size()==data+4) return false; // no data
+	os.endChunk(data, crc);
+	
+	// user data
+	// skipped
+	
+	writeChunk(os, new Chunk(tcodeOpenNurbsClassEnd,0));
+	writeChunk(os, new Chunk(tcodeEndOfTable,0));
+	os.endChunk(table, null);
+	return true;
+    }
+    
     static public RhinoObject getRhinoObject(IObject e, Rhino3dmFile context){
 	RhinoObject obj=null;
 	if(e instanceof IPoint){
@@ -910,28 +1006,114 @@ public class IRhino3dmExporter extends IRhino3dm{
 	
     }
     
+    /** deflater and output buffer reused in each thread */
+    static ThreadLocal<Deflater> deflater = new ThreadLocal<Deflater>(){
+	protected Deflater initialValue(){ return new Deflater(Deflater.BEST_COMPRESSION); }
+    };
+    static ThreadLocal<byte[]> deflateBuffer = new ThreadLocal<byte[]>(){
+	protected byte[] initialValue(){ return new byte[1<<16]; }
+    };
+    
     public static void writeDeflate(OutputStream os, byte[] buf, int len, CRC32 crc) throws IOException{
 	
-	Deflater deflater = new Deflater(Deflater.BEST_COMPRESSION);
-	//deflater.setInput(buf,0,len);
-	//byte[] outbuf = new byte[len];
-	//int dlen = deflater.deflate(buf, 0, len);
-	ByteArrayOutputStream baos = new ByteArrayOutputStream();
-	DeflaterOutputStream dos = new DeflaterOutputStream(baos, deflater);
-	dos.write(buf,0,len);
-	dos.close();
-	baos.close();
+	if(IConfig.parallelExport && len>=parallelDeflateMinSize && IParallel.threadNum()>1){
+	    writeDeflateParallel(os, buf, len);
+	    return;
+	}
 	
-	ChunkOutputStream cos = new ChunkOutputStream(tcodeAnonymousChunk);
-	//write(cos, outbuf, dlen, cos.getCRC());
-	byte[] outbuf = baos.toByteArray();
-	write(cos, outbuf, outbuf.length, cos.getCRC());
+	Deflater deflater = IRhino3dmExporter.deflater.get();
+	deflater.reset();
+	deflater.setInput(buf,0,len);
+	deflater.finish();
+	
+	byte[] outbuf = deflateBuffer.get();
+	CRC32 chunkCRC = new CRC32();
+	
+	if(os instanceof RecordOutputStream){ // deflated bytes are written into the chunk as they come out
+	    RecordOutputStream ros = (RecordOutputStream)os;
+	    int pos = ros.beginChunk(tcodeAnonymousChunk);
+	    while(!deflater.finished()){
+		int dlen = deflater.deflate(outbuf);
+		ros.write(outbuf, 0, dlen);
+		chunkCRC.update(outbuf, 0, dlen);
+	    }
+	    ros.endChunk(pos, chunkCRC);
+	    return;
+	}
+	
+	ByteArrayOutputStream baos = new ByteArrayOutputStream(Math.min(len, 1<<20));
+	while(!deflater.finished()){
+	    int dlen = deflater.deflate(outbuf);
+	    baos.write(outbuf, 0, dlen);
+	    chunkCRC.update(outbuf, 0, dlen);
+	}
 	
 	//IOut.err("input length="+len); //
-	//IOut.err("deflated length="+outbuf.length); //
+	//IOut.err("deflated length="+baos.size()); //
 	
-	writeChunk(os, cos.getChunk());
+	writeInt32(os, tcodeAnonymousChunk, null);
+	writeInt32(os, baos.size()+4, null); // content + crc
+	baos.writeTo(os);
+	writeInt32(os, (int)chunkCRC.getValue(), null);
+    }
+    
+    
+    /**
+       Deflating a large buffer in blocks in parallel threads.
+       Each block is compressed with the last 32KB of the previous block as preset dictionary and flushed
+       at byte boundary, and blocks are concatenated into one zlib stream in the anonymous chunk.
+    */
+    public static void writeDeflateParallel(OutputStream os, final byte[] buf, final int len) throws IOException{
+	final int blockSize = parallelDeflateBlockSize;
+	final int blockNum = (len+blockSize-1)/blockSize;
+	final byte[][] blocks = new byte[blockNum][];
+	IParallel.run(0, blockNum, new IParallel.Task(){
+		public void run(int s, int e){
+		    Deflater def = new Deflater(Deflater.BEST_COMPRESSION, true); // raw deflate without zlib header
+		    byte[] outbuf = deflateBuffer.get();
+		    for(int b=s; b<e; b++){
+			int start = b*blockSize;
+			int end = Math.min(start+blockSize, len);
+			def.reset();
+			if(start>0){
+			    int dictLen = Math.min(start, 32768);
+			    def.setDictionary(buf, start-dictLen, dictLen);
+			}
+			def.setInput(buf, start, end-start);
+			ByteArrayOutputStream baos = new ByteArrayOutputStream((end-start)/2);
+			if(end==len){ // last block
+			    def.finish();
+			    while(!def.finished()) baos.write(outbuf, 0, def.deflate(outbuf));
+			}
+			else{
+			    int n;
+			    do{
+				n = def.deflate(outbuf, 0, outbuf.length, Deflater.SYNC_FLUSH);
+				baos.write(outbuf, 0, n);
+			    }while(n==outbuf.length);
+			}
+			blocks[b] = baos.toByteArray();
+		    }
+		    def.end();
+		}
+	    });
+	
+	Adler32 adler = new Adler32();
+	adler.update(buf, 0, len);
+	int a = (int)adler.getValue();
+	byte[] zlibHeader = new byte[]{ (byte)0x78, (byte)0xDA }; // deflate, 32K window, best compression
+	byte[] zlibTrailer = new byte[]{ (byte)(a>>>24), (byte)(a>>>16), (byte)(a>>>8), (byte)a }; // big endian
 	
+	int dlen = zlibHeader.length + zlibTrailer.length;
+	for(int i=0; i<blockNum; i++) dlen += blocks[i].length;
+	
+	CRC32 chunkCRC = new CRC32();
+	writeInt32(os, tcodeAnonymousChunk, null);
+	writeInt32(os, dlen+4, null); // content + crc
+	write(os, zlibHeader, chunkCRC);
+	for(int i=0; i<blockNum; i++){ write(os, blocks[i], chunkCRC); blocks[i]=null; }
+	write(os, zlibTrailer, chunkCRC);
+	writeInt32(os, (int)chunkCRC.getValue(), null);
     }
     
     
@@ -962,4 +1144,36 @@ public class IRhino3dmExporter extends IRhino3dm{
 	}
     }
     
+    /**
+       Reusable byte stream to encode an object record.
+       Nested chunks are written with a temporary length and the length is written back when the chunk ends.
+    */
+    public static class RecordOutputStream extends ByteArrayOutputStream{
+	
+	public RecordOutputStream(){ super(1024); }
+	
+	/** writing a chunk header and a temporary length.
+	    @return position of the length to be passed to endChunk */
+	public int beginChunk(int header){
+	    writeInt(header);
+	    int pos = count;
+	    writeInt(0);
+	    return pos;
+	}
+	
+	/** writing CRC if it's not null and writing back the length of the chunk */
+	public void endChunk(int pos, CRC32 crc){
+	    if(crc!=null) writeInt((int)crc.getValue());
+	    int len = count - pos - 4;
+	    for(int d=0; d<4; d++){ buf[pos+d] = (byte)(len&0xFF); len>>>=8; }
+	}
+	
+	void writeInt(int i){
+	    for(int d=0; d<4; d++){ write(i&0xFF); i>>>=8; }
+	}
+	
+	/** setting back the size to discard written bytes after the position */
+	public void setSize(int size){ count = size; }
+    }
+    
 }
@@ -38,6 +38,8 @@ import igeo.*;
 import igeo.gui.*;
 
 import java.io.*;
+import java.nio.*;
+import java.nio.channels.*;
 //import java.awt.Color;
 import java.util.ArrayList;
 import java.util.zip.*;
@@ -55,6 +57,11 @@ public class IRhino3dmImporter extends IRhino3dm{
     //BufferedReader reader;
     public InputStream istream;
     
+    /** when set, chunks are read as slices of the file mapped on memory instead of istream */
+    public FileChannel channel;
+    /** position of next top level chunk in channel */
+    public long channelPosition;
+    
     //int version=-1;
     
     public boolean eof=false;
@@ -65,15 +72,29 @@ public class IRhino3dmImporter extends IRhino3dm{
     
     public ArrayList<IObject> objects;
     
+    /** number of object records decoded at once per thread in parallel import */
+    public static int parallelBatchPerThread = 64;
+    
     /***************************************************************************
      * non static methods
      ***************************************************************************/
     
     //public IRhino3dmImporter(BufferedReader r){ reader = r; }
     public IRhino3dmImporter(InputStream istr, IServerI svr){ istream = istr; server = svr; }
-        
+    
+    public IRhino3dmImporter(FileChannel ch, IServerI svr){ channel = ch; server = svr; }
+    
     
     public void readFileHeader() throws IOException{
+	if(channel!=null){
+	    final int headerLen = 32;
+	    channelPosition = Math.min(headerLen, channel.size());
+	    readFileHeader(new IByteBufferInputStream(channel.map(FileChannel.MapMode.READ_ONLY, 0, channelPosition)));
+	}
+	else readFileHeader(istream);
+    }
+    
+    public void readFileHeader(InputStream is) throws IOException{
 	
 	final int headerTextLen = 24;
 	final int headerVersionNumLen = 8;
@@ -81,8 +102,8 @@ public class IRhino3dmImporter extends IRhino3dm{
 	byte[] txtBuf = new byte[headerTextLen];
 	byte[] versionBuf = new byte[headerVersionNumLen];
 	
-	istream.read(txtBuf, 0, headerTextLen);
-	istream.read(versionBuf, 0, headerVersionNumLen);
+	is.read(txtBuf, 0, headerTextLen);
+	is.read(versionBuf, 0, headerVersionNumLen);
 	
 	try{
 	    String vstr = new String(versionBuf);
@@ -162,6 +183,7 @@ public class IRhino3dmImporter extends IRhino3dm{
     }
     
     public static short readInt16(InputStream is)throws IOException{
+	if(is instanceof IByteBufferInputStream) return ((IByteBufferInputStream)is).readInt16();
 	return readInt16(read(is,2));
     }
     
@@ -174,6 +196,7 @@ public class IRhino3dmImporter extends IRhino3dm{
     }
     
     public static int readInt32(InputStream is)throws IOException{
+	if(is instanceof IByteBufferInputStream) return ((IByteBufferInputStream)is).readInt32();
 	return readInt32(read(is,4));
     }
     
@@ -186,6 +209,7 @@ public class IRhino3dmImporter extends IRhino3dm{
     }
     
     public static long readInt64(InputStream is)throws IOException{
+	if(is instanceof IByteBufferInputStream) return ((IByteBufferInputStream)is).readInt64();
 	return readInt64(read(is,8));
     }
     
@@ -196,6 +220,7 @@ public class IRhino3dmImporter extends IRhino3dm{
     }
     
     public static float readFloat(InputStream is)throws IOException{
+	if(is instanceof IByteBufferInputStream) return ((IByteBufferInputStream)is).readFloat();
 	return readFloat(read(is,4));
     }
     
@@ -205,6 +230,7 @@ public class IRhino3dmImporter extends IRhino3dm{
     }
     
     public static double readDouble(InputStream is)throws IOException{
+	if(is instanceof IByteBufferInputStream) return ((IByteBufferInputStream)is).readDouble();
 	return readDouble(read(is,8));
     }
     
@@ -239,7 +265,7 @@ public class IRhino3dmImporter extends IRhino3dm{
     }
     
     public static UUID readUUID(Chunk chunk) throws IOException{
-	ByteArrayInputStream bais = new ByteArrayInputStream(chunk.content);
+	InputStream bais = chunk.stream();
 	return readUUID(bais);
     }
     
@@ -543,12 +569,64 @@ public class IRhino3dmImporter extends IRhino3dm{
 	}
 	// if file is corrupted, body (byte length) would be enormous number
 	// max int is 2,147,483,647
+	
+	if(is instanceof IByteBufferInputStream){ // nested chunk in a mapped buffer shares the memory
+	    IByteBufferInputStream bis = (IByteBufferInputStream)is;
+	    if(body > bis.remaining()){
+		if(bis.remaining()==0) throw new EOFException();
+		IOut.err("unexpected end of buffer : len="+body+", remaining="+bis.remaining());
+		throw new IOException();
+	    }
+	    return new Chunk(header,body,bis.slice(body));
+	}
+	
 	byte[] content = read(is,body);
 	
 	return new Chunk(header,body,content); // big chunk
     }
     
     
+    /**
+       reading a top level chunk. if channel is set, the content is not read into heap
+       but mapped on memory and nested chunks are read as slices of it.
+       length of a chunk is read as 32 bit int and a chunk (including the object table)
+       is limited under 2GB, same with the limit of a mapped buffer.
+    */
+    public Chunk readChunk() throws IOException{
+	if(channel==null) return readChunk(istream);
+	
+	ByteBuffer buf = ByteBuffer.allocate(8);
+	buf.order(ByteOrder.LITTLE_ENDIAN);
+	while(buf.hasRemaining()){
+	    if(channel.read(buf, channelPosition+buf.position())<0){
+		if(buf.position()==0) throw new EOFException();
+		IOut.err("unexpected end of file : position="+channelPosition);
+		throw new IOException();
+	    }
+	}
+	buf.flip();
+	int header = buf.getInt();
+	int body = buf.getInt();
+	channelPosition += 8;
+	
+	if(isShortChunk(header) || body==0) return new Chunk(header,body); // short chunk
+	
+	if(body<0){
+	    IOut.err("length of content isn't positive: "+body);
+	    return null;
+	}
+	else if(channelPosition+body > channel.size()){
+	    IOut.err("length of content exceeds file size: "+body);
+	    return null;
+	}
+	
+	MappedByteBuffer content = channel.map(FileChannel.MapMode.READ_ONLY, channelPosition, body);
+	content.order(ByteOrder.LITTLE_ENDIAN);
+	channelPosition += body;
+	return new Chunk(header,body,content); // big chunk
+    }
+    
+    
     public static Chunk[] readChunkTable(Chunk chunk){
 	return readChunkTable(chunk, tcodeEndOfTable);
     }
@@ -559,7 +637,7 @@ public class IRhino3dmImporter extends IRhino3dm{
 	    IOut.err("input chunk is null"); //
 	    return null;
 	}
-	if(chunk.content==null){
+	if(!chunk.hasContent()){
 	    IOut.err("no content in the input chunk"); //
 	    return null;
 	}
@@ -567,7 +645,7 @@ public class IRhino3dmImporter extends IRhino3dm{
 	//IOut.p("table content:"); //
 	//IOut.p(hex(chunk.content)); //
 	
-	ByteArrayInputStream bais = new ByteArrayInputStream(chunk.content);
+	InputStream bais = chunk.stream();
 	Chunk ck=null;
 	ArrayList<Chunk> chunks = new ArrayList<Chunk>();
 	
@@ -602,11 +680,11 @@ public class IRhino3dmImporter extends IRhino3dm{
 	    IOut.err("input chunk is null"); //
 	    return null;
 	}
-	if(chunk.content==null){
+	if(!chunk.hasContent()){
 	    IOut.err("no content in the input chunk"); //
 	    return null;
 	}
-	ByteArrayInputStream bais = new ByteArrayInputStream(chunk.content);
+	InputStream bais = chunk.stream();
 	try{
 	    Chunk ck=readChunk(bais);
 	    return ck;
@@ -724,8 +802,7 @@ public class IRhino3dmImporter extends IRhino3dm{
 			    //return chunks[i+1].content;
 			    //IOut.err("content: "+ hex(chunks[i+1].content)); //
 			    
-			    byte[] data = chunks[i+1].content;
-			    object.read(context,data);
+			    object.read(context,chunks[i+1].stream());
 			    return object;
 			}
 		    }
@@ -811,7 +888,7 @@ public class IRhino3dmImporter extends IRhino3dm{
 	int inSize = chunk.body-4; // last 4 bytes for CRC
 	
 	Inflater inflater = new Inflater();
-	inflater.setInput(chunk.content, 0, inSize);
+	inflater.setInput(chunk.content(), 0, inSize);
 	byte[] buf = new byte[len];
 	try{ inflater.inflate(buf, 0, len); }
 	catch(DataFormatException e){
@@ -830,7 +907,7 @@ public class IRhino3dmImporter extends IRhino3dm{
     public static boolean read(File file, IServerI server){
 	try{
 	    FileInputStream fis = new FileInputStream(file);
-	    boolean retval = read(fis, server);
+	    boolean retval = read(fis.getChannel(), server); // file is mapped on memory
 	    if(fis!=null) fis.close();
 	    return retval;
 	}catch(IOException e){ e.printStackTrace(); }
@@ -843,6 +920,17 @@ public class IRhino3dmImporter extends IRhino3dm{
 	return true;
     }
     
+    /**
+       Reading 3dm data from a file channel by mapping it on memory.
+       Chunk contents are not copied into heap but read from the mapped buffer,
+       which also allows files larger than 2GB.
+    */
+    public static boolean read(FileChannel channel, IServerI server){
+	IRhino3dmImporter importer = new IRhino3dmImporter(channel,server);
+	importer.read();
+	return true;
+    }
+    
     /**
        A method to have a main reading loop.
     */
@@ -867,7 +955,7 @@ public class IRhino3dmImporter extends IRhino3dm{
 		IOut.debug(10,"chunk #"+chunkNum); //
 		
 		try{
-		    chunk = readChunk(istream);
+		    chunk = readChunk();
 		    
 		    if(chunk==null){ IOut.err("chunk is null"); }
 		    else{
@@ -951,12 +1039,13 @@ public class IRhino3dmImporter extends IRhino3dm{
     
     public void readStartSection(Chunk chunk){
 	IOut.debug(10,"Rhino3dmImporter.readStartSection"); //
-	int strlen = chunk.content.length;
+	byte[] content = chunk.content();
+	int strlen = content.length;
 	while(strlen>0 &&
-	      (chunk.content[strlen-1] == 0x00 ||
-	       chunk.content[strlen-1] == 0x1A) ) strlen--;
+	      (content[strlen-1] == 0x00 ||
+	       content[strlen-1] == 0x1A) ) strlen--;
 	
-	String info = new String(chunk.content, 0, strlen);
+	String info = new String(content, 0, strlen);
 	
 	//IOut.p("information:");
 	//IOut.p(info);
@@ -1984,14 +2073,45 @@ public class IRhino3dmImporter extends IRhino3dm{
 	
 	IOut.debug(10,"num of rhino objects : "+chunks.length);
 	
-	int i=0;
-	for(Chunk c:chunks){
-	    if(i>0 && i%100==0) IOut.debug(1,(++i)+"/"+chunks.length);
-	    //IOut.p("object #"+(++i));
-	    //IOut.p(c);
-	    
-	    RhinoObject obj = readRhinoObject(c);
-	    if(obj!=null) robjects.add(obj);
+	if(IConfig.parallelImport && IParallel.threadNum()>1 && chunks.length>1){
+	    // records are decoded in parallel in batches and instantiated in the order of the file
+	    final Chunk[] records = chunks;
+	    int batch = IParallel.threadNum()*parallelBatchPerThread;
+	    final RhinoObject[] decoded = new RhinoObject[Math.min(batch,records.length)];
+	    for(int i=0; i<records.length; i+=batch){
+		final int start = i;
+		int end = Math.min(i+batch, records.length);
+		IParallel.run(start, end, new IParallel.Task(){
+			public void run(int s, int e){
+			    for(int j=s; j<e; j++){
+				RhinoObject obj = decodeRhinoObject(records[j]);
+				if(obj!=null) obj.prepareIObject(file);
+				decoded[j-start] = obj;
+			    }
+			}
+		    });
+		for(int j=start; j<end; j++){
+		    RhinoObject obj = decoded[j-start];
+		    decoded[j-start] = null;
+		    records[j] = null; // release mapped slice
+		    if(obj!=null){
+			createIObject(obj);
+			robjects.add(obj);
+		    }
+		}
+		IOut.debug(1,end+"/"+records.length);
+	    }
+	}
+	else{
+	    int i=0;
+	    for(Chunk c:chunks){
+		if(i>0 && i%100==0) IOut.debug(1,(++i)+"/"+chunks.length);
+		//IOut.p("object #"+(++i));
+		//IOut.p(c);
+		
+		RhinoObject obj = readRhinoObject(c);
+		if(obj!=null) robjects.add(obj);
+	    }
 	}
 	
 	if(robjects.size()>0) file.rhinoObjects = robjects.toArray(new RhinoObject[robjects.size()]);
@@ -2015,6 +2135,16 @@ public class IRhino3dmImporter extends IRhino3dm{
     }
     
     public RhinoObject readRhinoObject(Chunk chunk){
+	RhinoObject object = decodeRhinoObject(chunk);
+	if(object!=null) createIObject(object);
+	return object;
+    }
+    
+    /**
+       decoding an object record without putting it into the server.
+       this doesn't change the importer state and can be called in parallel threads.
+    */
+    public RhinoObject decodeRhinoObject(Chunk chunk){
 	
 	if(file.version==1){
 	    return null; // version 1 not supported
@@ -2056,7 +2186,7 @@ public class IRhino3dmImporter extends IRhino3dm{
 	    for(int i=2; i<chunks.length; i++){
 		if(chunks[i].header == tcodeObjectRecordAttributes){ // object attributes
 		    ObjectAttributes attributes = new ObjectAttributes();
-		    try{ attributes.read(file,chunks[i].content); }
+		    try{ attributes.read(file,chunks[i].stream()); }
 		    catch(IOException e){ e.printStackTrace(); }
 		    
 		    //IOut.p("attributes = "); //
@@ -2070,14 +2200,16 @@ public class IRhino3dmImporter extends IRhino3dm{
 	    }
 	}
 	
-	// instantiate here
+	return object;
+    }
+    
+    /** instantiating a decoded object in the server. */
+    public void createIObject(RhinoObject object){
 	IObject elem = object.createIObject(file,server);
 	if(elem!=null){
 	    object.setAttributesToIObject(file,elem);
 	    objects.add(elem);
 	}
-	
-	return object;
     }
     
     
@@ -2152,7 +2284,7 @@ public class IRhino3dmImporter extends IRhino3dm{
 	IOut.debug(10,"Rhino3dmImporter.readEndMark"); //
 	
 	try{
-	    ByteArrayInputStream bais = new ByteArrayInputStream(chunk.content);
+	    InputStream bais = chunk.stream();
 	    if(file.sizeOfChunkLength()==4){
 		int fileLength = readInt(bais);
 		//IOut.debug(10,"file length = "+fileLength);